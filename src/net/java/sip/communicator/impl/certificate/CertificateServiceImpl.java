@@ -105,6 +105,37 @@
     /** Hash algorithm for the cert thumbprint*/
     private final static String THUMBPRINT_HASH_ALGORITHM = "SHA1";
 
+    /** Hash algorithm for the keys of the verified chain cache */
+    private final static String CHAIN_HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * The maximum number of chains kept in the verified chain cache.
+     */
+    private final static int MAX_VERIFIED_CHAINS = 128;
+
+    /**
+     * The time in milliseconds a successful validation is reused for when
+     * revocation checking is disabled.
+     */
+    private final static long VERIFIED_CHAIN_TTL = 60 * 60 * 1000;
+
+    /**
+     * The time in milliseconds a successful validation is reused for when
+     * revocation checking is enabled, so that revoked certificates are
+     * noticed about as soon as CRLs and OCSP responses are refreshed.
+     */
+    private final static long VERIFIED_CHAIN_REVOCATION_TTL = 10 * 60 * 1000;
+
+    /**
+     * The maximum number of AIA retrievals kept in the AIA cache.
+     */
+    private final static int MAX_AIA_ENTRIES = 64;
+
+    /**
+     * The time in milliseconds AIA retrievals are cached for.
+     */
+    private final static long AIA_TTL = 10 * 60 * 1000;
+
     // ------------------------------------------------------------------------
     // fields
     // ------------------------------------------------------------------------
@@ -117,8 +148,16 @@
     /**
      * Caches retrievals of AIA information (downloaded certs or failures).
      */
-    private Map<URI, AiaCacheEntry> aiaCache =
-        new HashMap<URI, AiaCacheEntry>();
+    private final ExpiringCache<URI, AiaCacheEntry> aiaCache =
+        new ExpiringCache<URI, AiaCacheEntry>(MAX_AIA_ENTRIES);
+
+    /**
+     * Caches the chains which passed the validation of the default trust
+     * manager, so that reconnecting accounts do not build and check the same
+     * paths, including their revocation status, over and over.
+     */
+    private final ExpiringCache<String, Boolean> verifiedChains =
+        new ExpiringCache<String, Boolean>(MAX_VERIFIED_CHAINS);
 
     // ------------------------------------------------------------------------
     // Map access helpers
@@ -147,11 +186,9 @@ private List<String> getSessionCertEntry(String propName)
      */
     private static class AiaCacheEntry
     {
-        Date cacheDate;
         X509Certificate cert;
-        AiaCacheEntry(Date cacheDate, X509Certificate cert)
+        AiaCacheEntry(X509Certificate cert)
         {
-            this.cacheDate = cacheDate;
             this.cert = cert;
         }
     }
@@ -178,6 +215,7 @@ public CertificateServiceImpl()
     public void propertyChange(PropertyChangeEvent evt)
     {
         setTrustStore();
+        verifiedChains.clear();
     }
 
     private void setTrustStore()
@@ -721,18 +759,30 @@ private void checkCertTrusted(X509Certificate[] chain,
 
                 try
                 {
-                    // check the certificate itself (issuer, validity)
-                    try
+                    // check the certificate itself (issuer, validity), unless
+                    // it passed recently with the same trust settings
+                    String chainKey
+                        = getVerifiedChainKey(chain, authType, serverCheck);
+
+                    if (verifiedChains.get(chainKey) == null)
                     {
-                        chain = tryBuildChain(chain);
-                    }
-                    catch (Exception e)
-                    {} // don't care and take the chain as is
+                        try
+                        {
+                            chain = tryBuildChain(chain);
+                        }
+                        catch (Exception e)
+                        {} // don't care and take the chain as is
 
-                    if(serverCheck)
-                        tm.checkServerTrusted(chain, authType);
-                    else
-                        tm.checkClientTrusted(chain, authType);
+                        if(serverCheck)
+                            tm.checkServerTrusted(chain, authType);
+                        else
+                            tm.checkClientTrusted(chain, authType);
+
+                        verifiedChains.put(
+                            chainKey,
+                            Boolean.TRUE,
+                            getVerifiedChainExpiry(chain));
+                    }
 
                     if(identitiesToTest == null
                         || !identitiesToTest.iterator().hasNext())
@@ -928,7 +978,7 @@ private X509Certificate[] tryBuildChain(X509Certificate[] chain)
                         // try to get cert from cache first to avoid consecutive
                         // (slow) http lookups
                         AiaCacheEntry cache = aiaCache.get(uri);
-                        if (cache != null && cache.cacheDate.after(new Date()))
+                        if (cache != null)
                         {
                             cert = cache.cert;
                         }
@@ -956,8 +1006,8 @@ private X509Certificate[] tryBuildChain(X509Certificate[] chain)
                                     + ">");
                             }
                             // cache for 10mins
-                            aiaCache.put(uri, new AiaCacheEntry(new Date(
-                                new Date().getTime() + 10 * 60 * 1000), cert));
+                            aiaCache.put(uri, new AiaCacheEntry(cert),
+                                System.currentTimeMillis() + AIA_TTL);
                         }
                         if (cert != null)
                         {
@@ -1079,6 +1129,61 @@ else if(dialog.isAlwaysTrustSelected())
             return TRUST_THIS_SESSION_ONLY;
     }
 
+    /**
+     * Returns the key of a chain in the verified chain cache. Besides the
+     * certificates, it holds everything the result of the default trust
+     * manager depends on: the kind of check, the trust store and the
+     * revocation settings.
+     *
+     * @param chain the chain as received from the peer
+     * @param authType the key exchange or authentication algorithm
+     * @param serverCheck whether the chain of a server is checked
+     * @return the key of the chain
+     * @throws CertificateException if the chain cannot be encoded
+     */
+    private static String getVerifiedChainKey(X509Certificate[] chain,
+        String authType, boolean serverCheck)
+        throws CertificateException
+    {
+        StringBuilder key = new StringBuilder();
+
+        for (X509Certificate cert : chain)
+            key.append(getThumbprint(cert, CHAIN_HASH_ALGORITHM)).append(',');
+        key.append(serverCheck ? "server" : "client")
+            .append('|').append(authType)
+            .append('|').append(System.getProperty("javax.net.ssl.trustStore"))
+            .append('|').append(
+                System.getProperty("javax.net.ssl.trustStoreType"))
+            .append('|').append(
+                System.getProperty("com.sun.net.ssl.checkRevocation"))
+            .append('|').append(
+                System.getProperty("com.sun.security.enableCRLDP"))
+            .append('|').append(Security.getProperty("ocsp.enable"));
+        return key.toString();
+    }
+
+    /**
+     * Returns the time until which a successful validation of a chain is
+     * reused: shortly when the revocation status of the certificates is
+     * checked, and never beyond the expiry of any of them.
+     *
+     * @param chain the validated chain
+     * @return the time in milliseconds the validation expires at
+     */
+    private static long getVerifiedChainExpiry(X509Certificate[] chain)
+    {
+        boolean revocationChecked = Boolean.parseBoolean(
+            System.getProperty("com.sun.net.ssl.checkRevocation"));
+        long now = System.currentTimeMillis();
+        long expires = now + (revocationChecked
+            ? VERIFIED_CHAIN_REVOCATION_TTL
+            : VERIFIED_CHAIN_TTL);
+
+        for (X509Certificate cert : chain)
+            expires = Math.min(expires, cert.getNotAfter().getTime());
+        return expires;
+    }
+
     /**
      * Calculates the hash of the certificate known as the "thumbprint"
      * and returns it as a string representation.
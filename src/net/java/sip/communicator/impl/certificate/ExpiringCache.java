@@ -0,0 +1,143 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.certificate;
+
+import java.util.*;
+
+/**
+ * A bounded cache whose entries expire at a time given when they are added.
+ * It is safe for use by the threads of concurrent TLS handshakes. When the
+ * least recently used entry has to make room for a new one it is evicted.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ */
+class ExpiringCache<K, V>
+{
+    /**
+     * The cached entries in least recently used order.
+     */
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * Creates a cache holding at most <tt>maxEntries</tt> entries.
+     *
+     * @param maxEntries the maximum number of cached entries
+     */
+    @SuppressWarnings("serial")
+    ExpiringCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> e)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the value cached for <tt>key</tt>.
+     *
+     * @param key the key to look up
+     * @return the cached value or <tt>null</tt> if there is no unexpired
+     * entry for <tt>key</tt>
+     */
+    V get(K key)
+    {
+        return get(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the value cached for <tt>key</tt> at <tt>now</tt>.
+     *
+     * @param key the key to look up
+     * @param now the current time in milliseconds
+     * @return the cached value or <tt>null</tt> if there is no unexpired
+     * entry for <tt>key</tt>
+     */
+    V get(K key, long now)
+    {
+        Entry<V> entry = getEntry(key, now);
+
+        return (entry == null) ? null : entry.value;
+    }
+
+    /**
+     * Caches <tt>value</tt> for <tt>key</tt> until <tt>expires</tt>.
+     *
+     * @param key the key of the entry
+     * @param value the value of the entry
+     * @param expires the time in milliseconds the entry expires at
+     */
+    synchronized void put(K key, V value, long expires)
+    {
+        entries.put(key, new Entry<V>(value, expires));
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached entries, including expired ones not
+     * looked up since they expired.
+     *
+     * @return the number of cached entries
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the unexpired entry of <tt>key</tt>, removing it if expired.
+     */
+    private synchronized Entry<V> getEntry(K key, long now)
+    {
+        Entry<V> entry = entries.get(key);
+
+        if (entry != null && now >= entry.expires)
+        {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * A cached value and its expiry.
+     */
+    private static class Entry<V>
+    {
+        private final V value;
+
+        private final long expires;
+
+        private Entry(V value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
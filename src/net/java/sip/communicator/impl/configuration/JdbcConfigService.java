@@ -22,6 +22,7 @@
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -35,6 +36,10 @@
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * All stored properties are loaded into memory when the service is created
+ * and are read from there without locking. Changes are applied to memory
+ * immediately and written to the database in batches by a background thread.
  * 
  * @author Ingo Bauersachs
  */
@@ -97,12 +102,53 @@
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
 
+    /**
+     * The time, in milliseconds, a background write waits for more changes
+     * to be written in the same batch.
+     */
+    private static final long WRITE_DELAY = 100;
+
+    /**
+     * The time, in milliseconds, to wait before retrying a batch which could
+     * not be written.
+     */
+    private static final long WRITE_RETRY_DELAY = 5000;
+
+    /**
+     * The stored properties by name.
+     */
+    private final Map<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The names of the stored properties in sorted order, used to look up
+     * the properties of a prefix.
+     */
+    private final NavigableSet<String> propertyNames
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The changes not yet written to the database by property name. A
+     * <tt>null</tt> value deletes the property. Also guards
+     * {@link #writerThread}.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The thread writing the pending changes to the database.
+     */
+    private Thread writerThread;
+
+    /**
+     * Guards the connection and the prepared statements.
+     */
+    private final Object dbLock = new Object();
+
     /**
      * Reference to the {@link FileAccessService}.
      */
@@ -131,9 +177,22 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and load the stored properties
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
-        checkConnection();
+        synchronized (dbLock)
+        {
+            checkConnection();
+            ResultSet q = this.selectAll.executeQuery();
+            while (q.next())
+            {
+                String value = q.getString(2);
+                if (value != null)
+                {
+                    this.properties.put(q.getString(1), value);
+                    this.propertyNames.add(q.getString(1));
+                }
+            }
+        }
 
         // then do the actual migration
         if (migrate)
@@ -141,14 +200,10 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
         }
 
         // and finally load the (mandatory) system properties
@@ -158,7 +213,7 @@ public JdbcConfigService(FileAccessService fas) throws Exception
 
     /**
      * Verifies that the connection to the database and all prepared statement
-     * are valid.
+     * are valid. Must be called with <tt>dbLock</tt> held.
      * 
      * @throws SQLException
      */
@@ -206,10 +261,6 @@ private void checkConnection() throws SQLException
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -269,28 +320,173 @@ public synchronized void setProperty(String propertyName, Object property,
                 return;
             }
 
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+            if (property == null)
+            {
+                // remove the name first so that a prefix lookup never
+                // returns a name without a value
+                this.propertyNames.remove(propertyName);
+                this.properties.remove(propertyName);
+                this.queueWrite(propertyName, null);
+            }
+            else
+            {
+                String value = property.toString();
+                this.properties.put(propertyName, value);
+                this.propertyNames.add(propertyName);
+                this.queueWrite(propertyName, value);
+            }
+
+            this.fireChange(propertyName, oldValue, property);
+        }
+    }
+
+    /**
+     * Queues a change to be written to the database by the writer thread,
+     * replacing any pending change of the same property.
+     *
+     * @param propertyName the name of the changed property
+     * @param value the new value or <tt>null</tt> to delete the property
+     */
+    private void queueWrite(String propertyName, String value)
+    {
+        synchronized (pendingWrites)
+        {
+            pendingWrites.put(propertyName, value);
+
+            if (writerThread == null)
+            {
+                writerThread = new Thread("JdbcConfigService writer")
+                {
+                    @Override
+                    public void run()
+                    {
+                        runWriter();
+                    }
+                };
+                writerThread.setDaemon(true);
+                writerThread.start();
+            }
+            else
+            {
+                pendingWrites.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes to the database in batches until the
+     * writer thread is stopped.
+     */
+    private void runWriter()
+    {
+        while (true)
+        {
             try
             {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
+                synchronized (pendingWrites)
                 {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
+                    while (pendingWrites.isEmpty())
+                    {
+                        if (writerThread != Thread.currentThread())
+                            return;
+                        pendingWrites.wait();
+                    }
                 }
-                else
+
+                // let more changes join the batch
+                Thread.sleep(WRITE_DELAY);
+
+                if (!flushPendingWrites())
+                    Thread.sleep(WRITE_RETRY_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes all pending changes to the database in a single transaction.
+     * Changes which could not be written are queued again, unless they have
+     * been replaced by newer ones.
+     *
+     * @return <tt>true</tt> if the pending changes were written
+     */
+    private boolean flushPendingWrites()
+    {
+        synchronized (dbLock)
+        {
+            Map<String, String> batch;
+            synchronized (pendingWrites)
+            {
+                if (pendingWrites.isEmpty())
+                    return true;
+
+                batch = new LinkedHashMap<String, String>(pendingWrites);
+                pendingWrites.clear();
+            }
+
+            try
+            {
+                checkConnection();
+                this.connection.setAutoCommit(false);
+                try
                 {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
+                    boolean deletes = false;
+                    boolean updates = false;
+                    for (Map.Entry<String, String> e : batch.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.addBatch();
+                            deletes = true;
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.addBatch();
+                            updates = true;
+                        }
+                    }
+
+                    if (deletes)
+                        this.delete.executeBatch();
+                    if (updates)
+                        this.insertOrUpdate.executeBatch();
+                    this.connection.commit();
+                }
+                catch (SQLException e)
+                {
+                    this.connection.rollback();
+                    throw e;
+                }
+                finally
+                {
+                    this.connection.setAutoCommit(true);
                 }
 
-                this.fireChange(propertyName, oldValue, property);
+                return true;
             }
             catch (SQLException e)
             {
-                throw new RuntimeException(e);
+                logger.error("Failed to write " + batch.size()
+                    + " properties to the database", e);
+
+                synchronized (pendingWrites)
+                {
+                    for (Map.Entry<String, String> e1 : batch.entrySet())
+                    {
+                        if (!pendingWrites.containsKey(e1.getKey()))
+                            pendingWrites.put(e1.getKey(), e1.getValue());
+                    }
+                }
+
+                return false;
             }
         }
     }
@@ -305,21 +501,10 @@ public synchronized void setProperty(String propertyName, Object property,
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the changes are queued together and written in one batch
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -331,7 +516,7 @@ public synchronized void setProperties(Map<String, Object> properties)
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -339,22 +524,7 @@ public synchronized Object getProperty(String propertyName)
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -401,21 +571,7 @@ public List<String> getAllPropertyNames()
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        data.addAll(propertyNames);
         return data;
     }
 
@@ -430,46 +586,38 @@ public List<String> getAllPropertyNames()
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
+        List<String> resultSet = new ArrayList<String>(50);
+
+        // the names starting with the prefix follow it in sorted order
+        for (String key : propertyNames.tailSet(prefix))
         {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
+            if (!key.startsWith(prefix))
             {
-                String key = q.getString(1);
+                break;
+            }
 
-                if(exactPrefixMatch)
+            if(exactPrefixMatch)
+            {
+                int ix = key.lastIndexOf('.');
+                if(ix == -1)
                 {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
+                    continue;
+                }
 
-                    String keyPrefix = key.substring(0, ix);
+                String keyPrefix = key.substring(0, ix);
 
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
+                if(prefix.equals(keyPrefix))
                 {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
+                    resultSet.add(key);
                 }
             }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
+            else
+            {
+                resultSet.add(key);
+            }
         }
+
+        return resultSet;
     }
 
     /*
@@ -482,26 +630,15 @@ public List<String> getPropertyNamesByPrefix(String prefix,
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
+        List<String> resultKeySet = new ArrayList<String>(20);
+        for (String key : propertyNames)
         {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
+            int ix = key.lastIndexOf('.');
+            if (ix != -1 && suffix.equals(key.substring(ix + 1)))
+                resultKeySet.add(key);
         }
+
+        return resultKeySet;
     }
 
     /*
@@ -768,17 +905,31 @@ public void removeVetoableChangeListener(String propertyName,
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
+        synchronized (pendingWrites)
         {
-            this.connection.close();
+            // stops the writer thread once it has nothing left to write
+            writerThread = null;
+            pendingWrites.notifyAll();
         }
-        catch (SQLException e)
-        {
-            logger.error(e);
-        }
-        finally
+
+        synchronized (dbLock)
         {
-            this.connection = null;
+            if (!flushPendingWrites())
+                throw new IOException("Failed to write the configuration");
+
+            try
+            {
+                if (this.connection != null)
+                    this.connection.close();
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+            }
+            finally
+            {
+                this.connection = null;
+            }
         }
     }
 
@@ -799,18 +950,29 @@ public void reloadConfiguration() throws IOException
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
-        try
+        synchronized (dbLock)
         {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
+            synchronized (pendingWrites)
+            {
+                pendingWrites.clear();
+            }
+
+            this.propertyNames.clear();
+            this.properties.clear();
+
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+                throw new RuntimeException(e);
+            }
         }
     }
 
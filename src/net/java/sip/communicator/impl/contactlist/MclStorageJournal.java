@@ -0,0 +1,202 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only file of the changes made to the contact list since its last
+ * snapshot. Records are opaque byte arrays, each one prefixed by its length
+ * and checksum as described in <tt>RecordFrames</tt>.
+ *
+ * A record which was only partially written when the application stopped
+ * fails its checksum. It is dropped, together with anything after it, the
+ * next time the journal is read.
+ */
+class MclStorageJournal
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclStorageJournal.class);
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * The stream appending to the journal file, opened on first append.
+     */
+    private DataOutputStream out = null;
+
+    /**
+     * Creates a journal stored in <tt>file</tt>.
+     *
+     * @param file the journal file, which does not need to exist
+     */
+    MclStorageJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the journal file.
+     *
+     * @return the journal file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the size of the journal file.
+     *
+     * @return the size of the journal file in bytes
+     */
+    synchronized long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Reads all valid records of the journal in the order they were appended
+     * and truncates a partially written tail so that new records are appended
+     * after the last valid one.
+     *
+     * @return the records of the journal
+     * @throws IOException if reading fails
+     */
+    synchronized List<byte[]> read()
+        throws IOException
+    {
+        List<byte[]> records = new ArrayList<byte[]>();
+        if (!file.exists())
+            return records;
+
+        closeStream();
+
+        long validLength = 0;
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            byte[] record;
+
+            while ((record = RecordFrames.read(channel, validLength, 0))
+                != null)
+            {
+                records.add(record);
+                validLength += RecordFrames.HEADER_SIZE + record.length;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        RecordFrames.truncate(file, validLength);
+
+        return records;
+    }
+
+    /**
+     * Appends records to the journal and flushes them to the file.
+     *
+     * @param records the records to append
+     * @throws IOException if writing fails
+     */
+    synchronized void append(List<byte[]> records)
+        throws IOException
+    {
+        if (records.isEmpty())
+            return;
+
+        if (out == null)
+        {
+            out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(file, true)));
+        }
+
+        try
+        {
+            for (byte[] record : records)
+                RecordFrames.write(out, record);
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            // reopen on the next append rather than writing after a record
+            // of unknown state
+            closeStream();
+            throw ex;
+        }
+    }
+
+    /**
+     * Removes all records from the journal. Called once the changes they
+     * describe have been written to a snapshot.
+     *
+     * @throws IOException if the file cannot be truncated
+     */
+    synchronized void clear()
+        throws IOException
+    {
+        closeStream();
+
+        if (file.exists())
+            new FileOutputStream(file).close();
+    }
+
+    /**
+     * Closes the journal file. It is reopened by the next append.
+     */
+    synchronized void close()
+    {
+        closeStream();
+    }
+
+    /**
+     * Closes the append stream, if open.
+     */
+    private void closeStream()
+    {
+        if (out == null)
+            return;
+
+        try
+        {
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            logger.warn("Failed to close " + file, ex);
+        }
+        finally
+        {
+            out = null;
+        }
+    }
+}
@@ -49,6 +49,12 @@
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Changes to the contact list are not written by rewriting the file. Every
+ * changed meta contact or group is appended to a journal next to the file,
+ * which is replayed on top of the file when the storage manager starts. The
+ * journal is compacted into a new contact list file by the storage thread
+ * once it grows too big.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -121,6 +127,24 @@
      */
     private FailSafeTransaction contactlistTrans = null;
 
+    /**
+     * The journal of the changes made since the contact list file was last
+     * written.
+     */
+    private MclStorageJournal journal = null;
+
+    /**
+     * The journal records not yet written by the storage thread. Guarded by
+     * <tt>contactListRWLock</tt>.
+     */
+    private List<byte[]> pendingJournalRecords = new ArrayList<byte[]>();
+
+    /**
+     * A lock serializing the writes to the contact list file and its
+     * journal.
+     */
+    private final Object storageLock = new Object();
+
     /**
      * A reference to the MetaContactListServiceImpl that created and started
      * us.
@@ -245,6 +269,45 @@
      */
     private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
 
+    /**
+     * The extension appended to the contact list file name to get the name
+     * of its journal.
+     */
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    /**
+     * The size, in bytes, above which the journal is compacted into a new
+     * contact list file.
+     */
+    private static final long JOURNAL_COMPACT_SIZE = 512 * 1024;
+
+    /**
+     * The name of the journal record replacing or adding a meta contact node.
+     */
+    private static final String JOURNAL_PUT_META_CONTACT = "put-meta-contact";
+
+    /**
+     * The name of the journal record removing a meta contact node.
+     */
+    private static final String JOURNAL_REMOVE_META_CONTACT =
+        "remove-meta-contact";
+
+    /**
+     * The name of the journal record replacing or adding a group node.
+     */
+    private static final String JOURNAL_PUT_GROUP = "put-group";
+
+    /**
+     * The name of the journal record removing a group node.
+     */
+    private static final String JOURNAL_REMOVE_GROUP = "remove-group";
+
+    /**
+     * The name of the XML attribute of journal records containing the UID of
+     * the parent group of the changed node, empty for the root group.
+     */
+    private static final String JOURNAL_PARENT_ATTR_NAME = "parent";
+
     /**
      * A lock that we use when storing the contact list to avoid being exited
      * while in there.
@@ -338,6 +401,9 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
 
+        journal = new MclStorageJournal(
+            new File(contactlistFile.getPath() + JOURNAL_EXTENSION));
+
         // create the failsafe transaction and restore the file if needed
         try
         {
@@ -367,12 +433,19 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
+                isModified = true;
+                journal.clear();
             }
             else
             {
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+
+                    // apply the changes made after the file was written and
+                    // compact them once started
+                    if (replayJournal(builder) > 0)
+                        isModified = true;
                 }
                 catch (Throwable ex)
                 {
@@ -387,6 +460,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
+                    isModified = true;
+                    journal.clear();
                 }
             }
         }
@@ -404,7 +479,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
     }
 
     /**
-     * Stores the contact list in its current state.
+     * Schedules the contact list to be written in its current state,
+     * replacing the journal.
      *
      * @throws IOException if writing fails.
      */
@@ -434,6 +510,18 @@ private void storeContactList0() throws IOException
             logger.trace("storing contact list. because is modified =="
             + isModified);
         if (isStarted())
+            writeSnapshot();
+    }
+
+    /**
+     * Writes the whole contact list to its file and clears the journal whose
+     * changes it now contains.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void writeSnapshot() throws IOException
+    {
+        synchronized (storageLock)
         {
             // begin a new transaction
             try
@@ -459,13 +547,46 @@ private void storeContactList0() throws IOException
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // a crash before the journal is cleared only replays changes
+            // which the file already contains
+            journal.clear();
+        }
+    }
+
+    /**
+     * Writes changes made to the contact list. Journal records are appended
+     * to the journal unless a new snapshot is requested or the journal has
+     * grown too big, in which case the whole contact list is written instead.
+     *
+     * @param records the journal records of the changes
+     * @param snapshot whether to write the whole contact list
+     * @throws IOException in case writing fails.
+     */
+    private void storeChanges(List<byte[]> records, boolean snapshot)
+        throws IOException
+    {
+        synchronized (storageLock)
+        {
+            if (!snapshot)
+            {
+                journal.append(records);
+                if (journal.length() < JOURNAL_COMPACT_SIZE)
+                    return;
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Compacting the contact list journal");
+            }
+
+            // the document already contains the changes of the records
+            storeContactList0();
         }
     }
 
     /**
      * Launches a separate thread that waits on the contact list rw lock and
-     * when notified stores the contact list in case there have been
-     * modifications since last time it saved.
+     * when notified writes the journal records of the changes since the last
+     * time it ran, or the whole contact list when a new snapshot is needed.
      */
     private void launchStorageThread()
     {
@@ -476,17 +597,31 @@ public void run()
             {
                 try
                 {
-                    synchronized (contactListRWLock)
+                    while (true)
                     {
-                        while (isStarted())
+                        List<byte[]> records;
+                        boolean snapshot;
+
+                        synchronized (contactListRWLock)
                         {
-                            contactListRWLock.wait(5000);
-                            if (isModified)
-                            {
-                                storeContactList0();
-                                isModified = false;
-                            }
+                            if (!isStarted())
+                                break;
+
+                            if (!isModified && pendingJournalRecords.isEmpty())
+                                contactListRWLock.wait(5000);
+
+                            if (!isStarted())
+                                break;
+
+                            snapshot = isModified;
+                            isModified = false;
+                            records = pendingJournalRecords;
+                            pendingJournalRecords = new ArrayList<byte[]>();
                         }
+
+                        // write outside of the lock so that listeners are
+                        // not blocked while a snapshot is written
+                        storeChanges(records, snapshot);
                     }
                 }
                 catch (IOException ex)
@@ -509,6 +644,9 @@ public void run()
      */
     public void storeContactListAndStopStorageManager()
     {
+        List<byte[]> records;
+        boolean snapshot;
+
         synchronized (contactListRWLock)
         {
             if (!isStarted())
@@ -519,16 +657,233 @@ public void storeContactListAndStopStorageManager()
             // make sure everyone gets released after we finish.
             contactListRWLock.notifyAll();
 
-            // write the contact list ourselves before we go out..
+            snapshot = isModified;
+            isModified = false;
+            records = pendingJournalRecords;
+            pendingJournalRecords = new ArrayList<byte[]>();
+        }
+
+        // write the pending changes ourselves before we go out..
+        synchronized (storageLock)
+        {
             try
             {
-                storeContactList0();
+                if (snapshot)
+                    writeSnapshot();
+                else
+                    journal.append(records);
             }
             catch (IOException ex)
             {
                 logger
                     .debug("Failed to store contact list before stopping", ex);
             }
+            finally
+            {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * Applies the records of the journal to the contact list document.
+     *
+     * @param builder the builder used to parse the records
+     * @return the number of records in the journal
+     */
+    private int replayJournal(DocumentBuilder builder)
+    {
+        List<byte[]> records;
+        try
+        {
+            records = journal.read();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+            return 0;
+        }
+
+        for (byte[] record : records)
+        {
+            try
+            {
+                applyJournalRecord(
+                    builder.parse(new ByteArrayInputStream(record))
+                        .getDocumentElement());
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Skipping invalid contact list journal record",
+                    ex);
+            }
+        }
+
+        if (!records.isEmpty() && logger.isInfoEnabled())
+        {
+            logger.info("Replayed " + records.size()
+                + " changes from the contact list journal");
+        }
+
+        return records.size();
+    }
+
+    /**
+     * Applies a single journal record to the contact list document. Records
+     * describe the complete state of the changed node, so applying a record
+     * again, or on top of a file which already contains it, has no effect.
+     *
+     * @param record the record element
+     */
+    private void applyJournalRecord(Element record)
+    {
+        String type = record.getNodeName();
+        boolean isGroup = JOURNAL_PUT_GROUP.equals(type)
+            || JOURNAL_REMOVE_GROUP.equals(type);
+
+        if (JOURNAL_REMOVE_META_CONTACT.equals(type)
+                || JOURNAL_REMOVE_GROUP.equals(type))
+        {
+            String uid = record.getAttribute(UID_ATTR_NAME);
+            Element node = isGroup
+                ? findMetaContactGroupNode(uid)
+                : findMetaContactNode(uid);
+
+            if (node != null)
+                node.getParentNode().removeChild(node);
+            return;
+        }
+
+        Element changed = XMLUtils.findChild(record,
+            isGroup ? GROUP_NODE_NAME : META_CONTACT_NODE_NAME);
+        if (changed == null)
+        {
+            logger.warn("Unknown contact list journal record: " + type);
+            return;
+        }
+
+        String parentUID = record.getAttribute(JOURNAL_PARENT_ATTR_NAME);
+        Element container;
+        if (isGroup && parentUID.length() == 0)
+        {
+            container = contactListDocument.getDocumentElement();
+        }
+        else
+        {
+            Element parentNode = findMetaContactGroupNode(parentUID);
+            if (parentNode == null)
+            {
+                logger.warn("Parent of journaled node not found: "
+                    + parentUID);
+                return;
+            }
+
+            container = XMLUtils.findChild(parentNode,
+                isGroup ? SUBGROUPS_NODE_NAME : CHILD_CONTACTS_NODE_NAME);
+        }
+
+        String uid = changed.getAttribute(UID_ATTR_NAME);
+        Element existing = isGroup
+            ? findMetaContactGroupNode(uid)
+            : findMetaContactNode(uid);
+        Node node = contactListDocument.importNode(changed, true);
+
+        if (existing != null && existing.getParentNode() == container)
+        {
+            container.replaceChild(node, existing);
+        }
+        else
+        {
+            if (existing != null)
+                existing.getParentNode().removeChild(existing);
+            container.appendChild(node);
+        }
+    }
+
+    /**
+     * Journals the current state of a meta contact or group node, which is
+     * added or replaced when the journal is replayed.
+     *
+     * @param node the changed meta contact or group node
+     * @throws IOException if a snapshot fallback fails.
+     */
+    private void journalNodeChanged(Element node) throws IOException
+    {
+        boolean isGroup = GROUP_NODE_NAME.equals(node.getNodeName());
+
+        // meta contacts are in the child-contacts and groups in the
+        // subgroups of their parent group, except for the root group
+        String parentUID = "";
+        Node parent = node.getParentNode();
+        if (parent != contactListDocument.getDocumentElement())
+        {
+            parentUID = ((Element) parent.getParentNode())
+                .getAttribute(UID_ATTR_NAME);
+        }
+
+        try
+        {
+            Document record = XMLUtils.createDocument();
+            Element recordElement = record.createElement(
+                isGroup ? JOURNAL_PUT_GROUP : JOURNAL_PUT_META_CONTACT);
+            recordElement.setAttribute(JOURNAL_PARENT_ATTR_NAME, parentUID);
+            recordElement.appendChild(record.importNode(node, true));
+            record.appendChild(recordElement);
+
+            queueJournalRecord(record);
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Failed to journal contact list change", ex);
+            scheduleContactListStorage();
+        }
+    }
+
+    /**
+     * Journals the removal of a meta contact or group node.
+     *
+     * @param node the removed meta contact or group node
+     * @throws IOException if a snapshot fallback fails.
+     */
+    private void journalNodeRemoved(Element node) throws IOException
+    {
+        boolean isGroup = GROUP_NODE_NAME.equals(node.getNodeName());
+
+        try
+        {
+            Document record = XMLUtils.createDocument();
+            Element recordElement = record.createElement(
+                isGroup ? JOURNAL_REMOVE_GROUP : JOURNAL_REMOVE_META_CONTACT);
+            recordElement.setAttribute(
+                UID_ATTR_NAME, node.getAttribute(UID_ATTR_NAME));
+            record.appendChild(recordElement);
+
+            queueJournalRecord(record);
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Failed to journal contact list change", ex);
+            scheduleContactListStorage();
+        }
+    }
+
+    /**
+     * Queues a journal record to be written by the storage thread.
+     *
+     * @param record the record document
+     * @throws Exception if the record cannot be serialized
+     */
+    private void queueJournalRecord(Document record) throws Exception
+    {
+        byte[] bytes = XMLUtils.createXml(record).getBytes("UTF-8");
+
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            pendingJournalRecords.add(bytes);
+            contactListRWLock.notifyAll();
         }
     }
 
@@ -650,10 +1005,8 @@ void extractContactsForAccount(String accountID) throws XMLException
                 // if there is root lets parse it
                 // parse the group node and extract all its child groups and
                 // contacts
+                // nodes which fail to load are removed and journaled
                 processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
-
-                // now save the contact list in case it has changed
-                scheduleContactListStorage();
             }
 
         }
@@ -903,6 +1256,7 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
                     {
                         currentMetaContactNode.getParentNode().removeChild(
                             currentMetaContactNode);
+                        journalNodeRemoved((Element) currentMetaContactNode);
                     }
                     catch (Throwable throwable)
                     {
@@ -954,6 +1308,7 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
                     {
                         currentGroupNode.getParentNode().removeChild(
                             currentGroupNode);
+                        journalNodeRemoved((Element) currentGroupNode);
                     }
                     catch (Throwable thr)
                     {
@@ -1310,7 +1665,7 @@ public void metaContactAdded(MetaContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(metaContactElement);
         }
         catch (IOException ex)
         {
@@ -1364,7 +1719,7 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(newGroupElement);
         }
         catch (IOException ex)
         {
@@ -1403,7 +1758,7 @@ public void metaContactGroupRemoved(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeRemoved(metaContactGroupNode);
         }
         catch (IOException ex)
         {
@@ -1462,7 +1817,7 @@ public void metaContactMoved(MetaContactMovedEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1548,7 +1903,7 @@ public void metaContactRemoved(MetaContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeRemoved(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1603,7 +1958,7 @@ public void metaContactRenamed(MetaContactRenamedEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1643,7 +1998,7 @@ public void protoContactModified(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1789,7 +2144,7 @@ else if (oldValue != null && newValue != null)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1831,7 +2186,7 @@ public void protoContactRemoved(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(oldMcNode);
         }
         catch (IOException ex)
         {
@@ -1897,22 +2252,7 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
 
             parentNode.appendChild(newGroupElement);
 
-            try
-            {
-                scheduleContactListStorage();
-            }
-            catch (IOException ex)
-            {
-                /**
-                 * given we're being invoked from an event dispatch thread that
-                 * was probably triggered by a net operation - we could not do
-                 * much. so ... log and @todo one day we'll have a global error
-                 * dispatcher
-                 */
-                logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
-                    ex);
-            }
+            mcGroupNode = newGroupElement;
             break;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             mcGroupNode
@@ -1922,7 +2262,7 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(mcGroupNode);
         }
         catch (IOException ex)
         {
@@ -1971,7 +2311,7 @@ public void protoContactAdded(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(mcNode);
         }
         catch (IOException ex)
         {
@@ -2029,7 +2369,8 @@ public void protoContactMoved(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            journalNodeChanged(oldMcNode);
+            journalNodeChanged(newMcNode);
         }
         catch (IOException ex)
         {
@@ -2085,6 +2426,8 @@ private Element findMetaContactGroupNode(String metaContactGroupUID)
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        this.journal.close();
+        this.journal.getFile().delete();
     }
 
     /**
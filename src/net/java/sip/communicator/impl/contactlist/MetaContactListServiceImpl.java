@@ -40,7 +40,7 @@
 public class MetaContactListServiceImpl
     implements MetaContactListService,
                ServiceListener,
-               ContactPresenceStatusListener,
+               ContactPresenceStatusBatchListener,
                ContactCapabilitiesListener
 {
     /**
@@ -3152,28 +3152,78 @@ else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
     public void contactPresenceStatusChanged(
         ContactPresenceStatusChangeEvent evt)
     {
-        MetaContactImpl metaContactImpl =
-            (MetaContactImpl) findMetaContactByContact(evt.getSourceContact());
+        MetaContactGroup reorderedGroup
+            = reevalContactOrder(evt.getSourceContact());
 
-        //ignore if we have no meta contact.
-        if(metaContactImpl == null)
-            return;
+        if(reorderedGroup != null)
+        {
+            fireMetaContactGroupEvent(
+                reorderedGroup
+                , evt.getSourceProvider()
+                , null
+                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+        }
+    }
 
-        int oldContactIndex = metaContactImpl.getParentGroup()
-            .indexOf(metaContactImpl);
+    /**
+     * Updates the ordering of the meta contacts of all the status changes of
+     * the batch and notifies the reordering of each group once.
+     *
+     * @param evt the <tt>ContactPresenceStatusBatchEvent</tt> describing the
+     * status changes.
+     */
+    public void contactPresenceStatusBatchChanged(
+        ContactPresenceStatusBatchEvent evt)
+    {
+        Set<MetaContactGroup> reorderedGroups
+            = new LinkedHashSet<MetaContactGroup>();
 
-        int newContactIndex = metaContactImpl.reevalContact();
+        for (ContactPresenceStatusChangeEvent change : evt.getEvents())
+        {
+            MetaContactGroup reorderedGroup
+                = reevalContactOrder(change.getSourceContact());
 
-        if(oldContactIndex != newContactIndex)
+            if(reorderedGroup != null)
+                reorderedGroups.add(reorderedGroup);
+        }
+
+        for (MetaContactGroup reorderedGroup : reorderedGroups)
         {
             fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
+                reorderedGroup
                 , evt.getSourceProvider()
                 , null
                 , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
         }
     }
 
+    /**
+     * Reevaluates the meta contact of a contact whose status has changed and
+     * its position in its parent group.
+     *
+     * @param contact the contact whose status has changed.
+     * @return the parent group of the meta contact if the meta contact has
+     * moved in it, or <tt>null</tt> otherwise.
+     */
+    private MetaContactGroup reevalContactOrder(Contact contact)
+    {
+        MetaContactImpl metaContactImpl =
+            (MetaContactImpl) findMetaContactByContact(contact);
+
+        //ignore if we have no meta contact.
+        if(metaContactImpl == null)
+            return null;
+
+        int oldContactIndex = metaContactImpl.getParentGroup()
+            .indexOf(metaContactImpl);
+
+        int newContactIndex = metaContactImpl.reevalContact();
+
+        return (oldContactIndex != newContactIndex)
+            ? findParentMetaContactGroup(metaContactImpl)
+            : null;
+    }
+
 
     /**
      * The method is called from the storage manager whenever a new contact
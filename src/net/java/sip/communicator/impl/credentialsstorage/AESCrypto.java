@@ -19,12 +19,15 @@
 
 import java.security.*;
 import java.security.spec.*;
+import java.util.*;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import javax.security.auth.*;
 
 import net.java.sip.communicator.service.credentialsstorage.*;
 import net.java.sip.communicator.util.*;
+import net.java.sip.communicator.util.Base64; // disambiguation
 
 /**
  * Performs encryption and decryption of text using AES algorithm.
@@ -63,7 +66,7 @@
     /**
      * Key derived from the master password to use for encryption/decryption.
      */
-    private Key key;
+    private SecretKey key;
 
     /**
      * Decryption object.
@@ -84,26 +87,37 @@ public AESCrypto(String masterPassword)
     {
         try
         {
-            // we try init of key with suupplied lengths
-            // we stop after the first successful attempt
-            for (int i = 0; i < KEY_LENGTHS.length; i++)
-            {
-                decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
-                encryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            // PBKDF2 is slow by design. Derive the longest key once, the
+            // shorter ones are its prefixes.
+            byte[] derivedKey = deriveKey(masterPassword, KEY_LENGTHS[0]);
 
-                try
+            try
+            {
+                // we try init of key with suupplied lengths
+                // we stop after the first successful attempt
+                for (int i = 0; i < KEY_LENGTHS.length; i++)
                 {
-                    initKey(masterPassword, KEY_LENGTHS[i]);
+                    decryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                    encryptCipher = Cipher.getInstance(CIPHER_ALGORITHM);
 
-                    // its ok stop trying
-                    break;
-                }
-                catch (InvalidKeyException e)
-                {
-                    if(i == KEY_LENGTHS.length - 1)
-                        throw e;
+                    try
+                    {
+                        initKey(derivedKey, KEY_LENGTHS[i]);
+
+                        // its ok stop trying
+                        break;
+                    }
+                    catch (InvalidKeyException e)
+                    {
+                        if(i == KEY_LENGTHS.length - 1)
+                            throw e;
+                    }
                 }
             }
+            finally
+            {
+                Arrays.fill(derivedKey, (byte) 0);
+            }
         }
         catch (InvalidKeyException e)
         {
@@ -124,18 +138,16 @@ public AESCrypto(String masterPassword)
     }
 
     /**
-     * Initialize key with specified length.
+     * Derives the key material from the master password.
      *
      * @param masterPassword used to derive the key. Can be null.
      * @param keyLength Length of the key in bits.
-     * @throws InvalidKeyException if the key is invalid (bad encoding,
-     * wrong length, uninitialized, etc).
+     * @return the derived key material
      * @throws NoSuchAlgorithmException if the algorithm chosen does not exist
      * @throws InvalidKeySpecException if the key specifications are invalid
      */
-    private void initKey(String masterPassword, int keyLength)
-        throws  InvalidKeyException,
-                NoSuchAlgorithmException,
+    static byte[] deriveKey(String masterPassword, int keyLength)
+        throws  NoSuchAlgorithmException,
                 InvalidKeySpecException
     {
         // if the password is empty, we get an exception constructing the key
@@ -151,12 +163,35 @@ private void initKey(String masterPassword, int keyLength)
         SecretKeyFactory factory =
             SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
         // Make a key from the master password
-        KeySpec spec =
-            new PBEKeySpec(masterPassword.toCharArray(), SALT,
-                ITERATION_COUNT, keyLength);
-        SecretKey tmp = factory.generateSecret(spec);
+        char[] password = masterPassword.toCharArray();
+        PBEKeySpec spec =
+            new PBEKeySpec(password, SALT, ITERATION_COUNT, keyLength);
+
+        try
+        {
+            return factory.generateSecret(spec).getEncoded();
+        }
+        finally
+        {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Initialize key with specified length.
+     *
+     * @param derivedKey the key material derived from the master password,
+     * at least <tt>keyLength</tt> bits long
+     * @param keyLength Length of the key in bits.
+     * @throws InvalidKeyException if the key is invalid (bad encoding,
+     * wrong length, uninitialized, etc).
+     */
+    private void initKey(byte[] derivedKey, int keyLength)
+        throws InvalidKeyException
+    {
         // Make an algorithm specific key
-        key = new SecretKeySpec(tmp.getEncoded(), KEY_ALGORITHM);
+        key = new SecretKeySpec(derivedKey, 0, keyLength / 8, KEY_ALGORITHM);
 
         // just a check whether the key size is wrong
         encryptCipher.init(Cipher.ENCRYPT_MODE, key);
@@ -171,8 +206,12 @@ private void initKey(String masterPassword, int keyLength)
      * @throws CryptoException when the ciphertext cannot be decrypted with the
      *             key or on decryption error.
      */
-    public String decrypt(String ciphertext) throws CryptoException
+    public synchronized String decrypt(String ciphertext)
+        throws CryptoException
     {
+        if (key == null)
+            throw new CryptoException(CryptoException.DECRYPTION_ERROR, null);
+
         try
         {
             decryptCipher.init(Cipher.DECRYPT_MODE, key);
@@ -196,8 +235,12 @@ public String decrypt(String ciphertext) throws CryptoException
      * @return base64 encoded encrypted data
      * @throws CryptoException on encryption error
      */
-    public String encrypt(String plaintext) throws CryptoException
+    public synchronized String encrypt(String plaintext)
+        throws CryptoException
     {
+        if (key == null)
+            throw new CryptoException(CryptoException.ENCRYPTION_ERROR, null);
+
         try
         {
             encryptCipher.init(Cipher.ENCRYPT_MODE, key);
@@ -209,4 +252,25 @@ public String encrypt(String plaintext) throws CryptoException
             throw new CryptoException(CryptoException.ENCRYPTION_ERROR, e);
         }
     }
+
+    /**
+     * Destroys the key. The ciphers cannot be used afterwards.
+     */
+    public synchronized void destroy()
+    {
+        if (key instanceof Destroyable)
+        {
+            try
+            {
+                ((Destroyable) key).destroy();
+            }
+            catch (DestroyFailedException e)
+            {
+                // not supported by the key implementation, drop it
+            }
+        }
+        key = null;
+        decryptCipher = null;
+        encryptCipher = null;
+    }
 }
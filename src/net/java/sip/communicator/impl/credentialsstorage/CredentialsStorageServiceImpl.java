@@ -74,7 +74,14 @@
     /**
      * A {@link Crypto} instance that does the actual encryption and decryption.
      */
-    private Crypto crypto;
+    private volatile Crypto crypto;
+
+    /**
+     * The object which synchronizes the replacement of {@link #crypto}. It is
+     * not the service itself, which is locked while the master password
+     * prompt is shown.
+     */
+    private final Object cryptoSyncRoot = new Object();
 
     /**
      * Initializes the credentials service by fetching the configuration service
@@ -103,7 +110,7 @@ void start(BundleContext bc)
      */
     void stop()
     {
-        crypto = null;
+        setCrypto(null);
     }
 
     /**
@@ -177,6 +184,52 @@ public synchronized String loadPassword(String accountPrefix)
         return password;
     }
 
+    /**
+     * Loads the passwords for the specified accounts in one pass, presenting
+     * the user with the master password prompt at most once.
+     *
+     * @param accountPrefixes the account prefixes
+     * @return the loaded passwords, by account prefix
+     * @see CredentialsStorageServiceImpl#loadPassword(String)
+     */
+    public synchronized Map<String, String> loadPasswords(
+            Iterable<String> accountPrefixes)
+    {
+        Map<String, String> passwords = new LinkedHashMap<String, String>();
+        Boolean cryptoCreated = null;
+
+        for (String accountPrefix : accountPrefixes)
+        {
+            String password = null;
+            String encrypted = getEncrypted(accountPrefix);
+
+            if (encrypted != null)
+            {
+                // ask for the master password only if a password is stored,
+                // and only once
+                if (cryptoCreated == null)
+                    cryptoCreated = createCrypto();
+                if (cryptoCreated)
+                {
+                    try
+                    {
+                        password = crypto.decrypt(encrypted);
+                    }
+                    catch (Exception ex)
+                    {
+                        logger.error(
+                            "Decryption with master password failed for "
+                                + accountPrefix,
+                            ex);
+                        // password stays null
+                    }
+                }
+            }
+            passwords.put(accountPrefix, password);
+        }
+        return passwords;
+    }
+
     /**
      * Removes the password for the account that starts with the given prefix by
      * setting its value in the configuration to null.
@@ -217,17 +270,19 @@ public boolean isUsingMasterPassword()
     public boolean verifyMasterPassword(String master)
     {
         Crypto localCrypto = new AESCrypto(master);
+        boolean correct = false;
         try
         {
             // use this value to verify master password correctness
             String encryptedValue = getEncryptedMasterPropValue();
-            boolean correct
+            correct
                 = MASTER_PROP_VALUE.equals(localCrypto.decrypt(encryptedValue));
 
             if (correct)
             {
-                // also set the crypto instance to use the correct MP
-                setMasterPassword(master);
+                // also set the crypto instance to use the correct MP, reusing
+                // the key we have just derived
+                setCrypto(localCrypto);
             }
             return correct;
         }
@@ -244,6 +299,11 @@ public boolean verifyMasterPassword(String master)
                 throw new RuntimeException("Decryption failed", e);
             }
         }
+        finally
+        {
+            if (!correct)
+                localCrypto.destroy();
+        }
     }
 
     /**
@@ -292,7 +352,7 @@ public boolean changeMasterPassword(String oldPassword, String newPassword)
         catch (CryptoException ce)
         {
             logger.debug(ce);
-            crypto = null;
+            setCrypto(null);
             passwords = null;
             return false;
         }
@@ -306,7 +366,26 @@ public boolean changeMasterPassword(String oldPassword, String newPassword)
      */
     private void setMasterPassword(String master)
     {
-        crypto = new AESCrypto(master);
+        setCrypto(new AESCrypto(master));
+    }
+
+    /**
+     * Replaces the <tt>Crypto</tt> instance, destroying the key of the
+     * previous one.
+     *
+     * @param newCrypto the new <tt>Crypto</tt> instance or <tt>null</tt>
+     */
+    private void setCrypto(Crypto newCrypto)
+    {
+        Crypto oldCrypto;
+
+        synchronized (cryptoSyncRoot)
+        {
+            oldCrypto = crypto;
+            crypto = newCrypto;
+        }
+        if (oldCrypto != null && oldCrypto != newCrypto)
+            oldCrypto.destroy();
     }
 
     /**
@@ -435,7 +514,7 @@ private synchronized boolean createCrypto()
                 if (master == null)
                 {
                     // User clicked cancel button in the prompt.
-                    crypto = null;
+                    setCrypto(null);
                 }
                 else
                 {
@@ -44,4 +44,9 @@
      * @throws CryptoException on encryption error
      */
     public String encrypt(String plaintext) throws CryptoException;
+
+    /**
+     * Forgets the key. The instance cannot be used afterwards.
+     */
+    public void destroy();
 }
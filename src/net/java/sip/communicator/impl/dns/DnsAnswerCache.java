@@ -0,0 +1,421 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.util.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * A bounded cache of the responses returned by the <tt>ParallelResolver</tt>,
+ * keyed by their question. Positive responses are kept for the lowest TTL of
+ * their answer records and negative ones (NXDOMAIN and NODATA) for the
+ * negative TTL of the SOA record in their authority section, as described in
+ * RFC 2308. Negative responses without a SOA record, truncated responses and
+ * failures are not cached.
+ * <p>
+ * The TTLs of the records of a response served from the cache are decreased
+ * by the time it has spent in the cache, so that caches further up, such as
+ * the one of <tt>Lookup</tt>, do not keep it past its expiry. When the least
+ * recently used response has to make room for a new one it is evicted.
+ */
+class DnsAnswerCache
+{
+    /**
+     * The longest time, in seconds, a positive response is cached.
+     */
+    static final long MAX_TTL = 24 * 60 * 60;
+
+    /**
+     * The longest time, in seconds, a negative response is cached.
+     */
+    static final long MAX_NEGATIVE_TTL = 5 * 60;
+
+    /**
+     * The shortest TTL, in seconds, of the responses refreshed before they
+     * expire.
+     */
+    private static final long MIN_PREFETCH_TTL = 10;
+
+    /**
+     * The fraction of its TTL a response must have left when it is served for
+     * it to be refreshed.
+     */
+    private static final int PREFETCH_DIVISOR = 10;
+
+    /**
+     * The cached responses in least recently used order.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * The number of lookups answered from the cache.
+     */
+    private long hitCount = 0;
+
+    /**
+     * The number of lookups not answered from the cache.
+     */
+    private long missCount = 0;
+
+    /**
+     * The number of responses refreshed before they expired.
+     */
+    private long prefetchCount = 0;
+
+    /**
+     * Creates a cache holding at most <tt>maxEntries</tt> responses.
+     *
+     * @param maxEntries the maximum number of cached responses
+     */
+    @SuppressWarnings("serial")
+    DnsAnswerCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached response to <tt>query</tt>.
+     *
+     * @param query the query to answer
+     * @return a copy of the cached response with the ID of <tt>query</tt>, or
+     * <tt>null</tt> if there is no unexpired response to <tt>query</tt>
+     */
+    Message get(Message query)
+    {
+        return get(query, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the response to <tt>query</tt> cached at <tt>now</tt>.
+     *
+     * @param query the query to answer
+     * @param now the current time in milliseconds
+     * @return a copy of the cached response with the ID of <tt>query</tt>, or
+     * <tt>null</tt> if there is no unexpired response to <tt>query</tt>
+     */
+    synchronized Message get(Message query, long now)
+    {
+        String key = getKey(query.getQuestion());
+        Entry entry = (key == null) ? null : entries.get(key);
+
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+        if (now >= entry.expires)
+        {
+            entries.remove(key);
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.copy(query.getHeader().getID(), now);
+    }
+
+    /**
+     * Determines whether the cached response to <tt>query</tt> is close to
+     * expiry and should be refreshed. Only the first caller is told so for
+     * every cached response.
+     *
+     * @param query the query whose response is checked
+     * @return <tt>true</tt> if the caller should resolve <tt>query</tt> again
+     * and <tt>put</tt> the response
+     */
+    boolean claimPrefetch(Message query)
+    {
+        return claimPrefetch(query, System.currentTimeMillis());
+    }
+
+    /**
+     * Determines whether the cached response to <tt>query</tt> is close to
+     * expiry at <tt>now</tt> and should be refreshed.
+     *
+     * @param query the query whose response is checked
+     * @param now the current time in milliseconds
+     * @return <tt>true</tt> if the caller should resolve <tt>query</tt> again
+     * and <tt>put</tt> the response
+     */
+    synchronized boolean claimPrefetch(Message query, long now)
+    {
+        String key = getKey(query.getQuestion());
+        Entry entry = (key == null) ? null : entries.get(key);
+
+        if (entry == null
+                || entry.prefetching
+                || entry.ttl < MIN_PREFETCH_TTL
+                || entry.expires - now > entry.ttl * 1000 / PREFETCH_DIVISOR)
+            return false;
+
+        entry.prefetching = true;
+        prefetchCount++;
+        return true;
+    }
+
+    /**
+     * Caches <tt>response</tt> if it can be cached.
+     *
+     * @param response the response to cache
+     * @return <tt>true</tt> if <tt>response</tt> was cached
+     */
+    boolean put(Message response)
+    {
+        return put(response, System.currentTimeMillis());
+    }
+
+    /**
+     * Caches <tt>response</tt>, received at <tt>now</tt>, if it can be cached.
+     *
+     * @param response the response to cache
+     * @param now the current time in milliseconds
+     * @return <tt>true</tt> if <tt>response</tt> was cached
+     */
+    synchronized boolean put(Message response, long now)
+    {
+        String key = getKey(response.getQuestion());
+        if (key == null)
+            return false;
+
+        long ttl = getCacheTtl(response);
+        if (ttl <= 0)
+        {
+            // a failed refresh must not keep the stale response around
+            entries.remove(key);
+            return false;
+        }
+
+        entries.put(key, new Entry((Message) response.clone(), ttl, now));
+        return true;
+    }
+
+    /**
+     * Removes all cached responses, e.g. after the network or the DNS
+     * servers changed.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached responses.
+     *
+     * @return the number of cached responses
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the number of lookups answered from the cache
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     *
+     * @return the number of lookups not answered from the cache
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of responses refreshed before they expired.
+     *
+     * @return the number of prefetched responses
+     */
+    synchronized long getPrefetchCount()
+    {
+        return prefetchCount;
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache.
+     *
+     * @return the hit rate, between <tt>0</tt> and <tt>1</tt>
+     */
+    synchronized double getHitRate()
+    {
+        long total = hitCount + missCount;
+
+        return (total == 0) ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the key of the responses to <tt>question</tt>.
+     *
+     * @param question the question of a query or response
+     * @return the key or <tt>null</tt> if there is no question
+     */
+    private static String getKey(Record question)
+    {
+        if (question == null)
+            return null;
+
+        return question.getName().toString().toLowerCase()
+            + '/' + question.getType()
+            + '/' + question.getDClass();
+    }
+
+    /**
+     * Returns the number of seconds <tt>response</tt> may be cached.
+     *
+     * @param response the response to check
+     * @return the TTL of <tt>response</tt> or <tt>0</tt> if it must not be
+     * cached
+     */
+    static long getCacheTtl(Message response)
+    {
+        Header header = response.getHeader();
+        if (header.getFlag(Flags.TC))
+            return 0;
+
+        int rcode = response.getRcode();
+        Record[] answers = response.getSectionArray(Section.ANSWER);
+
+        if (rcode == Rcode.NOERROR && answers.length > 0)
+        {
+            long ttl = MAX_TTL;
+            for (Record answer : answers)
+                ttl = Math.min(ttl, answer.getTTL());
+            return ttl;
+        }
+
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN)
+            return 0;
+
+        // a negative response: only cacheable with the SOA of the zone
+        for (Record record : response.getSectionArray(Section.AUTHORITY))
+        {
+            if (record instanceof SOARecord)
+            {
+                SOARecord soa = (SOARecord) record;
+                return Math.min(
+                    MAX_NEGATIVE_TTL,
+                    Math.min(soa.getTTL(), soa.getMinimum()));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class Entry
+    {
+        /**
+         * The cached response.
+         */
+        private final Message response;
+
+        /**
+         * The number of seconds the response is cached for.
+         */
+        private final long ttl;
+
+        /**
+         * The time the response was cached at.
+         */
+        private final long received;
+
+        /**
+         * The time the response expires at.
+         */
+        private final long expires;
+
+        /**
+         * Whether a refresh of the response has been started.
+         */
+        private boolean prefetching = false;
+
+        private Entry(Message response, long ttl, long received)
+        {
+            this.response = response;
+            this.ttl = ttl;
+            this.received = received;
+            this.expires = received + ttl * 1000;
+        }
+
+        /**
+         * Returns a copy of the response with the given ID and the TTLs of
+         * its records decreased by its age.
+         *
+         * @param id the ID of the query being answered
+         * @param now the current time in milliseconds
+         * @return the copy of the response
+         */
+        private Message copy(int id, long now)
+        {
+            Message copy = (Message) response.clone();
+            long age = (now - received) / 1000;
+
+            copy.getHeader().setID(id);
+            if (age > 0)
+            {
+                age(copy, Section.ANSWER, age);
+                age(copy, Section.AUTHORITY, age);
+                age(copy, Section.ADDITIONAL, age);
+            }
+            return copy;
+        }
+
+        /**
+         * Decreases the TTLs of the records in a section of a message.
+         */
+        private static void age(Message message, int section, long age)
+        {
+            Record[] records = message.getSectionArray(section);
+            if (records.length == 0)
+                return;
+
+            message.removeAllRecords(section);
+            for (Record record : records)
+            {
+                // the TTL of the OPT pseudo-record holds flags
+                if (record.getType() != Type.OPT
+                        && record.getType() != Type.TSIG)
+                {
+                    record = Record.newRecord(
+                        record.getName(),
+                        record.getType(),
+                        record.getDClass(),
+                        Math.max(0, record.getTTL() - age),
+                        record.rdataToWireCanonical());
+                }
+                message.addRecord(record, section);
+            }
+        }
+    }
+}
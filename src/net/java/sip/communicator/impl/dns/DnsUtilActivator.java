@@ -104,6 +104,26 @@
     public static final String PNAME_BACKUP_RESOLVER
         = "net.java.sip.communicator.util.dns.BACKUP_RESOLVER";
 
+    /**
+     * The default maximum number of DNS responses cached by the
+     * <tt>ParallelResolver</tt>.
+     */
+    public static final int DEFAULT_ANSWER_CACHE_SIZE = 512;
+
+    /**
+     * The name of the property that users may use to change the maximum
+     * number of DNS responses cached by the <tt>ParallelResolver</tt>, or to
+     * disable the cache with <tt>0</tt>.
+     */
+    public static final String PNAME_ANSWER_CACHE_SIZE
+        = "net.java.sip.communicator.util.dns.ANSWER_CACHE_SIZE";
+
+    /**
+     * The <tt>ParallelResolver</tt> we registered or <tt>null</tt> if we did
+     * not register one.
+     */
+    private static volatile ParallelResolverImpl parallelResolver;
+
     /**
      * Calls <tt>Thread.setUncaughtExceptionHandler()</tt>
      *
@@ -139,9 +159,10 @@ public void start(BundleContext context)
                 CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
                 CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED))
         {
+            parallelResolver = new ParallelResolverImpl();
             bundleContext.registerService(
                 CustomResolver.class.getName(),
-                new ParallelResolverImpl(),
+                parallelResolver,
                 null);
             logger.info("ParallelResolver ... [REGISTERED]");
         }
@@ -310,6 +331,70 @@ public void stop(BundleContext context)
     {
     }
 
+    /**
+     * Returns the number of DNS lookups answered from the cache of the
+     * <tt>ParallelResolver</tt>.
+     *
+     * @return the number of cache hits or <tt>0</tt> if there is no cache
+     */
+    public static long getAnswerCacheHitCount()
+    {
+        DnsAnswerCache cache = getAnswerCache();
+
+        return (cache == null) ? 0 : cache.getHitCount();
+    }
+
+    /**
+     * Returns the number of DNS lookups which the cache of the
+     * <tt>ParallelResolver</tt> could not answer.
+     *
+     * @return the number of cache misses or <tt>0</tt> if there is no cache
+     */
+    public static long getAnswerCacheMissCount()
+    {
+        DnsAnswerCache cache = getAnswerCache();
+
+        return (cache == null) ? 0 : cache.getMissCount();
+    }
+
+    /**
+     * Returns the number of cached DNS responses which were refreshed before
+     * they expired.
+     *
+     * @return the number of prefetches or <tt>0</tt> if there is no cache
+     */
+    public static long getAnswerCachePrefetchCount()
+    {
+        DnsAnswerCache cache = getAnswerCache();
+
+        return (cache == null) ? 0 : cache.getPrefetchCount();
+    }
+
+    /**
+     * Returns the fraction of DNS lookups answered from the cache of the
+     * <tt>ParallelResolver</tt>.
+     *
+     * @return the hit rate, between <tt>0</tt> and <tt>1</tt>
+     */
+    public static double getAnswerCacheHitRate()
+    {
+        DnsAnswerCache cache = getAnswerCache();
+
+        return (cache == null) ? 0 : cache.getHitRate();
+    }
+
+    /**
+     * Returns the answer cache of the <tt>ParallelResolver</tt>.
+     *
+     * @return the answer cache or <tt>null</tt> if there is none
+     */
+    private static DnsAnswerCache getAnswerCache()
+    {
+        ParallelResolverImpl resolver = parallelResolver;
+
+        return (resolver == null) ? null : resolver.getAnswerCache();
+    }
+
     /**
      * Returns the <tt>ConfigurationService</tt> obtained from the bundle
      * context.
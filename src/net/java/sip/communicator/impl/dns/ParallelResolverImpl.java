@@ -44,6 +44,11 @@
  * <p>
  * We exit redundant mode after receiving <tt>DNS_REDEMPTION</tt> consecutive
  * timely and correct responses from our primary resolver.
+ * <p>
+ * Responses are kept in a <tt>DnsAnswerCache</tt> for as long as their TTL
+ * allows, so that the names looked up on every registration and reconnect
+ * are only sent to the DNS servers once. Responses served close to their
+ * expiry are refreshed in the background.
  *
  * @author Emil Ivov
  */
@@ -102,12 +107,24 @@
     /** Thread pool that processes the backup queries. */
     private ExecutorService backupQueriesPool;
 
+    /**
+     * The cache of the responses we received or <tt>null</tt> if caching is
+     * disabled.
+     */
+    private final DnsAnswerCache answerCache;
+
     /**
      * Creates a new instance of this class.
      */
     ParallelResolverImpl()
     {
         backupQueriesPool = Executors.newCachedThreadPool();
+
+        int cacheSize = DnsUtilActivator.getConfigurationService().getInt(
+            DnsUtilActivator.PNAME_ANSWER_CACHE_SIZE,
+            DnsUtilActivator.DEFAULT_ANSWER_CACHE_SIZE);
+        answerCache = (cacheSize > 0) ? new DnsAnswerCache(cacheSize) : null;
+
         DnsUtilActivator.getConfigurationService()
             .addPropertyChangeListener(this);
         initProperties();
@@ -210,6 +227,63 @@ private void setBackupServers(InetSocketAddress[] backupServers)
      */
     public Message send(Message query)
         throws IOException
+    {
+        if (answerCache == null)
+            return resolve(query);
+
+        Message response = answerCache.get(query);
+        if (response != null)
+        {
+            if (answerCache.claimPrefetch(query))
+                prefetch(query);
+            return response;
+        }
+
+        response = resolve(query);
+        answerCache.put(response);
+        return response;
+    }
+
+    /**
+     * Refreshes the cached response to <tt>query</tt> in the background.
+     *
+     * @param query the query whose response is about to expire
+     */
+    private void prefetch(Message query)
+    {
+        final Message prefetchQuery = (Message) query.clone();
+
+        backupQueriesPool.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    answerCache.put(resolve(prefetchQuery));
+                }
+                catch (Throwable t)
+                {
+                    logger.info("Failed to refresh the cached response for "
+                        + prefetchQuery.getQuestion().getName() + "/"
+                        + Type.string(prefetchQuery.getQuestion().getType())
+                        + ": " + t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a message to the primary and, if needed, the backup resolvers and
+     * waits for a response.
+     *
+     * @param query The query to send.
+     * @return The response
+     *
+     * @throws IOException An error occurred while sending or receiving.
+     */
+    private Message resolve(Message query)
+        throws IOException
     {
         ParallelResolution resolution = new ParallelResolution(query);
         resolution.sendFirstQuery();
@@ -384,6 +458,19 @@ public final void reset()
     {
         Lookup.refreshDefault();
 
+        // the answers of the previous servers may not hold on this network
+        if (answerCache != null)
+        {
+            if (answerCache.size() > 0 && logger.isInfoEnabled())
+            {
+                logger.info("Clearing DNS answer cache: "
+                    + answerCache.getHitCount() + " hits, "
+                    + answerCache.getMissCount() + " misses, "
+                    + answerCache.getPrefetchCount() + " prefetches");
+            }
+            answerCache.clear();
+        }
+
         // populate with new servers after refreshing configuration
         try
         {
@@ -399,6 +486,16 @@ public final void reset()
         }
     }
 
+    /**
+     * Returns the cache of the responses received by this resolver.
+     *
+     * @return the answer cache or <tt>null</tt> if caching is disabled
+     */
+    DnsAnswerCache getAnswerCache()
+    {
+        return answerCache;
+    }
+
     /**
      * Determines if <tt>response</tt> can be considered a satisfactory DNS
      * response and returns accordingly.
@@ -0,0 +1,35 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.googlecontacts;
+
+/**
+ * This file is auto-updated by build.xml in order to provide id and secret
+ * needed to use oauth2 for accessing google api.
+ *
+ * @author Damian Minkov
+ */
+final class GoogleAPIClientToken
+{
+    /**
+     * Client ID for OAuth 2 based authentication.
+     */
+    static final String GOOGLE_API_CLIENT_ID = null;
+
+    /**
+     * Client secret for OAuth 2 based authentication.
+     */
+    static final String GOOGLE_API_CLIENT_SECRET = null;
+}
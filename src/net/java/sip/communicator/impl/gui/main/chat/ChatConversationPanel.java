@@ -25,6 +25,7 @@
 import java.text.*;
 import java.util.*;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -40,7 +41,6 @@
 import net.java.sip.communicator.impl.gui.utils.*;
 import net.java.sip.communicator.impl.gui.utils.Constants;
 import net.java.sip.communicator.plugin.desktoputil.*;
-import net.java.sip.communicator.plugin.desktoputil.SwingWorker;
 import net.java.sip.communicator.service.gui.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -239,6 +239,36 @@
 
     private String lastMessageUID = null;
 
+    /**
+     * The maximum number of messages enriched at the same time.
+     */
+    private static final int MAX_ENRICHMENT_THREADS = 4;
+
+    /**
+     * Runs the local replacements, e.g. smileys, of the messages of all
+     * conversations in the order the messages were added.
+     */
+    private static final ThreadPoolExecutor replacementExecutor
+        = createReplacementExecutor("ChatConversationPanel replacement", 1);
+
+    /**
+     * Runs the replacements which may fetch content, e.g. video previews, so
+     * that slow sources delay neither the display of the messages nor their
+     * local replacements.
+     */
+    private static final ThreadPoolExecutor enrichmentExecutor
+        = createReplacementExecutor(
+                "ChatConversationPanel enrichment",
+                MAX_ENRICHMENT_THREADS);
+
+    /**
+     * The number of blocks at the end of the document in which the elements
+     * of the last messages are looked up before the whole document is. New
+     * messages only refer to recent ones, so looking them up from the end
+     * keeps the cost of an append independent of the size of the document.
+     */
+    private static final int RECENT_BLOCK_COUNT = 16;
+
     private boolean isSimpleTheme = true;
 
     private ShowPreviewDialog showPreview
@@ -442,22 +472,50 @@ public void setBounds(int x, int y, int width, int height)
     {
         synchronized (scrollToBottomRunnable)
         {
-            JScrollBar verticalScrollBar = getVerticalScrollBar();
+            if (getVerticalScrollBar() != null && isScrolledToBottom())
+                scrollToBottomIsPending = true;
+        }
 
-            if (verticalScrollBar != null)
-            {
-                BoundedRangeModel verticalScrollBarModel
-                    = verticalScrollBar.getModel();
+        super.setBounds(x, y, width, height);
+    }
 
-                if ((verticalScrollBarModel.getValue()
-                                + verticalScrollBarModel.getExtent()
-                            >= verticalScrollBarModel.getMaximum())
-                        || !verticalScrollBar.isVisible())
-                    scrollToBottomIsPending = true;
-            }
+    /**
+     * Determines whether the conversation is scrolled to its bottom, i.e. the
+     * user follows the conversation rather than reads older messages.
+     *
+     * @return <tt>true</tt> if the vertical scroll bar is at its bottom or is
+     * not visible
+     */
+    private boolean isScrolledToBottom()
+    {
+        JScrollBar verticalScrollBar = getVerticalScrollBar();
+
+        if (verticalScrollBar == null)
+            return true;
+
+        BoundedRangeModel verticalScrollBarModel
+            = verticalScrollBar.getModel();
+
+        return (verticalScrollBarModel.getValue()
+                        + verticalScrollBarModel.getExtent()
+                    >= verticalScrollBarModel.getMaximum())
+                || !verticalScrollBar.isVisible();
+    }
+
+    /**
+     * Scrolls the conversation to its bottom, so that the next messages are
+     * followed again, e.g. when the user sends a message after reading older
+     * ones.
+     */
+    public void scrollToBottom()
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(scrollToBottomRunnable);
+            return;
         }
 
-        super.setBounds(x, y, width, height);
+        scrollToBottomRunnable.run();
     }
 
     /**
@@ -557,7 +615,7 @@ public String processMessage(   ChatMessage chatMessage,
                 contactDisplayName,
                 getContactAvatar(protocolProvider, contactAddress),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessage(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 false,
                 isSimpleTheme);
@@ -570,7 +628,7 @@ else if (messageType.equals(Chat.OUTGOING_MESSAGE))
                 contactDisplayName,
                 getContactAvatar(protocolProvider),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessage(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 false,
                 isSimpleTheme);
@@ -583,7 +641,7 @@ else if (messageType.equals(Chat.HISTORY_INCOMING_MESSAGE))
                 contactDisplayName,
                 getContactAvatar(protocolProvider, contactAddress),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessage(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 true,
                 isSimpleTheme);
@@ -596,7 +654,7 @@ else if (messageType.equals(Chat.HISTORY_OUTGOING_MESSAGE))
                 contactDisplayName,
                 getContactAvatar(protocolProvider),
                 date,
-                formatMessageAsHTML(message, contentType, keyword),
+                formatMessage(chatMessage, keyword),
                 ChatHtmlUtils.HTML_CONTENT_TYPE,
                 true,
                 isSimpleTheme);
@@ -726,7 +784,7 @@ public void run()
             return;
         }
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = findMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + previousMessageUID);
 
         String contactAddress
@@ -743,16 +801,17 @@ public void run()
         String newMessage = ChatHtmlUtils.createMessageTag(
                                     chatMessage.getMessageUID(),
                                     contactAddress,
-                                    formatMessageAsHTML(
-                                        chatMessage.getMessage(),
-                                        chatMessage.getContentType(),
-                                        keyword),
+                                    formatMessage(chatMessage, keyword),
                                     ChatHtmlUtils.HTML_CONTENT_TYPE,
                                     chatMessage.getDate(),
                                     false,
                                     isHistory,
                                     isSimpleTheme);
 
+        // only follow the conversation if the user is not reading older
+        // messages
+        boolean follow = isScrolledToBottom();
+
         synchronized (scrollToBottomRunnable)
         {
             try
@@ -764,7 +823,8 @@ public void run()
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
                 // we add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                if (follow)
+                    SwingUtilities.invokeLater(scrollToBottomRunnable);
             }
             catch (BadLocationException ex)
             {
@@ -776,7 +836,7 @@ public void run()
             }
         }
 
-        finishMessageAdd(newMessage);
+        finishMessageAdd(newMessage, follow);
     }
 
     /**
@@ -806,11 +866,8 @@ public void run()
             lastMessageUID = chatMessage.getMessageUID();
         }
 
-        Element root = document.getDefaultRootElement();
         Element correctedMsgElement
-            = document.getElement(root,
-                                  Attribute.ID,
-                                  ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
+            = findMessageElement(ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
 
         if (correctedMsgElement == null)
         {
@@ -841,6 +898,10 @@ public void run()
             isHistory,
             isSimpleTheme);
 
+        // only follow the conversation if the user is not reading older
+        // messages
+        boolean follow = isScrolledToBottom();
+
         synchronized (scrollToBottomRunnable)
         {
             try
@@ -850,7 +911,8 @@ public void run()
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
                 // we add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                if (follow)
+                    SwingUtilities.invokeLater(scrollToBottomRunnable);
             }
             catch (BadLocationException ex)
             {
@@ -862,7 +924,7 @@ public void run()
             }
         }
 
-        finishMessageAdd(newMessage);
+        finishMessageAdd(newMessage, follow);
     }
 
     /**
@@ -906,6 +968,10 @@ public void run()
             message = StringEscapeUtils.escapeHtml4(original);
         }
 
+        // only follow the conversation if the user is not reading older
+        // messages
+        boolean follow = isScrolledToBottom();
+
         synchronized (scrollToBottomRunnable)
         {
             Element root = document.getDefaultRootElement();
@@ -921,7 +987,8 @@ public void run()
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time we
                 // add text.
-                SwingUtilities.invokeLater(scrollToBottomRunnable);
+                if (follow)
+                    SwingUtilities.invokeLater(scrollToBottomRunnable);
             }
             catch (BadLocationException e)
             {
@@ -937,7 +1004,7 @@ public void run()
 
         if (lastElemContent != null)
         {
-            finishMessageAdd(lastElemContent);
+            finishMessageAdd(lastElemContent, follow);
         }
     }
 
@@ -946,29 +1013,156 @@ public void run()
      * message to the document.
      *
      * @param message the message string
-     * @param contentType
+     * @param follow whether the conversation was scrolled to its bottom
+     * before the message was added
      */
-    private void finishMessageAdd(final String message)
+    private void finishMessageAdd(final String message, boolean follow)
     {
         // If we're not in chat history case we need to be sure the document
-        // has not exceeded the required size (number of messages).
-        if (!isHistory)
+        // has not exceeded the required size (number of messages). The
+        // oldest messages are kept while the user is scrolled away from the
+        // bottom, as these may be older messages loaded to be read.
+        if (!isHistory && follow)
             ensureDocumentSize();
 
-        /*
-         * Replacements will be processed only if it is enabled in the
-         * property.
-         */
+        if (isReplacementEnabled())
+        {
+            processReplacement(ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID,
+                                message);
+        }
+    }
+
+    /**
+     * Replacements will be processed only if it is enabled in the property.
+     *
+     * @return <tt>true</tt> if the messages are to go through the
+     * replacement services
+     */
+    private boolean isReplacementEnabled()
+    {
         ConfigurationService cfg = GuiActivator.getConfigurationService();
 
-        if (cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true)
+        return cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true)
                 ||cfg.getBoolean(ReplacementProperty.REPLACEMENT_PROPOSAL, true)
                 || cfg.getBoolean(
                         ReplacementProperty.getPropertyName("SMILEY"),
-                        true))
+                        true);
+    }
+
+    /**
+     * Formats a message of the history to be inserted before the messages of
+     * the document by {@link #prependMessages(Map)}. Unlike
+     * <tt>processMessage</tt> this neither merges the message with the last
+     * one nor changes the state kept about the last message.
+     *
+     * @param chatMessage the message
+     * @param protocolProvider the protocol provider of the chat
+     * @param contactAddress the address of the contact of the chat
+     * @return the formatted message
+     */
+    public String formatPrependedMessage(
+        ChatMessage chatMessage,
+        ProtocolProviderService protocolProvider,
+        String contactAddress)
+    {
+        String savedMessageUID = lastMessageUID;
+        Date savedMessageTimestamp = lastMessageTimestamp;
+        Date savedIncomingMsgTimestamp = lastIncomingMsgTimestamp;
+
+        try
         {
-            processReplacement(ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID,
-                                message);
+            // without a last message nothing is consecutive
+            lastMessageUID = null;
+            return processMessage(
+                chatMessage, null, protocolProvider, contactAddress);
+        }
+        finally
+        {
+            lastMessageUID = savedMessageUID;
+            lastMessageTimestamp = savedMessageTimestamp;
+            lastIncomingMsgTimestamp = savedIncomingMsgTimestamp;
+        }
+    }
+
+    /**
+     * Inserts older messages before the messages of the document, keeping
+     * the messages the user is looking at in place. The messages go through
+     * the replacement services like appended ones.
+     *
+     * @param messages the messages formatted by
+     * {@link #formatPrependedMessage(ChatMessage, ProtocolProviderService,
+     * String)} by their UIDs, oldest first
+     */
+    public void prependMessages(final Map<String, String> messages)
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    prependMessages(messages);
+                }
+            });
+            return;
+        }
+
+        StringBuilder html = new StringBuilder();
+        for (String message : messages.values())
+            html.append(message);
+        if (html.length() == 0)
+            return;
+
+        final JScrollBar verticalScrollBar = getVerticalScrollBar();
+        final int fromBottom
+            = verticalScrollBar.getMaximum() - verticalScrollBar.getValue();
+
+        synchronized (scrollToBottomRunnable)
+        {
+            Element root = document.getDefaultRootElement();
+
+            try
+            {
+                document.insertAfterStart(
+                    root.getElement(root.getElementCount() - 1),
+                    html.toString());
+            }
+            catch (BadLocationException e)
+            {
+                logger.error("Insert in the HTMLDocument failed.", e);
+                return;
+            }
+            catch (IOException e)
+            {
+                logger.error("Insert in the HTMLDocument failed.", e);
+                return;
+            }
+        }
+
+        // keep the distance to the bottom once the new height is known
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                verticalScrollBar.setValue(
+                    verticalScrollBar.getMaximum() - fromBottom);
+            }
+        });
+
+        if (isReplacementEnabled())
+        {
+            for (Map.Entry<String, String> message : messages.entrySet())
+            {
+                String content
+                    = getElementContent(message.getKey(), message.getValue());
+
+                if (content != null)
+                {
+                    processReplacement(
+                        ChatHtmlUtils.MESSAGE_TEXT_ID + message.getKey(),
+                        content);
+                }
+            }
         }
     }
 
@@ -982,16 +1176,68 @@ private void finishMessageAdd(final String message)
     */
     void processReplacement(final String messageID, final String chatString)
     {
-        new ReplacementWorker(messageID, chatString).start();
+        try
+        {
+            replacementExecutor.execute(
+                new ReplacementWorker(messageID, chatString, false));
+        }
+        catch (RejectedExecutionException ex)
+        {
+            logger.error("Could not process replacements of " + messageID, ex);
+        }
+    }
+
+    /**
+     * Determines whether a replacement service enriches messages with
+     * content it may have to fetch, such as previews, and is thus run after
+     * the local replacements.
+     *
+     * @param service the replacement service
+     * @return <tt>true</tt> unless the service replaces text locally
+     */
+    private static boolean isEnrichment(ReplacementService service)
+    {
+        return !(service instanceof SmiliesReplacementService);
+    }
+
+    /**
+     * Creates an executor of daemon threads for replacements.
+     *
+     * @param name the name of the threads
+     * @param threadCount the maximum number of threads
+     * @return the executor
+     */
+    private static ThreadPoolExecutor createReplacementExecutor(
+        final String name, int threadCount)
+    {
+        ThreadPoolExecutor executor
+            = new ThreadPoolExecutor(
+                    threadCount, threadCount,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, name);
+
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
      * Ensures that the document won't become too big. When the document reaches
-     * a certain size the first message in the page is removed.
+     * a certain size the first messages in the page are removed, including
+     * older messages loaded on demand before them.
      */
     private void ensureDocumentSize()
     {
-        if (document.getLength() > Chat.CHAT_BUFFER_SIZE)
+        while (document.getLength() > Chat.CHAT_BUFFER_SIZE)
         {
             String[] ids = new String[]
                                       {ChatHtmlUtils.MESSAGE_TEXT_ID,
@@ -1001,9 +1247,16 @@ private void ensureDocumentSize()
 
             Element firstMsgElement = findElement(Attribute.ID, ids);
 
+            if (firstMsgElement == null)
+                return;
+
             int startIndex = firstMsgElement.getStartOffset();
             int endIndex = firstMsgElement.getEndOffset();
 
+            // never remove the last message
+            if (endIndex - startIndex >= document.getLength())
+                return;
+
             try
             {
                 // Remove the message.
@@ -1012,6 +1265,7 @@ private void ensureDocumentSize()
             catch (BadLocationException e)
             {
                 logger.error("Error removing messages from chat: ", e);
+                return;
             }
 
             if(firstMsgElement.getName().equals("table"))
@@ -1068,6 +1322,43 @@ private void deleteAllMessagesWithoutHeader()
         deleteAllMessagesWithoutHeader();
     }
 
+    /**
+     * Formats the body of a message before it is displayed, so that the
+     * event dispatch thread only inserts the formatted message. May be
+     * called by any thread.
+     *
+     * @param chatMessage the message to format
+     * @param keyword the word to be highlighted
+     */
+    public void preformatMessage(ChatMessage chatMessage, String keyword)
+    {
+        chatMessage.setFormattedMessage(
+            formatMessageAsHTML(
+                chatMessage.getMessage(),
+                chatMessage.getContentType(),
+                keyword));
+    }
+
+    /**
+     * Returns the body of a message formatted as HTML, formatting it unless
+     * {@link #preformatMessage(ChatMessage, String)} did already.
+     *
+     * @param chatMessage the message to format
+     * @param keyword the word to be highlighted
+     * @return the formatted message
+     */
+    private String formatMessage(ChatMessage chatMessage, String keyword)
+    {
+        String formattedMessage = chatMessage.getFormattedMessage();
+
+        return (formattedMessage != null)
+            ? formattedMessage
+            : formatMessageAsHTML(
+                    chatMessage.getMessage(),
+                    chatMessage.getContentType(),
+                    keyword);
+    }
+
     /**
      * Formats the given message. Processes all smiley chars, new lines and
      * links. This method expects <u>only</u> the message's <u>body</u> to be
@@ -1450,7 +1741,7 @@ public Date getPageLastMsgTimestamp()
         if (lastMessageUID != null)
         {
             Element lastMsgElement
-                = document.getElement(
+                = findMessageElement(
                         ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
             if (lastMsgElement != null)
@@ -1714,7 +2005,7 @@ private boolean isConsecutiveMessage(ChatMessage chatMessage)
         if (lastMessageUID == null)
             return false;
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = findRecentElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
         if (lastMsgElement == null)
@@ -1797,6 +2088,67 @@ private Element findElement(HTML.Attribute attribute,
                                 matchStrings);
     }
 
+    /**
+     * Finds the element with the given ID among the last blocks of the
+     * document, where the elements of recent messages are.
+     *
+     * @param id the ID of the element
+     * @return the element or <tt>null</tt> if it is not among the last
+     * blocks
+     */
+    private Element findRecentElement(String id)
+    {
+        Element root = document.getDefaultRootElement();
+        Element body = root.getElement(root.getElementCount() - 1);
+        int last = body.getElementCount() - 1;
+
+        for (int i = last; i >= 0 && i > last - RECENT_BLOCK_COUNT; i--)
+        {
+            Element element = findLastElement(body.getElement(i), id);
+
+            if (element != null)
+                return element;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the element of a message with the given ID, searching the recent
+     * messages before the whole document.
+     *
+     * @param id the ID of the element
+     * @return the element or <tt>null</tt> if there is no such element
+     */
+    private Element findMessageElement(String id)
+    {
+        Element element = findRecentElement(id);
+
+        return (element == null) ? document.getElement(id) : element;
+    }
+
+    /**
+     * Finds the last element with the given ID in the tree of
+     * <tt>element</tt>.
+     *
+     * @param element the root of the searched tree
+     * @param id the ID of the element
+     * @return the element or <tt>null</tt> if there is no such element
+     */
+    private static Element findLastElement(Element element, String id)
+    {
+        if (id.equals(element.getAttributes().getAttribute(Attribute.ID)))
+            return element;
+
+        for (int i = element.getElementCount() - 1; i >= 0; i--)
+        {
+            Element resultElement = findLastElement(element.getElement(i), id);
+
+            if (resultElement != null)
+                return resultElement;
+        }
+        return null;
+    }
+
     /**
      * Finds the first element with <tt>name</tt>.
      * @param name the name to search for.
@@ -2027,7 +2379,7 @@ public void debug()
      * Swing worker used by processReplacement.
      */
     private final class ReplacementWorker
-        extends SwingWorker
+        implements Runnable
     {
         /**
          * The messageID element.
@@ -2054,17 +2406,26 @@ public void debug()
          */
         private final boolean isProposalEnabled;
 
+        /**
+         * Whether this worker runs the enriching replacement services rather
+         * than the local ones.
+         */
+        private final boolean enrich;
+
         /**
          * Constructs worker.
          *
          * @param messageID the messageID element.
          * @param chatString the messages.
+         * @param enrich <tt>true</tt> to run the enriching replacement
+         * services, <tt>false</tt> for the local ones
          */
         private ReplacementWorker(final String messageID,
-            final String chatString)
+            final String chatString, final boolean enrich)
         {
             this.messageID = messageID;
             this.chatString = chatString;
+            this.enrich = enrich;
 
             ConfigurationService cfg = GuiActivator.getConfigurationService();
             isEnabled = cfg.getBoolean(
@@ -2076,12 +2437,71 @@ private ReplacementWorker(final String messageID,
                 true);
         }
 
+        /**
+         * Runs the replacements and patches the message with their result.
+         * The local replacements then hand the message to the enriching
+         * ones, whose result is patched in later.
+         */
+        public void run()
+        {
+            final String newMessage;
+
+            try
+            {
+                newMessage = replace();
+            }
+            catch (Throwable t)
+            {
+                logger.error("Could not process replacements of " + messageID,
+                    t);
+                return;
+            }
+
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    finished(newMessage);
+                }
+            });
+
+            // submitted after the patch above, so that it is applied first
+            if (!enrich && hasEnrichments())
+            {
+                try
+                {
+                    enrichmentExecutor.execute(
+                        new ReplacementWorker(messageID, newMessage, true));
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    logger.error("Could not enrich " + messageID, ex);
+                }
+            }
+        }
+
+        /**
+         * Determines whether there are enriching replacement services to
+         * run.
+         */
+        private boolean hasEnrichments()
+        {
+            for (ReplacementService service
+                    : GuiActivator.getReplacementSources().values())
+            {
+                if (isEnrichment(service))
+                    return true;
+            }
+            return false;
+        }
+
         /**
          * Called on the event dispatching thread (not on the worker thread)
-         * after the <code>construct</code> method has returned.
+         * after the replacements have been processed.
+         *
+         * @param newMessage the message after the replacements
          */
-        @Override
-        public void finished()
+        private void finished(String newMessage)
         {
             ShowPreviewDialog previewDialog = showPreview;
             // There is a race between the replacement worker and the
@@ -2093,8 +2513,6 @@ public void finished()
                 return;
             }
 
-            String newMessage = (String) get();
-
             if (newMessage != null && !newMessage.equals(chatString))
             {
                 previewDialog.getMsgIDToChatString().put(
@@ -2105,7 +2523,7 @@ public void finished()
 
                     try
                     {
-                        Element elem = document.getElement(messageID);
+                        Element elem = findMessageElement(messageID);
                         document.setOuterHTML(elem, newMessage);
                     }
                     catch (BadLocationException ex)
@@ -2120,8 +2538,12 @@ public void finished()
             }
         }
 
-        @Override
-        public Object construct() throws Exception
+        /**
+         * Processes the replacement services of this stage.
+         *
+         * @return the message after the replacements
+         */
+        private String replace()
         {
             Matcher divMatcher = DIV_PATTERN.matcher(chatString);
             String openingTag = "";
@@ -2138,6 +2560,9 @@ public Object construct() throws Exception
             for (Map.Entry<String, ReplacementService> entry : GuiActivator
                 .getReplacementSources().entrySet())
             {
+                if (isEnrichment(entry.getValue()) != enrich)
+                    continue;
+
                 msgBuff = new StringBuilder();
                 processReplacementService(entry.getValue(), msgStore, msgBuff);
                 msgStore = msgBuff.toString();
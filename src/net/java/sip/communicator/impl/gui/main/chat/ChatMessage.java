@@ -58,6 +58,12 @@
      */
     private String message;
 
+    /**
+     * The content of the message formatted as HTML before the message is
+     * displayed, or <tt>null</tt> if it is to be formatted on display.
+     */
+    private String formattedMessage;
+
     /**
      * The content type of the message.
      */
@@ -236,6 +242,30 @@ public String getMessage()
     public void setMessage(String message)
     {
         this.message = message;
+        this.formattedMessage = null;
+    }
+
+    /**
+     * Returns the content of the message formatted as HTML before the
+     * message is displayed.
+     *
+     * @return the formatted content or <tt>null</tt> if the message has not
+     * been formatted
+     */
+    public String getFormattedMessage()
+    {
+        return formattedMessage;
+    }
+
+    /**
+     * Sets the content of the message formatted as HTML, so that it is not
+     * formatted again on display.
+     *
+     * @param formattedMessage the formatted content
+     */
+    public void setFormattedMessage(String formattedMessage)
+    {
+        this.formattedMessage = formattedMessage;
     }
 
     /**
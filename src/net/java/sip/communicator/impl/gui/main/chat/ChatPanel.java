@@ -139,6 +139,18 @@
      */
     protected static final int MESSAGES_PER_PAGE = 20;
 
+    /**
+     * Whether older messages are being loaded because the conversation was
+     * scrolled to its top. Only accessed on the event dispatch thread.
+     */
+    private boolean isLoadingOlderMessages = false;
+
+    /**
+     * The date before which the history had no messages the last time it was
+     * asked, so that scrolling to the top does not query it again.
+     */
+    private Date noMessagesBefore = null;
+
     private boolean isShown = false;
 
     private ChatSession chatSession;
@@ -206,6 +218,8 @@ public ChatPanel(ChatContainer chatContainer)
         this.conversationPanel.setPreferredSize(new Dimension(400, 200));
         this.conversationPanel.getChatTextPane()
             .setTransferHandler(new ChatTransferHandler(this));
+        this.conversationPanel.getVerticalScrollBar().addAdjustmentListener(
+            new OlderMessagesLoader());
 
         this.conversationPanelContainer.add(
             conversationPanel, BorderLayout.CENTER);
@@ -817,100 +831,12 @@ private void processHistory( Collection<Object> historyList,
     {
         Iterator<Object> iterator = historyList.iterator();
 
-        String messageType;
-
         while (iterator.hasNext())
         {
             Object o = iterator.next();
             String historyString = "";
 
-            if(o instanceof MessageDeliveredEvent)
-            {
-                MessageDeliveredEvent evt
-                    = (MessageDeliveredEvent)o;
-
-                ProtocolProviderService protocolProvider = evt
-                    .getDestinationContact().getProtocolProvider();
-
-                if (isGreyHistoryStyleDisabled(protocolProvider))
-                    messageType = Chat.OUTGOING_MESSAGE;
-                else
-                    messageType = Chat.HISTORY_OUTGOING_MESSAGE;
-
-                historyString = processHistoryMessage(
-                            GuiActivator.getUIService().getMainFrame()
-                                .getAccountAddress(protocolProvider),
-                            GuiActivator.getUIService().getMainFrame()
-                                .getAccountDisplayName(protocolProvider),
-                            evt.getTimestamp(),
-                            messageType,
-                            evt.getSourceMessage().getContent(),
-                            evt.getSourceMessage().getContentType(),
-                            evt.getSourceMessage().getMessageUID());
-            }
-            else if(o instanceof MessageReceivedEvent)
-            {
-                MessageReceivedEvent evt = (MessageReceivedEvent)o;
-
-                ProtocolProviderService protocolProvider
-                    = evt.getSourceContact().getProtocolProvider();
-
-                if(!evt.getSourceMessage().getMessageUID()
-                        .equals(escapedMessageID))
-                {
-                    if (isGreyHistoryStyleDisabled(protocolProvider))
-                        messageType = Chat.INCOMING_MESSAGE;
-                    else
-                        messageType = Chat.HISTORY_INCOMING_MESSAGE;
-
-                    historyString = processHistoryMessage(
-                                evt.getSourceContact().getAddress(),
-                                evt.getSourceContact().getDisplayName(),
-                                evt.getTimestamp(),
-                                messageType,
-                                evt.getSourceMessage().getContent(),
-                                evt.getSourceMessage().getContentType(),
-                                evt.getSourceMessage().getMessageUID());
-                }
-            }
-            else if(o instanceof ChatRoomMessageDeliveredEvent)
-            {
-                ChatRoomMessageDeliveredEvent evt
-                    = (ChatRoomMessageDeliveredEvent)o;
-
-                ProtocolProviderService protocolProvider = evt
-                    .getSourceChatRoom().getParentProvider();
-
-                historyString = processHistoryMessage(
-                            GuiActivator.getUIService().getMainFrame()
-                                .getAccountAddress(protocolProvider),
-                            GuiActivator.getUIService().getMainFrame()
-                                .getAccountDisplayName(protocolProvider),
-                            evt.getTimestamp(),
-                            Chat.HISTORY_OUTGOING_MESSAGE,
-                            evt.getMessage().getContent(),
-                            evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
-            }
-            else if(o instanceof ChatRoomMessageReceivedEvent)
-            {
-                ChatRoomMessageReceivedEvent evt
-                    = (ChatRoomMessageReceivedEvent) o;
-
-                if(!evt.getMessage().getMessageUID()
-                        .equals(escapedMessageID))
-                {
-                    historyString = processHistoryMessage(
-                            evt.getSourceChatRoomMember().getContactAddress(),
-                            evt.getSourceChatRoomMember().getName(),
-                            evt.getTimestamp(),
-                            Chat.HISTORY_INCOMING_MESSAGE,
-                            evt.getMessage().getContent(),
-                            evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
-                }
-            }
-            else if (o instanceof FileRecord)
+            if (o instanceof FileRecord)
             {
                 FileRecord fileRecord = (FileRecord) o;
 
@@ -922,6 +848,14 @@ else if (o instanceof FileRecord)
                     conversationPanel.addComponent(component);
                 }
             }
+            else
+            {
+                ChatMessage chatMessage
+                    = createHistoryMessage(o, escapedMessageID);
+
+                if (chatMessage != null)
+                    historyString = processHistoryMessage(chatMessage);
+            }
 
             if (historyString != null)
                 conversationPanel.appendMessageToEnd(
@@ -1014,6 +948,12 @@ private void addChatMessage(final ChatMessage chatMessage)
         // thread.
         if (!SwingUtilities.isEventDispatchThread())
         {
+            // The message is formatted by the current thread, the event
+            // dispatch thread only inserts it.
+            conversationPanel.preformatMessage(
+                chatMessage,
+                getHighlightKeyword(chatMessage));
+
             SwingUtilities.invokeLater(new Runnable()
             {
                 public void run()
@@ -1107,15 +1047,12 @@ private void displayChatMessage(ChatMessage chatMessage)
      */
     private void appendChatMessage(final ChatMessage chatMessage)
     {
-        String keyword = null;
+        // the conversation only follows new messages when scrolled to its
+        // bottom, sending a message brings the user back to it
+        if (Chat.OUTGOING_MESSAGE.equals(chatMessage.getMessageType()))
+            conversationPanel.scrollToBottom();
 
-        if (chatSession instanceof ConferenceChatSession
-            && Chat.INCOMING_MESSAGE.equals(chatMessage.getMessageType()))
-        {
-            keyword =
-                ((ChatRoomWrapper) chatSession.getDescriptor()).getChatRoom()
-                    .getUserNickname();
-        }
+        String keyword = getHighlightKeyword(chatMessage);
 
         String processedMessage =
             this.conversationPanel.processMessage(chatMessage, keyword,
@@ -1137,6 +1074,25 @@ private void appendChatMessage(final ChatMessage chatMessage)
             processedMessage, ChatHtmlUtils.HTML_CONTENT_TYPE);
     }
 
+    /**
+     * Returns the word to highlight in the given message: the nickname of
+     * the user in the incoming messages of a conference chat.
+     *
+     * @param chatMessage the message
+     * @return the word to highlight or <tt>null</tt>
+     */
+    private String getHighlightKeyword(ChatMessage chatMessage)
+    {
+        if (chatSession instanceof ConferenceChatSession
+            && Chat.INCOMING_MESSAGE.equals(chatMessage.getMessageType()))
+        {
+            return
+                ((ChatRoomWrapper) chatSession.getDescriptor()).getChatRoom()
+                    .getUserNickname();
+        }
+        return null;
+    }
+
     /**
      * Passes the message to the contained <code>ChatConversationPanel</code>
      * for processing and replaces the specified message with this one.
@@ -1149,38 +1105,163 @@ private void applyMessageCorrection(ChatMessage message)
     }
 
     /**
-     * Passes the message to the contained <code>ChatConversationPanel</code>
-     * for processing.
+     * Creates the <tt>ChatMessage</tt> showing a message of the history.
      *
-     * @param contactName The name of the contact sending the message.
-     * @param contactDisplayName the display name of the contact sending the
+     * @param o the message event coming from history
+     * @param escapedMessageID the incoming message needed to be ignored if
+     * contained in history
+     * @return the <tt>ChatMessage</tt> or <tt>null</tt> if <tt>o</tt> is not
+     * to be shown as a message
+     */
+    private ChatMessage createHistoryMessage(Object o, String escapedMessageID)
+    {
+        String messageType;
+
+        if(o instanceof MessageDeliveredEvent)
+        {
+            MessageDeliveredEvent evt
+                = (MessageDeliveredEvent)o;
+
+            ProtocolProviderService protocolProvider = evt
+                .getDestinationContact().getProtocolProvider();
+
+            if (isGreyHistoryStyleDisabled(protocolProvider))
+                messageType = Chat.OUTGOING_MESSAGE;
+            else
+                messageType = Chat.HISTORY_OUTGOING_MESSAGE;
+
+            return createHistoryMessage(
+                        GuiActivator.getUIService().getMainFrame()
+                            .getAccountAddress(protocolProvider),
+                        GuiActivator.getUIService().getMainFrame()
+                            .getAccountDisplayName(protocolProvider),
+                        evt.getTimestamp(),
+                        messageType,
+                        evt.getSourceMessage().getContent(),
+                        evt.getSourceMessage().getContentType(),
+                        evt.getSourceMessage().getMessageUID());
+        }
+        else if(o instanceof MessageReceivedEvent)
+        {
+            MessageReceivedEvent evt = (MessageReceivedEvent)o;
+
+            ProtocolProviderService protocolProvider
+                = evt.getSourceContact().getProtocolProvider();
+
+            if(!evt.getSourceMessage().getMessageUID()
+                    .equals(escapedMessageID))
+            {
+                if (isGreyHistoryStyleDisabled(protocolProvider))
+                    messageType = Chat.INCOMING_MESSAGE;
+                else
+                    messageType = Chat.HISTORY_INCOMING_MESSAGE;
+
+                return createHistoryMessage(
+                            evt.getSourceContact().getAddress(),
+                            evt.getSourceContact().getDisplayName(),
+                            evt.getTimestamp(),
+                            messageType,
+                            evt.getSourceMessage().getContent(),
+                            evt.getSourceMessage().getContentType(),
+                            evt.getSourceMessage().getMessageUID());
+            }
+        }
+        else if(o instanceof ChatRoomMessageDeliveredEvent)
+        {
+            ChatRoomMessageDeliveredEvent evt
+                = (ChatRoomMessageDeliveredEvent)o;
+
+            ProtocolProviderService protocolProvider = evt
+                .getSourceChatRoom().getParentProvider();
+
+            return createHistoryMessage(
+                        GuiActivator.getUIService().getMainFrame()
+                            .getAccountAddress(protocolProvider),
+                        GuiActivator.getUIService().getMainFrame()
+                            .getAccountDisplayName(protocolProvider),
+                        evt.getTimestamp(),
+                        Chat.HISTORY_OUTGOING_MESSAGE,
+                        evt.getMessage().getContent(),
+                        evt.getMessage().getContentType(),
+                        evt.getMessage().getMessageUID());
+        }
+        else if(o instanceof ChatRoomMessageReceivedEvent)
+        {
+            ChatRoomMessageReceivedEvent evt
+                = (ChatRoomMessageReceivedEvent) o;
+
+            if(!evt.getMessage().getMessageUID()
+                    .equals(escapedMessageID))
+            {
+                return createHistoryMessage(
+                        evt.getSourceChatRoomMember().getContactAddress(),
+                        evt.getSourceChatRoomMember().getName(),
+                        evt.getTimestamp(),
+                        Chat.HISTORY_INCOMING_MESSAGE,
+                        evt.getMessage().getContent(),
+                        evt.getMessage().getContentType(),
+                        evt.getMessage().getMessageUID());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the <tt>ChatMessage</tt> showing a message of the history.
+     *
+     * @param contactName The name of the contact that sent the message.
+     * @param contactDisplayName the display name of the contact that sent the
      * message
-     * @param date The time at which the message is sent or received.
+     * @param date The date and time when the message was sent.
      * @param messageType The type of the message. One of OUTGOING_MESSAGE
      * or INCOMING_MESSAGE.
      * @param message The message text.
      * @param contentType the content type of the message (html or plain text)
      * @param messageId The ID of the message.
      *
-     * @return a string containing the processed message.
+     * @return the <tt>ChatMessage</tt>
      */
-    private String processHistoryMessage(String contactName,
-                                         String contactDisplayName,
-                                         Date date,
-                                         String messageType,
-                                         String message,
-                                         String contentType,
-                                         String messageId)
+    private ChatMessage createHistoryMessage(String contactName,
+                                             String contactDisplayName,
+                                             Date date,
+                                             String messageType,
+                                             String message,
+                                             String contentType,
+                                             String messageId)
     {
-        ChatMessage chatMessage = new ChatMessage(
+        return new ChatMessage(
             contactName, contactDisplayName, date,
                 messageType, null, message, contentType, messageId, null);
+    }
 
+    /**
+     * Process a message from the history.
+     *
+     * @param chatMessage the message coming from history
+     *
+     * @return a string containing the processed message.
+     */
+    private String processHistoryMessage(ChatMessage chatMessage)
+    {
         String processedMessage =
             this.conversationPanel.processMessage(chatMessage,
                 chatSession.getCurrentChatTransport().getProtocolProvider(),
                 chatSession.getCurrentChatTransport().getName());
 
+        return processMeCommand(chatMessage, processedMessage);
+    }
+
+    /**
+     * Shows a message as a /me command in a conference chat.
+     *
+     * @param chatMessage the message
+     * @param processedMessage the message processed for the conversation
+     * @return the message processed as a /me command if it is one,
+     * otherwise <tt>processedMessage</tt>
+     */
+    private String processMeCommand(ChatMessage chatMessage,
+                                    String processedMessage)
+    {
         if (chatSession instanceof ConferenceChatSession)
         {
             String tempMessage =
@@ -1193,6 +1274,7 @@ private String processHistoryMessage(String contactName,
         return processedMessage;
     }
 
+
     /**
      * Refreshes write area editor pane. Deletes all existing text
      * content.
@@ -2219,6 +2301,83 @@ public void finished()
         worker.start();
     }
 
+    /**
+     * Loads the messages of the history preceding the first message of the
+     * conversation and inserts them before it, so that the user scrolling
+     * back reads the conversation from the history without leaving the
+     * page. The document only keeps a window of recent messages, so the
+     * older messages are loaded on demand only.
+     */
+    private void loadOlderMessages()
+    {
+        // If the MetaHistoryService is not registered we have nothing to do
+        // here. The history service could be "disabled" from the user
+        // through one of the configuration forms.
+        if (isLoadingOlderMessages
+                || GuiActivator.getMetaHistoryService() == null)
+            return;
+
+        final Date firstMsgDate = conversationPanel.getPageFirstMsgTimestamp();
+
+        // There is no message in the page or nothing before it.
+        if (firstMsgDate.getTime() == Long.MAX_VALUE
+                || firstMsgDate.equals(noMessagesBefore))
+            return;
+
+        isLoadingOlderMessages = true;
+
+        new SwingWorker()
+        {
+            @Override
+            public Object construct() throws Exception
+            {
+                return chatSession.getHistoryBeforeDate(
+                    firstMsgDate,
+                    MESSAGES_PER_PAGE);
+            }
+
+            @Override
+            public void finished()
+            {
+                isLoadingOlderMessages = false;
+
+                @SuppressWarnings("unchecked")
+                Collection<Object> history = (Collection<Object>) get();
+                Map<String, String> messages
+                    = new LinkedHashMap<String, String>();
+
+                if (history != null)
+                {
+                    ChatTransport transport
+                        = chatSession.getCurrentChatTransport();
+
+                    for (Object o : history)
+                    {
+                        ChatMessage chatMessage = createHistoryMessage(o, "");
+
+                        if (chatMessage == null)
+                            continue;
+
+                        String processedMessage
+                            = conversationPanel.formatPrependedMessage(
+                                chatMessage,
+                                transport.getProtocolProvider(),
+                                transport.getName());
+
+                        messages.put(
+                            chatMessage.getMessageUID(),
+                            processMeCommand(chatMessage, processedMessage));
+                    }
+                }
+
+                if (messages.isEmpty())
+                    noMessagesBefore = firstMsgDate;
+                else
+                    conversationPanel.prependMessages(messages);
+            }
+        }.start();
+    }
+
     /**
      * Implements <tt>ChatPanel.loadNextFromHistory</tt>.
      * Loads next page from history.
@@ -2266,6 +2425,31 @@ public void finished()
         worker.start();
     }
 
+    /**
+     * Loads older messages when the conversation is scrolled to its top.
+     */
+    private class OlderMessagesLoader
+        implements AdjustmentListener
+    {
+        /**
+         * The previous value of the scroll bar.
+         */
+        private int lastValue = 0;
+
+        public void adjustmentValueChanged(AdjustmentEvent e)
+        {
+            JScrollBar scrollBar = (JScrollBar) e.getAdjustable();
+            boolean scrolledUp = e.getValue() < lastValue;
+
+            lastValue = e.getValue();
+
+            // Growing documents start at the top too, only scrolling up to
+            // it loads older messages.
+            if (scrolledUp && e.getValue() == scrollBar.getMinimum())
+                loadOlderMessages();
+        }
+    }
+
     /**
      * From a given collection of messages shows the history in the chat window.
      */
@@ -0,0 +1,270 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.awt.event.*;
+import java.util.*;
+
+import javax.swing.Timer;
+
+import net.java.sip.communicator.plugin.desktoputil.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Collects the updates of the contact list made by the threads of contact
+ * queries and runs them on the event dispatch thread in batches, at most
+ * <tt>frameRate</tt> times per second. A query returning thousands of
+ * contacts thus posts a few events instead of one per contact, and the
+ * input events of the user are dispatched between the batches.
+ * <p>
+ * Updates which only matter to the running filter, such as the addition of
+ * a found contact, are queued as discardable and dropped when a new filter
+ * is applied.
+ */
+class BatchedUpdateQueue
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(BatchedUpdateQueue.class);
+
+    /**
+     * The default maximum number of batches run per second.
+     */
+    static final int DEFAULT_FRAME_RATE = 30;
+
+    /**
+     * The time, in nanoseconds, a batch may keep the event dispatch thread
+     * busy. The rest of the updates are left to the next batch.
+     */
+    private static final long BATCH_TIME_BUDGET = 20 * 1000 * 1000;
+
+    /**
+     * The minimum time, in milliseconds, between two batches.
+     */
+    private final long frameInterval;
+
+    /**
+     * The queued updates.
+     */
+    private final LinkedList<Update> pending = new LinkedList<Update>();
+
+    /**
+     * Whether a batch has been scheduled and has not run yet.
+     */
+    private boolean scheduled = false;
+
+    /**
+     * The time, in milliseconds, the last batch ran at. Only accessed on the
+     * event dispatch thread.
+     */
+    private long lastBatchTime = 0;
+
+    /**
+     * The number of batches run.
+     */
+    private long batchCount = 0;
+
+    /**
+     * The number of updates run.
+     */
+    private long updateCount = 0;
+
+    /**
+     * The timer delaying the batches which come too early. Only accessed on
+     * the event dispatch thread.
+     */
+    private final Timer delayTimer;
+
+    /**
+     * Posts {@link #runBatch()} to the event dispatch thread with a low
+     * priority.
+     */
+    private final Runnable batchRunner = new Runnable()
+    {
+        public void run()
+        {
+            runBatch();
+        }
+    };
+
+    /**
+     * Creates a queue running at most <tt>frameRate</tt> batches per second.
+     *
+     * @param frameRate the maximum number of batches per second
+     */
+    BatchedUpdateQueue(int frameRate)
+    {
+        frameInterval = 1000 / Math.max(1, frameRate);
+
+        delayTimer = new Timer(0, new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                runBatch();
+            }
+        });
+        delayTimer.setRepeats(false);
+    }
+
+    /**
+     * Queues an update of the contact list.
+     *
+     * @param update the update to run on the event dispatch thread
+     * @param discardable whether the update may be dropped when a new filter
+     * is applied
+     */
+    void invokeLater(Runnable update, boolean discardable)
+    {
+        synchronized (pending)
+        {
+            pending.add(new Update(update, discardable));
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        LowPriorityEventQueue.invokeLater(batchRunner);
+    }
+
+    /**
+     * Drops the queued discardable updates.
+     *
+     * @return the number of dropped updates
+     */
+    int discardPending()
+    {
+        int discarded = 0;
+
+        synchronized (pending)
+        {
+            for (Iterator<Update> i = pending.iterator(); i.hasNext();)
+            {
+                if (i.next().discardable)
+                {
+                    i.remove();
+                    discarded++;
+                }
+            }
+        }
+        return discarded;
+    }
+
+    /**
+     * Returns the number of batches run.
+     *
+     * @return the number of batches run
+     */
+    synchronized long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * Returns the number of updates run.
+     *
+     * @return the number of updates run
+     */
+    synchronized long getUpdateCount()
+    {
+        return updateCount;
+    }
+
+    /**
+     * Runs the queued updates on the event dispatch thread, or delays them
+     * if the previous batch ran less than a frame ago.
+     */
+    private void runBatch()
+    {
+        long now = System.currentTimeMillis();
+        long delay = lastBatchTime + frameInterval - now;
+
+        if (delay > 0 && delay <= frameInterval)
+        {
+            delayTimer.setInitialDelay((int) delay);
+            delayTimer.restart();
+            return;
+        }
+        lastBatchTime = now;
+
+        long start = System.nanoTime();
+        int count = 0;
+        boolean more;
+
+        do
+        {
+            Update update;
+
+            synchronized (pending)
+            {
+                update = pending.poll();
+                if (update == null)
+                {
+                    scheduled = false;
+                    more = false;
+                    break;
+                }
+            }
+
+            try
+            {
+                update.runnable.run();
+            }
+            catch (Throwable t)
+            {
+                // one broken update must not stop the others
+                logger.error("Contact list update failed", t);
+            }
+            count++;
+
+            synchronized (pending)
+            {
+                more = !pending.isEmpty();
+                if (!more)
+                    scheduled = false;
+            }
+        }
+        while (more && System.nanoTime() - start < BATCH_TIME_BUDGET);
+
+        synchronized (this)
+        {
+            batchCount++;
+            updateCount += count;
+        }
+
+        // the budget ran out, continue in the next frame
+        if (more)
+            LowPriorityEventQueue.invokeLater(batchRunner);
+    }
+
+    /**
+     * A queued update.
+     */
+    private static class Update
+    {
+        private final Runnable runnable;
+
+        private final boolean discardable;
+
+        private Update(Runnable runnable, boolean discardable)
+        {
+            this.runnable = runnable;
+            this.discardable = discardable;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.util.*;
+
+/**
+ * Measures how long the contact sources take to answer the queries of the
+ * filters of a contact list: the time to their first result and the time
+ * until they finish. Queries canceled because a new filter was applied are
+ * only counted.
+ */
+public class ContactSourceLatencies
+{
+    /**
+     * The name under which the queries of the meta contact list are
+     * measured.
+     */
+    public static final String META_CONTACT_LIST_SOURCE = "MetaContactList";
+
+    /**
+     * The latencies by contact source name.
+     */
+    private final Map<String, Latency> latencies
+        = new LinkedHashMap<String, Latency>();
+
+    /**
+     * Records the time a query took to return its first result.
+     *
+     * @param source the name of the contact source
+     * @param millis the time since the start of the query in milliseconds
+     */
+    synchronized void firstResult(String source, long millis)
+    {
+        Latency latency = getLatency(source);
+
+        latency.firstResultCount++;
+        latency.firstResultTotal += millis;
+    }
+
+    /**
+     * Records the time a query took to finish.
+     *
+     * @param source the name of the contact source
+     * @param millis the time since the start of the query in milliseconds
+     */
+    synchronized void queryFinished(String source, long millis)
+    {
+        Latency latency = getLatency(source);
+
+        latency.completedCount++;
+        latency.completionTotal += millis;
+        latency.completionMax = Math.max(latency.completionMax, millis);
+    }
+
+    /**
+     * Records that a query was canceled before it finished.
+     *
+     * @param source the name of the contact source
+     */
+    synchronized void queryCanceled(String source)
+    {
+        getLatency(source).canceledCount++;
+    }
+
+    /**
+     * Returns the latencies of the contact sources queried so far.
+     *
+     * @return copies of the latencies by contact source name
+     */
+    public synchronized Map<String, Latency> getLatencies()
+    {
+        Map<String, Latency> copy = new LinkedHashMap<String, Latency>();
+
+        for (Map.Entry<String, Latency> e : latencies.entrySet())
+            copy.put(e.getKey(), new Latency(e.getValue()));
+        return copy;
+    }
+
+    /**
+     * Returns the latency of a source, creating it if needed.
+     */
+    private Latency getLatency(String source)
+    {
+        Latency latency = latencies.get(source);
+
+        if (latency == null)
+        {
+            latency = new Latency();
+            latencies.put(source, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * The latencies of the queries of one contact source.
+     */
+    public static class Latency
+    {
+        private long firstResultCount;
+
+        private long firstResultTotal;
+
+        private long completedCount;
+
+        private long completionTotal;
+
+        private long completionMax;
+
+        private long canceledCount;
+
+        private Latency()
+        {
+        }
+
+        private Latency(Latency latency)
+        {
+            firstResultCount = latency.firstResultCount;
+            firstResultTotal = latency.firstResultTotal;
+            completedCount = latency.completedCount;
+            completionTotal = latency.completionTotal;
+            completionMax = latency.completionMax;
+            canceledCount = latency.canceledCount;
+        }
+
+        /**
+         * Returns the number of queries which finished.
+         *
+         * @return the number of queries which finished
+         */
+        public long getCompletedCount()
+        {
+            return completedCount;
+        }
+
+        /**
+         * Returns the number of queries canceled before they finished.
+         *
+         * @return the number of canceled queries
+         */
+        public long getCanceledCount()
+        {
+            return canceledCount;
+        }
+
+        /**
+         * Returns the average time queries took to return their first
+         * result.
+         *
+         * @return the average time in milliseconds or <tt>-1</tt> if no
+         * query returned a result
+         */
+        public long getAverageFirstResultTime()
+        {
+            return (firstResultCount == 0)
+                ? -1
+                : firstResultTotal / firstResultCount;
+        }
+
+        /**
+         * Returns the average time queries took to finish.
+         *
+         * @return the average time in milliseconds or <tt>-1</tt> if no
+         * query finished
+         */
+        public long getAverageCompletionTime()
+        {
+            return (completedCount == 0)
+                ? -1
+                : completionTotal / completedCount;
+        }
+
+        /**
+         * Returns the longest time a query took to finish.
+         *
+         * @return the longest time in milliseconds
+         */
+        public long getMaxCompletionTime()
+        {
+            return completionMax;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "completed=" + completedCount
+                + " canceled=" + canceledCount
+                + " avgFirstResult=" + getAverageFirstResultTime() + "ms"
+                + " avgCompletion=" + getAverageCompletionTime() + "ms"
+                + " maxCompletion=" + completionMax + "ms";
+        }
+    }
+}
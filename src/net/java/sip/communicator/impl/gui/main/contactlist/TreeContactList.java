@@ -159,6 +159,19 @@
      */
     private FilterThread filterThread;
 
+    /**
+     * The queue which batches the updates of this list made by the threads
+     * of the contact queries.
+     */
+    private final BatchedUpdateQueue updateQueue
+        = new BatchedUpdateQueue(BatchedUpdateQueue.DEFAULT_FRAME_RATE);
+
+    /**
+     * The latencies of the contact sources queried by the filters.
+     */
+    private final ContactSourceLatencies sourceLatencies
+        = new ContactSourceLatencies();
+
     /**
      * Indicates that the received call image search has been canceled.
      */
@@ -365,13 +378,13 @@ private void contactChanged(final SourceContact sourceContact,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            updateQueue.invokeLater(new Runnable()
             {
                 public void run()
                 {
                     contactChanged(sourceContact, uiContact, sourceUI);
                 }
-            });
+            }, false);
             return;
         }
 
@@ -826,13 +839,13 @@ private void addContact(final MetaContactQuery query,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            updateQueue.invokeLater(new Runnable()
             {
                 public void run()
                 {
                     addContact(query, contact, group, isSorted);
                 }
-            });
+            }, true);
             return;
         }
 
@@ -857,13 +870,13 @@ public void addContact(final ContactQuery query,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            updateQueue.invokeLater(new Runnable()
             {
                 public void run()
                 {
                     addContact(query, contact, group, isSorted);
                 }
-            });
+            }, true);
             return;
         }
 
@@ -887,13 +900,13 @@ public void removeContact(  final UIContact contact,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            updateQueue.invokeLater(new Runnable()
             {
                 public void run()
                 {
                     removeContact(contact, removeEmptyGroup);
                 }
-            });
+            }, false);
             return;
         }
 
@@ -1232,8 +1245,14 @@ public FilterQuery applyFilter(ContactListFilter filter)
 
         if (currentFilterQuery != null && !currentFilterQuery.isCanceled())
             currentFilterQuery.cancel();
+
+        // the contacts found by the previous filter are not shown anymore
+        int discarded = updateQueue.discardPending();
+        if (discarded > 0 && logger.isDebugEnabled())
+            logger.debug("Dropped " + discarded + " pending contact updates");
+
         rootUIGroup = null;
-        currentFilterQuery = new UIFilterQuery(this);
+        currentFilterQuery = new UIFilterQuery(this, sourceLatencies);
 
         if (filterThread == null)
         {
@@ -1355,6 +1374,17 @@ public FilterQuery getCurrentFilterQuery()
         return currentFilterQuery;
     }
 
+    /**
+     * Returns the latencies of the contact sources queried by the filters of
+     * this list.
+     *
+     * @return the latencies of the contact sources
+     */
+    public ContactSourceLatencies getSourceLatencies()
+    {
+        return sourceLatencies;
+    }
+
     /**
      * Indicates if this contact list is empty.
      * @return <tt>true</tt> if this contact list contains no children,
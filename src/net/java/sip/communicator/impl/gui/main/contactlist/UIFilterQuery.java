@@ -89,6 +89,24 @@
     private final Map<ContactQuery,ShowMoreContact> showMoreContactMap
         = new HashMap<ContactQuery, ShowMoreContact>();
 
+    /**
+     * The latencies of the contact sources, updated by this query, or
+     * <tt>null</tt> if they are not measured.
+     */
+    private final ContactSourceLatencies latencies;
+
+    /**
+     * The start times, in milliseconds, of the contact queries which have not
+     * finished yet.
+     */
+    private final Map<Object, Long> queryStartTimes
+        = new HashMap<Object, Long>();
+
+    /**
+     * The contact queries which have returned a result.
+     */
+    private final Set<Object> queriesWithResults = new HashSet<Object>();
+
     /**
      * Creates an instance of <tt>UIFilterQuery</tt> by specifying the parent
      * <tt>ContactList</tt>.
@@ -97,8 +115,24 @@
      * performed
      */
     public UIFilterQuery(ContactList contactList)
+    {
+        this(contactList, null);
+    }
+
+    /**
+     * Creates an instance of <tt>UIFilterQuery</tt> which measures the
+     * latencies of the queried contact sources.
+     *
+     * @param contactList the <tt>ContactList</tt> on which the query is
+     * performed
+     * @param latencies the latencies to update or <tt>null</tt>
+     */
+    public UIFilterQuery(
+        ContactList contactList,
+        ContactSourceLatencies latencies)
     {
         this.contactList = contactList;
+        this.latencies = latencies;
     }
 
     /**
@@ -133,6 +167,7 @@ else if (contactQuery instanceof MetaContactQuery)
             isRunning = true;
             filterQueries.put(contactQuery, queryResults);
             runningQueries++;
+            queryStartTimes.put(contactQuery, System.currentTimeMillis());
         }
     }
 
@@ -272,6 +307,7 @@ public void removeQuery(ContactQuery query)
         // Then remove the wait result from the filterQuery.
         runningQueries--;
         query.removeContactQueryListener(this);
+        recordQueryFinished(query);
 
         // If no queries have rest we notify interested listeners that query
         // has finished.
@@ -302,6 +338,7 @@ public void metaContactQueryStatusChanged(MetaContactQueryStatusEvent event)
         // finished.
         runningQueries--;
         query.removeContactQueryListener(this);
+        recordQueryFinished(query);
 
         // If no queries have rest we notify interested listeners that query
         // has finished.
@@ -309,12 +346,72 @@ public void metaContactQueryStatusChanged(MetaContactQueryStatusEvent event)
             fireFilterQueryEvent();
     }
 
+    /**
+     * Records the time the given query took to return its first result, if
+     * it is its first result.
+     *
+     * @param query the query which returned a result
+     */
+    private void recordFirstResult(Object query)
+    {
+        if (latencies == null)
+            return;
+
+        Long start;
+        synchronized (filterQueries)
+        {
+            start = queryStartTimes.get(query);
+            if (start == null || !queriesWithResults.add(query))
+                return;
+        }
+        latencies.firstResult(
+            getSourceName(query), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Records the time the given query took to finish.
+     *
+     * @param query the finished query
+     */
+    private void recordQueryFinished(Object query)
+    {
+        if (latencies == null)
+            return;
+
+        Long start;
+        synchronized (filterQueries)
+        {
+            start = queryStartTimes.remove(query);
+        }
+        if (start != null)
+        {
+            latencies.queryFinished(
+                getSourceName(query), System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Returns the name under which the latencies of a query are measured.
+     *
+     * @param query a <tt>ContactQuery</tt> or a <tt>MetaContactQuery</tt>
+     * @return the name of the contact source of the query
+     */
+    private static String getSourceName(Object query)
+    {
+        if (query instanceof ContactQuery)
+            return ((ContactQuery) query).getContactSource().getDisplayName();
+        return ContactSourceLatencies.META_CONTACT_LIST_SOURCE;
+    }
+
     /**
      * Cancels the given query.
      * @param query the query to cancel
      */
     private void cancelQuery(Object query)
     {
+        if (latencies != null && queryStartTimes.remove(query) != null)
+            latencies.queryCanceled(getSourceName(query));
+
         if (query instanceof ContactQuery)
         {
             ContactQuery contactQuery = (ContactQuery) query;
@@ -364,6 +461,8 @@ public void contactReceived(ContactReceivedEvent event)
         ContactQuery query = event.getQuerySource();
         SourceContact contact = event.getContact();
 
+        recordFirstResult(query);
+
         // First set the isSucceeded property.
         if (!isSucceeded() && !query.getQueryResults().isEmpty())
             setSucceeded(true);
@@ -411,6 +510,8 @@ public void contactChanged(ContactChangedEvent event)
 
     public void metaContactReceived(MetaContactQueryEvent event)
     {
+        recordFirstResult(event.getQuerySource());
+
         if (!isSucceeded() && event.getQuerySource().getResultCount() > 0)
             setSucceeded(true);
 
@@ -49,7 +49,7 @@
  * @author Yana Stamcheva
  */
 public class MetaContactListSource
-    implements  ContactPresenceStatusListener,
+    implements  ContactPresenceStatusBatchListener,
                 MetaContactListListener
 {
     /**
@@ -95,6 +95,20 @@
      */
     private int index = 0;
 
+    /**
+     * The index of the <tt>MetaContact</tt>s by the trigrams of the strings
+     * queries match them against. Built by the first query which can use it
+     * and then kept up to date by the events of the meta contact list.
+     */
+    private final NGramIndex<MetaContact> contactIndex
+        = new NGramIndex<MetaContact>();
+
+    /**
+     * Whether {@link #contactIndex} has been built. Guarded by
+     * <tt>contactIndex</tt>.
+     */
+    private boolean contactIndexBuilt = false;
+
     /**
      * The logger.
      */
@@ -213,11 +227,21 @@ public void startQuery(final MetaContactQuery query,
             @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                List<MetaContact> candidates
+                    = findCandidates(filterPattern);
+
+                if (candidates == null)
+                {
+                    int resultCount = 0;
+                    queryMetaContactSource( filterPattern,
+                            GuiActivator.getContactListService().getRoot(),
+                            query,
+                            resultCount);
+                }
+                else
+                {
+                    queryCandidates(filterPattern, candidates, query);
+                }
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -253,48 +277,7 @@ public void queryMetaContactSource(Pattern filterPattern,
             if (isMatching(filterPattern, metaContact))
             {
                 resultCount++;
-
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
+                addQueryResult(metaContact, parentGroup, query, resultCount);
             }
         }
 
@@ -311,6 +294,219 @@ public void queryMetaContactSource(Pattern filterPattern,
         }
     }
 
+    /**
+     * Filters the <tt>MetaContact</tt>s found in the index for the given
+     * <tt>filterPattern</tt>, checking each of them as
+     * {@link #queryMetaContactSource(Pattern, MetaContactGroup,
+     * MetaContactQuery, int)} would.
+     * @param filterPattern the pattern to filter through
+     * @param candidates the <tt>MetaContact</tt>s which may match
+     * @param query the object that tracks the query
+     */
+    private void queryCandidates(Pattern filterPattern,
+                                 List<MetaContact> candidates,
+                                 MetaContactQuery query)
+    {
+        int resultCount = 0;
+
+        for (MetaContact metaContact : candidates)
+        {
+            if (query.isCanceled())
+                return;
+
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
+
+            // removed in the meantime
+            if (parentGroup == null)
+                continue;
+
+            if (isMatching(filterPattern, metaContact))
+            {
+                resultCount++;
+                addQueryResult(metaContact, parentGroup, query, resultCount);
+            }
+        }
+    }
+
+    /**
+     * Adds a <tt>MetaContact</tt> matching a query to the contact list. The
+     * first results are inserted directly, the next ones are fired as events
+     * of the query.
+     * @param metaContact the matching <tt>MetaContact</tt>
+     * @param parentGroup the parent group of <tt>metaContact</tt>
+     * @param query the object that tracks the query
+     * @param resultCount the number of results including this one
+     */
+    private void addQueryResult(MetaContact metaContact,
+                                MetaContactGroup parentGroup,
+                                MetaContactQuery query,
+                                int resultCount)
+    {
+        if (resultCount <= INITIAL_CONTACT_COUNT)
+        {
+            UIGroup uiGroup = null;
+            if (!MetaContactListSource.isRootGroup(parentGroup))
+            {
+                synchronized (parentGroup)
+                {
+                    uiGroup = MetaContactListSource
+                        .getUIGroup(parentGroup);
+                    if (uiGroup == null)
+                        uiGroup = MetaContactListSource
+                            .createUIGroup(parentGroup);
+                }
+            }
+
+            UIContact newUIContact;
+            synchronized (metaContact)
+            {
+                newUIContact
+                    = MetaContactListSource.getUIContact(metaContact);
+
+                if (newUIContact == null)
+                {
+                    newUIContact
+                        = MetaContactListSource
+                            .createUIContact(metaContact);
+                }
+
+                GuiActivator.getContactList().addContact(
+                    newUIContact,
+                    uiGroup,
+                    true,
+                    true);
+            }
+
+            query.setInitialResultCount(resultCount);
+        }
+        else
+        {
+            query.fireQueryEvent(metaContact);
+        }
+    }
+
+    /**
+     * Looks up the <tt>MetaContact</tt>s which may match the given
+     * <tt>filterPattern</tt> in the index, building it first if needed. Only
+     * patterns quoting a string of at least a trigram, like the ones of the
+     * <tt>SearchFilter</tt>, can be looked up.
+     * @param filterPattern the pattern to filter through
+     * @return the <tt>MetaContact</tt>s which may match or <tt>null</tt> if
+     * the whole meta contact list has to be checked
+     */
+    private List<MetaContact> findCandidates(Pattern filterPattern)
+    {
+        String text = getQuotedText(filterPattern);
+
+        if (text == null || text.length() < NGramIndex.N)
+            return null;
+
+        synchronized (contactIndex)
+        {
+            if (!contactIndexBuilt)
+            {
+                // the events wait for the lock, so none of them is missed
+                contactIndexBuilt = true;
+                indexGroup(GuiActivator.getContactListService().getRoot());
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Indexed " + contactIndex.size()
+                        + " meta contacts for searching");
+            }
+            return contactIndex.find(text);
+        }
+    }
+
+    /**
+     * Returns the string a pattern created with <tt>Pattern.quote()</tt>
+     * matches.
+     * @param pattern the pattern
+     * @return the quoted string or <tt>null</tt> if <tt>pattern</tt> is not
+     * a simple quotation
+     */
+    static String getQuotedText(Pattern pattern)
+    {
+        String regex = pattern.pattern();
+
+        if (regex.length() >= 4
+                && regex.startsWith("\\Q")
+                && regex.endsWith("\\E"))
+        {
+            String text = regex.substring(2, regex.length() - 2);
+
+            if (text.indexOf("\\E") == -1)
+                return text;
+        }
+        return null;
+    }
+
+    /**
+     * Indexes the <tt>MetaContact</tt>s of a group and of its subgroups.
+     * @param metaGroup the group to index
+     */
+    private void indexGroup(MetaContactGroup metaGroup)
+    {
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+        while (childContacts.hasNext())
+            indexContact(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            indexGroup(subgroups.next());
+    }
+
+    /**
+     * Indexes a <tt>MetaContact</tt> under the strings
+     * {@link #isMatching(Pattern, MetaContact)} checks, or removes it from
+     * the index if it is no longer in the meta contact list. Does nothing
+     * until the index is built.
+     * @param metaContact the <tt>MetaContact</tt> to index
+     */
+    private void indexContact(MetaContact metaContact)
+    {
+        synchronized (contactIndex)
+        {
+            if (!contactIndexBuilt)
+                return;
+
+            if (metaContact.getParentMetaContactGroup() == null)
+            {
+                contactIndex.remove(metaContact);
+                return;
+            }
+
+            List<String> terms = new ArrayList<String>();
+            terms.add(metaContact.getDisplayName());
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                terms.add(contact.getDisplayName());
+                terms.add(contact.getAddress());
+            }
+            contactIndex.put(metaContact, terms);
+        }
+    }
+
+    /**
+     * Removes the <tt>MetaContact</tt>s of a group and of its subgroups from
+     * the index.
+     * @param metaGroup the removed group
+     */
+    private void unindexGroup(MetaContactGroup metaGroup)
+    {
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+        while (childContacts.hasNext())
+            contactIndex.remove(childContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            unindexGroup(subgroups.next());
+    }
+
     /**
      * Checks if the given <tt>metaContact</tt> is matching the given
      * <tt>filterPattern</tt>.
@@ -372,6 +568,32 @@ public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
         return false;
     }
 
+    /**
+     * Applies to the contact list all the status changes of the batch in a
+     * single pass on the event dispatch thread, instead of posting an update
+     * per contact.
+     *
+     * @param evt the <tt>ContactPresenceStatusBatchEvent</tt> that notified us
+     */
+    public void contactPresenceStatusBatchChanged(
+        final ContactPresenceStatusBatchEvent evt)
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    contactPresenceStatusBatchChanged(evt);
+                }
+            });
+            return;
+        }
+
+        for (ContactPresenceStatusChangeEvent change : evt.getEvents())
+            contactPresenceStatusChanged(change);
+    }
+
     public void contactPresenceStatusChanged(
         ContactPresenceStatusChangeEvent evt)
     {
@@ -514,6 +736,8 @@ public void metaContactAdded(final MetaContactEvent evt)
     private void metaContactAdded(final MetaContact metaContact,
                                  final MetaContactGroup parentGroup)
     {
+        indexContact(metaContact);
+
         UIContactImpl uiContact;
 
         synchronized (metaContact)
@@ -562,6 +786,8 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        indexGroup(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -639,6 +865,8 @@ public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        unindexGroup(metaGroup);
+
         UIGroup uiGroup;
         synchronized (metaGroup)
         {
@@ -658,6 +886,8 @@ public void metaContactModified(final MetaContactModifiedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        indexContact(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -768,6 +998,8 @@ public void metaContactRemoved(final MetaContactEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        contactIndex.remove(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -788,6 +1020,8 @@ public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        indexContact(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -843,6 +1077,8 @@ public void protoContactAdded(ProtoContactEvent evt)
     {
         final MetaContact metaContact = evt.getNewParent();
 
+        indexContact(metaContact);
+
         UIContact parentUIContact;
         boolean parentUIContactCreated = false;
         synchronized (metaContact)
@@ -900,6 +1136,8 @@ public void protoContactModified(ProtoContactEvent evt)
     {
         MetaContact metaContact = evt.getNewParent();
 
+        indexContact(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -928,6 +1166,9 @@ public void protoContactMoved(ProtoContactEvent evt)
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
+        indexContact(oldParent);
+        indexContact(newParent);
+
         UIContact oldUIContact;
         synchronized (oldParent)
         {
@@ -1000,6 +1241,8 @@ public void protoContactRemoved(ProtoContactEvent evt)
     {
         final MetaContact oldParent = evt.getOldParent();
 
+        indexContact(oldParent);
+
         UIContactImpl oldUIContact;
         synchronized (oldParent)
         {
@@ -0,0 +1,217 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+
+/**
+ * An index of items by the trigrams of their search terms, answering which
+ * items have a term containing a given string without looking at every item.
+ * <p>
+ * The index returns candidates: every item with a term containing the
+ * searched string is returned, but an item whose terms only contain all of
+ * its trigrams apart from each other is returned as well, so the caller
+ * checks the candidates. Strings shorter than a trigram are not answered.
+ * Terms are folded character by character, like case-insensitive regular
+ * expressions compare them.
+ *
+ * @param <T> the type of the indexed items
+ */
+class NGramIndex<T>
+{
+    /**
+     * The length of the indexed substrings.
+     */
+    static final int N = 3;
+
+    /**
+     * The items by the trigrams of their terms.
+     */
+    private final Map<String, Set<T>> postings
+        = new HashMap<String, Set<T>>();
+
+    /**
+     * The trigrams of every indexed item.
+     */
+    private final Map<T, Set<String>> itemNGrams
+        = new HashMap<T, Set<String>>();
+
+    /**
+     * Indexes an item under the given terms, replacing its previous terms.
+     *
+     * @param item the item to index
+     * @param terms the search terms of the item
+     */
+    synchronized void put(T item, Collection<String> terms)
+    {
+        Set<String> ngrams = new HashSet<String>();
+
+        for (String term : terms)
+        {
+            if (term == null)
+                continue;
+
+            String folded = fold(term);
+            for (int i = 0; i + N <= folded.length(); i++)
+                ngrams.add(folded.substring(i, i + N));
+        }
+
+        Set<String> oldNGrams = itemNGrams.put(item, ngrams);
+        if (oldNGrams != null)
+        {
+            for (String ngram : oldNGrams)
+            {
+                if (!ngrams.contains(ngram))
+                    removePosting(ngram, item);
+            }
+        }
+        for (String ngram : ngrams)
+        {
+            if (oldNGrams != null && oldNGrams.contains(ngram))
+                continue;
+
+            Set<T> items = postings.get(ngram);
+            if (items == null)
+            {
+                items = new HashSet<T>();
+                postings.put(ngram, items);
+            }
+            items.add(item);
+        }
+    }
+
+    /**
+     * Removes an item from the index.
+     *
+     * @param item the item to remove
+     */
+    synchronized void remove(T item)
+    {
+        Set<String> ngrams = itemNGrams.remove(item);
+
+        if (ngrams != null)
+        {
+            for (String ngram : ngrams)
+                removePosting(ngram, item);
+        }
+    }
+
+    /**
+     * Removes all items.
+     */
+    synchronized void clear()
+    {
+        postings.clear();
+        itemNGrams.clear();
+    }
+
+    /**
+     * Returns the number of indexed items.
+     *
+     * @return the number of indexed items
+     */
+    synchronized int size()
+    {
+        return itemNGrams.size();
+    }
+
+    /**
+     * Returns the items which may have a term containing <tt>text</tt>.
+     *
+     * @param text the searched string
+     * @return the candidate items or <tt>null</tt> if <tt>text</tt> is too
+     * short to be looked up
+     */
+    synchronized List<T> find(String text)
+    {
+        String folded = fold(text);
+
+        if (folded.length() < N)
+            return null;
+
+        List<Set<T>> sets = new ArrayList<Set<T>>();
+        for (int i = 0; i + N <= folded.length(); i++)
+        {
+            Set<T> items = postings.get(folded.substring(i, i + N));
+
+            if (items == null)
+                return new ArrayList<T>();
+            sets.add(items);
+        }
+
+        // intersect starting with the smallest set
+        Set<T> smallest = sets.get(0);
+        for (Set<T> items : sets)
+        {
+            if (items.size() < smallest.size())
+                smallest = items;
+        }
+
+        List<T> candidates = new ArrayList<T>(smallest.size());
+        for (T item : smallest)
+        {
+            boolean inAll = true;
+
+            for (Set<T> items : sets)
+            {
+                if (items != smallest && !items.contains(item))
+                {
+                    inAll = false;
+                    break;
+                }
+            }
+            if (inAll)
+                candidates.add(item);
+        }
+        return candidates;
+    }
+
+    /**
+     * Removes an item from the posting of a trigram.
+     */
+    private void removePosting(String ngram, T item)
+    {
+        Set<T> items = postings.get(ngram);
+
+        if (items != null)
+        {
+            items.remove(item);
+            if (items.isEmpty())
+                postings.remove(ngram);
+        }
+    }
+
+    /**
+     * Folds the case of a string character by character, without the
+     * locale dependent rules of <tt>String.toLowerCase()</tt>.
+     *
+     * @param s the string to fold
+     * @return the folded string
+     */
+    static String fold(String s)
+    {
+        char[] chars = s.toCharArray();
+
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i]
+                = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+}
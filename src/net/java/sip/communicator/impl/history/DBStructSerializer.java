@@ -140,8 +140,8 @@ public History loadHistory(File dbDatFile) throws SAXException,
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
-        return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
-                historyService);
+        return historyService.createHistoryImpl(
+                id, dbDatFile.getParentFile(), structure);
     }
 
     /**
@@ -19,6 +19,7 @@
 
 import net.java.sip.communicator.service.history.*;
 
+import org.jitsi.service.configuration.*;
 import org.osgi.framework.*;
 
 /**
@@ -35,6 +36,11 @@
      */
     private ServiceRegistration serviceRegistration;
 
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     /**
      * Initialize and start history service
      *
@@ -43,9 +49,22 @@
      */
     public void start(BundleContext bundleContext) throws Exception
     {
+        ConfigurationService configService
+            = HistoryServiceImpl.getConfigurationService(bundleContext);
+        String storeFormat = (configService == null)
+            ? null
+            : configService.getString(
+                    HistoryService.STORE_FORMAT_PROPERTY,
+                    HistoryService.STORE_FORMAT_XML);
+
+        historyService
+            = HistoryService.STORE_FORMAT_SEGMENT.equals(storeFormat)
+                ? new SegmentHistoryServiceImpl(bundleContext)
+                : new HistoryServiceImpl(bundleContext);
+
         serviceRegistration =
             bundleContext.registerService(HistoryService.class.getName(),
-                new HistoryServiceImpl(bundleContext), null);
+                historyService, null);
     }
 
     /**
@@ -62,5 +81,11 @@ public void stop(BundleContext bundleContext)
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+
+        if (historyService != null)
+        {
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
@@ -0,0 +1,304 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A cache of parsed history documents shared by all histories of a
+ * <tt>HistoryServiceImpl</tt>. The documents are kept in least recently used
+ * order and the least recently used ones are evicted once the estimated
+ * memory of all cached documents exceeds the configured budget.
+ */
+public class HistoryDocumentCache
+{
+    /**
+     * The estimated memory of a DOM node without its text, in bytes.
+     */
+    private static final int NODE_SIZE = 96;
+
+    /**
+     * The maximum estimated memory of the cached documents, in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The cached documents by file, in access order.
+     */
+    private final LinkedHashMap<File, Entry> entries
+        = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    /**
+     * The estimated memory of the cached documents, in bytes.
+     */
+    private long size = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache holding documents up to the given estimated size.
+     *
+     * @param maxSize the maximum estimated memory of the cached documents,
+     * in bytes
+     */
+    public HistoryDocumentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached document of <tt>file</tt>.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    public synchronized Document get(File file)
+    {
+        Entry entry = entries.get(file);
+
+        if (entry == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.document;
+    }
+
+    /**
+     * Caches the document of <tt>file</tt>, replacing any previously cached
+     * one, and evicts the least recently used documents if the cache gets
+     * too big. Documents bigger than the whole cache are not cached.
+     *
+     * @param file the history file
+     * @param document the parsed document
+     */
+    public void put(File file, Document document)
+    {
+        long documentSize;
+        synchronized (document)
+        {
+            documentSize = estimateSize(document);
+        }
+
+        synchronized (this)
+        {
+            Entry old = entries.remove(file);
+            if (old != null)
+                size -= old.size;
+
+            if (documentSize > maxSize)
+                return;
+
+            entries.put(file, new Entry(document, documentSize));
+            size += documentSize;
+
+            Iterator<Entry> iter = entries.values().iterator();
+            while (size > maxSize && iter.hasNext())
+            {
+                size -= iter.next().size;
+                iter.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Caches the document of <tt>file</tt> unless another thread has cached
+     * one in the meantime.
+     *
+     * @param file the history file
+     * @param document the parsed document
+     * @return the cached document of <tt>file</tt>, which is
+     * <tt>document</tt> unless another one was cached before
+     */
+    public Document putIfAbsent(File file, Document document)
+    {
+        synchronized (this)
+        {
+            Entry entry = entries.get(file);
+            if (entry != null)
+                return entry.document;
+        }
+
+        // the size is estimated outside of the cache lock, a concurrent put
+        // will just be replaced
+        put(file, document);
+        return document;
+    }
+
+    /**
+     * Removes the cached document of <tt>file</tt>.
+     *
+     * @param file the history file
+     */
+    public synchronized void remove(File file)
+    {
+        Entry entry = entries.remove(file);
+        if (entry != null)
+            size -= entry.size;
+    }
+
+    /**
+     * Removes the cached documents of all files in <tt>directory</tt> and
+     * its subdirectories.
+     *
+     * @param directory the history directory
+     */
+    public synchronized void removeAll(File directory)
+    {
+        String prefix = directory.getPath() + File.separator;
+        Iterator<Map.Entry<File, Entry>> iter = entries.entrySet().iterator();
+
+        while (iter.hasNext())
+        {
+            Map.Entry<File, Entry> e = iter.next();
+            if (e.getKey().getPath().startsWith(prefix))
+            {
+                size -= e.getValue().size;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached documents.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     * @return the number of cached documents
+     */
+    public synchronized int getDocumentCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the estimated memory of the cached documents.
+     * @return the estimated memory of the cached documents, in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the maximum estimated memory of the cached documents.
+     * @return the maximum estimated memory of the cached documents, in bytes
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of lookups which found a cached document.
+     * @return the number of cache hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which did not find a cached document.
+     * @return the number of cache misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of documents evicted to stay within the budget.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Estimates the memory used by a document as a fixed cost per node plus
+     * two bytes per character of its names and values.
+     *
+     * @param node the document or node to measure
+     * @return the estimated memory in bytes
+     */
+    static long estimateSize(Node node)
+    {
+        long result = NODE_SIZE;
+
+        String name = node.getNodeName();
+        if (name != null)
+            result += 2 * name.length();
+
+        String value = node.getNodeValue();
+        if (value != null)
+            result += 2 * value.length();
+
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null)
+        {
+            for (int i = 0; i < attributes.getLength(); i++)
+            {
+                Node attribute = attributes.item(i);
+                result += NODE_SIZE
+                    + 2 * attribute.getNodeName().length()
+                    + 2 * attribute.getNodeValue().length();
+            }
+        }
+
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+            result += estimateSize(child);
+
+        return result;
+    }
+
+    /**
+     * A cached document and its estimated memory.
+     */
+    private static class Entry
+    {
+        final Document document;
+
+        final long size;
+
+        Entry(Document document, long size)
+        {
+            this.document = document;
+            this.size = size;
+        }
+    }
+}
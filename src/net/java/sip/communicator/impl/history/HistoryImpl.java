@@ -20,6 +20,7 @@
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
@@ -59,8 +60,30 @@
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The files of this history by name. The parsed documents are kept in
+     * the document cache of the history service.
+     */
+    private SortedMap<String, File> historyDocuments
+        = new TreeMap<String, File>();
+
+    /**
+     * A snapshot of the file names in <tt>historyDocuments</tt>, replaced
+     * whenever a file is added so that queries can iterate it without
+     * locking.
+     */
+    private volatile List<String> fileList = Collections.emptyList();
+
+    /**
+     * Guards the files against being parsed while they are written. Any
+     * number of files can be parsed at the same time.
+     */
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    /**
+     * The keyword index of this history.
+     */
+    private HistoryKeywordIndex keywordIndex;
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -93,6 +116,20 @@ protected HistoryImpl(HistoryID id, File directory,
             this.writer = null;
 
             this.reloadDocumentList();
+            this.keywordIndex = new HistoryKeywordIndex(directory,
+                HistoryKeywordIndex.XML_INDEX_FILE_PREFIX,
+                new HistoryKeywordIndex.ValueLoader()
+                {
+                    public Iterator<String> getFiles()
+                    {
+                        return getFileList();
+                    }
+
+                    public List<String> loadValues(String file, String field)
+                    {
+                        return loadFieldValues(file, field);
+                    }
+                });
         } finally {
             log.logExit();
         }
@@ -168,6 +205,26 @@ public HistoryWriter getWriter()
         return writer;
     }
 
+    /**
+     * Writes the records batched by the writer of this history, if any.
+     */
+    void flush()
+    {
+        HistoryWriter writer = this.writer;
+
+        if (writer instanceof HistoryWriterImpl)
+        {
+            try
+            {
+                ((HistoryWriterImpl) writer).flush();
+            }
+            catch (IOException e)
+            {
+                log.error("Could not write history " + id, e);
+            }
+        }
+    }
+
     protected HistoryServiceImpl getHistoryServiceImpl()
     {
         return this.historyServiceImpl;
@@ -195,10 +252,23 @@ void reloadDocumentList()
                     }
                 }
             }
+
+            this.fileList = Collections.unmodifiableList(
+                new ArrayList<String>(this.historyDocuments.keySet()));
         }
     }
 
+    /**
+     * Returns the document of <tt>filename</tt>, creating an empty one if
+     * the file does not exist yet. A new document is written right away, so
+     * that it can be read back even if it is evicted from the cache.
+     *
+     * @param filename the name of the file
+     * @return the document
+     * @throws IOException if the new document cannot be written
+     */
     protected Document createDocument(String filename)
+        throws IOException
     {
         Document retVal = null;
 
@@ -212,114 +282,219 @@ protected Document createDocument(String filename)
                         .newDocument();
                 retVal.appendChild(retVal.createElement("history"));
 
-                this.historyDocuments.put(filename, retVal);
-            }
-        }
-
-        return retVal;
-    }
-
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
-            {
-                Document doc = (Document) obj;
+                File file = new File(this.directory, filename);
+                fileLock.writeLock().lock();
+                try
+                {
+                    XMLUtils.writeXML(retVal, file);
 
-                synchronized (doc)
+                    HistoryDocumentCache cache
+                        = historyServiceImpl.getDocumentCache();
+                    if (cache != null)
+                        cache.put(file, retVal);
+                }
+                finally
                 {
-                    XMLUtils.writeXML(doc, file);
+                    fileLock.writeLock().unlock();
                 }
+
+                this.historyDocuments.put(filename, file);
+                this.fileList = Collections.unmodifiableList(
+                    new ArrayList<String>(this.historyDocuments.keySet()));
             }
         }
+
+        return retVal;
     }
 
     protected void writeFile(String filename, Document doc)
         throws InvalidParameterException, IOException
     {
-        File file = new File(this.directory, filename);
+        File file;
 
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            file = this.historyDocuments.get(filename);
+            if (file == null)
             {
                 throw new InvalidParameterException("The requested "
                         + "filename does not exist in the document list.");
             }
+        }
 
+        fileLock.writeLock().lock();
+        try
+        {
             synchronized (doc)
             {
                 XMLUtils.writeXML(doc, file);
             }
+
+            // the document may have been evicted or grown since it was read
+            HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+            if (cache != null)
+                cache.put(file, doc);
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Returns the keyword index of this history.
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex getKeywordIndex()
+    {
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the values of <tt>field</tt> in all records of a file.
+     * @param filename the file
+     * @param field the field
+     * @return the unescaped values of the field
+     */
+    private List<String> loadFieldValues(String filename, String field)
+    {
+        List<String> values = new ArrayList<String>();
+        Document doc = getDocumentForFile(filename);
+        if (doc == null)
+            return values;
+
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Element property
+                = XMLUtils.findChild((Element) nodes.item(i), field);
+            if (property == null || property.getFirstChild() == null)
+                continue;
+
+            values.add(
+                HistoryWriterImpl.unescapeXml(
+                    property.getFirstChild().getNodeValue()));
+        }
+        return values;
+    }
+
     protected Iterator<String> getFileList()
     {
-        return this.historyDocuments.keySet().iterator();
+        return this.fileList.iterator();
     }
 
     protected Document getDocumentForFile(String filename)
             throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
+        File file;
 
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            file = this.historyDocuments.get(filename);
+            if (file == null)
             {
                 throw new InvalidParameterException("The requested "
                         + "filename does not exist in the document list.");
             }
+        }
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        Document retVal = (cache == null) ? null : cache.get(file);
+        if (retVal != null)
+            return retVal;
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+        // parse without holding the document list, so that the other files
+        // of this history can be read at the same time
+        fileLock.readLock().lock();
+        try
+        {
+            retVal = this.historyServiceImpl.parse(file);
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+            // Cache the loaded document for reuse if configured
+            if (cache != null)
+                retVal = cache.putIfAbsent(file, retVal);
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
+            return retVal;
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+        }
+        finally
+        {
+            fileLock.readLock().unlock();
+        }
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
-            }
+        // will try to fix the xml file
+        fileLock.writeLock().lock();
+        try
+        {
+            retVal = getFixedDocument(file);
+
+            // if is not fixed return
+            if (retVal != null && cache != null)
+                cache.put(file, retVal);
+        }
+        finally
+        {
+            fileLock.writeLock().unlock();
         }
 
         return retVal;
     }
 
+    /**
+     * Returns the last <tt>count</tt> records of a file whose timestamps are
+     * before <tt>date</tt>. A cached document is used if there is one,
+     * otherwise the file is streamed without building its document.
+     *
+     * @param filename the name of the file
+     * @param date the date before which records are returned or
+     * <tt>null</tt> for no limit
+     * @param count the maximum number of records to return
+     * @return the records in the order they appear in the file
+     */
+    List<HistoryRecord> readLastRecords(String filename, Date date, int count)
+    {
+        File file;
+
+        synchronized (this.historyDocuments)
+        {
+            file = this.historyDocuments.get(filename);
+            if (file == null)
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+        }
+
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        Document doc = (cache == null) ? null : cache.get(file);
+
+        if (doc == null)
+        {
+            fileLock.readLock().lock();
+            try
+            {
+                return XmlRecordReader.readLast(file, date, count);
+            }
+            catch (Exception e)
+            {
+                // getDocumentForFile will try to fix the file
+                log.error("Error occured while reading XML document.", e);
+            }
+            finally
+            {
+                fileLock.readLock().unlock();
+            }
+
+            doc = getDocumentForFile(filename);
+            if (doc == null)
+                return new ArrayList<HistoryRecord>();
+        }
+
+        return XmlRecordReader.readLast(doc, date, count);
+    }
+
     /**
      * Methods trying to fix histry xml files if corrupted
      */
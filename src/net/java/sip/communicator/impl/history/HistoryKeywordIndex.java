@@ -0,0 +1,489 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An on-disk inverted index from the tokens of a history field to the files
+ * (XML documents or segments) holding records with those tokens. A field is
+ * indexed the first time it is searched, after that writers keep the index
+ * up to date by appending to it.
+ * <p>
+ * Keyword searches match substrings, so the index is only used to narrow
+ * down the files which may contain a match: a file is a candidate when,
+ * for every token of every keyword, it has a token containing it. Readers
+ * still check every record of the candidates with the exact matching rules.
+ * Records which are later updated or removed leave stale entries, which
+ * only add candidates and never hide a match.
+ * <p>
+ * The XML and the segment histories name their files differently and keep
+ * their indexes in separate files, so that a directory migrated from one to
+ * the other never uses the index of the former.
+ */
+class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The prefix of the index files of XML histories, followed by the field
+     * name.
+     */
+    static final String XML_INDEX_FILE_PREFIX = "keywords-";
+
+    /**
+     * The prefix of the index files of segment histories, followed by the
+     * field name.
+     */
+    static final String SEGMENT_INDEX_FILE_PREFIX = "segment-keywords-";
+
+    /**
+     * The extension of the index files.
+     */
+    static final String INDEX_FILE_EXTENSION = ".idx";
+
+    /**
+     * Tokens longer than this are not stored, the files holding them are
+     * recorded under the empty token and are candidates for every search.
+     */
+    private static final int MAX_TOKEN_LENGTH = 128;
+
+    /**
+     * Provides the content of the history when an index is built.
+     */
+    interface ValueLoader
+    {
+        /**
+         * Returns the names of all files of the history.
+         * @return the names of all files of the history
+         */
+        Iterator<String> getFiles();
+
+        /**
+         * Returns the values of <tt>field</tt> in all the records of
+         * <tt>file</tt>.
+         * @param file the name of the file
+         * @param field the field
+         * @return the values of the field, <tt>null</tt> values are allowed
+         * @throws IOException if the file cannot be read
+         */
+        List<String> loadValues(String file, String field)
+            throws IOException;
+    }
+
+    private final File directory;
+
+    private final ValueLoader loader;
+
+    /**
+     * The prefix of the index files of this history.
+     */
+    private final String indexFilePrefix;
+
+    /**
+     * The indexes of the fields, loaded or not, by field name.
+     */
+    private final Map<String, FieldIndex> fields
+        = new HashMap<String, FieldIndex>();
+
+    /**
+     * Creates the index of the history stored in <tt>directory</tt>,
+     * picking up the fields indexed so far.
+     *
+     * @param directory the history directory
+     * @param indexFilePrefix the prefix of the index files of the history
+     * @param loader the loader used when a field is indexed
+     */
+    HistoryKeywordIndex(File directory,
+                        String indexFilePrefix,
+                        ValueLoader loader)
+    {
+        this.directory = directory;
+        this.indexFilePrefix = indexFilePrefix;
+        this.loader = loader;
+
+        String[] files = directory.list();
+        if (files != null)
+        {
+            for (String file : files)
+            {
+                if (file.startsWith(indexFilePrefix)
+                        && file.endsWith(INDEX_FILE_EXTENSION))
+                {
+                    String field = file.substring(
+                        indexFilePrefix.length(),
+                        file.length() - INDEX_FILE_EXTENSION.length());
+                    fields.put(field, new FieldIndex(field));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a record stored in <tt>file</tt> to the indexes of its fields.
+     * Fields which were never searched are not indexed.
+     *
+     * @param file the name of the file holding the record
+     * @param propertyNames the property names of the record
+     * @param propertyValues the property values of the record
+     */
+    synchronized void addRecord(String file,
+                                String[] propertyNames,
+                                String[] propertyValues)
+    {
+        if (fields.isEmpty())
+            return;
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            FieldIndex index = fields.get(propertyNames[i]);
+
+            if (index != null && propertyValues[i] != null)
+            {
+                try
+                {
+                    index.add(file, tokenize(propertyValues[i]));
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not update keyword index", e);
+                    index.delete();
+                    fields.remove(propertyNames[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the files which may hold records whose <tt>field</tt>
+     * contains all <tt>keywords</tt>, indexing the field first if needed.
+     *
+     * @param field the field to search
+     * @param keywords the keywords
+     * @return the candidate files or <tt>null</tt> if the index cannot
+     * narrow down the search and all files have to be searched
+     */
+    synchronized Set<String> findCandidates(String field, String[] keywords)
+    {
+        if (field == null || keywords == null || keywords.length == 0)
+            return null;
+
+        FieldIndex index = fields.get(field);
+        try
+        {
+            if (index == null)
+            {
+                index = new FieldIndex(field);
+                index.build();
+                fields.put(field, index);
+            }
+            else
+                index.load();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not load keyword index of " + field, e);
+            index.delete();
+            fields.remove(field);
+            return null;
+        }
+
+        Set<String> result = null;
+        for (String keyword : keywords)
+        {
+            if (keyword == null)
+                continue;
+
+            for (String token : tokenize(keyword))
+            {
+                Set<String> files = index.findFilesContaining(token);
+
+                if (result == null)
+                    result = files;
+                else
+                    result.retainAll(files);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Splits <tt>value</tt> in lower case tokens of letters and digits.
+     *
+     * @param value the value to split
+     * @return the tokens of the value
+     */
+    static Set<String> tokenize(String value)
+    {
+        Set<String> tokens = new HashSet<String>();
+        StringBuilder token = new StringBuilder();
+
+        for (int i = 0, length = value.length(); i <= length; i++)
+        {
+            char c = (i < length) ? value.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c))
+            {
+                // lower case char by char, so that a substring of a value
+                // stays a substring of the lower case value
+                token.append(Character.toLowerCase(c));
+            }
+            else if (token.length() > 0)
+            {
+                tokens.add(
+                    (token.length() > MAX_TOKEN_LENGTH)
+                        ? ""
+                        : token.toString());
+                token.setLength(0);
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * The index of a single field, stored as a sequence of
+     * <tt>UTF file, int count, UTF token * count</tt> entries. In memory the
+     * files are kept by every suffix of their tokens in a sorted map, the
+     * tokens containing a keyword being those with a suffix starting with
+     * it, so a search only visits the matching entries.
+     */
+    private class FieldIndex
+    {
+        private final String field;
+
+        private final File indexFile;
+
+        /**
+         * The files by every suffix of their tokens, <tt>null</tt> until
+         * loaded. The files of the tokens too long to be stored are under
+         * the empty string.
+         */
+        private NavigableMap<String, Set<String>> postings = null;
+
+        /**
+         * Canonical instances of the file names.
+         */
+        private final Map<String, String> fileNames
+            = new HashMap<String, String>();
+
+        FieldIndex(String field)
+        {
+            this.field = field;
+            this.indexFile = new File(
+                directory,
+                indexFilePrefix + field + INDEX_FILE_EXTENSION);
+        }
+
+        /**
+         * Appends the tokens of a record stored in <tt>file</tt>.
+         */
+        void add(String file, Set<String> tokens)
+            throws IOException
+        {
+            if (tokens.isEmpty())
+                return;
+
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(indexFile, true)));
+            try
+            {
+                write(out, file, tokens);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (postings != null)
+                addPostings(file, tokens);
+        }
+
+        /**
+         * Indexes the whole history.
+         */
+        void build()
+            throws IOException
+        {
+            postings = new TreeMap<String, Set<String>>();
+
+            File tmpFile = new File(indexFile.getPath() + ".tmp");
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(tmpFile)));
+            try
+            {
+                Iterator<String> files = loader.getFiles();
+                while (files.hasNext())
+                {
+                    String file = files.next();
+                    Set<String> tokens = new HashSet<String>();
+
+                    for (String value : loader.loadValues(file, field))
+                    {
+                        if (value != null)
+                            tokens.addAll(tokenize(value));
+                    }
+
+                    if (!tokens.isEmpty())
+                    {
+                        write(out, file, tokens);
+                        addPostings(file, tokens);
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Cannot rename " + tmpFile);
+        }
+
+        /**
+         * Loads the index file if not loaded yet. A partially written last
+         * entry means we cannot trust the index, so it is rebuilt.
+         */
+        void load()
+            throws IOException
+        {
+            if (postings != null)
+                return;
+
+            postings = new TreeMap<String, Set<String>>();
+
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(indexFile)));
+            try
+            {
+                while (true)
+                {
+                    String file;
+                    try
+                    {
+                        file = in.readUTF();
+                    }
+                    catch (EOFException e)
+                    {
+                        break;
+                    }
+
+                    int count = in.readInt();
+                    Set<String> tokens = new HashSet<String>();
+                    for (int i = 0; i < count; i++)
+                        tokens.add(in.readUTF());
+
+                    addPostings(file, tokens);
+                }
+            }
+            catch (EOFException e)
+            {
+                logger.warn("Rebuilding truncated keyword index " + indexFile);
+                in.close();
+                build();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        /**
+         * Returns the files holding a token which contains <tt>token</tt>,
+         * and the files holding tokens too long to be stored.
+         */
+        Set<String> findFilesContaining(String token)
+        {
+            Set<String> result = new HashSet<String>();
+            Set<String> unindexed = postings.get("");
+            if (unindexed != null)
+                result.addAll(unindexed);
+
+            if (token.length() == 0)
+                return result;
+
+            for (Set<String> files
+                    : postings.subMap(
+                            token, true,
+                            token + Character.MAX_VALUE, false).values())
+            {
+                result.addAll(files);
+            }
+            return result;
+        }
+
+        void delete()
+        {
+            postings = null;
+            indexFile.delete();
+        }
+
+        private void addPostings(String file, Set<String> tokens)
+        {
+            String fileName = fileNames.get(file);
+            if (fileName == null)
+            {
+                fileName = file;
+                fileNames.put(file, file);
+            }
+
+            for (String token : tokens)
+            {
+                // the empty token only has the empty suffix
+                int i = 0;
+                do
+                {
+                    String suffix = token.substring(i);
+                    Set<String> files = postings.get(suffix);
+                    if (files == null)
+                    {
+                        files = new HashSet<String>(2);
+                        postings.put(suffix, files);
+                    }
+                    files.add(fileName);
+                }
+                while (++i < token.length());
+            }
+        }
+
+        private void write(DataOutputStream out,
+                           String file,
+                           Set<String> tokens)
+            throws IOException
+        {
+            out.writeUTF(file);
+            out.writeInt(tokens.size());
+            for (String token : tokens)
+                out.writeUTF(token);
+        }
+    }
+}
@@ -28,10 +28,14 @@
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.apache.commons.lang3.*;
 import org.w3c.dom.*;
 
 /**
+ * Queries the XML documents of a <tt>HistoryImpl</tt>. Queries are not
+ * serialized: each one works on a snapshot of the file list and locks only
+ * the document it is currently reading, since the cached documents are
+ * shared with the other readers and the writer.
+ *
  * @author Alexander Pelov
  * @author Damian Minkov
  * @author Yana Stamcheva
@@ -67,7 +71,7 @@ protected HistoryReaderImpl(HistoryImpl historyImpl)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -84,7 +88,7 @@ public synchronized QueryResultSet<HistoryRecord> findByStartDate(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -101,7 +105,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
@@ -118,7 +122,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field)
             throws RuntimeException
     {
@@ -135,7 +139,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
@@ -155,7 +159,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -174,10 +178,17 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+    public QueryResultSet<HistoryRecord> findLast(int count)
         throws RuntimeException
     {
-        return findLast(count, null, null, false);
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+
+        Iterator<HistoryRecord> records = findLastRecordsReversed(null, count);
+        while (records.hasNext())
+            result.add(records.next());
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     /**
@@ -191,7 +202,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(int count)
      * @return the found records
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(
+    public QueryResultSet<HistoryRecord> findLast(
         int count,
         String[] keywords,
         String field,
@@ -200,7 +211,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
     {
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
+            filterFilesByDate(getFileList(), null, null);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -219,54 +230,58 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
                 continue;
             }
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
+            synchronized (doc)
             {
-                Node node = i.next();
+                // will get nodes and construct a List of nodes
+                // so we can easily get sublist of it
+                List<Node> nodes = new ArrayList<Node>();
+                NodeList nodesList = doc.getElementsByTagName("record");
+                for (int i = 0; i < nodesList.getLength(); i++)
+                {
+                    nodes.add(nodesList.item(i));
+                }
 
-                NodeList propertyNodes = node.getChildNodes();
+                List<Node> lNodes = null;
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                if (nodes.size() > leftCount)
                 {
-                    timestamp = sdf.parse(ts);
+                    lNodes = nodes.subList(
+                        nodes.size() - leftCount , nodes.size());
+                    leftCount = 0;
                 }
-                catch (ParseException e)
+                else
                 {
-                    timestamp = new Date(Long.parseLong(ts));
+                    lNodes = nodes;
+                    leftCount -= nodes.size();
                 }
 
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
-
-                if(record != null)
+                Iterator<Node> i = lNodes.iterator();
+                while (i.hasNext())
                 {
-                    result.add(record);
+                    Node node = i.next();
+
+                    NodeList propertyNodes = node.getChildNodes();
+
+                    Date timestamp;
+                    String ts = node.getAttributes().getNamedItem("timestamp")
+                        .getNodeValue();
+                    try
+                    {
+                        timestamp = sdf.parse(ts);
+                    }
+                    catch (ParseException e)
+                    {
+                        timestamp = new Date(Long.parseLong(ts));
+                    }
+
+                    HistoryRecord record =
+                        filterByKeyword(propertyNodes, timestamp,
+                            keywords, field, caseSensitive);
+
+                    if(record != null)
+                    {
+                        result.add(record);
+                    }
                 }
             }
 
@@ -287,7 +302,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -305,7 +320,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -326,7 +341,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -353,7 +368,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
+            filterFilesByDate(getFileList(), date, null);
 
         int leftCount = count;
         int currentFile = 0;
@@ -370,69 +385,72 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            synchronized (doc)
             {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                Node node;
+                for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    node = nodes.item(i);
 
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
+                    NodeList propertyNodes = node.getChildNodes();
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    Date timestamp;
+                    String ts = node.getAttributes().getNamedItem("timestamp")
+                        .getNodeValue();
+                    try
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
+                        timestamp = sdf.parse(ts);
+                    }
+                    catch (ParseException e)
+                    {
+                        timestamp = new Date(Long.parseLong(ts));
+                    }
+
+                    if(!isInPeriod(timestamp, date, null))
+                        continue;
+
+                    ArrayList<String> nameVals = new ArrayList<String>();
 
-                        if(nodeValue != null)
+                    boolean isRecordOK = true;
+                    int len = propertyNodes.getLength();
+                    for (int j = 0; j < len; j++)
+                    {
+                        Node propertyNode = propertyNodes.item(j);
+                        if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            // Get nested TEXT node's value
+                            Node nodeValue = propertyNode.getFirstChild();
+
+                            if(nodeValue != null)
+                            {
+                                nameVals.add(propertyNode.getNodeName());
+                                nameVals.add(nodeValue.getNodeValue());
+                            }
+                            else
+                                isRecordOK = false;
                         }
-                        else
-                            isRecordOK = false;
                     }
-                }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    // if we found a broken record - just skip it
+                    if(!isRecordOK)
+                        continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+                    String[] propertyNames = new String[nameVals.size() / 2];
+                    String[] propertyValues = new String[propertyNames.length];
+                    for (int j = 0; j < propertyNames.length; j++)
+                    {
+                        propertyNames[j] = nameVals.get(j * 2);
+                        propertyValues[j] = nameVals.get(j * 2 + 1);
+                    }
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                    HistoryRecord record = new HistoryRecord(propertyNames,
+                        propertyValues, timestamp);
 
-                result.add(record);
-                leftCount--;
+                    result.add(record);
+                    leftCount--;
+                }
             }
 
             currentFile++;
@@ -455,7 +473,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
     {
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+            filterFilesByDate(getFileList(), null, date);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -475,68 +493,73 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            synchronized (doc)
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                Node node;
+                for (int i = nodes.getLength() - 1;
+                        i >= 0 && leftCount > 0;
+                        i--)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    node = nodes.item(i);
+                    NodeList propertyNodes = node.getChildNodes();
 
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
+                    Date timestamp;
+                    String ts = node.getAttributes().getNamedItem("timestamp")
+                        .getNodeValue();
+                    try
+                    {
+                        timestamp = sdf.parse(ts);
+                    }
+                    catch (ParseException e)
+                    {
+                        timestamp = new Date(Long.parseLong(ts));
+                    }
 
-                ArrayList<String> nameVals = new ArrayList<String>();
+                    if(!isInPeriod(timestamp, null, date))
+                        continue;
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
+                    ArrayList<String> nameVals = new ArrayList<String>();
 
-                        if(nodeValue != null)
+                    boolean isRecordOK = true;
+                    int len = propertyNodes.getLength();
+                    for (int j = 0; j < len; j++)
+                    {
+                        Node propertyNode = propertyNodes.item(j);
+                        if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            // Get nested TEXT node's value
+                            Node nodeValue = propertyNode.getFirstChild();
+
+                            if(nodeValue != null)
+                            {
+                                nameVals.add(propertyNode.getNodeName());
+                                nameVals.add(nodeValue.getNodeValue());
+                            }
+                            else
+                                isRecordOK = false;
                         }
-                        else
-                            isRecordOK = false;
                     }
-                }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    // if we found a broken record - just skip it
+                    if(!isRecordOK)
+                        continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+                    String[] propertyNames = new String[nameVals.size() / 2];
+                    String[] propertyValues = new String[propertyNames.length];
+                    for (int j = 0; j < propertyNames.length; j++)
+                    {
+                        propertyNames[j] = nameVals.get(j * 2);
+                        propertyValues[j] = nameVals.get(j * 2 + 1);
+                    }
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                    HistoryRecord record = new HistoryRecord(propertyNames,
+                        propertyValues, timestamp);
 
-                result.add(record);
-                leftCount--;
+                    result.add(record);
+                    leftCount--;
+                }
             }
 
             currentFile--;
@@ -553,8 +576,13 @@ private QueryResultSet<HistoryRecord> find(
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+            = filterFilesByDate(getFileList(), startDate, endDate);
+
+        // skip the files which cannot contain the keywords
+        Set<String> candidates
+            = historyImpl.getKeywordIndex().findCandidates(field, keywords);
+        if(candidates != null)
+            filelist.retainAll(candidates);
 
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
@@ -581,47 +609,50 @@ private QueryResultSet<HistoryRecord> find(
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            double nodesProgressStep = fileProgressStep;
-
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                double nodesProgressStep = fileProgressStep;
 
-                if(isInPeriod(timestamp, startDate, endDate))
+                if(nodes.getLength() != 0)
+                    nodesProgressStep = fileProgressStep / nodes.getLength();
+
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
                 {
-                    NodeList propertyNodes = node.getChildNodes();
+                    node = nodes.item(i);
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    Date timestamp;
+                    String ts = node.getAttributes().getNamedItem("timestamp")
+                            .getNodeValue();
+                    try
+                    {
+                        timestamp = sdf.parse(ts);
+                    }
+                    catch (ParseException e)
+                    {
+                        timestamp = new Date(Long.parseLong(ts));
+                    }
 
-                    if(record != null)
+                    if(isInPeriod(timestamp, startDate, endDate))
                     {
-                        result.add(record);
+                        NodeList propertyNodes = node.getChildNodes();
+
+                        HistoryRecord record =
+                            filterByKeyword(propertyNodes, timestamp,
+                                            keywords, field, caseSensitive);
+
+                        if(record != null)
+                        {
+                            result.add(record);
+                        }
                     }
-                }
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
+                    currentProgress += nodesProgressStep;
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, (int)currentProgress);
+                }
             }
         }
 
@@ -637,6 +668,78 @@ private QueryResultSet<HistoryRecord> find(
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Returns the supplied number of recent messages before the given date
+     * from the newest to the oldest. The files are read one at a time as the
+     * iterator advances, from the newest one, and are streamed rather than
+     * parsed into documents unless they are cached.
+     *
+     * @param date messages before date or <tt>null</tt> for the most recent
+     * messages
+     * @param count messages count
+     * @return the found records, newest first
+     * @throws RuntimeException
+     */
+    public Iterator<HistoryRecord> findLastRecordsReversed(final Date date,
+                                                           final int count)
+        throws RuntimeException
+    {
+        // the files are supposed to be ordered from oldest to newest
+        final Vector<String> filelist =
+            filterFilesByDate(getFileList(), null, date);
+
+        return new Iterator<HistoryRecord>()
+        {
+            private int currentFile = filelist.size() - 1;
+
+            private int leftCount = count;
+
+            /**
+             * The records of the last read file, in file order.
+             */
+            private List<HistoryRecord> records = Collections.emptyList();
+
+            private int nextRecord = -1;
+
+            public boolean hasNext()
+            {
+                while (nextRecord < 0 && leftCount > 0 && currentFile >= 0)
+                {
+                    records = historyImpl.readLastRecords(
+                        filelist.get(currentFile--), date, leftCount);
+                    nextRecord = records.size() - 1;
+                }
+                return nextRecord >= 0 && leftCount > 0;
+            }
+
+            public HistoryRecord next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                leftCount--;
+                return records.get(nextRecord--);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the files of the history after the records batched by its
+     * writer are written, so that queries see all added records.
+     *
+     * @return the names of the history files
+     */
+    private Iterator<String> getFileList()
+    {
+        historyImpl.flush();
+        return historyImpl.getFileList();
+    }
+
     /**
      * Evaluetes does <tt>timestamp</tt> is in the given time period.
      *
@@ -701,7 +804,7 @@ static HistoryRecord filterByKeyword(   NodeList propertyNodes,
                 String nodeValue = nestedNode.getNodeValue();
 
                 // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
+                nodeValue = HistoryWriterImpl.unescapeXml(nodeValue);
 
                 if(field != null && field.equals(nodeName))
                 {
@@ -959,7 +1062,7 @@ public int countRecords()
     {
         int result = 0;
         String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
+        Iterator<String> filelistIter = getFileList();
         while (filelistIter.hasNext())
         {
             lastFile = filelistIter.next();
@@ -974,9 +1077,12 @@ public int countRecords()
         if(doc == null)
             return result;
 
-        NodeList nodes = doc.getElementsByTagName("record");
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
 
-        result += nodes.getLength();
+            result += nodes.getLength();
+        }
 
         return result;
     }
@@ -985,7 +1091,7 @@ public int countRecords()
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
@@ -0,0 +1,790 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A single append-only file of a <tt>SegmentHistoryImpl</tt>. Records are
+ * stored one after the other, each one prefixed by its length and checksum:
+ *
+ * <pre>
+ * int length | int crc32 | long timestamp | short count
+ *            | (UTF name, int valueLength, UTF-8 value) * count
+ * </pre>
+ *
+ * Next to every segment file there is an index file holding a
+ * <tt>long timestamp, long offset</tt> pair for every record. The index
+ * lets readers select records by time without decoding the segment and is
+ * rebuilt from the segment whenever it is missing or does not match it, so a
+ * crash between the two writes never loses records. Rewritten segments are
+ * written to a temporary file which atomically replaces the segment.
+ */
+class HistorySegment
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistorySegment.class);
+
+    /**
+     * The extension of segment files.
+     */
+    static final String SEGMENT_EXTENSION = ".seg";
+
+    /**
+     * The extension of index files.
+     */
+    static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * The extension of files being written before they replace the
+     * corresponding segment or index file.
+     */
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * The size of an entry in the index file.
+     */
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * The size of the smallest record, its timestamp and property count.
+     */
+    private static final int MIN_RECORD_SIZE = 10;
+
+    /**
+     * The name of the segment without extension, the time in milliseconds
+     * of its creation.
+     */
+    private final String name;
+
+    /**
+     * The segment file.
+     */
+    private final File segmentFile;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The index of the segment. Kept softly so that the indexes of old
+     * segments can be reclaimed and reloaded on demand.
+     */
+    private SoftReference<Index> indexRef = new SoftReference<Index>(null);
+
+    /**
+     * The number of records, or -1 if the segment is not loaded yet.
+     */
+    private int recordCount = -1;
+
+    /**
+     * The smallest timestamp in this segment.
+     */
+    private long minTimestamp = Long.MAX_VALUE;
+
+    /**
+     * The biggest timestamp in this segment.
+     */
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Creates a segment stored in <tt>directory</tt> under <tt>name</tt>.
+     *
+     * @param directory the directory of the history
+     * @param name the name of the segment without extension
+     */
+    HistorySegment(File directory, String name)
+    {
+        this.name = name;
+        this.segmentFile = new File(directory, name + SEGMENT_EXTENSION);
+        this.indexFile = new File(directory, name + INDEX_EXTENSION);
+    }
+
+    /**
+     * Returns the name of this segment.
+     *
+     * @return the name of this segment
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the number of records in this segment.
+     *
+     * @return the number of records in this segment
+     * @throws IOException if the segment cannot be loaded
+     */
+    synchronized int getRecordCount()
+        throws IOException
+    {
+        getIndex();
+        return recordCount;
+    }
+
+    /**
+     * Returns the smallest timestamp in this segment.
+     *
+     * @return the smallest timestamp in this segment or
+     * <tt>Long.MAX_VALUE</tt> if it is empty
+     * @throws IOException if the segment cannot be loaded
+     */
+    synchronized long getMinTimestamp()
+        throws IOException
+    {
+        getIndex();
+        return minTimestamp;
+    }
+
+    /**
+     * Returns the biggest timestamp in this segment.
+     *
+     * @return the biggest timestamp in this segment or
+     * <tt>Long.MIN_VALUE</tt> if it is empty
+     * @throws IOException if the segment cannot be loaded
+     */
+    synchronized long getMaxTimestamp()
+        throws IOException
+    {
+        getIndex();
+        return maxTimestamp;
+    }
+
+    /**
+     * Checks whether any record of this segment may fall in the given
+     * period.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return <tt>true</tt> if the segment has records in the period
+     * @throws IOException if the segment cannot be loaded
+     */
+    synchronized boolean overlaps(Date startDate, Date endDate)
+        throws IOException
+    {
+        getIndex();
+
+        if (recordCount == 0)
+            return false;
+        if (startDate != null && maxTimestamp < startDate.getTime())
+            return false;
+        if (endDate != null && minTimestamp >= endDate.getTime())
+            return false;
+        return true;
+    }
+
+    /**
+     * Returns the timestamps of the records of this segment in storage
+     * order.
+     *
+     * @return the timestamps of the records of this segment
+     * @throws IOException if the segment cannot be loaded
+     */
+    synchronized long[] getTimestamps()
+        throws IOException
+    {
+        Index index = getIndex();
+        return Arrays.copyOf(index.timestamps, index.size);
+    }
+
+    /**
+     * Reads the record at position <tt>i</tt>.
+     *
+     * @param i the position of the record in this segment
+     * @return the record
+     * @throws IOException if reading fails
+     */
+    HistoryRecord read(int i)
+        throws IOException
+    {
+        return read(new int[] { i }).get(0);
+    }
+
+    /**
+     * Reads the records at the given positions, in the given order, opening
+     * the segment file only once.
+     *
+     * @param positions the positions of the records to read
+     * @return the records
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> read(int[] positions)
+        throws IOException
+    {
+        long[] offsets;
+        synchronized (this)
+        {
+            offsets = getIndex().offsets;
+        }
+
+        List<HistoryRecord> result
+            = new ArrayList<HistoryRecord>(positions.length);
+        if (positions.length == 0)
+            return result;
+
+        FileInputStream in = new FileInputStream(segmentFile);
+        try
+        {
+            FileChannel channel = in.getChannel();
+
+            for (int position : positions)
+            {
+                byte[] payload = RecordFrames.read(
+                    channel, offsets[position], MIN_RECORD_SIZE);
+                if (payload == null)
+                    throw new IOException("Corrupted record in " + segmentFile);
+
+                result.add(decode(payload));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Appends a record at the end of this segment.
+     *
+     * @param record the record to append
+     * @throws IOException if writing fails
+     */
+    synchronized void append(HistoryRecord record)
+        throws IOException
+    {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends records at the end of this segment with a single write.
+     *
+     * @param records the records to append
+     * @throws IOException if writing fails
+     */
+    synchronized void append(List<HistoryRecord> records)
+        throws IOException
+    {
+        Index index = getIndex();
+        long offset = segmentFile.length();
+
+        ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(indexBytes);
+        long[] newOffsets = new long[records.size()];
+
+        for (int i = 0; i < records.size(); i++)
+        {
+            HistoryRecord record = records.get(i);
+
+            newOffsets[i] = offset + segmentBytes.size();
+            writeFrame(segmentBytes, record);
+
+            indexOut.writeLong(record.getTimestamp().getTime());
+            indexOut.writeLong(newOffsets[i]);
+        }
+
+        FileOutputStream segmentOut = new FileOutputStream(segmentFile, true);
+        try
+        {
+            segmentBytes.writeTo(segmentOut);
+        }
+        finally
+        {
+            segmentOut.close();
+        }
+
+        FileOutputStream indexFileOut = new FileOutputStream(indexFile, true);
+        try
+        {
+            indexBytes.writeTo(indexFileOut);
+        }
+        finally
+        {
+            indexFileOut.close();
+        }
+
+        for (int i = 0; i < records.size(); i++)
+        {
+            index.add(records.get(i).getTimestamp().getTime(), newOffsets[i]);
+        }
+        updateBounds(index);
+    }
+
+    /**
+     * Replaces the whole content of this segment with <tt>records</tt>.
+     * Used for the rare operations that cannot append: updates, inserts of
+     * old records and limits on the number of records.
+     *
+     * @param records the new content of the segment
+     * @throws IOException if writing fails
+     */
+    synchronized void rewrite(List<HistoryRecord> records)
+        throws IOException
+    {
+        File tmpFile = new File(segmentFile.getPath() + TEMP_EXTENSION);
+        Index index = new Index(records.size());
+
+        OutputStream out
+            = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        try
+        {
+            long offset = 0;
+            for (HistoryRecord record : records)
+            {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                writeFrame(frame, record);
+                frame.writeTo(out);
+
+                index.add(record.getTimestamp().getTime(), offset);
+                offset += frame.size();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // the index goes first, if we crash before the new index is written
+        // it will be rebuilt from the segment
+        if (indexFile.exists() && !indexFile.delete())
+            throw new IOException("Cannot delete " + indexFile);
+        replace(tmpFile, segmentFile);
+
+        writeIndex(index);
+
+        indexRef = new SoftReference<Index>(index);
+        updateBounds(index);
+    }
+
+    /**
+     * Reads all the records of this segment in storage order.
+     *
+     * @return all the records of this segment
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readAll()
+        throws IOException
+    {
+        int count = getRecordCount();
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++)
+            positions[i] = i;
+        return read(positions);
+    }
+
+    /**
+     * Deletes the files of this segment.
+     */
+    synchronized void delete()
+    {
+        indexFile.delete();
+        segmentFile.delete();
+        indexRef.clear();
+        recordCount = 0;
+    }
+
+    /**
+     * Returns the index of this segment, loading it if needed.
+     *
+     * @return the index of this segment
+     * @throws IOException if the index cannot be loaded or rebuilt
+     */
+    private Index getIndex()
+        throws IOException
+    {
+        Index index = indexRef.get();
+        if (index == null)
+        {
+            index = loadIndex();
+            indexRef = new SoftReference<Index>(index);
+            updateBounds(index);
+        }
+        return index;
+    }
+
+    /**
+     * Updates the record count and timestamp bounds from <tt>index</tt>.
+     *
+     * @param index the index of the segment
+     */
+    private void updateBounds(Index index)
+    {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < index.size; i++)
+        {
+            long ts = index.timestamps[i];
+            if (ts < min)
+                min = ts;
+            if (ts > max)
+                max = ts;
+        }
+        this.minTimestamp = min;
+        this.maxTimestamp = max;
+        this.recordCount = index.size;
+    }
+
+    /**
+     * Loads the index file, verifying it against the segment. Records which
+     * are missing from the index are indexed by scanning the tail of the
+     * segment, and a partially written last record is truncated.
+     *
+     * @return the loaded index
+     * @throws IOException if reading fails
+     */
+    private Index loadIndex()
+        throws IOException
+    {
+        long segmentLength = segmentFile.length();
+        Index index = new Index(16);
+
+        if (indexFile.exists())
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(indexFile)));
+            try
+            {
+                long entries = indexFile.length() / INDEX_ENTRY_SIZE;
+                for (long i = 0; i < entries; i++)
+                {
+                    long ts = in.readLong();
+                    long offset = in.readLong();
+
+                    if (offset >= segmentLength
+                            || (index.size > 0
+                                && offset <= index.offsets[index.size - 1]))
+                        break;
+                    index.add(ts, offset);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        int indexedCount = index.size;
+
+        // scan the part of the segment which is not indexed
+        long scanFrom = 0;
+        if (index.size > 0)
+        {
+            scanFrom = index.offsets[index.size - 1];
+            index.size--;
+        }
+
+        long validLength = scan(scanFrom, index);
+
+        RecordFrames.truncate(segmentFile, validLength);
+
+        if (index.size != indexedCount
+                || indexFile.length() != (long) index.size * INDEX_ENTRY_SIZE)
+        {
+            writeIndex(index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Scans the segment from <tt>offset</tt> adding every valid record to
+     * <tt>index</tt>.
+     *
+     * @param offset where to start scanning
+     * @param index the index to add the found records to
+     * @return the offset after the last valid record
+     * @throws IOException if reading fails
+     */
+    private long scan(long offset, Index index)
+        throws IOException
+    {
+        if (!segmentFile.exists())
+            return 0;
+
+        FileInputStream in = new FileInputStream(segmentFile);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            byte[] payload;
+
+            while ((payload
+                    = RecordFrames.read(channel, offset, MIN_RECORD_SIZE))
+                != null)
+            {
+                index.add(ByteBuffer.wrap(payload).getLong(), offset);
+
+                offset += RecordFrames.HEADER_SIZE + payload.length;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Writes <tt>index</tt> to the index file replacing its content.
+     *
+     * @param index the index to write
+     * @throws IOException if writing fails
+     */
+    private void writeIndex(Index index)
+        throws IOException
+    {
+        File tmpFile = new File(indexFile.getPath() + TEMP_EXTENSION);
+        DataOutputStream out
+            = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            for (int i = 0; i < index.size; i++)
+            {
+                out.writeLong(index.timestamps[i]);
+                out.writeLong(index.offsets[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        replace(tmpFile, indexFile);
+    }
+
+    /**
+     * Replaces <tt>target</tt> with <tt>source</tt>, atomically when the file
+     * system supports it, so that a crash leaves either of them in place.
+     *
+     * @param source the file to move
+     * @param target the file to replace
+     * @throws IOException if the file cannot be moved
+     */
+    private static void replace(File source, File target)
+        throws IOException
+    {
+        try
+        {
+            Files.move(
+                source.toPath(),
+                target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(
+                source.toPath(),
+                target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Cleans up the temporary files left in <tt>directory</tt> by a crash
+     * during a rewrite. A temporary segment is complete only if it was being
+     * renamed when the segment it replaces had already been deleted, in which
+     * case it is moved into place. Other temporary files are deleted, the
+     * files they were to replace being still intact.
+     *
+     * @param directory the directory of the history
+     */
+    static void recoverTempFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            String filename = file.getName();
+            if (!filename.endsWith(TEMP_EXTENSION))
+                continue;
+
+            File target
+                = new File(
+                    directory,
+                    filename.substring(
+                        0, filename.length() - TEMP_EXTENSION.length()));
+
+            if (target.getName().endsWith(SEGMENT_EXTENSION)
+                && !target.exists())
+            {
+                logger.warn("Recovering history segment " + target);
+                if (file.renameTo(target))
+                    continue;
+            }
+            if (!file.delete())
+                logger.warn("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Encodes <tt>record</tt> and writes it with its frame header.
+     *
+     * @param out where to write the record
+     * @param record the record to write
+     * @throws IOException if writing fails
+     */
+    private static void writeFrame(ByteArrayOutputStream out,
+                                   HistoryRecord record)
+        throws IOException
+    {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        RecordFrames.write(dataOut, encode(record));
+        dataOut.flush();
+    }
+
+    /**
+     * Encodes a record. Properties with <tt>null</tt> values are skipped.
+     *
+     * @param record the record to encode
+     * @return the encoded record
+     * @throws IOException if encoding fails
+     */
+    static byte[] encode(HistoryRecord record)
+        throws IOException
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        int count = 0;
+        for (String value : values)
+        {
+            if (value != null)
+                count++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.getTimestamp().getTime());
+        out.writeShort(count);
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            byte[] value = values[i].getBytes("UTF-8");
+            out.writeUTF(names[i]);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a record encoded with <tt>encode</tt>.
+     *
+     * @param payload the encoded record
+     * @return the decoded record
+     * @throws IOException if the payload is malformed
+     */
+    static HistoryRecord decode(byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+        long timestamp = in.readLong();
+        int count = in.readUnsignedShort();
+
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = in.readUTF();
+
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            values[i] = new String(value, "UTF-8");
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    /**
+     * The in-memory index of a segment.
+     */
+    private static class Index
+    {
+        /**
+         * The timestamps of the records.
+         */
+        long[] timestamps;
+
+        /**
+         * The offsets of the records in the segment file.
+         */
+        long[] offsets;
+
+        /**
+         * The number of used entries.
+         */
+        int size = 0;
+
+        /**
+         * Creates an index with the given initial capacity.
+         *
+         * @param capacity the initial capacity
+         */
+        Index(int capacity)
+        {
+            capacity = Math.max(capacity, 1);
+            timestamps = new long[capacity];
+            offsets = new long[capacity];
+        }
+
+        /**
+         * Adds an entry at the end of the index.
+         *
+         * @param timestamp the timestamp of the record
+         * @param offset the offset of the record
+         */
+        void add(long timestamp, long offset)
+        {
+            if (size == timestamps.length)
+            {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            timestamps[size] = timestamp;
+            offsets[size] = offset;
+            size++;
+        }
+    }
+}
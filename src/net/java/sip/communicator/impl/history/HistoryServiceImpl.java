@@ -64,8 +64,51 @@
 
     private final DocumentBuilder builder;
 
+    /**
+     * The builders used to parse documents. <tt>DocumentBuilder</tt>s are not
+     * thread safe, so every thread parsing histories gets its own.
+     */
+    private final ThreadLocal<DocumentBuilder> parsers
+        = new ThreadLocal<DocumentBuilder>()
+        {
+            @Override
+            protected DocumentBuilder initialValue()
+            {
+                try
+                {
+                    return DocumentBuilderFactory.newInstance()
+                        .newDocumentBuilder();
+                }
+                catch (ParserConfigurationException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
     private final boolean cacheEnabled;
 
+    /**
+     * The default maximum estimated memory of the cached documents.
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The documents cached by all histories or <tt>null</tt> if caching is
+     * disabled.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * Whether records are written to disk in batches.
+     */
+    private final boolean writeBehindEnabled;
+
+    /**
+     * The timer flushing the batched records, created on first use.
+     */
+    private Timer flushTimer = null;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -94,9 +137,17 @@ public HistoryServiceImpl(BundleContext bundleContext)
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = cacheEnabled
+            ? new HistoryDocumentCache(
+                configService.getLong(
+                    CACHE_MAX_SIZE_PROPERTY, DEFAULT_CACHE_MAX_SIZE))
+            : null;
+        this.writeBehindEnabled =
+            configService.getBoolean(WRITE_BEHIND_ENABLED_PROPERTY, false);
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
@@ -189,8 +240,8 @@ public History createHistory(
             else
             {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history
+                    = createHistoryImpl(id, dir, recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -204,6 +255,24 @@ public History createHistory(
         return retVal;
     }
 
+    /**
+     * Creates the <tt>History</tt> implementation which stores its records in
+     * the given directory. Extenders override this method in order to plug in
+     * a different storage format.
+     *
+     * @param id the identifier of the history
+     * @param directory the directory where the history is stored
+     * @param recordStructure the structure of the records
+     * @return the newly created <tt>History</tt>
+     */
+    protected History createHistoryImpl(
+            HistoryID id,
+            File directory,
+            HistoryRecordStructure recordStructure)
+    {
+        return new HistoryImpl(id, directory, recordStructure, this);
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -215,34 +284,39 @@ protected DocumentBuilder getDocumentBuilder()
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread uses its own <tt>DocumentBuilder</tt>, so
+     * that histories can be parsed concurrently.
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(File file)
+    protected Document parse(File file)
         throws SAXException, IOException
     {
         FileInputStream fis = new FileInputStream(file);
-        Document doc = builder.parse(fis);
-        fis.close();
-        return doc;
+        try
+        {
+            return parsers.get().parse(fis);
+        }
+        finally
+        {
+            fis.close();
+        }
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread uses its own <tt>DocumentBuilder</tt>, so
+     * that histories can be parsed concurrently.
      * @param in ByteArrayInputStream the stream to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(ByteArrayInputStream in)
+    protected Document parse(ByteArrayInputStream in)
         throws SAXException, IOException
     {
-        return builder.parse(in);
+        return parsers.get().parse(in);
     }
 
     private void findDatFiles(List<File> vect, File directory)
@@ -318,6 +392,72 @@ protected boolean isCacheEnabled()
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of the documents of all histories.
+     * @return the document cache or <tt>null</tt> if caching is disabled
+     */
+    public HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns whether the writers should batch the added records instead of
+     * writing each of them right away.
+     * @return whether write-behind is enabled
+     */
+    boolean isWriteBehindEnabled()
+    {
+        return writeBehindEnabled;
+    }
+
+    /**
+     * Returns the timer on which the writers flush their batched records.
+     * @return the flush timer
+     */
+    synchronized Timer getFlushTimer()
+    {
+        if (flushTimer == null)
+            flushTimer = new Timer("History write-behind", true);
+        return flushTimer;
+    }
+
+    /**
+     * Writes the records batched by the writers of all loaded histories.
+     */
+    private void flushHistories()
+    {
+        List<History> loaded;
+        synchronized (histories)
+        {
+            loaded = new ArrayList<History>(histories.values());
+        }
+
+        for (History history : loaded)
+        {
+            if (history instanceof HistoryImpl)
+                ((HistoryImpl) history).flush();
+        }
+    }
+
+    /**
+     * Writes the batched records of all histories and stops the flush timer.
+     * Called when the bundle is stopped.
+     */
+    void stop()
+    {
+        flushHistories();
+
+        synchronized (this)
+        {
+            if (flushTimer != null)
+            {
+                flushTimer.cancel();
+                flushTimer = null;
+            }
+        }
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -327,11 +467,16 @@ protected boolean isCacheEnabled()
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // batched records must not be written after the files are removed
+        flushHistories();
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
+        if (documentCache != null)
+            documentCache.removeAll(dir);
 
         History history = histories.remove(id);
         if(history == null)
@@ -358,7 +503,11 @@ public void purgeLocallyStoredHistory(HistoryID id)
      */
     public void purgeLocallyCachedHistories()
     {
+        // the batched records would be lost with the writers
+        flushHistories();
         histories.clear();
+        if (documentCache != null)
+            documentCache.clear();
     }
 
     /**
@@ -432,7 +581,7 @@ private void escapeCharacters(String[] ids)
         }
     }
 
-    private static ConfigurationService getConfigurationService(
+    static ConfigurationService getConfigurationService(
         BundleContext bundleContext)
     {
         ServiceReference serviceReference =
@@ -463,6 +612,10 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        History oldHistory = histories.get(oldId);
+        if (oldHistory instanceof HistoryImpl)
+            ((HistoryImpl) oldHistory).flush();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -476,6 +629,8 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
             throw new IOException("Cannot move history!");
         }
 
+        if (documentCache != null)
+            documentCache.removeAll(oldDir);
         histories.remove(oldId);
     }
 
@@ -27,6 +27,7 @@
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
@@ -39,6 +40,12 @@
 public class HistoryWriterImpl
     implements HistoryWriter
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriterImpl.class);
+
     /**
      * Maximum records per file.
      */
@@ -46,6 +53,18 @@
 
     private static final String CDATA_SUFFIX = "_CDATA";
 
+    /**
+     * With write-behind, the number of added records after which they are
+     * written without waiting for <tt>FLUSH_DELAY</tt>.
+     */
+    static final int MAX_PENDING_RECORDS = 50;
+
+    /**
+     * With write-behind, the time in milliseconds an added record waits for
+     * other records before it is written.
+     */
+    static final long FLUSH_DELAY = 1000;
+
     private Object docCreateLock = new Object();
 
     private Object docWriteLock = new Object();
@@ -60,6 +79,31 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * Whether added records are written in batches.
+     */
+    private final boolean writeBehind;
+
+    /**
+     * Guards <tt>pendingRecords</tt> and <tt>flushTask</tt>.
+     */
+    private final Object pendingLock = new Object();
+
+    /**
+     * The number of records added to <tt>currentDoc</tt> and not written yet.
+     */
+    private int pendingRecords = 0;
+
+    /**
+     * The scheduled flush of the pending records.
+     */
+    private TimerTask flushTask = null;
+
+    /**
+     * The duration of the last flush in milliseconds.
+     */
+    private long lastFlushDuration = 0;
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -67,6 +111,8 @@ protected HistoryWriterImpl(HistoryImpl historyImpl)
         HistoryRecordStructure struct = this.historyImpl
                 .getHistoryRecordsStructure();
         this.structPropertyNames = struct.getPropertyNames();
+        this.writeBehind
+            = historyImpl.getHistoryServiceImpl().isWriteBehindEnabled();
     }
 
     public void addRecord(HistoryRecord record)
@@ -131,45 +177,301 @@ private void addRecord(String[] propertyNames,
                            int maxNumberOfRecords)
         throws InvalidParameterException, IOException
     {
+        Document doc;
+        String file;
+
         // Synchronized to assure that two concurrent threads can insert records
-        // safely.
+        // safely. The record is appended and counted as pending before the
+        // lock is released, so that a rollover by another thread writes it.
         synchronized (this.docCreateLock)
         {
             if (this.currentDoc == null
                     || this.currentDocElements > MAX_RECORDS_PER_FILE)
             {
-                this.createNewDoc(date, this.currentDoc == null);
+                synchronized (this.docWriteLock)
+                {
+                    // the outgoing document is written even without pending
+                    // records, the last ones may still be written by the
+                    // threads which added them
+                    if (this.currentDoc != null)
+                    {
+                        writePendingRecords(
+                            this.currentFile, this.currentDoc, true);
+                    }
+                    this.createNewDoc(date, this.currentDoc == null);
+                }
+            }
+            doc = this.currentDoc;
+            file = this.currentFile;
+
+            synchronized (doc)
+            {
+                Node root = doc.getFirstChild();
+                synchronized (root)
+                {
+                    // if we have setting for max number of records,
+                    // check the number and when exceed them, remove the first
+                    // one
+                    if( maxNumberOfRecords > -1
+                        && this.currentDocElements >= maxNumberOfRecords)
+                    {
+                        // lets remove the first one
+                        removeFirstRecord(root);
+                    }
+
+                    Element elem = createRecord(
+                        doc, propertyNames, propertyValues, date);
+                    root.appendChild(elem);
+                    this.currentDocElements++;
+                }
+            }
+
+            if (writeBehind)
+            {
+                addPendingRecord();
+            }
+        }
+
+        if (!writeBehind)
+        {
+            // write changes
+            synchronized (this.docWriteLock)
+            {
+                this.historyImpl.writeFile(file, doc);
             }
         }
 
-        synchronized (this.currentDoc)
+        this.historyImpl.getKeywordIndex().addRecord(
+            file, stripCDATASuffix(propertyNames), propertyValues);
+    }
+
+    /**
+     * Counts a record added to the current document and schedules the write
+     * of the pending records: after <tt>FLUSH_DELAY</tt> for the first one
+     * and right away once there are <tt>MAX_PENDING_RECORDS</tt>.
+     */
+    private void addPendingRecord()
+    {
+        synchronized (pendingLock)
         {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
+            pendingRecords++;
+
+            if (pendingRecords == 1 || pendingRecords == MAX_PENDING_RECORDS)
             {
-                // if we have setting for max number of records,
-                // check the number and when exceed them, remove the first one
-                if( maxNumberOfRecords > -1
-                    && this.currentDocElements >= maxNumberOfRecords)
+                if (flushTask != null)
+                    flushTask.cancel();
+
+                flushTask = new TimerTask()
                 {
-                    // lets remove the first one
-                    removeFirstRecord(root);
-                }
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            flush();
+                        }
+                        catch (IOException e)
+                        {
+                            logger.error("Could not write history", e);
+                        }
+                    }
+                };
+                historyImpl.getHistoryServiceImpl().getFlushTimer().schedule(
+                    flushTask,
+                    (pendingRecords == 1) ? FLUSH_DELAY : 0);
+            }
+        }
+    }
+
+    /**
+     * Writes the records added to the current document which are not
+     * written yet, with a single write of its file.
+     *
+     * @throws IOException if the file cannot be written, the records stay
+     * pending
+     */
+    public void flush()
+        throws IOException
+    {
+        synchronized (this.docWriteLock)
+        {
+            writePendingRecords(this.currentFile, this.currentDoc, false);
+        }
+    }
 
-                Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
-                root.appendChild(elem);
-                this.currentDocElements++;
+    /**
+     * Writes <tt>doc</tt>, the document holding the pending records, and
+     * marks them as written. Must be called with <tt>docWriteLock</tt> held.
+     *
+     * @param file the name of the file of the document
+     * @param doc the document to write
+     * @param always whether <tt>doc</tt> is written even when there are no
+     * pending records
+     * @throws IOException if the file cannot be written, the records stay
+     * pending
+     */
+    private void writePendingRecords(String file, Document doc, boolean always)
+        throws IOException
+    {
+        int count;
+        synchronized (pendingLock)
+        {
+            count = pendingRecords;
+            pendingRecords = 0;
+            if (flushTask != null)
+            {
+                flushTask.cancel();
+                flushTask = null;
             }
         }
 
-        // write changes
+        if (count == 0 && (!always || doc == null))
+            return;
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            this.historyImpl.writeFile(file, doc);
+        }
+        catch (IOException e)
+        {
+            synchronized (pendingLock)
+            {
+                pendingRecords += count;
+            }
+            throw e;
+        }
+
+        lastFlushDuration = System.currentTimeMillis() - start;
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("Wrote " + count + " records to "
+                + file + " in " + lastFlushDuration + " ms");
+        }
+    }
+
+    /**
+     * Returns the number of added records which are not written yet.
+     * @return the number of pending records
+     */
+    public int getPendingRecordCount()
+    {
+        synchronized (pendingLock)
+        {
+            return pendingRecords;
+        }
+    }
+
+    /**
+     * Returns how long the last write of pending records took.
+     * @return the duration of the last flush in milliseconds
+     */
+    public long getLastFlushDuration()
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            return lastFlushDuration;
+        }
+    }
+
+    /**
+     * Returns the property names as they are stored in the documents,
+     * without the CDATA suffix.
+     *
+     * @param propertyNames the property names
+     * @return the stored property names
+     */
+    private static String[] stripCDATASuffix(String[] propertyNames)
+    {
+        String[] result = new String[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            result[i] = propertyNames[i].endsWith(CDATA_SUFFIX)
+                ? propertyNames[i].replaceFirst(CDATA_SUFFIX, "")
+                : propertyNames[i];
+        }
+        return result;
+    }
+
+    /**
+     * Reverses the escaping of the property values done when writing them,
+     * by <tt>createRecord</tt> and by the versions which used
+     * <tt>StringEscapeUtils.escapeXml</tt>: the predefined XML entities and
+     * the numeric character references are replaced by their characters.
+     *
+     * @param value the value as stored in the document
+     * @return the unescaped value
+     */
+    static String unescapeXml(String value)
+    {
+        int amp = value.indexOf('&');
+        if (amp < 0)
+            return value;
+
+        StringBuilder result = new StringBuilder(value.length());
+        int start = 0;
+        while (amp >= 0)
+        {
+            int semicolon = value.indexOf(';', amp + 1);
+            if (semicolon < 0)
+                break;
+
+            int c = entityValue(value.substring(amp + 1, semicolon));
+            if (c < 0)
+            {
+                amp = value.indexOf('&', amp + 1);
+                continue;
+            }
+
+            result.append(value, start, amp).appendCodePoint(c);
+            start = semicolon + 1;
+            amp = value.indexOf('&', start);
+        }
+        result.append(value, start, value.length());
+
+        return result.toString();
+    }
+
+    /**
+     * Returns the character of an XML entity.
+     *
+     * @param entity the entity without its leading <tt>&amp;</tt> and
+     * trailing <tt>;</tt>
+     * @return the code point of the character or -1 if <tt>entity</tt> is
+     * not a predefined entity or a valid character reference
+     */
+    private static int entityValue(String entity)
+    {
+        if (entity.equals("amp"))
+            return '&';
+        else if (entity.equals("lt"))
+            return '<';
+        else if (entity.equals("gt"))
+            return '>';
+        else if (entity.equals("quot"))
+            return '"';
+        else if (entity.equals("apos"))
+            return '\'';
+        else if (entity.length() < 2 || entity.charAt(0) != '#')
+            return -1;
+
+        boolean hex = entity.charAt(1) == 'x' || entity.charAt(1) == 'X';
+        String digits = entity.substring(hex ? 2 : 1);
+        for (int i = 0; i < digits.length(); i++)
+        {
+            if (Character.digit(digits.charAt(i), hex ? 16 : 10) < 0)
+                return -1;
+        }
+
+        try
+        {
+            int c = Integer.parseInt(digits, hex ? 16 : 10);
+            return Character.isValidCodePoint(c) ? c : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            // empty or too long
+            return -1;
         }
     }
 
@@ -299,6 +601,9 @@ public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
     {
+        // the file is read again, it has to hold the pending records
+        flush();
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
             = HistoryReaderImpl.filterFilesByDate(
@@ -314,47 +619,50 @@ public void insertRecord(
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild(
-                    (Element)node, timestampProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode = XMLUtils.findChild(
+                        (Element)node, timestampProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                Date nodeTimeStamp;
-                try
-                {
-                    nodeTimeStamp = sdf.parse(nodeValue);
-                }
-                catch (ParseException e)
-                {
-                    nodeTimeStamp = new Date(Long.parseLong(nodeValue));
-                }
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                if(nodeTimeStamp.before(timestamp))
-                    continue;
+                    Date nodeTimeStamp;
+                    try
+                    {
+                        nodeTimeStamp = sdf.parse(nodeValue);
+                    }
+                    catch (ParseException e)
+                    {
+                        nodeTimeStamp = new Date(Long.parseLong(nodeValue));
+                    }
 
-                Element newElem = createRecord(
-                    doc, structPropertyNames, propertyValues, timestamp);
+                    if(nodeTimeStamp.before(timestamp))
+                        continue;
 
-                doc.getFirstChild().insertBefore(newElem, node);
+                    Element newElem = createRecord(
+                        doc, structPropertyNames, propertyValues, timestamp);
 
-                changed = true;
-                break;
+                    doc.getFirstChild().insertBefore(newElem, node);
+
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
@@ -365,6 +673,11 @@ public void insertRecord(
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                this.historyImpl.getKeywordIndex().addRecord(
+                    filename,
+                    stripCDATASuffix(structPropertyNames),
+                    propertyValues);
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -384,8 +697,10 @@ public void insertRecord(
      *
      * @param date Date
      * @param loadLastFile boolean
+     * @throws IOException if the new file cannot be written
      */
     private void createNewDoc(Date date, boolean loadLastFile)
+        throws IOException
     {
         boolean loaded = false;
 
@@ -442,6 +757,9 @@ public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
     {
+        // the file is read again, it has to hold the pending records
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -453,58 +771,62 @@ public void updateRecord(String idProperty, String idValue,
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode
+                        = XMLUtils.findChild((Element)node, idProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                if(!nodeValue.equals(idValue))
-                    continue;
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
+                    if(!nodeValue.equals(idValue))
+                        continue;
 
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
+                    Element changedNode =
+                        XMLUtils.findChild((Element)node, property);
 
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+                    if(changedNode != null)
+                    {
+                        Node changedNestedNode = changedNode.getFirstChild();
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
+                        changedNestedNode.setNodeValue(newValue);
+                    }
+                    else
+                    {
+                        Element propertyElement = this.currentDoc
+                            .createElement(property);
 
-                    node.appendChild(propertyElement);
-                }
+                        Text value = this.currentDoc
+                            .createTextNode(newValue.replaceAll("\0", " "));
+                        propertyElement.appendChild(value);
 
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
+                        node.appendChild(propertyElement);
+                    }
 
-                changed = true;
-                break;
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
+
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
@@ -515,6 +837,11 @@ public void updateRecord(String idProperty, String idValue,
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                this.historyImpl.getKeywordIndex().addRecord(
+                    filename,
+                    new String[] { property },
+                    new String[] { newValue });
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -536,6 +863,9 @@ public void updateRecord(String idProperty, String idValue,
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
     {
+        // the file is read again, it has to hold the pending records
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -547,36 +877,47 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            List<String> changedNames = new ArrayList<String>();
+            List<String> changedValues = new ArrayList<String>();
+
+            synchronized (doc)
             {
-                node = nodes.item(i);
-                updater.setHistoryRecord(createHistoryRecordFromNode(node));
-                if(!updater.isMatching())
-                    continue;
-
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
-
-                Map<String, String> updates = updater.getUpdateChanges();
-                for(String nodeName : updates.keySet())
-                {
-                    Element changedNode =
-                        XMLUtils.findChild((Element)node, nodeName);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                    if(changedNode != null)
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
+                    updater.setHistoryRecord(createHistoryRecordFromNode(node));
+                    if(!updater.isMatching())
+                        continue;
+
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
+
+                    Map<String, String> updates = updater.getUpdateChanges();
+                    for(String nodeName : updates.keySet())
                     {
-                        Node changedNestedNode = changedNode.getFirstChild();
+                        Element changedNode =
+                            XMLUtils.findChild((Element)node, nodeName);
+
+                        if(changedNode != null)
+                        {
+                            Node changedNestedNode
+                                = changedNode.getFirstChild();
 
-                        changedNestedNode.setNodeValue(updates.get(nodeName));
-                        changed = true;
+                            changedNestedNode.setNodeValue(
+                                updates.get(nodeName));
+                            changed = true;
+
+                            changedNames.add(nodeName);
+                            changedValues.add(updates.get(nodeName));
+                        }
                     }
                 }
             }
@@ -589,6 +930,11 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                this.historyImpl.getKeywordIndex().addRecord(
+                    filename,
+                    changedNames.toArray(new String[changedNames.size()]),
+                    changedValues.toArray(new String[changedValues.size()]));
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -151,8 +151,15 @@ private void find(  Date startDate,
                         HistoryQueryImpl query)
     {
         Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
+            = HistoryReaderImpl.filterFilesByDate(
+                getFileList(), startDate, endDate, true);
+
+        // skip the files which cannot contain the keywords
+        Set<String> candidates
+            = history.getKeywordIndex().findCandidates(field, keywords);
+        if(candidates != null)
+            filelist.retainAll(candidates);
+
         Iterator<String> fileIterator = filelist.iterator();
 
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
@@ -164,41 +171,54 @@ private void find(  Date startDate,
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            for ( int i = nodes.getLength() - 1;
-                  i >= 0 && !query.isCanceled();
-                  i--)
+            // collect the records under the document lock and deliver them
+            // once it is released
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+            synchronized (doc)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
+                for ( int i = nodes.getLength() - 1;
+                      i >= 0 && !query.isCanceled();
+                      i--)
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    Node node = nodes.item(i);
+                    Date timestamp;
+                    String ts = node.getAttributes().getNamedItem("timestamp")
+                            .getNodeValue();
+                    try
+                    {
+                        timestamp = sdf.parse(ts);
+                    }
+                    catch (ParseException e)
+                    {
+                        timestamp = new Date(Long.parseLong(ts));
+                    }
 
-                    if(record != null)
+                    if(HistoryReaderImpl.isInPeriod(
+                            timestamp, startDate, endDate))
                     {
-                        query.addHistoryRecord(record);
-                        resultCount--;
+                        NodeList propertyNodes = node.getChildNodes();
+
+                        HistoryRecord record =
+                            HistoryReaderImpl
+                                .filterByKeyword(propertyNodes, timestamp,
+                                            keywords, field, caseSensitive);
+
+                        if(record != null)
+                            records.add(record);
                     }
                 }
             }
+
+            for (HistoryRecord record : records)
+            {
+                if (query.isCanceled())
+                    break;
+
+                query.addHistoryRecord(record);
+                resultCount--;
+            }
         }
 
         if (query.isCanceled())
@@ -206,4 +226,16 @@ private void find(  Date startDate,
         else
             query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
     }
+
+    /**
+     * Returns the files of the history after the records batched by its
+     * writer are written, so that queries see all added records.
+     *
+     * @return the names of the history files
+     */
+    private Iterator<String> getFileList()
+    {
+        history.flush();
+        return history.getFileList();
+    }
 }
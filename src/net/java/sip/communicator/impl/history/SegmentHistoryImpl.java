@@ -0,0 +1,297 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>History</tt> which stores its records in append-only
+ * <tt>HistorySegment</tt>s instead of XML documents. Adding a record costs a
+ * single append to the newest segment, and queries use the per-segment
+ * timestamp indexes to decode only the records they return.
+ */
+public class SegmentHistoryImpl
+    implements History
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryImpl.class);
+
+    /**
+     * Maximum records per segment. Segments are only rewritten on updates,
+     * so this bounds the cost of an update.
+     */
+    static final int MAX_RECORDS_PER_SEGMENT = 1000;
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    /**
+     * The segments of this history ordered from oldest to newest.
+     */
+    private final List<HistorySegment> segments
+        = new ArrayList<HistorySegment>();
+
+    /**
+     * Readers share the segments, writers need them exclusively.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * The keyword index of this history.
+     */
+    private final HistoryKeywordIndex keywordIndex;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyRecordStructure = historyRecordStructure;
+        this.historyServiceImpl = historyServiceImpl;
+
+        reloadSegmentList();
+
+        this.keywordIndex = new HistoryKeywordIndex(directory,
+            HistoryKeywordIndex.SEGMENT_INDEX_FILE_PREFIX,
+            new HistoryKeywordIndex.ValueLoader()
+            {
+                public Iterator<String> getFiles()
+                {
+                    List<String> names = new ArrayList<String>();
+                    for (HistorySegment segment : getSegments())
+                        names.add(segment.getName());
+                    return names.iterator();
+                }
+
+                public List<String> loadValues(String file, String field)
+                    throws IOException
+                {
+                    List<String> values = new ArrayList<String>();
+                    for (HistoryRecord record
+                            : new HistorySegment(directory, file).readAll())
+                    {
+                        String[] names = record.getPropertyNames();
+                        for (int i = 0; i < names.length; i++)
+                        {
+                            if (names[i].equals(field))
+                                values.add(record.getPropertyValues()[i]);
+                        }
+                    }
+                    return values;
+                }
+            });
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return this.id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return this.historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    public synchronized HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new SegmentHistoryReaderImpl(this);
+        return reader;
+    }
+
+    /**
+     * Returns an object that can be used to read and query this history. The
+     * <tt>InteractiveHistoryReader</tt> differs from the <tt>HistoryReader</tt>
+     * in the way it manages query results. It allows to cancel a search at
+     * any time and to track history results through a
+     * <tt>HistoryQueryListener</tt>.
+     * @return an object that can be used to read and query this history
+     */
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+            interactiveReader = new SegmentInteractiveHistoryReaderImpl(this);
+        return interactiveReader;
+    }
+
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the keyword index of this history.
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex getKeywordIndex()
+    {
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the lock guarding the segments of this history.
+     * @return the lock guarding the segments of this history
+     */
+    ReadWriteLock getLock()
+    {
+        return lock;
+    }
+
+    /**
+     * Returns a copy of the list of segments ordered from oldest to newest.
+     * Callers are expected to hold the read or write lock.
+     * @return the segments of this history
+     */
+    List<HistorySegment> getSegments()
+    {
+        return new ArrayList<HistorySegment>(segments);
+    }
+
+    /**
+     * Creates a new, empty segment after all existing ones. The caller must
+     * hold the write lock.
+     * @param date the date of the first record which will be stored in the
+     * segment
+     * @return the new segment
+     */
+    HistorySegment createSegment(Date date)
+    {
+        long name = date.getTime();
+        if (!segments.isEmpty())
+        {
+            name = Math.max(
+                name,
+                Long.parseLong(segments.get(segments.size() - 1).getName())
+                    + 1);
+        }
+
+        HistorySegment segment
+            = new HistorySegment(directory, Long.toString(name));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Lists the segment files in the history directory.
+     */
+    void reloadSegmentList()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            segments.clear();
+
+            HistorySegment.recoverTempFiles(directory);
+
+            File[] files = directory.listFiles();
+            if (files == null)
+                return;
+
+            List<Long> names = new ArrayList<Long>();
+            for (File file : files)
+            {
+                String filename = file.getName();
+                if (file.isDirectory()
+                        || !filename.endsWith(HistorySegment.SEGMENT_EXTENSION))
+                    continue;
+
+                try
+                {
+                    names.add(Long.parseLong(
+                        filename.substring(
+                            0,
+                            filename.length()
+                                - HistorySegment.SEGMENT_EXTENSION.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.warn("Ignoring unknown history file " + file);
+                }
+            }
+
+            Collections.sort(names);
+            for (Long name : names)
+                segments.add(new HistorySegment(directory, name.toString()));
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+}
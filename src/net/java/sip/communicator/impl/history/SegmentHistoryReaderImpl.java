@@ -0,0 +1,513 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of a <tt>SegmentHistoryImpl</tt>. It answers
+ * the same queries as <tt>HistoryReaderImpl</tt> but selects the records by
+ * their indexed timestamps and decodes only those it has to look at.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    private final SegmentHistoryImpl historyImpl;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryReaderImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryReaderImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    /**
+     * Returns the supplied number of recent messages
+     * containing all <tt>keywords</tt>. As in <tt>HistoryReaderImpl</tt> the
+     * last <tt>count</tt> records are taken first and then filtered.
+     *
+     * @param count messages count
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     * @throws RuntimeException if reading the history fails
+     */
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+        throws RuntimeException
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            List<HistorySegment> segments = historyImpl.getSegments();
+            int leftCount = count;
+
+            for (int s = segments.size() - 1; s >= 0 && leftCount > 0; s--)
+            {
+                HistorySegment segment = segments.get(s);
+                int recordCount = segment.getRecordCount();
+                int taken = Math.min(leftCount, recordCount);
+                leftCount -= taken;
+
+                int[] positions = new int[taken];
+                for (int i = 0; i < taken; i++)
+                    positions[i] = recordCount - taken + i;
+
+                for (HistoryRecord record : segment.read(positions))
+                {
+                    if (matches(record, keywords, field, caseSensitive))
+                        result.add(record);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            int leftCount = count;
+            for (HistorySegment segment : historyImpl.getSegments())
+            {
+                if (leftCount <= 0)
+                    break;
+                if (!segment.overlaps(date, null))
+                    continue;
+
+                long[] timestamps = segment.getTimestamps();
+                int[] positions = new int[timestamps.length];
+                int found = 0;
+                for (int i = 0; i < timestamps.length && found < leftCount; i++)
+                {
+                    if (isInPeriod(timestamps[i], date, null))
+                        positions[found++] = i;
+                }
+
+                result.addAll(segment.read(Arrays.copyOf(positions, found)));
+                leftCount -= found;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            List<HistorySegment> segments = historyImpl.getSegments();
+            int leftCount = count;
+
+            for (int s = segments.size() - 1; s >= 0 && leftCount > 0; s--)
+            {
+                HistorySegment segment = segments.get(s);
+                if (!segment.overlaps(null, date))
+                    continue;
+
+                long[] timestamps = segment.getTimestamps();
+                int[] positions = new int[timestamps.length];
+                int found = 0;
+                for (int i = timestamps.length - 1;
+                        i >= 0 && found < leftCount;
+                        i--)
+                {
+                    if (isInPeriod(timestamps[i], null, date))
+                        positions[found++] = i;
+                }
+
+                result.addAll(segment.read(Arrays.copyOf(positions, found)));
+                leftCount -= found;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the supplied number of recent messages before the given date
+     * from the newest to the oldest. The segment indexes tell which records
+     * to return, so only those are decoded.
+     *
+     * @param date messages before date or <tt>null</tt> for the most recent
+     * messages
+     * @param count messages count
+     * @return the found records, newest first
+     * @throws RuntimeException if reading the history fails
+     */
+    public Iterator<HistoryRecord> findLastRecordsReversed(Date date,
+                                                           int count)
+        throws RuntimeException
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            List<HistorySegment> segments = historyImpl.getSegments();
+
+            for (int s = segments.size() - 1;
+                    s >= 0 && result.size() < count;
+                    s--)
+            {
+                HistorySegment segment = segments.get(s);
+                if (!segment.overlaps(null, date))
+                    continue;
+
+                long[] timestamps = segment.getTimestamps();
+                int[] positions = new int[timestamps.length];
+                int found = 0;
+                for (int i = timestamps.length - 1;
+                        i >= 0 && result.size() + found < count;
+                        i--)
+                {
+                    if (isInPeriod(timestamps[i], null, date))
+                        positions[found++] = i;
+                }
+
+                result.addAll(segment.read(Arrays.copyOf(positions, found)));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        return result.iterator();
+    }
+
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the exact number of records, which the segment indexes give us
+     * without decoding anything.
+     *
+     * @return the number of records in the history
+     * @throws UnsupportedOperationException if reading the history fails
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        int result = 0;
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            for (HistorySegment segment : historyImpl.getSegments())
+                result += segment.getRecordCount();
+        }
+        catch (IOException e)
+        {
+            throw new UnsupportedOperationException(
+                "Could not read history: " + e.getMessage());
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        return result;
+    }
+
+    private QueryResultSet<HistoryRecord> find(
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        fireProgressStateChanged(startDate, endDate,
+            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        double currentProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+        historyImpl.getLock().readLock().lock();
+        try
+        {
+            // skip the segments which cannot contain the keywords
+            Set<String> candidates
+                = historyImpl.getKeywordIndex().findCandidates(
+                        field, keywords);
+
+            List<HistorySegment> segments = new ArrayList<HistorySegment>();
+            for (HistorySegment segment : historyImpl.getSegments())
+            {
+                if ((candidates == null
+                            || candidates.contains(segment.getName()))
+                        && segment.overlaps(startDate, endDate))
+                    segments.add(segment);
+            }
+
+            double segmentProgressStep
+                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+            if (segments.size() != 0)
+                segmentProgressStep /= segments.size();
+
+            for (HistorySegment segment : segments)
+            {
+                long[] timestamps = segment.getTimestamps();
+                int[] positions = new int[timestamps.length];
+                int found = 0;
+                for (int i = 0; i < timestamps.length; i++)
+                {
+                    if (isInPeriod(timestamps[i], startDate, endDate))
+                        positions[found++] = i;
+                }
+
+                for (HistoryRecord record
+                        : segment.read(Arrays.copyOf(positions, found)))
+                {
+                    if (matches(record, keywords, field, caseSensitive))
+                        result.add(record);
+                }
+
+                currentProgress += segmentProgressStep;
+                fireProgressStateChanged(
+                    startDate, endDate, keywords, (int) currentProgress);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not read history", e);
+        }
+        finally
+        {
+            historyImpl.getLock().readLock().unlock();
+        }
+
+        if ((int) currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Checks whether the value of <tt>field</tt> in <tt>record</tt> contains
+     * all <tt>keywords</tt>. Records without the field never match a
+     * keyword search.
+     *
+     * @param record the record to check
+     * @param keywords the keywords or <tt>null</tt> to match every record
+     * @param field the field to look at
+     * @param caseSensitive is the search case sensitive
+     * @return <tt>true</tt> if the record matches
+     */
+    static boolean matches(HistoryRecord record,
+                           String[] keywords,
+                           String field,
+                           boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Evaluates whether <tt>timestamp</tt> is in the given time period.
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @param startDate the start of the period, inclusive
+     * @param endDate the end of the period, exclusive
+     * @return <tt>true</tt> if the timestamp is in the period
+     */
+    static boolean isInPeriod(long timestamp, Date startDate, Date endDate)
+    {
+        return (startDate == null || startDate.getTime() <= timestamp)
+            && (endDate == null || timestamp < endDate.getTime());
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                         String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener listener : progressListeners)
+                listener.progressChanged(event);
+        }
+    }
+}
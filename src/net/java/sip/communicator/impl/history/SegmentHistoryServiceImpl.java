@@ -0,0 +1,93 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.osgi.framework.*;
+
+/**
+ * A <tt>HistoryService</tt> which stores histories in append-only binary
+ * segments. It is selected by setting
+ * <tt>HistoryService.STORE_FORMAT_PROPERTY</tt> to
+ * <tt>HistoryService.STORE_FORMAT_SEGMENT</tt>. Directories holding XML
+ * history are migrated the first time they are loaded.
+ */
+public class SegmentHistoryServiceImpl
+    extends HistoryServiceImpl
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryServiceImpl.class);
+
+    /**
+     * Converts XML histories to segments.
+     */
+    private final XmlHistoryMigrator migrator;
+
+    /**
+     * Constructor.
+     *
+     * @param bundleContext OSGi bundle context
+     * @throws Exception if something went wrong during initialization
+     */
+    public SegmentHistoryServiceImpl(BundleContext bundleContext)
+        throws Exception
+    {
+        super(bundleContext);
+
+        this.migrator = new XmlHistoryMigrator(this);
+    }
+
+    /**
+     * Creates a <tt>SegmentHistoryImpl</tt>, migrating the XML files in
+     * <tt>directory</tt> first if needed. A failed migration is logged and
+     * retried the next time the history is loaded.
+     *
+     * @param id the identifier of the history
+     * @param directory the directory where the history is stored
+     * @param recordStructure the structure of the records
+     * @return the newly created <tt>History</tt>
+     */
+    @Override
+    protected History createHistoryImpl(
+            HistoryID id,
+            File directory,
+            HistoryRecordStructure recordStructure)
+    {
+        if (migrator.isMigrationNeeded(directory))
+        {
+            try
+            {
+                migrator.migrate(id, directory, recordStructure);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not migrate history in " + directory, e);
+            }
+        }
+
+        return new SegmentHistoryImpl(id, directory, recordStructure, this);
+    }
+}
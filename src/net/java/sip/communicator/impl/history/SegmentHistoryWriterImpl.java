@@ -0,0 +1,440 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of a <tt>SegmentHistoryImpl</tt>. New records
+ * are appended to the newest segment; updates and inserts rewrite the single
+ * segment holding the affected record.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    private final SegmentHistoryImpl historyImpl;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryWriterImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryWriterImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp(),
+            -1);
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, new Date(), -1);
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, timestamp, -1);
+    }
+
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        addRecord(
+            getStructPropertyNames(),
+            propertyValues,
+            new Date(),
+            maxNumberOfRecords);
+    }
+
+    /**
+     * Appends a new record to the newest segment, starting a new segment
+     * when it is full.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @param maxNumberOfRecords the maximum number of records to keep in the
+     * newest segment or value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date,
+                           int maxNumberOfRecords)
+        throws IOException
+    {
+        HistoryRecord record
+            = createRecord(propertyNames, propertyValues, date);
+
+        historyImpl.getLock().writeLock().lock();
+        try
+        {
+            List<HistorySegment> segments = historyImpl.getSegments();
+            HistorySegment segment = segments.isEmpty()
+                ? null
+                : segments.get(segments.size() - 1);
+
+            if (segment == null
+                || segment.getRecordCount()
+                    >= SegmentHistoryImpl.MAX_RECORDS_PER_SEGMENT)
+            {
+                segment = historyImpl.createSegment(date);
+            }
+
+            if (maxNumberOfRecords > -1
+                && segment.getRecordCount() >= maxNumberOfRecords)
+            {
+                List<HistoryRecord> records = segment.readAll();
+                removeOldestRecord(records);
+                records.add(record);
+                segment.rewrite(records);
+            }
+            else
+            {
+                segment.append(record);
+            }
+
+            addToKeywordIndex(segment, record);
+        }
+        finally
+        {
+            historyImpl.getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts a record from the passed <tt>propertyValues</tt> before the
+     * first record whose <tt>timestampProperty</tt> is not before
+     * <tt>timestamp</tt>, or at the end if there is no such record.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        HistoryRecord newRecord
+            = createRecord(getStructPropertyNames(), propertyValues, timestamp);
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+        historyImpl.getLock().writeLock().lock();
+        try
+        {
+            for (HistorySegment segment : historyImpl.getSegments())
+            {
+                if (segment.getMaxTimestamp() < timestamp.getTime())
+                    continue;
+
+                List<HistoryRecord> records = segment.readAll();
+                for (int i = 0; i < records.size(); i++)
+                {
+                    String value
+                        = getPropertyValue(records.get(i), timestampProperty);
+                    if (value == null)
+                        continue;
+
+                    Date recordTimestamp;
+                    try
+                    {
+                        recordTimestamp = sdf.parse(value);
+                    }
+                    catch (ParseException e)
+                    {
+                        recordTimestamp = new Date(Long.parseLong(value));
+                    }
+
+                    if (recordTimestamp.before(timestamp))
+                        continue;
+
+                    records.add(i, newRecord);
+                    segment.rewrite(records);
+                    addToKeywordIndex(segment, newRecord);
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            historyImpl.getLock().writeLock().unlock();
+        }
+
+        addRecord(getStructPropertyNames(), propertyValues, timestamp, -1);
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    public void updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        historyImpl.getLock().writeLock().lock();
+        try
+        {
+            for (HistorySegment segment : historyImpl.getSegments())
+            {
+                List<HistoryRecord> records = segment.readAll();
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+                    if (!idValue.equals(getPropertyValue(record, idProperty)))
+                        continue;
+
+                    Map<String, String> changes
+                        = Collections.singletonMap(property, newValue);
+                    HistoryRecord updated = updateRecord(record, changes, true);
+                    records.set(i, updated);
+                    segment.rewrite(records);
+                    addToKeywordIndex(segment, updated);
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            historyImpl.getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates history record using given <tt>HistoryRecordUpdater</tt> instance
+     * to find which is the record to be updated and to get the new values for
+     * the fields
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        HistoryRecordStructure structure
+            = historyImpl.getHistoryRecordsStructure();
+
+        historyImpl.getLock().writeLock().lock();
+        try
+        {
+            for (HistorySegment segment : historyImpl.getSegments())
+            {
+                List<HistoryRecord> records = segment.readAll();
+                List<HistoryRecord> updatedRecords
+                    = new ArrayList<HistoryRecord>();
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+                    updater.setHistoryRecord(
+                        toStructuredRecord(record, structure));
+                    if (!updater.isMatching())
+                        continue;
+
+                    HistoryRecord updated = updateRecord(
+                        record, updater.getUpdateChanges(), false);
+                    if (updated != record)
+                        updatedRecords.add(updated);
+                    records.set(i, updated);
+                }
+
+                if (!updatedRecords.isEmpty())
+                {
+                    segment.rewrite(records);
+                    for (HistoryRecord updated : updatedRecords)
+                        addToKeywordIndex(segment, updated);
+                    return;
+                }
+            }
+        }
+        finally
+        {
+            historyImpl.getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a record written to <tt>segment</tt> to the keyword index.
+     *
+     * @param segment the segment holding the record
+     * @param record the record
+     */
+    private void addToKeywordIndex(HistorySegment segment, HistoryRecord record)
+    {
+        historyImpl.getKeywordIndex().addRecord(
+            segment.getName(),
+            record.getPropertyNames(),
+            record.getPropertyValues());
+    }
+
+    /**
+     * Returns a copy of <tt>record</tt> with the given changes applied and
+     * the timestamp set to now, to reflect there was a change.
+     *
+     * @param record the record to update
+     * @param changes the new values by property name
+     * @param addMissing whether properties missing from the record are
+     * added or ignored
+     * @return the updated record or <tt>record</tt> itself if nothing changed
+     */
+    private static HistoryRecord updateRecord(HistoryRecord record,
+                                              Map<String, String> changes,
+                                              boolean addMissing)
+    {
+        List<String> names
+            = new ArrayList<String>(Arrays.asList(record.getPropertyNames()));
+        List<String> values
+            = new ArrayList<String>(Arrays.asList(record.getPropertyValues()));
+        boolean changed = false;
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+            if (index != -1)
+            {
+                values.set(index, change.getValue());
+                changed = true;
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+                changed = true;
+            }
+        }
+
+        if (!changed)
+            return record;
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            new Date());
+    }
+
+    /**
+     * Creates the record to store, stripping the CDATA suffix which only
+     * matters to the XML format.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @return the record to store
+     */
+    private static HistoryRecord createRecord(String[] propertyNames,
+                                              String[] propertyValues,
+                                              Date date)
+    {
+        String[] names = new String[propertyNames.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            String name = propertyNames[i];
+            names[i] = name.endsWith(CDATA_SUFFIX)
+                ? name.substring(0, name.length() - CDATA_SUFFIX.length())
+                : name;
+        }
+
+        return new HistoryRecord(names, propertyValues, date);
+    }
+
+    /**
+     * Converts a stored record, which only holds its non-null properties, to
+     * a record complying with <tt>structure</tt>.
+     *
+     * @param record the stored record
+     * @param structure the structure of the history
+     * @return the record with the properties of <tt>structure</tt>
+     */
+    private static HistoryRecord toStructuredRecord(
+            HistoryRecord record,
+            HistoryRecordStructure structure)
+    {
+        String[] names = structure.getPropertyNames();
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+            values[i] = getPropertyValue(record, names[i]);
+
+        return new HistoryRecord(structure, values);
+    }
+
+    /**
+     * Returns the value of a property of <tt>record</tt>.
+     *
+     * @param record the record
+     * @param name the name of the property
+     * @return the value or <tt>null</tt> if the record has no such property
+     */
+    private static String getPropertyValue(HistoryRecord record, String name)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest record by timestamp from <tt>records</tt>.
+     *
+     * @param records the records
+     */
+    private static void removeOldestRecord(List<HistoryRecord> records)
+    {
+        int oldest = -1;
+        for (int i = 0; i < records.size(); i++)
+        {
+            if (oldest == -1
+                || records.get(oldest).getTimestamp()
+                    .after(records.get(i).getTimestamp()))
+                oldest = i;
+        }
+
+        if (oldest != -1)
+            records.remove(oldest);
+    }
+
+    private String[] getStructPropertyNames()
+    {
+        return historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+}
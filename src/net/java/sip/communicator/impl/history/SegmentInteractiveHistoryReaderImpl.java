@@ -0,0 +1,161 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of a <tt>SegmentHistoryImpl</tt>.
+ * Walks the segments from newest to oldest and delivers every matching
+ * record to the <tt>HistoryQuery</tt> as soon as it is decoded.
+ */
+public class SegmentInteractiveHistoryReaderImpl
+    implements InteractiveHistoryReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentInteractiveHistoryReaderImpl.class);
+
+    /**
+     * The number of records decoded at once, so that results start arriving
+     * before a whole segment is read.
+     */
+    private static final int READ_CHUNK = 32;
+
+    /**
+     * The <tt>SegmentHistoryImpl</tt> where this reader is registered.
+     */
+    private final SegmentHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentInteractiveHistoryReaderImpl</tt>.
+     * @param history the corresponding history to read from
+     */
+    public SegmentInteractiveHistoryReaderImpl(SegmentHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public HistoryQuery findByKeyword(  String keyword,
+                                        String field,
+                                        int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    public HistoryQuery findByKeywords( final String[] keywords,
+                                        final String field,
+                                        final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Finds the history results corresponding to the given criteria.
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(  String[] keywords,
+                        String field,
+                        int resultCount,
+                        HistoryQueryImpl query)
+    {
+        history.getLock().readLock().lock();
+        try
+        {
+            java.util.List<HistorySegment> segments = history.getSegments();
+
+            // skip the segments which cannot contain the keywords
+            java.util.Set<String> candidates
+                = history.getKeywordIndex().findCandidates(field, keywords);
+
+            for (int s = segments.size() - 1;
+                    s >= 0 && resultCount > 0 && !query.isCanceled();
+                    s--)
+            {
+                HistorySegment segment = segments.get(s);
+                if (candidates != null
+                        && !candidates.contains(segment.getName()))
+                    continue;
+
+                int next = segment.getRecordCount() - 1;
+
+                while (next >= 0 && resultCount > 0 && !query.isCanceled())
+                {
+                    int[] positions = new int[Math.min(READ_CHUNK, next + 1)];
+                    for (int i = 0; i < positions.length; i++)
+                        positions[i] = next--;
+
+                    for (HistoryRecord record : segment.read(positions))
+                    {
+                        if (resultCount <= 0 || query.isCanceled())
+                            break;
+
+                        if (SegmentHistoryReaderImpl.matches(
+                                record, keywords, field, false))
+                        {
+                            query.addHistoryRecord(record);
+                            resultCount--;
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read history", e);
+        }
+        finally
+        {
+            history.getLock().readLock().unlock();
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
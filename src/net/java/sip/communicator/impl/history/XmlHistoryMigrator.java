@@ -0,0 +1,154 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Converts a history directory in the XML layout of <tt>HistoryImpl</tt> to
+ * the segment layout of <tt>SegmentHistoryImpl</tt>. Every XML file becomes
+ * a segment with the same name, so an interrupted migration is simply run
+ * again. The XML files are left in place, a marker file records that the
+ * directory was migrated.
+ */
+class XmlHistoryMigrator
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XmlHistoryMigrator.class);
+
+    /**
+     * The file created in a history directory once it is migrated.
+     */
+    static final String MIGRATED_MARKER_FILE = "xml.migrated";
+
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * Creates a migrator using the XML parser of <tt>historyService</tt>.
+     *
+     * @param historyService the history service
+     */
+    XmlHistoryMigrator(HistoryServiceImpl historyService)
+    {
+        this.historyService = historyService;
+    }
+
+    /**
+     * Checks whether <tt>directory</tt> holds XML history which was not
+     * migrated yet.
+     *
+     * @param directory the history directory
+     * @return <tt>true</tt> if the directory needs to be migrated
+     */
+    boolean isMigrationNeeded(File directory)
+    {
+        if (new File(directory, MIGRATED_MARKER_FILE).exists())
+            return false;
+
+        String[] files = directory.list();
+        if (files == null)
+            return false;
+
+        for (String file : files)
+        {
+            if (file.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Migrates the XML files in <tt>directory</tt> to segments.
+     *
+     * @param id the identifier of the history
+     * @param directory the history directory
+     * @param structure the structure of the history records
+     * @throws IOException if a segment or the marker cannot be written
+     */
+    void migrate(HistoryID id,
+                 File directory,
+                 HistoryRecordStructure structure)
+        throws IOException
+    {
+        HistoryImpl xmlHistory
+            = new HistoryImpl(id, directory, structure, historyService);
+        Vector<String> files
+            = HistoryReaderImpl.filterFilesByDate(
+                    xmlHistory.getFileList(), null, null);
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        int migrated = 0;
+
+        for (String filename : files)
+        {
+            Document doc = xmlHistory.getDocumentForFile(filename);
+            if (doc == null)
+                continue;
+
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                Node node = nodes.item(i);
+
+                Date timestamp;
+                String ts = node.getAttributes().getNamedItem("timestamp")
+                    .getNodeValue();
+                try
+                {
+                    timestamp = sdf.parse(ts);
+                }
+                catch (ParseException e)
+                {
+                    timestamp = new Date(Long.parseLong(ts));
+                }
+
+                records.add(
+                    HistoryReaderImpl.filterByKeyword(
+                        node.getChildNodes(), timestamp, null, null, false));
+            }
+
+            String name = filename.substring(
+                0,
+                filename.length() - HistoryImpl.SUPPORTED_FILETYPE.length() - 1);
+            new HistorySegment(directory, name).rewrite(records);
+            migrated += records.size();
+        }
+
+        if (!new File(directory, MIGRATED_MARKER_FILE).createNewFile())
+            throw new IOException("Cannot create migration marker");
+
+        if (logger.isInfoEnabled())
+            logger.info("Migrated " + migrated + " history records in "
+                + directory);
+    }
+}
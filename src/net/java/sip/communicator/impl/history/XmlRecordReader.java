@@ -0,0 +1,234 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Reads the last records of a history XML file without building its
+ * document. The file is pulled through a streaming parser and only the
+ * records which will be returned are kept, so the memory used is bounded by
+ * the number of requested records.
+ * <p>
+ * The records are built the same way <tt>HistoryReaderImpl.findLast</tt>
+ * builds them: values are unescaped and empty properties are left out.
+ */
+class XmlRecordReader
+{
+    /**
+     * The factory of the streaming parsers. Factories are thread safe once
+     * configured.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    static
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of <tt>file</tt> whose
+     * timestamps are before <tt>date</tt>.
+     *
+     * @param file the history file
+     * @param date the date before which records are returned or
+     * <tt>null</tt> for no limit
+     * @param count the maximum number of records to return
+     * @return the records in the order they appear in the file
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well formed
+     */
+    static List<HistoryRecord> readLast(File file, Date date, int count)
+        throws IOException,
+               XMLStreamException
+    {
+        ArrayDeque<HistoryRecord> result = new ArrayDeque<HistoryRecord>();
+        if (count <= 0)
+            return new ArrayList<HistoryRecord>(result);
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = inputFactory.createXMLStreamReader(in);
+
+            // the element depth, 1 is the root, 2 a record and 3 a property
+            int depth = 0;
+            Date timestamp = null;
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            StringBuilder value = null;
+
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 2)
+                    {
+                        String ts = reader.getAttributeValue(null, "timestamp");
+                        timestamp = (ts == null) ? null : parseDate(sdf, ts);
+                        names.clear();
+                        values.clear();
+                    }
+                    else if (depth == 3)
+                    {
+                        names.add(reader.getLocalName());
+                        values.add(null);
+                        value = new StringBuilder();
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (depth == 3)
+                        value.append(reader.getText());
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 3)
+                    {
+                        if (value.length() > 0)
+                        {
+                            values.set(
+                                values.size() - 1,
+                                HistoryWriterImpl.unescapeXml(
+                                    value.toString()));
+                        }
+                    }
+                    else if (depth == 2
+                            && timestamp != null
+                            && HistoryReaderImpl.isInPeriod(
+                                    timestamp, null, date))
+                    {
+                        if (result.size() == count)
+                            result.removeFirst();
+                        result.addLast(createRecord(names, values, timestamp));
+                    }
+                    depth--;
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            if (reader != null)
+                reader.close();
+            in.close();
+        }
+
+        return new ArrayList<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of an already parsed document
+     * whose timestamps are before <tt>date</tt>.
+     *
+     * @param doc the history document
+     * @param date the date before which records are returned or
+     * <tt>null</tt> for no limit
+     * @param count the maximum number of records to return
+     * @return the records in the order they appear in the document
+     */
+    static List<HistoryRecord> readLast(Document doc, Date date, int count)
+    {
+        LinkedList<HistoryRecord> result = new LinkedList<HistoryRecord>();
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = nodes.getLength() - 1;
+                    i >= 0 && result.size() < count;
+                    i--)
+            {
+                Node node = nodes.item(i);
+                Date timestamp = parseDate(
+                    sdf,
+                    node.getAttributes().getNamedItem("timestamp")
+                        .getNodeValue());
+
+                if (HistoryReaderImpl.isInPeriod(timestamp, null, date))
+                {
+                    result.addFirst(
+                        HistoryReaderImpl.filterByKeyword(
+                            node.getChildNodes(), timestamp,
+                            null, null, false));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Creates a record out of the properties which have a value.
+     */
+    private static HistoryRecord createRecord(List<String> names,
+                                              List<String> values,
+                                              Date timestamp)
+    {
+        List<String> propertyNames = new ArrayList<String>(names.size());
+        List<String> propertyValues = new ArrayList<String>(values.size());
+
+        for (int i = 0; i < names.size(); i++)
+        {
+            if (values.get(i) != null)
+            {
+                propertyNames.add(names.get(i));
+                propertyValues.add(values.get(i));
+            }
+        }
+
+        return new HistoryRecord(
+            propertyNames.toArray(new String[propertyNames.size()]),
+            propertyValues.toArray(new String[propertyValues.size()]),
+            timestamp);
+    }
+
+    /**
+     * Parses a record timestamp which is either formatted with
+     * <tt>DATE_FORMAT</tt> or a number of milliseconds.
+     */
+    private static Date parseDate(SimpleDateFormat sdf, String ts)
+    {
+        try
+        {
+            return sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.ldap.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Keeps the bound connections to one LDAP directory open between searches,
+ * so that a search does not pay for a TCP and TLS handshake and a bind every
+ * time.
+ * <p>
+ * Connections idle for a while are checked with a read of the root DSE
+ * before they are handed out again, as servers and firewalls drop idle
+ * connections, and connections idle for long are closed. Connections which
+ * failed while in use are closed rather than returned to the pool.
+ */
+class LdapConnectionPool
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LdapConnectionPool.class);
+
+    /**
+     * The default maximum number of idle connections kept open.
+     */
+    static final int DEFAULT_MAX_IDLE = 4;
+
+    /**
+     * The default idle time, in milliseconds, after which a connection is
+     * checked before being used.
+     */
+    static final long DEFAULT_VALIDATE_AFTER = 30 * 1000;
+
+    /**
+     * The default idle time, in milliseconds, after which a connection is
+     * closed.
+     */
+    static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    /**
+     * The attributes read from the root DSE to check a connection.
+     */
+    private static final String[] HEALTH_CHECK_ATTRIBUTES
+        = { "supportedLDAPVersion" };
+
+    /**
+     * The environment the connections are created with.
+     */
+    private final Hashtable<String, String> env;
+
+    /**
+     * The name of the directory, for logging.
+     */
+    private final String name;
+
+    /**
+     * The maximum number of idle connections kept open.
+     */
+    private final int maxIdle;
+
+    /**
+     * The idle time after which a connection is checked before being used.
+     */
+    private final long validateAfter;
+
+    /**
+     * The idle time after which a connection is closed.
+     */
+    private final long maxIdleTime;
+
+    /**
+     * The idle connections, the most recently used first.
+     */
+    private final LinkedList<IdleConnection> idle
+        = new LinkedList<IdleConnection>();
+
+    /**
+     * Whether the pool has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a pool of connections to a directory with the default limits.
+     *
+     * @param env the environment the connections are created with
+     * @param name the name of the directory
+     */
+    LdapConnectionPool(Hashtable<String, String> env, String name)
+    {
+        this(env, name,
+            DEFAULT_MAX_IDLE, DEFAULT_VALIDATE_AFTER, DEFAULT_MAX_IDLE_TIME);
+    }
+
+    /**
+     * Creates a pool of connections to a directory.
+     *
+     * @param env the environment the connections are created with
+     * @param name the name of the directory
+     * @param maxIdle the maximum number of idle connections kept open
+     * @param validateAfter the idle time, in milliseconds, after which a
+     * connection is checked before being used
+     * @param maxIdleTime the idle time, in milliseconds, after which a
+     * connection is closed
+     */
+    LdapConnectionPool(Hashtable<String, String> env, String name,
+        int maxIdle, long validateAfter, long maxIdleTime)
+    {
+        this.env = env;
+        this.name = name;
+        this.maxIdle = maxIdle;
+        this.validateAfter = validateAfter;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Returns an open connection to the directory, reusing an idle one if
+     * there is one which still works. The connection is returned with
+     * <tt>release</tt> once done with.
+     *
+     * @return the connection
+     * @throws NamingException if a new connection cannot be established
+     */
+    LdapContext acquire()
+        throws NamingException
+    {
+        while (true)
+        {
+            IdleConnection connection;
+
+            synchronized (this)
+            {
+                if (closed)
+                    throw new ServiceUnavailableException(
+                        "connection pool of " + name + " is closed");
+                connection = idle.poll();
+            }
+            if (connection == null)
+                break;
+
+            long idleTime = System.currentTimeMillis() - connection.since;
+            if (idleTime < validateAfter)
+                return connection.context;
+            if (idleTime < maxIdleTime && isHealthy(connection.context))
+                return connection.context;
+
+            if (logger.isTraceEnabled())
+            {
+                logger.trace("discarding connection to \"" + name
+                    + "\" idle for " + idleTime + " ms");
+            }
+            close(connection.context);
+        }
+
+        long time0 = System.currentTimeMillis();
+        LdapContext context = createContext();
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("connection to directory \"" + name + "\" took "
+                + (System.currentTimeMillis() - time0) + " ms");
+        }
+        return context;
+    }
+
+    /**
+     * Returns a connection obtained with <tt>acquire</tt> to the pool.
+     *
+     * @param context the connection
+     * @param reusable <tt>false</tt> if the connection failed while in use
+     * and must be closed
+     */
+    void release(LdapContext context, boolean reusable)
+    {
+        if (reusable)
+        {
+            try
+            {
+                context.setRequestControls(null);
+            }
+            catch (NamingException e)
+            {
+                reusable = false;
+            }
+        }
+
+        if (reusable)
+        {
+            synchronized (this)
+            {
+                if (!closed && idle.size() < maxIdle)
+                {
+                    idle.addFirst(
+                        new IdleConnection(
+                            context, System.currentTimeMillis()));
+                    return;
+                }
+            }
+        }
+
+        close(context);
+    }
+
+    /**
+     * Closes all idle connections. Connections in use are closed when they
+     * are released.
+     */
+    void close()
+    {
+        List<IdleConnection> connections;
+
+        synchronized (this)
+        {
+            closed = true;
+            connections = new ArrayList<IdleConnection>(idle);
+            idle.clear();
+        }
+
+        for (IdleConnection connection : connections)
+            close(connection.context);
+    }
+
+    /**
+     * Returns the number of idle connections.
+     *
+     * @return the number of idle connections
+     */
+    synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Establishes and binds a new connection to the directory.
+     *
+     * @return the new connection
+     * @throws NamingException if the connection fails
+     */
+    protected LdapContext createContext()
+        throws NamingException
+    {
+        logger.trace("connecting to directory \"" + name + "\"");
+        return new InitialLdapContext(env, null);
+    }
+
+    /**
+     * Checks whether an idle connection still works.
+     *
+     * @param context the connection to check
+     * @return whether the connection can be used
+     */
+    protected boolean isHealthy(LdapContext context)
+    {
+        try
+        {
+            context.getAttributes("", HEALTH_CHECK_ATTRIBUTES);
+            return true;
+        }
+        catch (NamingException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection, ignoring failures.
+     */
+    private void close(LdapContext context)
+    {
+        try
+        {
+            context.close();
+        }
+        catch (NamingException e)
+        {
+            logger.trace("disconnection from directory \"" + name
+                + "\" failed!");
+        }
+    }
+
+    /**
+     * An idle connection and the time it was released at.
+     */
+    private static class IdleConnection
+    {
+        private final LdapContext context;
+
+        private final long since;
+
+        private IdleConnection(LdapContext context, long since)
+        {
+            this.context = context;
+            this.since = since;
+        }
+    }
+}
@@ -61,6 +61,13 @@
      */
     private final Object objLock = new Object();
 
+    /**
+     * Whether the LDAP search has ended. Guarded by <tt>objLock</tt>, since
+     * results answered from the cache may end the search before
+     * <tt>run()</tt> starts waiting.
+     */
+    private boolean searchEnded = false;
+
     /**
      * Initializes a new <tt>LdapContactQuery</tt> instance which is to perform
      * a specific <tt>query</tt> on behalf of a specific <tt>contactSource</tt>.
@@ -121,7 +128,8 @@ public void ldapEventReceived(LdapEvent evt)
         {
             try
             {
-                objLock.wait();
+                while(!searchEnded)
+                    objLock.wait();
             }
             catch(InterruptedException e)
             {
@@ -129,6 +137,18 @@ public void ldapEventReceived(LdapEvent evt)
         }
     }
 
+    /**
+     * Wakes up <tt>run()</tt> once the LDAP search has ended.
+     */
+    private void notifySearchEnded()
+    {
+        synchronized(objLock)
+        {
+            searchEnded = true;
+            objLock.notify();
+        }
+    }
+
     @Override
     public synchronized void start()
     {
@@ -227,10 +247,7 @@ private void processLdapResponse(LdapEvent evt)
         if(evt.getCause() == LdapEvent.LdapEventCause.SEARCH_ACHIEVED ||
                 evt.getCause() == LdapEvent.LdapEventCause.SEARCH_CANCELLED)
         {
-            synchronized(objLock)
-            {
-                objLock.notify();
-            }
+            notifySearchEnded();
         }
 
         if (evt.getCause() == LdapEvent.LdapEventCause.SEARCH_ERROR)
@@ -240,10 +257,7 @@ private void processLdapResponse(LdapEvent evt)
             // progress.
             setStatus(ContactQuery.QUERY_ERROR);
 
-            synchronized(objLock)
-            {
-                objLock.notify();
-            }
+            notifySearchEnded();
         }
 
         if(evt.getCause() == LdapEvent.LdapEventCause.NEW_SEARCH_RESULT)
@@ -294,10 +308,7 @@ private void processLdapResponse(LdapEvent evt)
         }
         else if(evt.getCause() == LdapEvent.LdapEventCause.SEARCH_AUTH_ERROR)
         {
-            synchronized(objLock)
-            {
-                objLock.notify();
-            }
+            notifySearchEnded();
 
             /* show authentication window to obtain new credentials */
             new Thread()
@@ -387,10 +398,7 @@ public void cancel()
             ldapQuery.setState(LdapQuery.State.CANCELLED);
         }
 
-        synchronized(objLock)
-        {
-            objLock.notify();
-        }
+        notifySearchEnded();
         super.cancel();
     }
 }
@@ -18,10 +18,12 @@
 package net.java.sip.communicator.impl.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.*;
 
 import net.java.sip.communicator.service.ldap.*;
 import net.java.sip.communicator.service.ldap.event.*;
@@ -146,6 +148,28 @@
      */
     private final List<String> phoneNumberAttributes = new ArrayList<String>();
 
+    /**
+     * The number of results requested from the server at a time, using the
+     * paged results control of RFC 2696.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The maximum number of searches performed at the same time on this
+     * directory.
+     */
+    private static final int MAX_SEARCH_THREADS = 4;
+
+    /**
+     * The connections to this directory kept open between searches.
+     */
+    private final LdapConnectionPool connectionPool;
+
+    /**
+     * The threads performing the searches on this directory.
+     */
+    private final ThreadPoolExecutor searchExecutor;
+
     /**
      * The contructor for this class.
      * Since this element is immutable (otherwise it would be a real pain
@@ -190,8 +214,8 @@ public LdapDirectoryImpl(LdapDirectorySettings settings)
         this.env.put("com.sun.jndi.ldap.read.timeout", LDAP_READ_TIMEOUT);
         this.env.put(Context.PROVIDER_URL, settings.getEncryption().
                 protocolString() + settings.getHostname() + portText +"/");
-        //connection pooling
-        this.env.put("com.sun.jndi.ldap.connect.pool", "true");
+        // connections are pooled by our LdapConnectionPool, which also
+        // covers SSL connections unlike the JNDI pool
 
         /* TODO STARTTLS */
         switch(this.settings.getEncryption())
@@ -257,6 +281,33 @@ public LdapDirectoryImpl(LdapDirectorySettings settings)
             retrievableAttributes.add("jpegPhoto");
             retrievableAttributes.add("thumbnailPhoto");
         }
+
+        this.connectionPool
+            = new LdapConnectionPool(env, this.settings.getName());
+
+        this.searchExecutor
+            = new ThreadPoolExecutor(
+                    MAX_SEARCH_THREADS, MAX_SEARCH_THREADS,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread searchThread = new Thread(r,
+                                "LdapDirectory search: " + settings.getName());
+
+                            // setting the classloader is necessary so that
+                            // the BundleContext can be accessed from classes
+                            // instantiated from JNDI (specifically from our
+                            // custom SocketFactory)
+                            searchThread.setContextClassLoader(
+                                LdapDirectoryImpl.class.getClassLoader());
+                            searchThread.setDaemon(true);
+                            return searchThread;
+                        }
+                    });
+        this.searchExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -300,40 +351,46 @@ public LdapDirectorySettings getSettings()
     }
 
     /**
-     * Connects to the remote directory
+     * Gets a connection to the remote directory from the connection pool,
+     * connecting if no open connection is available.
      */
-    private InitialDirContext connect()
+    private LdapContext connect()
         throws NamingException
     {
-        logger.trace("connecting to directory \"" + this + "\"");
-        long time0 = System.currentTimeMillis();
-        InitialDirContext dirContext =
-            new InitialDirContext(this.env);
-        long time1 = System.currentTimeMillis();
-        logger.trace("connection to directory \"" + this + "\" took " +
-                (time1-time0)  + " ms");
-        return dirContext;
+        return connectionPool.acquire();
     }
 
     /**
-     * closes the ldap connection
+     * Returns the ldap connection to the connection pool, or closes it if
+     * it failed.
+     *
+     * @param dirContext the connection obtained from <tt>connect()</tt>
+     * @param failure the exception thrown while using the connection, or
+     * <tt>null</tt>
      */
-    private void disconnect(InitialDirContext dirContext)
+    private void disconnect(LdapContext dirContext, Exception failure)
     {
         if(dirContext == null)
             throw new NullPointerException("dirContext is null");
 
-        try
-        {
-            dirContext.close();
-        }
-        catch(NamingException e)
-        {
-            logger.trace("disconnection from directory \"" + this +
-                    "\" failed!");
-        }
+        // errors returned by the server leave the connection usable
+        boolean reusable
+            = (failure == null)
+                || (failure instanceof NamingException
+                    && !(failure instanceof CommunicationException)
+                    && !(failure instanceof ServiceUnavailableException));
 
-        logger.trace("disconnection achieved!");
+        connectionPool.release(dirContext, reusable);
+    }
+
+    /**
+     * Closes the connections to this directory and stops its search threads.
+     * Called once the directory has been removed.
+     */
+    void dispose()
+    {
+        searchExecutor.shutdown();
+        connectionPool.close();
     }
 
     /**
@@ -363,6 +420,24 @@ public void searchPerson(final LdapQuery query, final LdapListener caller,
         if(searchSettings == null)
             searchSettings = new LdapSearchSettingsImpl();
 
+        int maxResults = searchSettings.isMaxResultsSet()
+            ? searchSettings.getMaxResults()
+            : 0;
+
+        // a repeated search, or one extending a recent one, is answered
+        // without going to the server
+        List<LdapResultCache.Result> cachedResults
+            = LdapServiceImpl.getResultCache().get(
+                settings.getName(),
+                query.toString(),
+                maxResults,
+                isRefinable(query.toString()));
+        if(cachedResults != null)
+        {
+            replayCachedResults(query, cachedResults, maxResults, caller);
+            return;
+        }
+
         // if the initial query string was "john d",
         // the intermediate query strings could be:
         // "*john d*" and "d*john"
@@ -382,21 +457,134 @@ public void searchPerson(final LdapQuery query, final LdapListener caller,
         this.pendingSearches.put(query, new LdapPendingSearch(serversList,
                 caller));
 
+        SearchCollector collector
+            = new SearchCollector(
+                query, intermediateQueryStrings.length, maxResults);
+
         // really performs the search
         for(String queryString : intermediateQueryStrings)
-            this.performSearch(query, queryString, searchSettings, this);
+        {
+            this.performSearch(
+                query, queryString, searchSettings, this, collector);
+        }
+    }
+
+    /**
+     * Determines whether the results of a search can be derived from the
+     * cached results of a search for a prefix of its query. That is the case
+     * unless a custom query, which can be anything, is used or the query may
+     * match phone numbers, which are not matched literally.
+     *
+     * @param queryString the query of the search
+     * @return whether the search can be answered from the results of a
+     * search for a prefix of its query
+     */
+    private boolean isRefinable(String queryString)
+    {
+        if ("custom".equals(settings.getQueryMode()))
+            return false;
+
+        for(int i = 0; i < queryString.length(); i++)
+        {
+            if(Character.isDigit(queryString.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the cached results matching a query to the search initiator, as
+     * if they had been found in the directory.
+     *
+     * @param query the query of the search
+     * @param cachedResults the cached results of the same query or of a
+     * prefix of it
+     * @param maxResults the maximum number of results or <tt>0</tt>
+     * @param caller the search initiator
+     */
+    private void replayCachedResults(
+            final LdapQuery query,
+            final List<LdapResultCache.Result> cachedResults,
+            final int maxResults,
+            final LdapListener caller)
+    {
+        Runnable replay = new Runnable()
+        {
+            public void run()
+            {
+                logger.trace("answering query \"" + query.toString() +
+                        "\" on directory \"" + LdapDirectoryImpl.this +
+                        "\" from cache");
+
+                Pattern searchPattern = Pattern.compile(query.toString(),
+                    Pattern.CASE_INSENSITIVE | Pattern.LITERAL);
+                int resultCount = 0;
+
+                for(LdapResultCache.Result result : cachedResults)
+                {
+                    if(query.getState() == LdapQuery.State.CANCELLED)
+                    {
+                        fireLdapEvent(
+                            new LdapEvent(
+                                LdapDirectoryImpl.this,
+                                LdapEvent.LdapEventCause.SEARCH_CANCELLED,
+                                query),
+                            caller);
+                        return;
+                    }
+
+                    if(!checkRetrievedAttributes(
+                            query.toString(),
+                            searchPattern,
+                            result.attributes))
+                        continue;
+
+                    fireLdapEvent(
+                        new LdapEvent(
+                            LdapDirectoryImpl.this,
+                            LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
+                            buildPerson(query, result.dn, result.attributes)),
+                        caller);
+
+                    if(maxResults > 0 && ++resultCount >= maxResults)
+                        break;
+                }
+
+                fireLdapEvent(
+                    new LdapEvent(
+                        LdapDirectoryImpl.this,
+                        LdapEvent.LdapEventCause.SEARCH_ACHIEVED,
+                        query),
+                    caller);
+            }
+        };
+
+        try
+        {
+            searchExecutor.execute(replay);
+        }
+        catch(RejectedExecutionException e)
+        {
+            // the directory has been removed
+            fireLdapEvent(
+                new LdapEvent(
+                    LdapDirectoryImpl.this,
+                    LdapEvent.LdapEventCause.SEARCH_CANCELLED,
+                    query),
+                caller);
+        }
     }
 
     private void performSearch(final LdapQuery query,
             final String realQueryString,
             final LdapSearchSettings searchSettings,
-            final LdapListener caller)
+            final LdapListener caller,
+            final SearchCollector collector)
     {
-        Thread searchThread = new Thread()
+        Runnable search = new Runnable()
         {
             int cancelState = 0;
 
-            @Override
             public void run()
             {
                 String filter = buildSearchFilter(realQueryString);
@@ -411,7 +599,10 @@ public void run()
                     buildSearchControls(searchSettings);
 
                 LdapEvent endEvent = null;
-                InitialDirContext dirContext = null;
+                LdapContext dirContext = null;
+                NamingEnumeration<?> results = null;
+                Exception failure = null;
+                boolean truncated = false;
 
                 try
                 {
@@ -424,41 +615,87 @@ public void run()
 
                     long time0 = System.currentTimeMillis();
 
-                    NamingEnumeration<?> results = dirContext.search(
-                            LdapDirectoryImpl.this.settings.getBaseDN(),
-                            filter,
-                            searchControls
-                            );
+                    int pageSize = PAGE_SIZE;
+                    if(searchSettings.isMaxResultsSet())
+                    {
+                        pageSize = Math.min(pageSize,
+                            searchSettings.getMaxResults());
+                    }
 
-                    checkCancel();
+                    int resultCount = 0;
+                    byte[] cookie = null;
 
-                    while (results.hasMore())
+                    // results are fired as every page arrives, servers which
+                    // do not support paging return everything at once
+                    do
                     {
+                        dirContext.setRequestControls(new Control[]
+                            {
+                                new PagedResultsControl(
+                                    pageSize, cookie, Control.NONCRITICAL)
+                            });
+
+                        results = dirContext.search(
+                                LdapDirectoryImpl.this.settings.getBaseDN(),
+                                filter,
+                                searchControls
+                                );
+
                         checkCancel();
 
-                        SearchResult searchResult =
-                            (SearchResult) results.next();
-                        Map<String, Set<Object>> retrievedAttributes =
-                            retrieveAttributes(searchResult);
-
-                        if(!checkRetrievedAttributes(
-                                query.toString(),
-                                searchPattern,
-                                retrievedAttributes))
-                            continue;
-
-                        LdapPersonFound person =
-                            buildPerson(
-                                query,
-                                searchResult.getName(),
-                                retrievedAttributes
-                                );
-                        LdapEvent resultEvent =
-                            new LdapEvent(LdapDirectoryImpl.this,
-                                    LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
-                                    person);
-                        fireLdapEvent(resultEvent, caller);
+                        while (results.hasMore())
+                        {
+                            checkCancel();
+
+                            SearchResult searchResult =
+                                (SearchResult) results.next();
+                            resultCount++;
+
+                            Map<String, Set<Object>> retrievedAttributes =
+                                retrieveAttributes(searchResult);
+
+                            if(checkRetrievedAttributes(
+                                    query.toString(),
+                                    searchPattern,
+                                    retrievedAttributes))
+                            {
+                                collector.add(
+                                    searchResult.getName(),
+                                    retrievedAttributes);
+
+                                LdapPersonFound person =
+                                    buildPerson(
+                                        query,
+                                        searchResult.getName(),
+                                        retrievedAttributes
+                                        );
+                                LdapEvent resultEvent =
+                                    new LdapEvent(LdapDirectoryImpl.this,
+                                        LdapEvent.LdapEventCause
+                                            .NEW_SEARCH_RESULT,
+                                        person);
+                                fireLdapEvent(resultEvent, caller);
+                            }
+
+                            if(searchSettings.isMaxResultsSet()
+                                && resultCount
+                                    >= searchSettings.getMaxResults())
+                                break;
+                        }
+
+                        if(searchSettings.isMaxResultsSet()
+                            && resultCount >= searchSettings.getMaxResults())
+                        {
+                            truncated = true;
+                            break;
+                        }
+
+                        results.close();
+                        results = null;
+                        cookie = getPagedResultsCookie(
+                            dirContext.getResponseControls());
                     }
+                    while (cookie != null);
 
                     long time1 = System.currentTimeMillis();
                     logger.trace("search for real query \"" + filter +
@@ -469,6 +706,17 @@ public void run()
                     endEvent = new LdapEvent(LdapDirectoryImpl.this,
                             LdapEvent.LdapEventCause.SEARCH_ACHIEVED, query);
                 }
+                catch(SizeLimitExceededException e)
+                {
+                    // the server enforces a limit of its own: the results
+                    // up to that limit have been delivered
+                    logger.trace("size limit of directory \"" +
+                            LdapDirectoryImpl.this + "\" reached for" +
+                            " real query \"" + filter + "\"");
+                    truncated = true;
+                    endEvent = new LdapEvent(LdapDirectoryImpl.this,
+                            LdapEvent.LdapEventCause.SEARCH_ACHIEVED, query);
+                }
                 catch(OperationNotSupportedException e)
                 {
                     logger.error(
@@ -499,6 +747,7 @@ public void run()
                 }
                 catch(NamingException e)
                 {
+                    failure = e;
                     logger.error(
                             "an external exception was thrown during search" +
                             " for real query \"" +
@@ -531,6 +780,7 @@ public void run()
                 }
                 catch (Exception e)
                 {
+                    failure = e;
                     logger.error("search for real query \"" + filter +
                             "\" (initial query: \"" + query.toString() +
                             "\") on " + LdapDirectoryImpl.this +
@@ -544,9 +794,28 @@ public void run()
                 }
                 finally
                 {
+                    collector.searchDone(
+                        endEvent != null
+                            && endEvent.getCause()
+                                == LdapEvent.LdapEventCause.SEARCH_ACHIEVED,
+                        truncated);
+
                     fireLdapEvent(endEvent, caller);
+                    if(results != null)
+                    {
+                        // abandons the rest of a cancelled search
+                        try
+                        {
+                            results.close();
+                        }
+                        catch(NamingException e)
+                        {
+                            if(failure == null)
+                                failure = e;
+                        }
+                    }
                     if(dirContext != null)
-                        disconnect(dirContext);
+                        disconnect(dirContext, failure);
                 }
             }
 
@@ -569,12 +838,46 @@ private void checkCancel()
             }
         };
 
-        // setting the classloader is necessary so that the BundleContext can be
-        // accessed from classes instantiated from JNDI (specifically from our
-        // custom SocketFactory)
-        searchThread.setContextClassLoader(getClass().getClassLoader());
-        searchThread.setDaemon(true);
-        searchThread.start();
+        try
+        {
+            searchExecutor.execute(search);
+        }
+        catch(RejectedExecutionException e)
+        {
+            // the directory has been removed
+            fireLdapEvent(
+                new LdapEvent(
+                    LdapDirectoryImpl.this,
+                    LdapEvent.LdapEventCause.SEARCH_CANCELLED,
+                    query),
+                caller);
+        }
+    }
+
+    /**
+     * Returns the cookie asking for the next page of results of a paged
+     * search.
+     *
+     * @param controls the response controls of the last page
+     * @return the cookie or <tt>null</tt> if there are no more results or
+     * the server does not support paging
+     */
+    private static byte[] getPagedResultsCookie(Control[] controls)
+    {
+        if(controls == null)
+            return null;
+
+        for(Control control : controls)
+        {
+            if(control instanceof PagedResultsResponseControl)
+            {
+                byte[] cookie
+                    = ((PagedResultsResponseControl) control).getCookie();
+
+                return (cookie == null || cookie.length == 0) ? null : cookie;
+            }
+        }
+        return null;
     }
 
     /**
@@ -1020,7 +1323,8 @@ private String buildSearchFilter(String query)
     public Collection<String> searchChildren(final String dn)
     {
         final Vector<String> nodes = new Vector<String>();
-        InitialDirContext dirContext = null;
+        LdapContext dirContext = null;
+        Exception failure = null;
 
         if(dn.equals(""))
         {
@@ -1051,12 +1355,13 @@ public Collection<String> searchChildren(final String dn)
             }
             catch (NamingException e)
             {
+                failure = e;
                 logger.trace("error when performing ldap search query" + e);
             }
             finally
             {
                 if(dirContext != null)
-                    disconnect(dirContext);
+                    disconnect(dirContext, failure);
             }
         }
         else
@@ -1080,13 +1385,14 @@ public Collection<String> searchChildren(final String dn)
             }
             catch (NamingException e)
             {
+                failure = e;
                 logger.trace("error when performing ldap search query" + e);
                 e.printStackTrace();
             }
             finally
             {
                 if(dirContext != null)
-                    disconnect(dirContext);
+                    disconnect(dirContext, failure);
             }
         }
 
@@ -1108,7 +1414,8 @@ byte[] fetchPhotoForPerson(String dn)
         }
 
         byte[] photo = null;
-        InitialDirContext dirContext = null;
+        LdapContext dirContext = null;
+        Exception failure = null;
 
         /* use our custom search control */
 
@@ -1144,16 +1451,18 @@ byte[] fetchPhotoForPerson(String dn)
                     }
                 }
             }
+            result.close();
         }
         catch (NamingException e)
         {
+            failure = e;
             logger.trace("error when performing photo retrieval" + e);
             e.printStackTrace();
         }
         finally
         {
             if(dirContext != null)
-                disconnect(dirContext);
+                disconnect(dirContext, failure);
         }
 
         return photo;
@@ -1293,6 +1602,110 @@ public void overrideAttributesSearch(String attribute, List<String> names)
         attributesMap.put(attribute, names);
     }
 
+    /**
+     * Gathers the results of the searches performed for the intermediate
+     * query strings of a query and caches them once all succeeded.
+     */
+    private class SearchCollector
+    {
+        /**
+         * The query searched.
+         */
+        private final LdapQuery query;
+
+        /**
+         * The result limit of the searches or <tt>0</tt>.
+         */
+        private final int maxResults;
+
+        /**
+         * The results found so far, by distinguished name since the searches
+         * of the intermediate query strings may find the same entries.
+         */
+        private final Map<String, LdapResultCache.Result> results
+            = new LinkedHashMap<String, LdapResultCache.Result>();
+
+        /**
+         * The number of searches still running.
+         */
+        private int pendingSearches;
+
+        /**
+         * Whether all searches returned all matching entries.
+         */
+        private boolean complete = true;
+
+        /**
+         * Whether the results are to be cached.
+         */
+        private boolean cacheable = true;
+
+        /**
+         * Creates a collector for the searches of a query.
+         *
+         * @param query the query searched
+         * @param searches the number of searches performed for the query
+         * @param maxResults the result limit of the searches or <tt>0</tt>
+         */
+        SearchCollector(LdapQuery query, int searches, int maxResults)
+        {
+            this.query = query;
+            this.pendingSearches = searches;
+            this.maxResults = maxResults;
+        }
+
+        /**
+         * Adds an entry found by one of the searches.
+         *
+         * @param dn the distinguished name of the entry
+         * @param attributes the retrieved attributes of the entry
+         */
+        synchronized void add(String dn, Map<String, Set<Object>> attributes)
+        {
+            if(!cacheable)
+                return;
+
+            if(results.size() >= LdapResultCache.MAX_RESULTS)
+            {
+                // too many to be worth keeping
+                cacheable = false;
+                results.clear();
+                return;
+            }
+            results.put(dn, new LdapResultCache.Result(dn, attributes));
+        }
+
+        /**
+         * Notifies the collector that one of the searches ended and caches
+         * the results once all ended successfully.
+         *
+         * @param succeeded whether the search completed without error or
+         * cancellation
+         * @param truncated whether the search stopped at a result limit
+         */
+        synchronized void searchDone(boolean succeeded, boolean truncated)
+        {
+            if(!succeeded)
+                cacheable = false;
+            if(truncated)
+                complete = false;
+
+            // a removed directory may have been replaced by one with the
+            // same name and new settings
+            if(--pendingSearches == 0
+                && cacheable
+                && !searchExecutor.isShutdown())
+            {
+                LdapServiceImpl.getResultCache().put(
+                    settings.getName(),
+                    query.toString(),
+                    new ArrayList<LdapResultCache.Result>(results.values()),
+                    complete,
+                    maxResults);
+            }
+        }
+    }
+
     /**
      * A custom exception used internally by LdapDirectoryImpl
      * to indicate that a query was cancelled
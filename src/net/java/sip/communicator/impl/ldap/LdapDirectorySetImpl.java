@@ -106,6 +106,12 @@ public LdapDirectory removeServerWithName(String name)
         if(configService != null)
             removed.getSettings().persistentRemove();
 
+        if(removed instanceof LdapDirectoryImpl)
+            ((LdapDirectoryImpl) removed).dispose();
+
+        // the results of its searches may not hold with other settings
+        LdapServiceImpl.getResultCache().invalidate(name);
+
         return removed;
     }
 
@@ -120,6 +126,8 @@ public boolean addServer(LdapDirectory server)
     {
         /* TODO thread-safe */
         this.serverMap.put(server.getSettings().getName(), server);
+        LdapServiceImpl.getResultCache().invalidate(
+            server.getSettings().getName());
 
         if(configService != null)
             server.getSettings().persistentSave();
@@ -0,0 +1,294 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+/**
+ * Keeps the results of recent person searches for a while, keyed by
+ * directory and query, so that repeating a search or extending its query,
+ * as happens on every keystroke in the contact search field, does not go to
+ * the server again.
+ * <p>
+ * A query extending a cached one, "joh" after "jo" for instance, is answered
+ * from the cached results when they are complete, i.e. not cut by a result
+ * limit: every entry matching the longer query also matches the shorter one.
+ * The caller filters the returned results with the new query.
+ */
+class LdapResultCache
+{
+    /**
+     * The default number of searches kept.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * The default time, in milliseconds, searches are kept for.
+     */
+    static final long DEFAULT_TTL = 2 * 60 * 1000;
+
+    /**
+     * The maximum number of results of a search for it to be kept.
+     */
+    static final int MAX_RESULTS = 500;
+
+    /**
+     * The cached searches in least recently used order.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * The time, in milliseconds, searches are kept for.
+     */
+    private final long ttl;
+
+    /**
+     * Creates a cache with the default limits.
+     */
+    LdapResultCache()
+    {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries the maximum number of searches kept
+     * @param ttl the time, in milliseconds, searches are kept for
+     */
+    @SuppressWarnings("serial")
+    LdapResultCache(final int maxEntries, long ttl)
+    {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached results which answer a search, if any.
+     *
+     * @param directory the name of the searched directory
+     * @param query the query of the search
+     * @param maxResults the result limit of the search or <tt>0</tt> if it
+     * has none
+     * @param refinable whether the search can be answered from the results
+     * of a query it extends
+     * @return the results of the same search, or a superset of its results
+     * which the caller has to filter, or <tt>null</tt> if the search has to
+     * be sent to the directory
+     */
+    List<Result> get(
+        String directory, String query, int maxResults, boolean refinable)
+    {
+        return get(directory, query, maxResults, refinable,
+            System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the cached results which answer a search at <tt>now</tt>.
+     *
+     * @see #get(String, String, int, boolean)
+     */
+    synchronized List<Result> get(String directory, String query,
+        int maxResults, boolean refinable, long now)
+    {
+        String normalizedQuery = normalize(query);
+        Entry entry = getEntry(directory, normalizedQuery, now);
+
+        if (entry != null
+                && (entry.complete
+                    || (maxResults > 0 && maxResults <= entry.maxResults)))
+            return entry.results;
+
+        if (!refinable)
+            return null;
+
+        for (int length = normalizedQuery.length() - 1; length > 0; length--)
+        {
+            entry
+                = getEntry(
+                    directory, normalizedQuery.substring(0, length), now);
+            if (entry != null && entry.complete)
+                return entry.results;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the results of a search.
+     *
+     * @param directory the name of the searched directory
+     * @param query the query of the search
+     * @param results the results of the search
+     * @param complete whether the search returned all matching entries, as
+     * opposed to being cut by a result limit
+     * @param maxResults the result limit of the search or <tt>0</tt> if it
+     * had none
+     */
+    void put(String directory, String query, List<Result> results,
+        boolean complete, int maxResults)
+    {
+        put(directory, query, results, complete, maxResults,
+            System.currentTimeMillis());
+    }
+
+    /**
+     * Caches the results of a search completed at <tt>now</tt>.
+     *
+     * @see #put(String, String, List, boolean, int)
+     */
+    synchronized void put(String directory, String query,
+        List<Result> results, boolean complete, int maxResults, long now)
+    {
+        if (results.size() > MAX_RESULTS)
+            return;
+
+        entries.put(
+            getKey(directory, normalize(query)),
+            new Entry(
+                Collections.unmodifiableList(new ArrayList<Result>(results)),
+                complete,
+                maxResults,
+                now + ttl));
+    }
+
+    /**
+     * Removes the cached searches of a directory, e.g. because its settings
+     * changed.
+     *
+     * @param directory the name of the directory
+     */
+    synchronized void invalidate(String directory)
+    {
+        String prefix = getKey(directory, "");
+
+        for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();)
+        {
+            if (i.next().startsWith(prefix))
+                i.remove();
+        }
+    }
+
+    /**
+     * Removes all cached searches.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached searches.
+     *
+     * @return the number of cached searches
+     */
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the unexpired entry of a search, removing it if expired.
+     */
+    private Entry getEntry(String directory, String normalizedQuery, long now)
+    {
+        String key = getKey(directory, normalizedQuery);
+        Entry entry = entries.get(key);
+
+        if (entry != null && now >= entry.expires)
+        {
+            entries.remove(key);
+            entry = null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the key of a search.
+     */
+    private static String getKey(String directory, String normalizedQuery)
+    {
+        return directory + '\n' + normalizedQuery;
+    }
+
+    /**
+     * Returns the form of a query searches are cached by. Queries are
+     * matched case-insensitively.
+     */
+    private static String normalize(String query)
+    {
+        return query.toLowerCase();
+    }
+
+    /**
+     * An entry found by a search, with the attributes retrieved for it.
+     */
+    static class Result
+    {
+        /**
+         * The distinguished name of the entry.
+         */
+        final String dn;
+
+        /**
+         * The retrieved attributes of the entry.
+         */
+        final Map<String, Set<Object>> attributes;
+
+        /**
+         * Creates a result.
+         *
+         * @param dn the distinguished name of the entry
+         * @param attributes the retrieved attributes of the entry
+         */
+        Result(String dn, Map<String, Set<Object>> attributes)
+        {
+            this.dn = dn;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * The results of a search.
+     */
+    private static class Entry
+    {
+        private final List<Result> results;
+
+        private final boolean complete;
+
+        private final int maxResults;
+
+        private final long expires;
+
+        private Entry(List<Result> results, boolean complete, int maxResults,
+            long expires)
+        {
+            this.results = results;
+            this.complete = complete;
+            this.maxResults = maxResults;
+            this.expires = expires;
+        }
+    }
+}
@@ -73,6 +73,11 @@
      */
     private static CertificateService certService = null;
 
+    /**
+     * The recent results of the searches of all directories.
+     */
+    private static final LdapResultCache resultCache = new LdapResultCache();
+
     /**
      * Starts the service.
      *
@@ -95,6 +100,21 @@ public void start(BundleContext bc)
     public void stop(BundleContext bc)
     {
         logger.trace("Stopping the LDAP implementation.");
+
+        if(serverSet != null)
+        {
+            List<LdapDirectory> servers = new ArrayList<LdapDirectory>();
+            servers.addAll(serverSet.getEnabledServers());
+            servers.addAll(serverSet.getDisabledServers());
+
+            // closes the connections kept open by the directories
+            for(LdapDirectory server : servers)
+            {
+                if(server instanceof LdapDirectoryImpl)
+                    ((LdapDirectoryImpl) server).dispose();
+            }
+        }
+        resultCache.clear();
     }
 
     /**
@@ -159,6 +179,17 @@ public static CertificateService getCertificateService()
         return certService;
     }
 
+    /**
+     * Returns the cache of the recent results of the searches of all
+     * directories.
+     *
+     * @return the search result cache
+     */
+    static LdapResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
     /**
      * Returns all the LDAP directories
      *
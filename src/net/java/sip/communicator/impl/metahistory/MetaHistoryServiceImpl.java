@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -64,6 +65,17 @@
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The maximum number of history services queried at the same time.
+     */
+    private static final int MAX_QUERY_THREADS = 4;
+
+    /**
+     * The threads querying the history services in parallel, or
+     * <tt>null</tt> if the service is stopped.
+     */
+    private ThreadPoolExecutor queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -76,55 +88,45 @@
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            Object descriptor, final Date startDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByStartDate(contact, startDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return mhs.findByStartDate(room, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return fhs.findByStartDate(contact, startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByStartDate(startDate);
+                }
+            });
         listenWrapper.fireLastProgress(startDate, null, null);
 
-        return result;
+        return RecordsMerger.mergeFirst(results, new RecordsComparator(), -1);
     }
 
     /**
@@ -139,56 +141,45 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            Object descriptor, final Date endDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByEndDate(contact, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    return mhs.findByEndDate(room, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    return fhs.findByEndDate(contact, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByEndDate(endDate);
+                }
+            });
         listenWrapper.fireLastProgress(null, endDate, null);
 
-        return result;
+        return RecordsMerger.mergeFirst(results, new RecordsComparator(), -1);
     }
 
     /**
@@ -204,59 +195,45 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        LinkedList<Object> result = new LinkedList<Object>();
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByPeriod(contact, startDate, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return mhs.findByPeriod(room, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return fhs.findByPeriod(contact, startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByPeriod(startDate, endDate);
+                }
+            });
         listenWrapper.fireLastProgress(startDate, endDate, null);
 
-        Collections.sort(result, new RecordsComparator());
-        return result;
+        return RecordsMerger.mergeFirst(results, new RecordsComparator(), -1);
     }
 
     /**
@@ -296,75 +273,51 @@ public Collection<Object> findByPeriod(String[] services,
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(
+                        contact, startDate, endDate, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(
+                        room, startDate, endDate, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
-                        startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByPeriod(
+                        contact, startDate, endDate, keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return filterCalls(
+                        chs.findByPeriod(startDate, endDate),
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(startDate, endDate, keywords);
 
-        return result;
+        return RecordsMerger.mergeFirst(results, new RecordsComparator(), -1);
     }
 
     /**
@@ -436,72 +389,49 @@ public Collection<Object> findByKeywords(String[] services,
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
+                    return mhs.findByKeywords(contact, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                    return mhs.findByKeywords(room, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByKeywords(contact, keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    // this will get all call records
+                    return filterCalls(
+                        chs.findByEndDate(new Date()),
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(null, null, keywords);
 
-        return result;
+        return RecordsMerger.mergeFirst(results, new RecordsComparator(), -1);
     }
 
     /**
@@ -516,67 +446,46 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            Object descriptor, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
+                    return mhs.findLast(contact, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
+                    return mhs.findLast(room, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
+                {
+                    return fhs.findLast(contact, count);
+                }
 
-        if(startIndex < 0)
-            startIndex = 0;
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findLast(count);
+                }
+            });
+        listenWrapper.fireLastProgress(null, null, null);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return RecordsMerger.mergeLast(
+            results, new RecordsComparator(), count);
     }
 
     /**
@@ -592,79 +501,47 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findFirstMessagesAfter(contact, date, count);
+                }
 
-                if(descriptor instanceof MetaContact)
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(room, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return fhs.findFirstRecordsAfter(contact, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    // the merge takes the first records of the sorted list
+                    return chs.findByStartDate(date);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            });
         listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
 
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
-
-        return resultAsList.subList(0, toIndex);
+        return RecordsMerger.mergeFirst(
+            results, new RecordsComparator(), count);
     }
 
     /**
@@ -680,77 +557,275 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
+        List<List<Object>> results = queryServices(
+            services, descriptor, listenWrapper, new HistoryQuery()
+            {
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findLastMessagesBefore(contact, date, count);
+                }
+
+                @Override
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
+                {
+                    return mhs.findLastMessagesBefore(room, date, count);
+                }
+
+                @Override
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
+                {
+                    return fhs.findLastRecordsBefore(contact, date, count);
+                }
+
+                @Override
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    // the merge takes the last records of the sorted list
+                    return chs.findByEndDate(date);
+                }
+            });
+        listenWrapper.fireLastProgress(date, null, null);
+
+        return RecordsMerger.mergeLast(
+            results, new RecordsComparator(), count);
+    }
+
+    /**
+     * Runs a query on every one of <tt>services</tt>, in parallel, and
+     * returns their results sorted by time.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param listenWrapper the listener forwarding the search progress of
+     * the services
+     * @param query the query to run
+     * @return the sorted results of every service, in the order of
+     * <tt>services</tt>
+     */
+    private List<List<Object>> queryServices(
+        String[] services,
+        final Object descriptor,
+        final MessageProgressWrapper listenWrapper,
+        final HistoryQuery query)
+    {
+        List<Callable<List<Object>>> tasks
+            = new ArrayList<Callable<List<Object>>>(services.length);
+
         for (int i = 0; i < services.length; i++)
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            final Object serv = getService(services[i]);
+            final int ix = i;
+
+            tasks.add(new Callable<List<Object>>()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                public List<Object> call()
+                {
+                    return queryService(
+                        serv, descriptor, listenWrapper.getListener(ix), query);
+                }
+            });
+        }
 
+        ExecutorService executor;
+        synchronized (this)
+        {
+            executor = queryExecutor;
+        }
+
+        // the first service is queried by the calling thread, which would
+        // otherwise only wait
+        List<Future<List<Object>>> futures
+            = new ArrayList<Future<List<Object>>>(tasks.size());
+        for (int i = 1; i < tasks.size(); i++)
+        {
+            Callable<List<Object>> task = tasks.get(i);
+            FutureTask<List<Object>> future
+                = new FutureTask<List<Object>>(task);
+
+            futures.add(future);
+            try
+            {
+                if (executor == null)
+                    future.run();
+                else
+                    executor.execute(future);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // the service is being stopped
+                future.run();
+            }
+        }
+
+        List<List<Object>> results
+            = new ArrayList<List<Object>>(tasks.size());
+        if (!tasks.isEmpty())
+        {
+            try
+            {
+                results.add(tasks.get(0).call());
+            }
+            catch (RuntimeException e)
+            {
+                cancel(futures);
+                throw e;
+            }
+            catch (Exception e)
+            {
+                // our tasks do not throw checked exceptions
+                cancel(futures);
+                throw new RuntimeException(e);
+            }
+        }
+
+        for (Future<List<Object>> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                cancel(futures);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(
+                    "Interrupted while querying history services", e);
+            }
+            catch (ExecutionException e)
+            {
+                cancel(futures);
+
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs a query on one history service.
+     *
+     * @param serv the history service
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param listener the listener for the search progress of the service
+     * @param query the query to run
+     * @return the results of the service, sorted by time
+     */
+    private List<Object> queryService(
+        Object serv,
+        Object descriptor,
+        MessageProgressWrapper.ServiceProgressListener listener,
+        HistoryQuery query)
+    {
+        Collection<?> records = null;
+
+        if(serv instanceof MessageHistoryService)
+        {
+            MessageHistoryService mhs = (MessageHistoryService)serv;
+            mhs.addSearchProgressListener(listener);
+            try
+            {
                 if(descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    records
+                        = query.findMessages(mhs, (MetaContact)descriptor);
                 }
                 else if(descriptor instanceof ChatRoom)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    records = query.findMessages(mhs, (ChatRoom)descriptor);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+            finally
+            {
+                mhs.removeSearchProgressListener(listener);
+            }
+        }
+        else if(serv instanceof FileHistoryService
+                && descriptor instanceof MetaContact)
+        {
+            records = query.findFiles(
+                (FileHistoryService)serv, (MetaContact)descriptor);
+        }
+        else if(serv instanceof CallHistoryService)
+        {
+            CallHistoryService chs = (CallHistoryService)serv;
+            chs.addSearchProgressListener(listener);
+            try
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
+                records = query.findCalls(chs);
             }
-            else if(serv instanceof CallHistoryService)
+            finally
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                chs.removeSearchProgressListener(listener);
+            }
+        }
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
-                {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
-                }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+        if (records == null)
+            return new ArrayList<Object>();
+
+        List<Object> result = new ArrayList<Object>(records);
+
+        // the services return sorted collections, but not all of them in
+        // ascending order
+        RecordsComparator comparator = new RecordsComparator();
+        for (int i = 1; i < result.size(); i++)
+        {
+            if (comparator.compare(result.get(i - 1), result.get(i)) > 0)
+            {
+                Collections.sort(result, comparator);
+                break;
             }
         }
-        listenWrapper.fireLastProgress(date, null, null);
+        return result;
+    }
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+    /**
+     * Cancels the queries still running.
+     *
+     * @param futures the queries
+     */
+    private static void cancel(List<Future<List<Object>>> futures)
+    {
+        for (Future<List<Object>> future : futures)
+            future.cancel(false);
+    }
 
-        if(startIndex < 0)
-            startIndex = 0;
+    /**
+     * Returns the call records with a peer matching all keywords.
+     *
+     * @param calls the call records to filter
+     * @param keywords the keywords to match
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> filterCalls(
+        Collection<CallRecord> calls, String[] keywords, boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        for (CallRecord callRecord : calls)
+        {
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
     }
 
     /**
@@ -880,6 +955,28 @@ public void start(BundleContext bc)
 
         services.clear();
 
+        synchronized (this)
+        {
+            queryExecutor
+                = new ThreadPoolExecutor(
+                        MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t
+                                    = new Thread(
+                                            r, "MetaHistoryService query");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            queryExecutor.allowCoreThreadTimeOut(true);
+        }
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -893,11 +990,20 @@ public void stop(BundleContext bc)
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        synchronized (this)
+        {
+            if (queryExecutor != null)
+            {
+                queryExecutor.shutdown();
+                queryExecutor = null;
+            }
+        }
     }
 
     /**
      * Used to compare various records
-     * to be ordered in TreeSet according their timestamp.
+     * to be ordered according their timestamp.
      */
     private static class RecordsComparator
         implements Comparator<Object>
@@ -929,25 +1035,64 @@ public int compare(Object o1, Object o2)
         }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * A query run on every history service. The records returned by the
+     * services are sorted by <tt>queryServices</tt>, if they are not.
+     */
+    private static abstract class HistoryQuery
     {
-        private final int count;
+        /**
+         * Runs the query on a message history service for a contact.
+         */
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, MetaContact contact);
+
+        /**
+         * Runs the query on a message history service for a chat room.
+         */
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, ChatRoom room);
+
+        /**
+         * Runs the query on a file history service for a contact.
+         */
+        abstract Collection<?> findFiles(
+            FileHistoryService fhs, MetaContact contact);
+
+        /**
+         * Runs the query on the call history service.
+         */
+        abstract Collection<?> findCalls(CallHistoryService chs);
+    }
 
-        private int ix;
+    /**
+     * Combines the search progress of the services queried in parallel into
+     * the progress of the whole search.
+     */
+    private class MessageProgressWrapper
+    {
+        /**
+         * The progress of every service, between <tt>0</tt> and <tt>1</tt>.
+         */
+        private final double[] progress;
 
         public MessageProgressWrapper(int count)
         {
-            this.count = count;
+            this.progress = new double[count];
         }
 
-        public void setIx(int ix)
+        /**
+         * Returns the listener for the progress of a service.
+         *
+         * @param ix the index of the service
+         * @return the listener for the progress of the service
+         */
+        public ServiceProgressListener getListener(int ix)
         {
-            this.ix = ix;
+            return new ServiceProgressListener(ix);
         }
 
-        private void fireProgress(int origProgress, int maxVal,
+        private void fireProgress(int ix, int origProgress, int maxVal,
             Date startDate, Date endDate, String[] keywords)
         {
             ProgressEvent ev = new ProgressEvent(
@@ -956,17 +1101,21 @@ private void fireProgress(int origProgress, int maxVal,
                 endDate,
                 keywords);
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
+            double total = 0;
+            synchronized (progress)
+            {
+                progress[ix] = origProgress/(double)maxVal;
+                for (double p : progress)
+                    total += p;
+            }
+
+            double convProgress = total/progress.length
+                * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
 
             ev.setProgress((int)convProgress);
 
             fireEvent(ev);
         }
-
         private void fireEvent(ProgressEvent ev)
         {
             Iterable<HistorySearchProgressListener> listeners;
@@ -993,25 +1142,48 @@ public void fireLastProgress(
             fireEvent(ev);
         }
 
-        public void progressChanged(
-            net.java.sip.communicator.service.msghistory.event.ProgressEvent evt)
+        /**
+         * Forwards the search progress of one service.
+         */
+        private class ServiceProgressListener
+            implements MessageHistorySearchProgressListener,
+                       CallHistorySearchProgressListener
         {
-            fireProgress(
-                evt.getProgress(),
-                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
-                evt.getStartDate(),
-                evt.getEndDate(),
-                evt.getKeywords());
-        }
+            /**
+             * The index of the service.
+             */
+            private final int ix;
 
-        public void progressChanged(net.java.sip.communicator.service.callhistory.event.ProgressEvent evt)
-        {
-            fireProgress(
-                evt.getProgress(),
-                CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
-                evt.getStartDate(),
-                evt.getEndDate(),
-                null);
+            private ServiceProgressListener(int ix)
+            {
+                this.ix = ix;
+            }
+
+            public void progressChanged(
+            net.java.sip.communicator.service.msghistory.event.ProgressEvent
+                evt)
+            {
+                fireProgress(
+                    ix,
+                    evt.getProgress(),
+                    MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+                    evt.getStartDate(),
+                    evt.getEndDate(),
+                    evt.getKeywords());
+            }
+
+            public void progressChanged(
+            net.java.sip.communicator.service.callhistory.event.ProgressEvent
+                evt)
+            {
+                fireProgress(
+                    ix,
+                    evt.getProgress(),
+                    CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+                    evt.getStartDate(),
+                    evt.getEndDate(),
+                    null);
+            }
         }
     }
 }
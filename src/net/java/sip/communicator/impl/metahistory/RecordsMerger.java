@@ -0,0 +1,179 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+
+/**
+ * Merges the sorted results of several history services into one sorted
+ * list, taking the next record from the list whose head is the oldest (or,
+ * merging from the end, the newest) one. Only as many records as requested
+ * are visited, so the last <tt>n</tt> records of long histories are merged
+ * in <tt>O(n log k)</tt> for <tt>k</tt> services. Records with equal times
+ * keep the order of the lists they come from.
+ */
+class RecordsMerger
+{
+    /**
+     * Merges sorted lists and returns the first <tt>count</tt> records.
+     *
+     * @param lists the lists to merge, each sorted by <tt>comparator</tt>
+     * @param comparator the order of the records
+     * @param count the maximum number of records to return, or
+     * <tt>-1</tt> for all of them
+     * @return the first <tt>count</tt> records of the merged lists, sorted
+     */
+    static <T> List<T> mergeFirst(
+        List<? extends List<? extends T>> lists,
+        Comparator<? super T> comparator,
+        int count)
+    {
+        return merge(lists, comparator, count, false);
+    }
+
+    /**
+     * Merges sorted lists and returns the last <tt>count</tt> records.
+     *
+     * @param lists the lists to merge, each sorted by <tt>comparator</tt>
+     * @param comparator the order of the records
+     * @param count the maximum number of records to return, or
+     * <tt>-1</tt> for all of them
+     * @return the last <tt>count</tt> records of the merged lists, sorted
+     */
+    static <T> List<T> mergeLast(
+        List<? extends List<? extends T>> lists,
+        Comparator<? super T> comparator,
+        int count)
+    {
+        List<T> result = merge(lists, comparator, count, true);
+
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Merges sorted lists from their start or their end.
+     *
+     * @return the merged records, in reverse order if <tt>fromEnd</tt>
+     */
+    private static <T> List<T> merge(
+        List<? extends List<? extends T>> lists,
+        final Comparator<? super T> comparator,
+        int count,
+        final boolean fromEnd)
+    {
+        int total = 0;
+        for (List<? extends T> list : lists)
+            total += list.size();
+        if (count < 0 || count > total)
+            count = total;
+
+        PriorityQueue<Cursor<T>> heads
+            = new PriorityQueue<Cursor<T>>(
+                    Math.max(1, lists.size()),
+                    new Comparator<Cursor<T>>()
+                    {
+                        public int compare(Cursor<T> c1, Cursor<T> c2)
+                        {
+                            int result
+                                = comparator.compare(c1.head, c2.head);
+
+                            if (result == 0)
+                                result = c1.index - c2.index;
+                            return fromEnd ? -result : result;
+                        }
+                    });
+
+        for (int i = 0; i < lists.size(); i++)
+        {
+            List<? extends T> list = lists.get(i);
+
+            if (!list.isEmpty())
+            {
+                heads.add(
+                    new Cursor<T>(
+                        i,
+                        fromEnd
+                            ? list.listIterator(list.size())
+                            : list.listIterator(),
+                        fromEnd));
+            }
+        }
+
+        List<T> result = new ArrayList<T>(count);
+        while (result.size() < count)
+        {
+            Cursor<T> cursor = heads.poll();
+
+            result.add(cursor.head);
+            if (cursor.advance())
+                heads.add(cursor);
+        }
+        return result;
+    }
+
+    /**
+     * The position reached in one of the merged lists.
+     */
+    private static class Cursor<T>
+    {
+        /**
+         * The index of the list, which orders records with equal times.
+         */
+        private final int index;
+
+        /**
+         * The iterator over the rest of the list.
+         */
+        private final ListIterator<? extends T> iterator;
+
+        /**
+         * Whether the list is iterated from its end.
+         */
+        private final boolean backwards;
+
+        /**
+         * The next record of the list.
+         */
+        private T head;
+
+        private Cursor(
+            int index, ListIterator<? extends T> iterator, boolean backwards)
+        {
+            this.index = index;
+            this.iterator = iterator;
+            this.backwards = backwards;
+            advance();
+        }
+
+        /**
+         * Moves to the next record of the list.
+         *
+         * @return <tt>false</tt> if the list has no more records
+         */
+        private boolean advance()
+        {
+            if (backwards ? iterator.hasPrevious() : iterator.hasNext())
+            {
+                head = backwards ? iterator.previous() : iterator.next();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -703,7 +703,7 @@ public Collection<EventObject> findLastMessagesBefore(  MetaContact contact,
 
                 HistoryReader reader = history.getReader();
                 Iterator<HistoryRecord> recs
-                    = reader.findLastRecordsBefore(date, count);
+                    = reader.findLastRecordsReversed(date, count);
                 while (recs.hasNext())
                 {
                     result.add(
@@ -2418,7 +2418,7 @@ public Collection<EventObject> findLastMessagesBefore(  ChatRoom room,
             HistoryReader reader =
                 this.getHistoryForMultiChat(room).getReader();
             Iterator<HistoryRecord> recs
-                = reader.findLastRecordsBefore(date, count);
+                = reader.findLastRecordsReversed(date, count);
             while (recs.hasNext())
             {
                 result.add(
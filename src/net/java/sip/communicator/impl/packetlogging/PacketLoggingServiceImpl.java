@@ -18,11 +18,14 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
 
 import com.google.common.collect.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.packetlogging.*;
 
@@ -49,6 +52,31 @@
      */
     private static final int EVICTING_QUEUE_MAX_SIZE = 1000;
 
+    /**
+     * The property enabling the ring buffer mode, in which logged packets
+     * are copied into a preallocated <tt>PacketRingBuffer</tt> without
+     * locking and written to file in batches.
+     */
+    static final String RING_BUFFER_ENABLED_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.packetlogging.RING_BUFFER_ENABLED";
+
+    /**
+     * The property setting the number of packets the ring buffer holds.
+     */
+    static final String RING_BUFFER_SIZE_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.packetlogging.RING_BUFFER_SIZE";
+
+    /**
+     * The default number of packets the ring buffer holds.
+     */
+    private static final int DEFAULT_RING_BUFFER_SIZE = 2048;
+
+    /**
+     * The size of the buffer the ring saver thread collects packets in
+     * before writing them to file.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
     /**
      * The OutputStream we are currently writing to.
      */
@@ -59,6 +87,17 @@
      */
     private SaverThread saverThread = new SaverThread();
 
+    /**
+     * The buffer the packets are queued in when the ring buffer mode is
+     * enabled, <tt>null</tt> otherwise.
+     */
+    private PacketRingBuffer ringBuffer = null;
+
+    /**
+     * The thread writing the packets of <tt>ringBuffer</tt> to file.
+     */
+    private RingSaverThread ringSaverThread = null;
+
     /**
      * The current configuration.
      */
@@ -177,7 +216,22 @@
      */
     public void start()
     {
-        saverThread.start();
+        ConfigurationService cfg
+            = PacketLoggingActivator.getConfigurationService();
+
+        if (cfg.getBoolean(RING_BUFFER_ENABLED_PROPERTY_NAME, false))
+        {
+            ringBuffer = new PacketRingBuffer(
+                cfg.getInt(
+                    RING_BUFFER_SIZE_PROPERTY_NAME,
+                    DEFAULT_RING_BUFFER_SIZE));
+            ringSaverThread = new RingSaverThread();
+            ringSaverThread.start();
+        }
+        else
+        {
+            saverThread.start();
+        }
     }
 
     /**
@@ -240,6 +294,20 @@ public void stop()
     {
         saverThread.stopRunning();
 
+        if (ringSaverThread != null)
+        {
+            // let it write the packets left in the buffer
+            ringSaverThread.stopRunning();
+            try
+            {
+                ringSaverThread.join(1000);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         if(outputStream != null)
         {
             try
@@ -403,6 +471,21 @@ public void logPacket(
             int packetOffset,
             int packetLength)
     {
+        if (ringBuffer != null)
+        {
+            ringBuffer.offer(sourceAddress,
+                             sourcePort,
+                             destinationAddress,
+                             destinationPort,
+                             transport,
+                             sender,
+                             packetContent,
+                             packetOffset,
+                             packetLength);
+            ringSaverThread.wakeUp();
+            return;
+        }
+
         saverThread.queuePacket(
             new Packet(protocol,
                        sourceAddress,
@@ -416,6 +499,18 @@ public void logPacket(
                        packetLength));
     }
 
+    /**
+     * Returns the number of packets which were not logged because the ring
+     * buffer was full.
+     *
+     * @return the number of dropped packets, always 0 unless the ring buffer
+     * mode is enabled
+     */
+    public long getDroppedPacketCount()
+    {
+        return (ringBuffer == null) ? 0 : ringBuffer.getDroppedCount();
+    }
+
     /**
      * Returns the current Packet Logging Configuration.
      *
@@ -445,19 +540,98 @@ private void savePacket(Packet packet)
         boolean isIPv4 = packet.sourceAddress.length == 4
                 || packet.destinationAddress.length == 4;
 
-        byte[] ipHeader;
+        byte[] ipHeader = new byte[isIPv4
+                ? ipHeaderTemplate.length
+                : ip6HeaderTemplate.length];
+        byte[] transportHeader = new byte[
+                packet.transport == TransportName.UDP
+                    ? udpHeaderTemplate.length
+                    : tcpHeaderTemplate.length];
+
+        fillHeaders(ipHeader, transportHeader, isIPv4,
+                    packet.sourceAddress, packet.sourcePort,
+                    packet.destinationAddress, packet.destinationPort,
+                    packet.transport, packet.sender, packet.packetLength);
 
+        long current = System.currentTimeMillis();
+        int tsSec = (int)(current/1000);
+        int tsUsec = (int)((current%1000) * 1000);
+        int feakHeaderLen = fakeEthernetHeader.length +
+                (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
+                ipHeader.length + transportHeader.length;
+        int inclLen = packet.packetLength + feakHeaderLen;
+        int origLen = inclLen;
+
+        synchronized(this)
+        {
+            // open files only if needed
+            if(outputStream == null)
+            {
+                getFileNames();
+                rotateFiles();// this one opens the file for write
+            }
+
+            long limit = getConfiguration().getLimit();
+
+            if((limit > 0) && (written > limit))
+                rotateFiles();
+
+            addInt(tsSec);
+            addInt(tsUsec);
+            addInt(inclLen);
+            addInt(origLen);
+
+            outputStream.write(fakeEthernetHeader);
+            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
+            outputStream.write(ipHeader);
+            outputStream.write(transportHeader);
+            outputStream.write(
+                    packet.packetContent,
+                    packet.packetOffset,
+                    packet.packetLength);
+            outputStream.flush();
+
+            written += inclLen + 16;
+        }
+    }
+
+    /**
+     * Fills the fake ip and transport headers of a packet.
+     *
+     * @param ipHeader the ip header to fill, of the size of the ipv4 or ipv6
+     * header template
+     * @param transportHeader the transport header to fill, of the size of the
+     * udp or tcp header template
+     * @param isIPv4 whether the packet is logged as an ipv4 one
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetLength the packet content length.
+     */
+    private void fillHeaders(byte[] ipHeader,
+                             byte[] transportHeader,
+                             boolean isIPv4,
+                             byte[] sourceAddress,
+                             int sourcePort,
+                             byte[] destinationAddress,
+                             int destinationPort,
+                             TransportName transport,
+                             boolean sender,
+                             int packetLength)
+    {
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
+            System.arraycopy(sourceAddress,
                     0,
                     ipHeader,
                     12,
                     4);
-            System.arraycopy(packet.destinationAddress,
+            System.arraycopy(destinationAddress,
                     0,
                     ipHeader,
                     16,
@@ -465,55 +639,51 @@ private void savePacket(Packet packet)
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
+            System.arraycopy(sourceAddress,
                     0,
                     ipHeader,
                     8,
                     16);
 
-            System.arraycopy(packet.destinationAddress,
+            System.arraycopy(destinationAddress,
                     0,
                     ipHeader,
                     24,
                     16);
         }
 
-        byte[] transportHeader;
         short len;
-        if(packet.transport == TransportName.UDP)
+        if(transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
-            transportHeader = udpHeader;
+            byte[] udpHeader = transportHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
 
-            writeShort(packet.sourcePort, udpHeader, 0);
-            writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
+            writeShort(sourcePort, udpHeader, 0);
+            writeShort(destinationPort, udpHeader, 2);
+            len = (short)(packetLength + udpHeader.length);
             writeShort(len, udpHeader, 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
-            writeShort(packet.sourcePort, transportHeader, 0);
-            writeShort(packet.destinationPort, transportHeader, 2);
+            writeShort(sourcePort, transportHeader, 0);
+            writeShort(destinationPort, transportHeader, 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packetLength + transportHeader.length);
 
-            if(packet.sender)
+            if(sender)
             {
                 long seqnum;
                 long acknum;
                 synchronized(tcpCounterLock)
                 {
                     seqnum = srcCount;
-                    srcCount += packet.packetLength;
+                    srcCount += packetLength;
                     acknum = dstCount;
                 }
 
@@ -529,7 +699,7 @@ private void savePacket(Packet packet)
                 synchronized(tcpCounterLock)
                 {
                     seqnum = dstCount;
-                    dstCount += packet.packetLength;
+                    dstCount += packetLength;
                     acknum = srcCount;
                 }
 
@@ -546,7 +716,7 @@ private void savePacket(Packet packet)
             short ipTotalLen = (short)(len + ipHeader.length);
             writeShort(ipTotalLen, ipHeader, 2);
 
-            if(packet.transport == TransportName.UDP)
+            if(transport == TransportName.UDP)
                 ipHeader[9] = (byte)0x11;
             else
                 ipHeader[9] = (byte)0x06;
@@ -559,52 +729,11 @@ private void savePacket(Packet packet)
         {
             writeShort(len, ipHeader, 4);
 
-            if(packet.transport == TransportName.UDP)
+            if(transport == TransportName.UDP)
                 ipHeader[6] = (byte)0x11;
             else
                 ipHeader[6] = (byte)0x06;
         }
-
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
-
-        synchronized(this)
-        {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
-
-            long limit = getConfiguration().getLimit();
-
-            if((limit > 0) && (written > limit))
-                rotateFiles();
-
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
-        }
     }
 
     /**
@@ -872,4 +1001,255 @@ public synchronized void queuePacket(Packet packet)
             notifyAll();
         }
     }
+
+    /**
+     * Writes the packets of the ring buffer to file, collecting as many of
+     * them as are available in a buffer written with a single channel write.
+     */
+    private class RingSaverThread
+        extends Thread
+    {
+        /**
+         * The time the thread waits for new packets before checking again
+         * whether it was stopped, in nanoseconds.
+         */
+        private static final long PARK_NANOS = 100 * 1000 * 1000;
+
+        /**
+         * start/stop indicator.
+         */
+        private volatile boolean stopped = false;
+
+        /**
+         * Whether the thread is waiting for new packets.
+         */
+        private volatile boolean waiting = false;
+
+        /**
+         * The buffer the packets are collected in before being written.
+         */
+        private final ByteBuffer writeBuffer
+            = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * The headers of the packet being written, reused for every packet.
+         */
+        private final byte[] ipv4Header = new byte[ipHeaderTemplate.length];
+
+        private final byte[] ipv6Header = new byte[ip6HeaderTemplate.length];
+
+        private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+        private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
+
+        /**
+         * The number of dropped packets last logged.
+         */
+        private long loggedDroppedCount = 0;
+
+        /**
+         * Initializes a new <tt>RingSaverThread</tt>.
+         */
+        RingSaverThread()
+        {
+            setName(
+                PacketLoggingServiceImpl.class.getName() + " RingSaverThread");
+            setDaemon(true);
+        }
+
+        /**
+         * Writes the packets of the ring buffer until stopped, then writes
+         * the ones left.
+         */
+        @Override
+        public void run()
+        {
+            while (!stopped)
+            {
+                if (ringBuffer.isEmpty())
+                {
+                    waiting = true;
+                    // check again in case a packet was added before the
+                    // producer could see that we are waiting
+                    if (ringBuffer.isEmpty() && !stopped)
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    waiting = false;
+                    continue;
+                }
+
+                writePackets();
+            }
+
+            writePackets();
+        }
+
+        /**
+         * Wakes the thread up if it is waiting for packets.
+         */
+        void wakeUp()
+        {
+            if (waiting)
+                LockSupport.unpark(this);
+        }
+
+        /**
+         * Stops the thread once it has written the packets left.
+         */
+        void stopRunning()
+        {
+            stopped = true;
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Writes the packets available in the ring buffer.
+         */
+        private void writePackets()
+        {
+            try
+            {
+                synchronized(PacketLoggingServiceImpl.this)
+                {
+                    PacketRingBuffer.Slot slot;
+                    while ((slot = ringBuffer.peek()) != null)
+                    {
+                        try
+                        {
+                            writePacket(slot);
+                        }
+                        finally
+                        {
+                            ringBuffer.release();
+                        }
+                    }
+
+                    flushWriteBuffer();
+                }
+            }
+            catch(Throwable t)
+            {
+                /*
+                 * XXX ThreadDeath must be rethrown; otherwise, the
+                 * related Thread will not die.
+                 */
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                else
+                    logger.error("Error writing packets to file", t);
+            }
+
+            long droppedCount = ringBuffer.getDroppedCount();
+            if (droppedCount != loggedDroppedCount)
+            {
+                logger.warn("Packet logging buffer is full, "
+                    + (droppedCount - loggedDroppedCount)
+                    + " packets were dropped.");
+                loggedDroppedCount = droppedCount;
+            }
+        }
+
+        /**
+         * Adds a packet to the write buffer, writing the buffer and rotating
+         * the files when needed.
+         *
+         * @param slot the packet to write
+         * @throws Exception when error occurs saving to file stream or when
+         *  rotating files.
+         */
+        private void writePacket(PacketRingBuffer.Slot slot)
+            throws Exception
+        {
+            // if one of the addresses is ipv4 we are using ipv4
+            boolean isIPv4 = slot.sourceAddressLength == 4
+                    || slot.destinationAddressLength == 4;
+            byte[] ipHeader = isIPv4 ? ipv4Header : ipv6Header;
+            byte[] transportHeader
+                = (slot.transport == TransportName.UDP) ? udpHeader : tcpHeader;
+
+            fillHeaders(ipHeader, transportHeader, isIPv4,
+                        slot.sourceAddress, slot.sourcePort,
+                        slot.destinationAddress, slot.destinationPort,
+                        slot.transport, slot.sender, slot.length);
+
+            byte[] etherType = isIPv4 ? ipv4EtherType : ipv6EtherType;
+            int headersLen = 16 + fakeEthernetHeader.length + etherType.length
+                    + ipHeader.length + transportHeader.length;
+            int inclLen = headersLen - 16 + slot.length;
+
+            // open files only if needed
+            if(outputStream == null)
+            {
+                getFileNames();
+                rotateFiles();// this one opens the file for write
+            }
+
+            long limit = getConfiguration().getLimit();
+
+            if((limit > 0) && (written > limit))
+            {
+                flushWriteBuffer();
+                rotateFiles();
+            }
+
+            if (writeBuffer.remaining() < headersLen + slot.length)
+                flushWriteBuffer();
+
+            writeBuffer.putInt((int) (slot.timestamp / 1000));
+            writeBuffer.putInt((int) ((slot.timestamp % 1000) * 1000));
+            writeBuffer.putInt(inclLen);
+            writeBuffer.putInt(inclLen);
+            writeBuffer.put(fakeEthernetHeader);
+            writeBuffer.put(etherType);
+            writeBuffer.put(ipHeader);
+            writeBuffer.put(transportHeader);
+
+            if (writeBuffer.remaining() < slot.length)
+            {
+                // bigger than the whole buffer, write it directly
+                flushWriteBuffer();
+                writeFully(ByteBuffer.wrap(slot.content, 0, slot.length));
+            }
+            else
+            {
+                writeBuffer.put(slot.content, 0, slot.length);
+            }
+
+            written += inclLen + 16;
+        }
+
+        /**
+         * Writes the content of the write buffer to the current file.
+         *
+         * @throws IOException if writing fails
+         */
+        private void flushWriteBuffer()
+            throws IOException
+        {
+            writeBuffer.flip();
+            try
+            {
+                if (outputStream != null)
+                    writeFully(writeBuffer);
+            }
+            finally
+            {
+                writeBuffer.clear();
+            }
+        }
+
+        /**
+         * Writes a buffer to the current file.
+         *
+         * @param buffer the bytes to write
+         * @throws IOException if writing fails
+         */
+        private void writeFully(ByteBuffer buffer)
+            throws IOException
+        {
+            FileChannel channel = outputStream.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
 }
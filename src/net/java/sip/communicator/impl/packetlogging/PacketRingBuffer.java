@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A bounded queue of logged packets which many threads add to and a single
+ * thread takes from, without locking. The slots, including the buffers the
+ * packet contents are copied to, are allocated up front and reused, so
+ * logging a packet does not allocate unless its content is bigger than any
+ * packet previously stored in its slot.
+ * <p>
+ * Every slot has a sequence number telling whether it is free for the
+ * producer claiming position <tt>n</tt> (sequence <tt>n</tt>), holds the
+ * packet of position <tt>n</tt> (sequence <tt>n + 1</tt>) or has not been
+ * consumed yet since the previous lap. Producers claim positions with a
+ * compare-and-set and packets which find the queue full are dropped and
+ * counted.
+ */
+class PacketRingBuffer
+{
+    /**
+     * The initial size of the content buffer of every slot, enough for any
+     * packet sent over an ethernet link.
+     */
+    private static final int INITIAL_SLOT_SIZE = 2048;
+
+    /**
+     * The slots holding the queued packets.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The sequence numbers of the slots.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask turning a position into a slot index.
+     */
+    private final int mask;
+
+    /**
+     * The next position claimed by a producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The next position taken by the consumer. Only accessed by the consumer.
+     */
+    private long head = 0;
+
+    /**
+     * The number of packets dropped because the queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * Creates a ring buffer with at least <tt>capacity</tt> slots.
+     *
+     * @param capacity the minimum number of packets the buffer holds, rounded
+     * up to a power of two
+     */
+    PacketRingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Copies a packet into the buffer.
+     *
+     * @param sourceAddress the source address of the packet
+     * @param sourcePort the source port of the packet
+     * @param destinationAddress the destination address of the packet
+     * @param destinationPort the destination port of the packet
+     * @param transport the transport of the packet
+     * @param sender whether we are the sender of the packet
+     * @param content the array holding the packet content
+     * @param offset the offset of the packet content
+     * @param length the length of the packet content
+     * @return <tt>false</tt> if the buffer was full and the packet was
+     * dropped
+     */
+    boolean offer(byte[] sourceAddress, int sourcePort,
+                  byte[] destinationAddress, int destinationPort,
+                  PacketLoggingService.TransportName transport,
+                  boolean sender,
+                  byte[] content, int offset, int length)
+    {
+        long position;
+        int index;
+
+        while (true)
+        {
+            position = tail.get();
+            index = (int) position & mask;
+
+            long sequence = sequences.get(index);
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            }
+            else if (sequence < position)
+            {
+                // the consumer has not freed the slot since the last lap
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        Slot slot = slots[index];
+        slot.timestamp = System.currentTimeMillis();
+        slot.sourceAddressLength
+            = copyAddress(sourceAddress, slot.sourceAddress);
+        slot.sourcePort = sourcePort;
+        slot.destinationAddressLength
+            = copyAddress(destinationAddress, slot.destinationAddress);
+        slot.destinationPort = destinationPort;
+        slot.transport = transport;
+        slot.sender = sender;
+        if (slot.content.length < length)
+            slot.content = new byte[length];
+        System.arraycopy(content, offset, slot.content, 0, length);
+        slot.length = length;
+
+        // publish the slot to the consumer
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Returns the oldest packet in the buffer without removing it. Must only
+     * be called by the consumer, which calls <tt>release()</tt> once done
+     * with the returned slot.
+     *
+     * @return the oldest packet or <tt>null</tt> if the buffer is empty
+     */
+    Slot peek()
+    {
+        int index = (int) head & mask;
+
+        return (sequences.get(index) == head + 1) ? slots[index] : null;
+    }
+
+    /**
+     * Frees the slot returned by the last call to <tt>peek()</tt> for reuse
+     * by the producers.
+     */
+    void release()
+    {
+        int index = (int) head & mask;
+
+        sequences.set(index, head + slots.length);
+        head++;
+    }
+
+    /**
+     * Returns whether the buffer holds no packet. Must only be called by the
+     * consumer.
+     *
+     * @return whether the buffer is empty
+     */
+    boolean isEmpty()
+    {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of packets dropped because the buffer was full.
+     *
+     * @return the number of dropped packets
+     */
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Copies an address into a slot, using an IPv4 any address for
+     * <tt>null</tt>.
+     *
+     * @return the length of the copied address
+     */
+    private static int copyAddress(byte[] address, byte[] slotAddress)
+    {
+        if (address == null)
+        {
+            for (int i = 0; i < 4; i++)
+                slotAddress[i] = 0;
+            return 4;
+        }
+
+        int length = Math.min(address.length, slotAddress.length);
+        System.arraycopy(address, 0, slotAddress, 0, length);
+        return length;
+    }
+
+    /**
+     * A packet stored in the buffer. The fields are written by the producer
+     * which claimed the slot and read by the consumer once published.
+     */
+    static class Slot
+    {
+        long timestamp;
+
+        final byte[] sourceAddress = new byte[16];
+
+        int sourceAddressLength;
+
+        int sourcePort;
+
+        final byte[] destinationAddress = new byte[16];
+
+        int destinationAddressLength;
+
+        int destinationPort;
+
+        PacketLoggingService.TransportName transport;
+
+        boolean sender;
+
+        byte[] content = new byte[INITIAL_SLOT_SIZE];
+
+        int length;
+    }
+}
@@ -31,6 +31,7 @@
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.service.resources.*;
@@ -140,6 +141,11 @@
     private static GlobalDisplayDetailsService globalDisplayDetailsService
         = null;
 
+    /**
+     * The file access service instance.
+     */
+    private static FileAccessService fileAccessService = null;
+
     /**
      * Called when this bundle is started so the Framework can perform the
      * bundle-specific activities necessary to start this bundle.
@@ -478,6 +484,22 @@ public static PhoneNumberI18nService getPhoneNumberI18nService()
         return phoneNumberI18nService;
     }
 
+    /**
+     * Returns the <tt>FileAccessService</tt> obtained from the bundle context.
+     * @return the <tt>FileAccessService</tt> obtained from the bundle context
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if(fileAccessService == null)
+        {
+            fileAccessService
+                = ServiceUtils.getService(
+                        bundleContext,
+                        FileAccessService.class);
+        }
+        return fileAccessService;
+    }
+
     /**
      * Returns the <tt>GlobalDisplayDetailsService</tt> obtained from the bundle
      * context.
@@ -0,0 +1,178 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+import org.jivesoftware.smack.roster.rosterstore.*;
+
+/**
+ * Opens the disk-backed roster store of a Jabber account. With a store set,
+ * Smack requests the roster with the version it stored last (XEP-0237) and
+ * a server supporting roster versioning only sends the changes made since
+ * then, or nothing at all, the roster then being loaded from the store.
+ * <p>
+ * The stores are kept in a directory per account in the cache directory of
+ * the SC home, since they are rebuilt from the server when missing. The
+ * directory is deleted with the account.
+ */
+final class JabberRosterStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>JabberRosterStore</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(JabberRosterStore.class);
+
+    /**
+     * The directory, relative to the cache directory, of the roster stores.
+     */
+    static final String ROSTER_STORE_DIR = "rosters";
+
+    /**
+     * Prevents the creation of <tt>JabberRosterStore</tt> instances.
+     */
+    private JabberRosterStore()
+    {
+    }
+
+    /**
+     * Opens the roster store of an account.
+     *
+     * @param accountID the account whose roster is stored
+     * @return the roster store of the account or <tt>null</tt> if it cannot
+     * be opened, in which case the full roster is requested
+     */
+    static RosterStore getRosterStore(AccountID accountID)
+    {
+        try
+        {
+            File dir = getDirectory(accountID);
+
+            return (dir == null) ? null : open(dir);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to open the roster store of " + accountID, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the roster store of an account, so that an account installed
+     * later with the same ID does not load the roster of this one.
+     *
+     * @param accountID the account whose roster store is deleted
+     */
+    static void removeRosterStore(AccountID accountID)
+    {
+        try
+        {
+            File dir = getDirectory(accountID);
+
+            if (dir != null && !delete(dir))
+                logger.warn("Failed to delete directory: " + dir);
+        }
+        catch (Exception e)
+        {
+            logger.warn(
+                "Failed to delete the roster store of " + accountID, e);
+        }
+    }
+
+    /**
+     * Returns the directory of the roster store of an account.
+     *
+     * @param accountID the account whose roster is stored
+     * @return the directory of the roster store or <tt>null</tt> if the file
+     * access service is not available
+     * @throws Exception if the directory cannot be determined
+     */
+    private static File getDirectory(AccountID accountID)
+        throws Exception
+    {
+        FileAccessService fileAccessService
+            = JabberActivator.getFileAccessService();
+
+        if (fileAccessService == null)
+            return null;
+
+        return fileAccessService.getPrivatePersistentDirectory(
+                ROSTER_STORE_DIR + File.separator
+                    + getDirectoryName(accountID.getAccountUniqueID()),
+                FileCategory.CACHE);
+    }
+
+    /**
+     * Deletes the directory of a roster store with the files it contains.
+     *
+     * @param dir the directory of the store
+     * @return <tt>true</tt> if the directory no longer exists
+     */
+    static boolean delete(File dir)
+    {
+        File[] files = dir.listFiles();
+
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        return dir.delete() || !dir.exists();
+    }
+
+    /**
+     * Opens the roster store in the given directory, creating it if the
+     * directory does not contain a valid one.
+     *
+     * @param dir the directory of the store
+     * @return the roster store or <tt>null</tt> if it cannot be created
+     */
+    static RosterStore open(File dir)
+    {
+        RosterStore store = DirectoryRosterStore.open(dir);
+
+        if (store == null)
+        {
+            if (!dir.isDirectory() && !dir.mkdirs())
+            {
+                logger.warn("Failed to create directory: " + dir);
+                return null;
+            }
+            store = DirectoryRosterStore.init(dir);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the name of the directory storing the roster of an account,
+     * replacing the characters that may not appear in file names.
+     *
+     * @param accountUID the unique ID of the account
+     * @return the name of the directory of the roster store
+     */
+    static String getDirectoryName(String accountUID)
+    {
+        return accountUID.replaceAll("[^\\w.@-]", "_");
+    }
+}
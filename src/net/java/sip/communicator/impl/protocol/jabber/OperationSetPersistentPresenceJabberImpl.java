@@ -31,7 +31,6 @@
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.roster.*;
-import org.jivesoftware.smack.roster.packet.*;
 import org.jivesoftware.smack.util.*;
 import org.jivesoftware.smackx.nick.packet.*;
 import org.jivesoftware.smackx.vcardtemp.*;
@@ -61,6 +60,15 @@
     private static final Logger logger =
         Logger.getLogger(OperationSetPersistentPresenceJabberImpl.class);
 
+    /**
+     * The time, in milliseconds, during which the changes in the presence
+     * status of contacts are collected before being delivered to the
+     * listeners able to process them in one pass. The server sends the
+     * presences of all the contacts at login, each resource of a contact
+     * possibly changing its status several times.
+     */
+    private static final long PRESENCE_COALESCING_WINDOW = 200;
+
     /**
      * Contains our current status message. Note that this field would only
      * be changed once the server has confirmed the new status message and
@@ -127,6 +135,11 @@
      */
     private ContactChangesListener contactChangesListener = null;
 
+    /**
+     * Dispatches the contact list once the roster is loaded.
+     */
+    private ServerStoredListInit serverStoredListInit = null;
+
     /**
      * Manages the presence extension to advertise the SHA-1 hash of this
      * account avatar as defined in XEP-0153.
@@ -161,6 +174,8 @@ public OperationSetPersistentPresenceJabberImpl(
     {
         super(provider);
 
+        setContactPresenceStatusCoalescingWindow(PRESENCE_COALESCING_WINDOW);
+
         currentStatus =
             parentProvider.getJabberStatusEnum().getStatus(
                 JabberStatusEnum.OFFLINE);
@@ -1132,17 +1147,13 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
 
             if(evt.getNewState() == RegistrationState.REGISTERING)
             {
-                // we will add listener for RosterPackets
-                // as this will indicate when one is received
-                // and we are ready to dispatch the contact list
-                // note that our listener will be added just before the
-                // one used in the Roster itself, but later we
-                // will wait for it to be ready
-                // (inside method XMPPConnection.getRoster())
-                parentProvider.getConnection().addAsyncStanzaListener(
-                    new ServerStoredListInit(),
-                    new StanzaTypeFilter(RosterPacket.class)
-                );
+                // we will be told when the roster requested on login is
+                // loaded and we are ready to dispatch the contact list,
+                // whether the server sent the whole roster or only told us
+                // that the one in our roster store is up to date
+                serverStoredListInit = new ServerStoredListInit();
+                Roster.getInstanceFor(parentProvider.getConnection())
+                    .addRosterLoadedListener(serverStoredListInit);
 
                 // will be used to store presence events till roster is
                 // initialized
@@ -1163,6 +1174,15 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
             }
             else if(evt.getNewState() == RegistrationState.REGISTERED)
             {
+                // a resumed stream keeps the roster we had, which is not
+                // loaded again
+                if(serverStoredListInit != null
+                    && parentProvider.isStreamResumed())
+                {
+                    serverStoredListInit.onRosterLoaded(
+                        Roster.getInstanceFor(parentProvider.getConnection()));
+                }
+
                 JabberAccountIDImpl accountID
                     = (JabberAccountIDImpl)parentProvider.getAccountID();
                 boolean isServerStoredInfoEnabled
@@ -1213,6 +1233,12 @@ else if(evt.getNewState() == RegistrationState.UNREGISTERED
     private void clearConnectionListeners()
     {
         XMPPConnection connection = parentProvider.getConnection();
+        if(connection != null && serverStoredListInit != null)
+        {
+            Roster.getInstanceFor(connection)
+                .removeRosterLoadedListener(serverStoredListInit);
+            serverStoredListInit = null;
+        }
         if(connection != null
             && subscribtionPacketListener != null
             && contactChangesListener != null)
@@ -1529,7 +1555,10 @@ void addPresenceEvent(Presence presence)
          */
         void storeEvents()
         {
-            this.storedPresences = new ArrayList<Presence>();
+            // presences are also stored by the thread dispatching the
+            // contact list when restoring the ones of a resumed stream
+            this.storedPresences
+                = Collections.synchronizedList(new ArrayList<Presence>());
             this.storeEvents = true;
         }
 
@@ -1922,14 +1951,18 @@ else if(response.getResponseCode()
      */
     private class ServerStoredListInit
         implements Runnable,
-                   StanzaListener
+                   RosterLoadedListener
     {
+        /**
+         * The roster which was loaded.
+         */
+        private Roster roster;
+
         public void run()
         {
-            // we are already notified lets remove us from the packet
-            // listener
-            parentProvider.getConnection()
-                .removeAsyncStanzaListener(this);
+            // we are already notified lets remove us from the roster
+            // listeners, which cannot be done while they are notified
+            roster.removeRosterLoadedListener(this);
 
             // init ssList
             ssContactList.init(contactChangesListener);
@@ -1940,21 +1973,26 @@ public void run()
         }
 
         /**
-         * When roster packet with no error is received we are ready to
-         * to dispatch the contact list, doing it in different thread
-         * to avoid blocking xmpp packet receiving.
-         * @param packet the roster packet
+         * When the roster is loaded we are ready to dispatch the contact
+         * list, doing it in different thread to avoid blocking xmpp packet
+         * receiving.
+         * @param roster the loaded roster
          */
-        public void processStanza(Stanza packet)
+        public void onRosterLoaded(Roster roster)
         {
-            // don't process packets that are errors
-            if(packet.getError() != null)
-            {
-                return;
-            }
-
+            this.roster = roster;
             new Thread(this, getClass().getName()).start();
         }
+
+        /**
+         * Logs the failure to load the roster, the contact list will not be
+         * dispatched for this connection.
+         * @param exception the reason of the failure
+         */
+        public void onRosterLoadingFailed(Exception exception)
+        {
+            logger.error("Failed to load the roster", exception);
+        }
     }
 
     /**
@@ -2108,14 +2146,21 @@ public void parseContactPhotoPresence(Stanza packet)
             {
                 byte[] newAvatar = null;
 
-                // If there is an avatar image, retrieves it.
+                // If there is an avatar image, retrieves it, unless it is
+                // the one we have in the avatar cache.
                 if(packetPhotoSHA1.length() != 0)
                 {
-                    // Retrieves the new contact avatar image.
-                    VCardManager manager = VCardManager.getInstanceFor(
-                        parentProvider.getConnection());
-                    VCard vCard = manager.loadVCard(userID);
-                    newAvatar = vCard.getAvatar();
+                    newAvatar = ssContactList.getCachedAvatar(
+                        sourceContact, packetPhotoSHA1);
+
+                    if(newAvatar == null)
+                    {
+                        // Retrieves the new contact avatar image.
+                        VCardManager manager = VCardManager.getInstanceFor(
+                            parentProvider.getConnection());
+                        VCard vCard = manager.loadVCard(userID);
+                        newAvatar = vCard.getAvatar();
+                    }
                 }
                 // Else removes the current avatar image, since the contact
                 // has removed it from the server.
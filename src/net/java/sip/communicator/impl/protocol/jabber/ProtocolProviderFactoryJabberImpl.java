@@ -177,6 +177,24 @@ protected ProtocolProviderService createService(String userID,
         return service;
     }
 
+    /**
+     * Uninstalls the account and deletes its stored roster, so that an
+     * account installed later with the same ID does not load it.
+     *
+     * @param accountID the ID of the account to uninstall
+     * @return <tt>true</tt> if the account was found and uninstalled
+     */
+    @Override
+    public boolean uninstallAccount(AccountID accountID)
+    {
+        boolean wasAccountExisting = super.uninstallAccount(accountID);
+
+        // the provider is unregistered, it no longer writes to the store
+        JabberRosterStore.removeRosterStore(accountID);
+
+        return wasAccountExisting;
+    }
+
     /**
      * Modify an existing account.
      *
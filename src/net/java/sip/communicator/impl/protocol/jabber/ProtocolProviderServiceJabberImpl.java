@@ -58,6 +58,7 @@
 import org.jivesoftware.smack.tcp.*;
 import org.jivesoftware.smack.util.*;
 import org.jivesoftware.smack.roster.*;
+import org.jivesoftware.smack.roster.rosterstore.*;
 import org.jivesoftware.smackx.disco.packet.*;
 import org.jivesoftware.smackx.message_correct.element.*;
 import org.jivesoftware.smackx.nick.packet.*;
@@ -246,6 +247,12 @@
      */
     private AbstractXMPPConnection connection;
 
+    /**
+     * The connection which was lost while its XEP-0198 stream could still be
+     * resumed. The next registration resumes it instead of logging in again.
+     */
+    private XMPPTCPConnection resumableConnection = null;
+
     /**
      * The socket address of the XMPP server.
      */
@@ -685,6 +692,9 @@ private void initializeConnectAndLogin(SecurityAuthority authority,
             if(isRegistered())
                 return;
 
+            if(resumeConnection())
+                return;
+
             JabberLoginStrategy loginStrategy = createLoginStrategy();
             userCredentials = loginStrategy.prepareLogin(authority, reasonCode);
             if(!loginStrategy.loginPreparationSuccessful())
@@ -1277,25 +1287,32 @@ else if (loginStrategy.isTlsRequired())
         }
         else
         {
-            connection =
+            XMPPTCPConnection tcpConnection =
                 new XMPPTCPConnection(
                     (XMPPTCPConnectionConfiguration) confConn.build());
+            boolean useStreamManagement
+                = accountID.isStreamManagementEnabled();
+            int resumptionTime = accountID.getStreamResumptionTime();
+
+            tcpConnection.setUseStreamManagement(useStreamManagement);
+            tcpConnection.setUseStreamManagementResumption(
+                useStreamManagement);
+            if (resumptionTime > 0)
+                tcpConnection.setPreferredResumptionTime(resumptionTime);
+            connection = tcpConnection;
         }
 
         ReconnectionManager.getInstanceFor(connection).disableAutomaticReconnection();
         this.address = address;
 
-        if(debugger == null)
-        {
-            // FIXME Smack4.2: implement the smack debugger interface,
-            // the StanzaListener won't catch IQs anymore
-            debugger = new SmackPacketDebugger();
+        // the roster is requested on login, with the version we stored last
+        // the server only sends the changes made since then
+        RosterStore rosterStore
+            = JabberRosterStore.getRosterStore(getAccountID());
+        if (rosterStore != null)
+            Roster.getInstanceFor(connection).setRosterStore(rosterStore);
 
-            // sets the debugger
-            debugger.setConnection(connection);
-            connection.addAsyncStanzaListener(debugger.inbound, null);
-            connection.addPacketInterceptor(debugger.outbound, null);
-        }
+        addPacketDebugger();
 
         int keepAliveInterval =
                 this.getAccountID().getAccountPropertyInt(
@@ -1455,37 +1472,182 @@ private void registerServiceDiscoveryManager()
             opsetContactCapabilities.setDiscoveryManager(discoveryManager);
     }
 
+    /**
+     * Adds the packet debugger to the current connection.
+     */
+    private void addPacketDebugger()
+    {
+        if(debugger == null)
+        {
+            // FIXME Smack4.2: implement the smack debugger interface,
+            // the StanzaListener won't catch IQs anymore
+            debugger = new SmackPacketDebugger();
+
+            // sets the debugger
+            debugger.setConnection(connection);
+            connection.addAsyncStanzaListener(debugger.inbound, null);
+            connection.addPacketInterceptor(debugger.outbound, null);
+        }
+    }
+
+    /**
+     * Resumes the XEP-0198 stream of the connection we lost, instead of
+     * connecting and logging in again. The server keeps our session, with
+     * its roster, presences and chat rooms, sends us the stanzas we missed
+     * and Smack sends again the ones the server did not acknowledge.
+     *
+     * @return <tt>true</tt> if we are registered again, <tt>false</tt> if
+     * there was no stream to resume or it could not be resumed
+     * @throws InterruptedException if we are interrupted while resuming
+     */
+    private boolean resumeConnection()
+        throws InterruptedException
+    {
+        XMPPTCPConnection resumable = resumableConnection;
+
+        resumableConnection = null;
+        if(resumable == null
+            || !resumable.isDisconnectedButSmResumptionPossible())
+            return false;
+
+        connection = resumable;
+        addPacketDebugger();
+        if(connectionListener == null)
+            connectionListener = new JabberConnectionListener();
+
+        try
+        {
+            connection.connect();
+            setTrafficClass();
+            registerServiceDiscoveryManager();
+            connection.addConnectionListener(connectionListener);
+
+            fireRegistrationStateChanged(
+                    getRegistrationState(),
+                    RegistrationState.REGISTERING,
+                    RegistrationStateChangeEvent.REASON_NOT_SPECIFIED,
+                    null);
+
+            // logs in with the credentials of the previous login, the
+            // stream is resumed or, if the server no longer has our
+            // session, a new one is bound
+            connection.login();
+        }
+        catch(XMPPException
+            | SmackException
+            | IOException ex)
+        {
+            logger.warn("Failed to resume the XMPP stream", ex);
+        }
+
+        if(!connection.isAuthenticated())
+        {
+            disconnectAndCleanConnection();
+            eventDuringLogin = null;
+            return false;
+        }
+
+        if(logger.isInfoEnabled())
+        {
+            logger.info("Reconnected to " + getAccountID()
+                + ", stream resumed: " + resumable.streamWasResumed());
+        }
+
+        eventDuringLogin = null;
+        fireRegistrationStateChanged(
+                getRegistrationState(),
+                RegistrationState.REGISTERED,
+                RegistrationStateChangeEvent.REASON_NOT_SPECIFIED,
+                null);
+        return true;
+    }
+
+    /**
+     * Returns whether the current connection resumed the XEP-0198 stream of
+     * the connection we lost. The roster is then not requested again, as the
+     * one we had is still valid.
+     *
+     * @return <tt>true</tt> if the stream of the current connection was
+     * resumed
+     */
+    boolean isStreamResumed()
+    {
+        return connection instanceof XMPPTCPConnection
+            && ((XMPPTCPConnection) connection).streamWasResumed();
+    }
+
     /**
      * Used to disconnect current connection and clean it.
      */
     public void disconnectAndCleanConnection()
     {
+        disconnectAndCleanConnection(false);
+    }
+
+    /**
+     * Used to disconnect current connection and clean it.
+     *
+     * @param keepResumable whether to keep the connection for the next
+     * registration to resume its stream, if the server allows it. The stream
+     * is then not closed, so that the server keeps our session.
+     */
+    private void disconnectAndCleanConnection(boolean keepResumable)
+    {
+        resumableConnection = null;
+
         if(connection != null)
         {
             connection.removeConnectionListener(connectionListener);
 
-            // disconnect anyway cause it will clear any listeners
-            // that maybe added even if its not connected
-            try
+            if(keepResumable
+                && accountID.isStreamManagementEnabled()
+                && connection instanceof XMPPTCPConnection
+                && ((XMPPTCPConnection) connection).isSmResumptionPossible())
             {
-                OperationSetPersistentPresenceJabberImpl opSet =
-                    (OperationSetPersistentPresenceJabberImpl)
-                    this.getOperationSet(OperationSetPersistentPresence.class);
+                XMPPTCPConnection tcpConnection
+                    = (XMPPTCPConnection) connection;
 
-                Presence unavailablePresence =
-                    new Presence(Presence.Type.unavailable);
-
-                if(opSet != null
-                    && org.apache.commons.lang3.StringUtils
-                        .isNotEmpty(opSet.getCurrentStatusMessage()))
+                // the listeners we add when connecting are added again
+                // when resuming
+                if (debugger != null)
                 {
-                    unavailablePresence.setStatus(
-                        opSet.getCurrentStatusMessage());
+                    tcpConnection.removeAsyncStanzaListener(debugger.inbound);
+                    tcpConnection.removeStanzaInterceptor(debugger.outbound);
                 }
+                if (discoveryManager != null)
+                    tcpConnection.removeAsyncStanzaListener(discoveryManager);
 
-                connection.disconnect(unavailablePresence);
-            } catch (Exception e)
-            {}
+                // a lost connection is already shut down
+                if (tcpConnection.isConnected())
+                    tcpConnection.instantShutdown();
+                resumableConnection = tcpConnection;
+            }
+            else
+            {
+                // disconnect anyway cause it will clear any listeners
+                // that maybe added even if its not connected
+                try
+                {
+                    OperationSetPersistentPresenceJabberImpl opSet =
+                        (OperationSetPersistentPresenceJabberImpl)
+                        this.getOperationSet(
+                            OperationSetPersistentPresence.class);
+
+                    Presence unavailablePresence =
+                        new Presence(Presence.Type.unavailable);
+
+                    if(opSet != null
+                        && org.apache.commons.lang3.StringUtils
+                            .isNotEmpty(opSet.getCurrentStatusMessage()))
+                    {
+                        unavailablePresence.setStatus(
+                            opSet.getCurrentStatusMessage());
+                    }
+
+                    connection.disconnect(unavailablePresence);
+                } catch (Exception e)
+                {}
+            }
 
             if (debugger != null)
             {
@@ -1536,6 +1698,17 @@ public void unregister(boolean userRequest)
         unregisterInternal(true, userRequest);
     }
 
+    /**
+     * Ends the registration of this protocol provider before it is registered
+     * again. The XEP-0198 stream is kept, if the server allows it, so that
+     * the next registration resumes it instead of logging in again.
+     */
+    @Override
+    public void unregisterForReconnect()
+    {
+        unregisterInternal(true, false, true);
+    }
+
     /**
      * Unregister and fire the event if requested
      * @param fireEvent boolean
@@ -1550,6 +1723,19 @@ public void unregisterInternal(boolean fireEvent)
      * @param fireEvent boolean
      */
     public void unregisterInternal(boolean fireEvent, boolean userRequest)
+    {
+        unregisterInternal(fireEvent, userRequest, false);
+    }
+
+    /**
+     * Unregister and fire the event if requested
+     * @param fireEvent boolean
+     * @param userRequest is the unregister by user request
+     * @param keepResumable whether to keep the connection for the next
+     * registration to resume its stream
+     */
+    private void unregisterInternal(
+        boolean fireEvent, boolean userRequest, boolean keepResumable)
     {
         if(fireEvent)
         {
@@ -1564,7 +1750,7 @@ public void unregisterInternal(boolean fireEvent, boolean userRequest)
 
         synchronized(initializationLock)
         {
-            disconnectAndCleanConnection();
+            disconnectAndCleanConnection(keepResumable);
         }
 
         RegistrationState currRegState = getRegistrationState();
@@ -2373,7 +2559,9 @@ else if(exception instanceof XmlPullParserException)
                 reason,
                 exception.getMessage());
 
-            disconnectAndCleanConnection();
+            // the server keeps our session if we use stream management, the
+            // next registration will resume it
+            disconnectAndCleanConnection(true);
         }
 
         /**
@@ -18,12 +18,14 @@
 package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.customavatar.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.xmpp.extensions.vcardavatar.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.XMPPException.*;
 import org.jivesoftware.smack.filter.*;
@@ -970,12 +972,74 @@ void init(OperationSetPersistentPresenceJabberImpl.ContactChangesListener
         // no send initial status
         sendInitialStatus();
 
+        // the contacts were set offline when the connection was lost, and a
+        // resumed stream does not bring their presences again: these were
+        // kept in the roster, along with the ones the server sent us after
+        // resuming for the changes we missed
+        if (jabberProvider.isStreamResumed())
+            restorePresences(presenceChangeListener);
+
         presenceChangeListener.processStoredEvents();
 
         rosterChangeListener = new ChangeListener();
         this.roster.addRosterListener(rosterChangeListener);
     }
 
+    /**
+     * Passes the presences of the contacts kept in the roster to the
+     * listener updating their statuses.
+     *
+     * @param presenceChangeListener the listener updating the statuses of
+     * the contacts
+     */
+    private void restorePresences(
+        OperationSetPersistentPresenceJabberImpl.ContactChangesListener
+            presenceChangeListener)
+    {
+        List<BareJid> jids = new ArrayList<BareJid>();
+        List<ContactGroup> groups = new ArrayList<ContactGroup>();
+
+        groups.add(rootGroup);
+        for (Iterator<ContactGroup> i = rootGroup.subgroups(); i.hasNext();)
+            groups.add(i.next());
+        for (ContactGroup group : groups)
+        {
+            for (Iterator<Contact> i = group.contacts(); i.hasNext();)
+            {
+                jids.add(
+                    ((ContactJabberImpl) i.next())
+                        .getAddressAsJid().asBareJid());
+            }
+        }
+
+        List<Presence> presences = getAvailablePresences(roster, jids);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Restoring " + presences.size()
+                + " presences of a resumed stream");
+        }
+        for (Presence presence : presences)
+            presenceChangeListener.firePresenceStatusChanged(presence);
+    }
+
+    /**
+     * Returns the available presences kept in a roster for some contacts.
+     *
+     * @param roster the roster
+     * @param jids the bare JIDs of the contacts
+     * @return the available presences of all the resources of the contacts
+     */
+    static List<Presence> getAvailablePresences(
+        Roster roster, Collection<BareJid> jids)
+    {
+        List<Presence> presences = new ArrayList<Presence>();
+
+        for (BareJid jid : jids)
+            presences.addAll(roster.getAvailablePresences(jid));
+        return presences;
+    }
+
     /**
      * Sends the initial presence to server. RFC 6121 says:
      * a client SHOULD request the roster before sending initial presence
@@ -1323,14 +1387,71 @@ protected void addContactForImageUpdate(ContactJabberImpl contact)
             return;
 
         if(imageRetriever == null)
-        {
             imageRetriever = new ImageRetriever();
-            imageRetriever.start();
-        }
 
         imageRetriever.addContact(contact);
     }
 
+    /**
+     * Returns the XEP-0153 photo hash advertised in the presences of a
+     * contact.
+     *
+     * @param contact the contact
+     * @return the SHA-1 hash of the avatar of the contact, an empty string if
+     * the contact advertises that it has no avatar or <tt>null</tt> if it
+     * advertises no hash
+     */
+    String getPhotoHash(ContactJabberImpl contact)
+    {
+        Roster roster = this.roster;
+
+        if(roster == null)
+            return null;
+
+        for (Presence presence
+                : roster.getPresences(contact.getAddressAsJid().asBareJid()))
+        {
+            StandardExtensionElement update
+                = presence.getExtension(
+                        VCardTempXUpdatePresenceExtension.ELEMENT_NAME,
+                        VCardTempXUpdatePresenceExtension.NAMESPACE);
+
+            if(update == null)
+                continue;
+
+            StandardExtensionElement photo = update.getFirstElement("photo");
+
+            if(photo != null && photo.getText() != null)
+                return photo.getText();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the avatar of a contact stored in the avatar cache if it is the
+     * one with the given photo hash, so that it needs not be requested.
+     *
+     * @param contact the contact
+     * @param photoHash the XEP-0153 photo hash advertised by the contact
+     * @return the cached avatar or <tt>null</tt> if it is not cached or has
+     * another hash
+     */
+    byte[] getCachedAvatar(ContactJabberImpl contact, String photoHash)
+    {
+        if(photoHash == null || photoHash.length() == 0)
+            return null;
+
+        byte[] cachedAvatar = AvatarCacheUtils.getCachedAvatar(contact);
+
+        if(cachedAvatar != null
+            && photoHash.equals(
+                VCardTempXUpdatePresenceExtension.getImageSha1(cachedAvatar)))
+        {
+            return cachedAvatar;
+        }
+        return null;
+    }
+
     /**
      * Some roster entries are not supposed to be seen.
      * Like some services automatically add contacts from their
@@ -1762,112 +1883,203 @@ public void presenceChanged(Presence presence)
     }
 
     /**
-     * Thread retrieving images.
+     * Retrieves the avatars of the contacts queued for update, several at a
+     * time so that their vCard requests are in flight together instead of
+     * waiting for each other's reply. A contact whose presence advertises
+     * the XEP-0153 photo hash of the avatar in the avatar cache gets that
+     * avatar without a request.
      */
     private class ImageRetriever
-        extends Thread
     {
         /**
-         * list with the accounts with missing image
+         * The maximum number of avatars retrieved at the same time.
+         */
+        private static final int MAX_RETRIEVALS = 4;
+
+        /**
+         * The contacts queued or being retrieved.
+         */
+        private final Set<ContactJabberImpl> contactsForUpdate
+            = new HashSet<ContactJabberImpl>();
+
+        /**
+         * The executor retrieving the avatars.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * The number of avatars requested from the server.
+         */
+        private int fetchCount = 0;
+
+        /**
+         * The total time, in milliseconds, the requested avatars took.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
+        private long fetchTimeTotal = 0;
 
         /**
-         * Should we stop.
+         * The longest time, in milliseconds, a requested avatar took.
          */
-        private boolean running = false;
+        private long fetchTimeMax = 0;
+
+        /**
+         * The number of avatars taken from the avatar cache.
+         */
+        private int cachedCount = 0;
+
+        /**
+         * The largest number of contacts queued or being retrieved.
+         */
+        private int maxQueueLength = 0;
 
         /**
          * Creates image retrieving.
          */
         ImageRetriever()
         {
-            setDaemon(true);
+            executor
+                = new ThreadPoolExecutor(
+                        MAX_RETRIEVALS, MAX_RETRIEVALS,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t
+                                    = new Thread(
+                                            r,
+                                            ImageRetriever.class.getName());
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            executor.allowCoreThreadTimeOut(true);
         }
 
         /**
-         * Thread entry point.
+         * Add contact for retrieving
+         * if the provider is register notify the retriever to get the nicks
+         * if we are not registered add a listener to wait for registering
+         *
+         * @param contact ContactJabberImpl
          */
-        @Override
-        public void run()
+        void addContact(final ContactJabberImpl contact)
         {
-            try
+            synchronized(contactsForUpdate)
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
-                {
-                    synchronized(contactsForUpdate)
-                    {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
-
-                        if(!running)
-                            return;
+                if (!contactsForUpdate.add(contact))
+                    return;
 
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
+                maxQueueLength
+                    = Math.max(maxQueueLength, contactsForUpdate.size());
+            }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
                     {
-                        ContactJabberImpl contact = iter.next();
-
-                        byte[] imgBytes = getAvatar(contact);
-
-                        if(imgBytes != null)
+                        try
                         {
-                            byte[] oldImage = contact.getImage(false);
-
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
+                            retrieveImage(contact);
+                        }
+                        finally
+                        {
+                            contactRetrieved(contact);
                         }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
                     }
-                }
+                });
             }
-            catch (InterruptedException ex)
+            catch (RejectedExecutionException ex)
             {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
+                // we have quit
+                contactRetrieved(contact);
             }
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Stops retrieving images.
+         */
+        void quit()
+        {
+            executor.shutdownNow();
+        }
+
+        /**
+         * Retrieves the image of a contact and updates the contact with it.
          *
-         * @param contact ContactJabberImpl
+         * @param contact the contact
          */
-        void addContact(ContactJabberImpl contact)
+        private void retrieveImage(ContactJabberImpl contact)
         {
-            synchronized(contactsForUpdate)
+            if (executor.isShutdown())
+                return;
+
+            byte[] imgBytes = getCachedAvatar(contact, getPhotoHash(contact));
+
+            if (imgBytes != null)
             {
-                if (!contactsForUpdate.contains(contact))
+                synchronized(contactsForUpdate)
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    cachedCount++;
                 }
             }
+            else
+            {
+                long startTime = System.currentTimeMillis();
+
+                imgBytes = getAvatar(contact);
+
+                long fetchTime = System.currentTimeMillis() - startTime;
+
+                synchronized(contactsForUpdate)
+                {
+                    fetchCount++;
+                    fetchTimeTotal += fetchTime;
+                    fetchTimeMax = Math.max(fetchTimeMax, fetchTime);
+                }
+            }
+
+            if(imgBytes != null)
+            {
+                byte[] oldImage = contact.getImage(false);
+
+                contact.setImage(imgBytes);
+                parentOperationSet.fireContactPropertyChangeEvent(
+                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                    contact, oldImage, imgBytes);
+            }
+            else
+                // set an empty image data so it won't be queried again
+                contact.setImage(new byte[0]);
         }
 
         /**
-         * Stops this thread.
+         * Removes a contact from the contacts being retrieved and logs the
+         * figures of the retrieval once all the queued contacts are done.
+         *
+         * @param contact the contact which was retrieved
          */
-        void quit()
+        private void contactRetrieved(ContactJabberImpl contact)
         {
             synchronized(contactsForUpdate)
             {
-                running = false;
-                contactsForUpdate.notifyAll();
+                contactsForUpdate.remove(contact);
+
+                if (contactsForUpdate.isEmpty() && logger.isDebugEnabled())
+                {
+                    logger.debug("Retrieved avatars of "
+                        + jabberProvider.getAccountID()
+                        + ": " + fetchCount + " requested in "
+                        + (fetchCount == 0 ? 0 : fetchTimeTotal / fetchCount)
+                        + " ms on average and " + fetchTimeMax
+                        + " ms at most, " + cachedCount
+                        + " from the cache, up to " + maxQueueLength
+                        + " queued");
+                }
             }
         }
 
@@ -261,6 +261,14 @@ public void unregister(boolean userRequest)
         this.unregister();
     }
 
+    /**
+     * Mock implementation of the corresponding ProtocolProviderService method.
+     */
+    public void unregisterForReconnect()
+    {
+        this.unregister();
+    }
+
     /*
      * (non-Javadoc)
      *
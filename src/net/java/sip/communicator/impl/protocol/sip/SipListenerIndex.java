@@ -0,0 +1,125 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of the providers listening on a shared SIP stack,
+ * indexed by the user ID of their accounts. <tt>SipStackSharing</tt>
+ * replaces its snapshot when a provider is added or removed, so that the
+ * dispatching of each request reads the current one without locking or
+ * copying, and looks up the accounts of the Request-URI user without
+ * comparing it with every account.
+ * <p>
+ * Only the user ID is indexed. The source address and the contact address
+ * parameter depend on the current registrar connection of each provider, so
+ * they are still checked on the accounts of the user, and on every account
+ * when no account has the Request-URI user.
+ */
+class SipListenerIndex
+{
+    /**
+     * The index without any provider.
+     */
+    static final SipListenerIndex EMPTY
+        = new SipListenerIndex(
+                Collections.<ProtocolProviderServiceSipImpl>emptyList());
+
+    /**
+     * All the providers.
+     */
+    private final List<ProtocolProviderServiceSipImpl> listeners;
+
+    /**
+     * The providers by the user ID of their accounts.
+     */
+    private final Map<String, List<ProtocolProviderServiceSipImpl>> byUserID
+        = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+    /**
+     * Creates an index of the given providers.
+     *
+     * @param listeners the providers to index
+     */
+    SipListenerIndex(Collection<ProtocolProviderServiceSipImpl> listeners)
+    {
+        this.listeners
+            = Collections.unmodifiableList(
+                    new ArrayList<ProtocolProviderServiceSipImpl>(listeners));
+
+        for (ProtocolProviderServiceSipImpl listener : this.listeners)
+        {
+            String userID = listener.getAccountID().getUserID();
+
+            if (userID == null)
+                continue;
+
+            List<ProtocolProviderServiceSipImpl> sameUser
+                = byUserID.get(userID);
+
+            if (sameUser == null)
+            {
+                sameUser = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                byUserID.put(userID, sameUser);
+            }
+            sameUser.add(listener);
+        }
+        for (Map.Entry<String, List<ProtocolProviderServiceSipImpl>> e
+                : byUserID.entrySet())
+        {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+    }
+
+    /**
+     * Returns all the providers.
+     *
+     * @return an unmodifiable list of the providers
+     */
+    List<ProtocolProviderServiceSipImpl> getListeners()
+    {
+        return listeners;
+    }
+
+    /**
+     * Returns the providers whose account has the given user ID.
+     *
+     * @param userID the user ID, e.g. the user part of a Request-URI
+     * @return an unmodifiable list of the providers, empty if there is none
+     */
+    List<ProtocolProviderServiceSipImpl> getListenersForUser(String userID)
+    {
+        List<ProtocolProviderServiceSipImpl> sameUser
+            = (userID == null) ? null : byUserID.get(userID);
+
+        return (sameUser == null)
+            ? Collections.<ProtocolProviderServiceSipImpl>emptyList()
+            : sameUser;
+    }
+
+    /**
+     * Returns the number of providers.
+     *
+     * @return the number of providers
+     */
+    int size()
+    {
+        return listeners.size();
+    }
+}
@@ -88,12 +88,18 @@
     /**
      * The candidate recipients to choose from when dispatching messages
      * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
+     * issues reasons, better iterate on the snapshot returned by
      * <tt>getSipListeners()</tt>.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The snapshot of <tt>listeners</tt> indexed for dispatching, replaced
+     * whenever a listener is added or removed.
+     */
+    private volatile SipListenerIndex listenerIndex = SipListenerIndex.EMPTY;
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -201,6 +207,7 @@ public void addSipListener(ProtocolProviderServiceSipImpl listener)
             if(this.listeners.size() == 0)
                 startListening();
             this.listeners.add(listener);
+            this.listenerIndex = new SipListenerIndex(this.listeners);
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -218,6 +225,7 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
         synchronized(this.listeners)
         {
             this.listeners.remove(listener);
+            this.listenerIndex = new SipListenerIndex(this.listeners);
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -228,16 +236,14 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
     }
 
     /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
+     * Returns a snapshot of the <tt>listeners</tt> (= candidate recipients)
+     * set.
      *
-     * @return a copy of the <tt>listeners</tt> set.
+     * @return an unmodifiable snapshot of the <tt>listeners</tt> set.
      */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
+    private List<ProtocolProviderServiceSipImpl> getSipListeners()
     {
-        synchronized(this.listeners)
-        {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
-        }
+        return listenerIndex.getListeners();
     }
 
     /**
@@ -908,43 +914,27 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
-        {
-            logger.error("no listeners");
-            return null;
-        }
-
+        SipListenerIndex index = this.listenerIndex;
         URI requestURI = request.getRequestURI();
 
         if(requestURI.isSipURI())
         {
             String requestUser = ((SipURI) requestURI).getUser();
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+            // check if the Request-URI username is one of ours usernames, and
+            // narrow down candidate choice by comparing addresses and ports
+            // (no point in delivering to a provider with a non matching IP
+            // address since they will reject it anyway).
+            List<ProtocolProviderServiceSipImpl> candidates
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                        index.getListenersForUser(requestUser));
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+            filterByAddress(candidates, request);
+            if (logger.isTraceEnabled())
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
+                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                    logger.trace("suitable candidate found: "
+                            + candidate.getAccountID());
             }
 
             // the perfect match
@@ -1026,8 +1016,14 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             }
 
             // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
+            ProtocolProviderServiceSipImpl target
+                = findAnyTargetFor(index, request);
+
+            if (target == null)
+            {
+                logger.error("no listeners");
+                return null;
+            }
             if (logger.isDebugEnabled())
                 logger.debug("Will randomly dispatch to \"" + target
                         .getAccountID()
@@ -1044,6 +1040,33 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
         return null;
     }
 
+    /**
+     * Returns the first of the listeners which may receive requests from the
+     * address <tt>request</tt> comes from, when no account matches its
+     * Request-URI user.
+     *
+     * @param index the listeners
+     * @param request the request that we are currently dispatching
+     * @return a listener or <tt>null</tt> if none may receive
+     * <tt>request</tt>
+     */
+    private ProtocolProviderServiceSipImpl findAnyTargetFor(
+                    SipListenerIndex index,
+                    Request          request)
+    {
+        List<ProtocolProviderServiceSipImpl> candidate
+            = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+
+        for (ProtocolProviderServiceSipImpl listener : index.getListeners())
+        {
+            candidate.add(listener);
+            filterByAddress(candidate, request);
+            if (!candidate.isEmpty())
+                return listener;
+        }
+        return null;
+    }
+
     /**
      * Removes from the specified list of candidates providers connected to a
      * registrar that does not match the IP address that we are receiving a
@@ -1317,7 +1340,7 @@ public void configurationChanged(ChangeEvent event)
 
         if(event.getType() == ChangeEvent.ADDRESS_DOWN)
         {
-            for(final ProtocolProviderServiceSipImpl pp : listeners)
+            for(final ProtocolProviderServiceSipImpl pp : getSipListeners())
             {
                 if(pp.getRegistrarConnection().getTransport() != null
                    && (pp.getRegistrarConnection().getTransport()
@@ -365,7 +365,8 @@ public static ImageIcon getScaledEllipticalIcon(  byte[] imageBytes,
     }
 
     /**
-     * Creates a cropped, scaled image.
+     * Creates a cropped, scaled image, or returns the one created before
+     * from the same bytes, kept with the avatars in memory.
      *
      * @param imageBytes The bytes of the image to be scaled.
      * @param shape The shape of the scaled image.
@@ -382,6 +383,43 @@ private static ImageIcon getScaledIcon(  byte[] imageBytes,
         if (imageBytes == null || !(imageBytes.length > 0))
             return null;
 
+        AvatarMemoryCache cache = AvatarCacheUtils.getMemoryCache();
+        String variant = shape + ":" + width + "x" + height;
+        ImageIcon imageIcon
+            = (ImageIcon) cache.getVariant(imageBytes, variant);
+
+        if (imageIcon == null)
+        {
+            imageIcon = createScaledIcon(imageBytes, shape, width, height);
+            if (imageIcon != null)
+            {
+                // four bytes per pixel
+                cache.putVariant(
+                        imageBytes,
+                        variant,
+                        imageIcon,
+                        4L * imageIcon.getIconWidth()
+                            * imageIcon.getIconHeight());
+            }
+        }
+        return imageIcon;
+    }
+
+    /**
+     * Creates a cropped, scaled image.
+     *
+     * @param imageBytes The bytes of the image to be scaled.
+     * @param shape The shape of the scaled image.
+     * @param width The maximum width of the scaled image.
+     * @param height The maximum height of the scaled image.
+     *
+     * @return The cropped, scaled image.
+     */
+    private static ImageIcon createScaledIcon(  byte[] imageBytes,
+                                                Shape shape,
+                                                int width,
+                                                int height)
+    {
         ImageIcon imageIcon = null;
 
         try
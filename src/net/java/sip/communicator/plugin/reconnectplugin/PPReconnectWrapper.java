@@ -364,7 +364,9 @@ void unregister()
 
         try
         {
-            this.provider.unregister();
+            // the provider may keep its session to resume it when we
+            // register it again
+            this.provider.unregisterForReconnect();
         }
         catch(Throwable t)
         {
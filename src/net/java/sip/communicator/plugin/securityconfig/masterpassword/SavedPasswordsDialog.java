@@ -202,6 +202,13 @@ public static SavedPasswordsDialog getInstance()
             public final List<PasswordsTableRow> savedPasswords =
                     new ArrayList<PasswordsTableRow>();
 
+            /**
+             * The decrypted passwords by property, loaded while the passwords
+             * column is shown.
+             */
+            private Map<String, String> passwords
+                = Collections.emptyMap();
+
             /**
              * Returns the name for the given column.
              *
@@ -250,9 +257,7 @@ public Object getValueAt(int row, int column)
                 case USER_NAME_INDEX:
                     return savedPass.name;
                 case PASSWORD_INDEX:
-                    String pass =
-                        credentialsStorageService
-                            .loadPassword(savedPass.property);
+                    String pass = passwords.get(savedPass.property);
                     return
                         (pass == null)
                             ? resources
@@ -573,6 +578,20 @@ private void showOrHidePasswords()
                                 : "plugin.securityconfig.masterpassword.SHOW_PASSWORDS_BUTTON"));
             PasswordsTableModel model =
                 (PasswordsTableModel) accountsTable.getModel();
+
+            // decrypt all passwords at once rather than on every repaint
+            if (showPasswords)
+            {
+                List<String> properties
+                    = new ArrayList<String>(model.savedPasswords.size());
+
+                for (PasswordsTableRow row : model.savedPasswords)
+                    properties.add(row.property);
+                model.passwords
+                    = credentialsStorageService.loadPasswords(properties);
+            }
+            else
+                model.passwords = Collections.emptyMap();
             model.fireTableStructureChanged();
         }
 
@@ -17,6 +17,8 @@
  */
 package net.java.sip.communicator.service.credentialsstorage;
 
+import java.util.*;
+
 /**
  * Loads and saves user credentials from/to the persistent storage
  * (configuration file in the default implementation).
@@ -43,6 +45,16 @@
      */
     public String loadPassword(String accountPrefix);
 
+    /**
+     * Load the passwords for the accounts that start with the given prefixes,
+     * asking for the master password at most once.
+     *
+     * @param accountPrefixes the account prefixes
+     * @return the loaded passwords, by account prefix. The passwords which are
+     * not stored or cannot be decrypted are <tt>null</tt>.
+     */
+    public Map<String, String> loadPasswords(Iterable<String> accountPrefixes);
+
     /**
      * Remove the password for the account that starts with the given prefix.
      *
@@ -222,6 +222,23 @@ public QueryResultSet<HistoryRecord> findLastRecordsBefore( Date date,
                                                                 int count)
         throws RuntimeException;
 
+    /**
+     * Returns the supplied number of recent messages before the given date
+     * from the newest to the oldest. The history is read backwards as the
+     * returned iterator advances and reading stops once <tt>count</tt>
+     * records are returned, so the cost does not depend on the size of the
+     * history.
+     *
+     * @param date messages before date or <tt>null</tt> for the most recent
+     * messages
+     * @param count messages count
+     * @return the found records, newest first
+     * @throws RuntimeException
+     */
+    public Iterator<HistoryRecord> findLastRecordsReversed( Date date,
+                                                            int count)
+        throws RuntimeException;
+
     /**
      * Adding progress listener for monitoring progress of search process
      *
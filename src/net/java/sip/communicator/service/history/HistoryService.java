@@ -41,6 +41,41 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to set the maximum estimated memory, in bytes, of the
+     * history documents cached when <tt>CACHE_ENABLED_PROPERTY</tt> is set.
+     * The least recently used documents are evicted to stay within it.
+     */
+    public static final String CACHE_MAX_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_SIZE";
+
+    /**
+     * Property used to enable write-behind of history records. When enabled
+     * added records are written to disk in batches, shortly after they are
+     * added, instead of one file write per record.
+     */
+    public static final String WRITE_BEHIND_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_ENABLED";
+
+    /**
+     * Property used to select the format in which histories are stored.
+     * The value is one of <tt>STORE_FORMAT_XML</tt> (the default) or
+     * <tt>STORE_FORMAT_SEGMENT</tt>.
+     */
+    public static final String STORE_FORMAT_PROPERTY =
+        "net.java.sip.communicator.service.history.STORE_FORMAT";
+
+    /**
+     * Stores every history as XML documents of limited record count.
+     */
+    public static final String STORE_FORMAT_XML = "xml";
+
+    /**
+     * Stores every history in append-only binary segments. Existing XML
+     * histories are migrated the first time they are loaded.
+     */
+    public static final String STORE_FORMAT_SEGMENT = "segment";
+
     /**
      * Date format used in the XML history database.
      */
@@ -19,6 +19,7 @@
 
 import java.beans.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
@@ -42,6 +43,49 @@
     private static final Logger logger =
         Logger.getLogger(AbstractOperationSetPersistentPresence.class);
 
+    /**
+     * The executor delivering the coalesced changes in the presence status of
+     * contacts of all the operation sets.
+     */
+    private static final ScheduledThreadPoolExecutor coalescingExecutor
+        = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ContactPresenceStatusCoalescer");
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    static
+    {
+        coalescingExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        coalescingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The time, in milliseconds, during which the changes in the presence
+     * status of contacts are collected before being delivered to the
+     * <tt>ContactPresenceStatusBatchListener</tt>s, or 0 to deliver them
+     * immediately.
+     */
+    private long coalescingWindow = 0;
+
+    /**
+     * The changes in the presence status of contacts not yet delivered to the
+     * <tt>ContactPresenceStatusBatchListener</tt>s, merged per contact and in
+     * the order of the first change of each contact.
+     */
+    private final Map<Contact, ContactPresenceStatusChangeEvent> pendingChanges
+        = new LinkedHashMap<Contact, ContactPresenceStatusChangeEvent>();
+
+    /**
+     * The scheduled delivery of {@link #pendingChanges}.
+     */
+    private ScheduledFuture<?> pendingFlush;
+
     /**
      * A list of listeners registered for
      * <tt>ContactPresenceStatusChangeEvent</tt>s.
@@ -210,8 +254,152 @@ public void fireContactPresenceStatusChangeEvent(Contact source,
             "Dispatching Contact Status Change. Listeners=" + listeners.size()
                 + " evt=" + evt);
 
+        boolean coalesce = false;
+
+        for (ContactPresenceStatusListener listener : listeners)
+        {
+            if ((coalescingWindow > 0)
+                    && (listener instanceof ContactPresenceStatusBatchListener))
+                coalesce = true;
+            else
+                listener.contactPresenceStatusChanged(evt);
+        }
+
+        if (coalesce)
+            coalesceContactPresenceStatusChange(evt);
+    }
+
+    /**
+     * Sets the time during which the changes in the presence status of
+     * contacts are collected before being delivered at once to the
+     * <tt>ContactPresenceStatusBatchListener</tt>s. Operation sets receiving
+     * storms of presence updates, e.g. at login, enable it so that these
+     * listeners process them in one pass. The other listeners keep receiving
+     * every change immediately.
+     *
+     * @param coalescingWindow the time in milliseconds, or 0 to deliver the
+     * changes to all listeners immediately
+     */
+    protected void setContactPresenceStatusCoalescingWindow(
+            long coalescingWindow)
+    {
+        this.coalescingWindow = coalescingWindow;
+        if (coalescingWindow <= 0)
+            flushContactPresenceStatusChanges();
+    }
+
+    /**
+     * Merges a change in the presence status of a contact with its pending
+     * change, if any, and schedules the delivery of the pending changes.
+     *
+     * @param evt the change in the presence status of a contact
+     */
+    private void coalesceContactPresenceStatusChange(
+            ContactPresenceStatusChangeEvent evt)
+    {
+        Contact contact = evt.getSourceContact();
+
+        synchronized (pendingChanges)
+        {
+            ContactPresenceStatusChangeEvent pending
+                = pendingChanges.get(contact);
+
+            if (pending != null)
+            {
+                evt
+                    = new ContactPresenceStatusChangeEvent(
+                            contact,
+                            evt.getSourceProvider(),
+                            evt.getParentGroup(),
+                            pending.getOldStatus(),
+                            evt.getNewStatus(),
+                            pending.isResourceChanged()
+                                || evt.isResourceChanged());
+            }
+            pendingChanges.put(contact, evt);
+
+            if (pendingFlush == null)
+            {
+                pendingFlush
+                    = coalescingExecutor.schedule(
+                            new Runnable()
+                            {
+                                public void run()
+                                {
+                                    flushContactPresenceStatusChanges();
+                                }
+                            },
+                            coalescingWindow,
+                            TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Delivers the pending changes in the presence status of contacts to the
+     * <tt>ContactPresenceStatusBatchListener</tt>s, leaving out the contacts
+     * which went back to the status they had before their first change.
+     */
+    void flushContactPresenceStatusChanges()
+    {
+        List<ContactPresenceStatusChangeEvent> events;
+
+        synchronized (pendingChanges)
+        {
+            if (pendingFlush != null)
+            {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+            if (pendingChanges.isEmpty())
+                return;
+
+            events
+                = new ArrayList<ContactPresenceStatusChangeEvent>(
+                        pendingChanges.size());
+            for (ContactPresenceStatusChangeEvent evt
+                    : pendingChanges.values())
+            {
+                if (!Objects.equals(evt.getOldStatus(), evt.getNewStatus())
+                        || evt.isResourceChanged())
+                    events.add(evt);
+            }
+            pendingChanges.clear();
+        }
+        if (events.isEmpty())
+            return;
+
+        ContactPresenceStatusBatchEvent batch
+            = new ContactPresenceStatusBatchEvent(parentProvider, events);
+        Collection<ContactPresenceStatusListener> listeners;
+
+        synchronized (contactPresenceStatusListeners)
+        {
+            listeners =
+                new ArrayList<ContactPresenceStatusListener>(
+                        contactPresenceStatusListeners);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Dispatching " + batch);
+
         for (ContactPresenceStatusListener listener : listeners)
-            listener.contactPresenceStatusChanged(evt);
+        {
+            if (listener instanceof ContactPresenceStatusBatchListener)
+            {
+                try
+                {
+                    ((ContactPresenceStatusBatchListener) listener)
+                        .contactPresenceStatusBatchChanged(batch);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error(
+                            "Failed to dispatch " + batch + " to " + listener,
+                            e);
+                }
+            }
+        }
     }
 
     /**
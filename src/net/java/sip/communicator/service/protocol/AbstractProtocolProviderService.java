@@ -392,4 +392,18 @@ public void unregister(boolean userRequest)
     {
         this.unregister();
     }
+
+    /**
+     * Ends the registration of this protocol provider before it is registered
+     * again. The default is just to call unregister. Providers which can
+     * resume their session on the next registration override this method.
+     * @throws OperationFailedException with the corresponding code it the
+     * registration fails for some reason (e.g. a networking error or an
+     * implementation problem).
+     */
+    public void unregisterForReconnect()
+        throws OperationFailedException
+    {
+        this.unregister();
+    }
 }
@@ -96,6 +96,17 @@ public void unregister()
     public void unregister(boolean userRequest)
         throws OperationFailedException;
 
+    /**
+     * Ends the registration of this protocol provider before it is registered
+     * again, e.g. after a network change. Providers which can resume their
+     * session with the server keep it for the next registration.
+     * @throws OperationFailedException with the corresponding code it the
+     * registration fails for some reason (e.g. a networking error or an
+     * implementation problem).
+     */
+    public void unregisterForReconnect()
+        throws OperationFailedException;
+
     /**
      * Indicates whether or not this provider is registered
      * @return true if the provider is currently registered and false otherwise.
@@ -0,0 +1,96 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.protocol.event;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Delivers at once the changes in the presence status of several contacts of
+ * a provider, as collected by its presence operation set during a short
+ * window. The batch contains a single <tt>ContactPresenceStatusChangeEvent</tt>
+ * per contact, going from the status of the contact before its first change
+ * to its status after the last one.
+ */
+public class ContactPresenceStatusBatchEvent
+    extends EventObject
+{
+    /**
+     * Serial version UID.
+     */
+    private static final long serialVersionUID = 0L;
+
+    /**
+     * The changes of the presence status of the contacts, in the order of
+     * their first change.
+     */
+    private final List<ContactPresenceStatusChangeEvent> events;
+
+    /**
+     * Creates a batch of changes in the presence status of the contacts of a
+     * provider.
+     *
+     * @param sourceProvider the provider that the contacts belong to
+     * @param events the changes of the presence status of the contacts
+     */
+    public ContactPresenceStatusBatchEvent(
+            ProtocolProviderService sourceProvider,
+            List<ContactPresenceStatusChangeEvent> events)
+    {
+        super(sourceProvider);
+
+        this.events
+            = Collections.unmodifiableList(
+                    new ArrayList<ContactPresenceStatusChangeEvent>(events));
+    }
+
+    /**
+     * Returns the provider that the contacts of this batch belong to.
+     *
+     * @return the provider that the contacts of this batch belong to
+     */
+    public ProtocolProviderService getSourceProvider()
+    {
+        return (ProtocolProviderService) getSource();
+    }
+
+    /**
+     * Returns the changes of the presence status of the contacts, one per
+     * contact.
+     *
+     * @return an unmodifiable list of the changes in the order of the first
+     * change of each contact
+     */
+    public List<ContactPresenceStatusChangeEvent> getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Returns a <tt>String</tt> representation of this batch.
+     *
+     * @return a <tt>String</tt> representation of this batch
+     */
+    @Override
+    public String toString()
+    {
+        return "ContactPresenceStatusBatchEvent-[ Provider="
+            + getSourceProvider() + ", Changes=" + events.size() + "]";
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.protocol.event;
+
+/**
+ * A <tt>ContactPresenceStatusListener</tt> able to process the changes in the
+ * presence status of many contacts in one pass. The presence operation sets
+ * which coalesce these changes deliver them to such listeners as
+ * <tt>ContactPresenceStatusBatchEvent</tt>s instead of calling
+ * {@link #contactPresenceStatusChanged(ContactPresenceStatusChangeEvent)}
+ * for each of them; the other operation sets keep calling the latter.
+ */
+public interface ContactPresenceStatusBatchListener
+    extends ContactPresenceStatusListener
+{
+    /**
+     * Called with the changes in the presence status of the contacts of a
+     * provider, collected during a short window.
+     *
+     * @param evt the <tt>ContactPresenceStatusBatchEvent</tt> containing a
+     * single change per contact
+     */
+    public void contactPresenceStatusBatchChanged(
+            ContactPresenceStatusBatchEvent evt);
+}
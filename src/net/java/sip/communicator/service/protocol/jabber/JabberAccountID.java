@@ -98,6 +98,21 @@
     public static final String OVERRIDE_PHONE_SUFFIX
             = "OVERRIDE_PHONE_SUFFIX";
 
+    /**
+     * Indicates if XEP-0198 stream management should be used, which lets a
+     * connection lost for a moment be resumed instead of logging in again.
+     */
+    public static final String STREAM_MANAGEMENT_ENABLED
+            = "STREAM_MANAGEMENT_ENABLED";
+
+    /**
+     * The time, in seconds, for which we ask the server to keep our session
+     * resumable after the connection is lost. The server default is used if
+     * it is not set.
+     */
+    public static final String STREAM_RESUMPTION_TIME
+            = "STREAM_RESUMPTION_TIME";
+
     /**
      * Creates an account id from the specified id and account properties.
      * @param id the id identifying this account
@@ -212,6 +227,28 @@ public boolean isSendKeepAlive()
         return getAccountPropertyBoolean(SEND_KEEP_ALIVE, true);
     }
 
+    /**
+     * Determines whether XEP-0198 stream management is used.
+     *
+     * @return <tt>true</tt> if stream management and resumption are used
+     */
+    public boolean isStreamManagementEnabled()
+    {
+        return getAccountPropertyBoolean(STREAM_MANAGEMENT_ENABLED, true);
+    }
+
+    /**
+     * Returns the time for which the server is asked to keep our session
+     * resumable after the connection is lost.
+     *
+     * @return the resumption time in seconds or <tt>-1</tt> to use the
+     * server default
+     */
+    public int getStreamResumptionTime()
+    {
+        return getAccountPropertyInt(STREAM_RESUMPTION_TIME, -1);
+    }
+
     /**
      * Determines whether SIP Communicator should use Google Contacts as
      * ContactSource
@@ -19,6 +19,7 @@
 
 import java.io.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
 
 import net.java.sip.communicator.service.protocol.*;
@@ -43,6 +44,24 @@
      */
     private final static String AVATAR_DIR = "avatarcache";
 
+    /**
+     * The name of the property holding the number of bytes the avatars kept
+     * in memory, with their scaled variants, may take.
+     */
+    public final static String MEMORY_CACHE_SIZE_PROPERTY
+        = "net.java.sip.communicator.util.AVATAR_MEMORY_CACHE_SIZE";
+
+    /**
+     * The default number of bytes the avatars kept in memory may take.
+     */
+    private final static int DEFAULT_MEMORY_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The avatars kept in memory, shared by the protocols and the user
+     * interface.
+     */
+    private static AvatarMemoryCache memoryCache;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -175,12 +194,59 @@ public static String getCachedAvatarPath(
     }
 
     /**
-     * Returns the avatar image corresponding to the given avatar path.
+     * Returns the avatars kept in memory, creating the cache with the
+     * configured size on first use.
+     *
+     * @return the avatars kept in memory
+     */
+    public static synchronized AvatarMemoryCache getMemoryCache()
+    {
+        if (memoryCache == null)
+        {
+            int maxSize = DEFAULT_MEMORY_CACHE_SIZE;
+            ConfigurationService cfg
+                = UtilActivator.getConfigurationService();
+
+            if (cfg != null)
+            {
+                maxSize
+                    = cfg.getInt(
+                            MEMORY_CACHE_SIZE_PROPERTY,
+                            DEFAULT_MEMORY_CACHE_SIZE);
+            }
+            memoryCache = new AvatarMemoryCache(maxSize);
+        }
+        return memoryCache;
+    }
+
+    /**
+     * Returns the avatar image corresponding to the given avatar path,
+     * reading its file only if it is not kept in memory.
      *
      * @param avatarPath The path to the lovally stored avatar.
      * @return the avatar image corresponding to the given avatar path.
      */
     private static byte[] getLocallyStoredAvatar(String avatarPath)
+    {
+        AvatarMemoryCache cache = getMemoryCache();
+        byte[] bs = cache.getBytes(avatarPath);
+
+        if (bs == null)
+        {
+            bs = readLocallyStoredAvatar(avatarPath);
+            if (bs != null)
+                bs = cache.putBytes(avatarPath, bs);
+        }
+        return bs;
+    }
+
+    /**
+     * Reads the avatar image corresponding to the given avatar path.
+     *
+     * @param avatarPath The path to the lovally stored avatar.
+     * @return the avatar image corresponding to the given avatar path.
+     */
+    private static byte[] readLocallyStoredAvatar(String avatarPath)
     {
         try
         {
@@ -345,6 +411,12 @@ private static void cacheAvatar(String avatarDirPath,
             {
                 fileOutStream.close();
             }
+
+            String avatarPath = avatarDirPath + File.separator + avatarFileName;
+            if (avatarBytes.length > 0)
+                getMemoryCache().putBytes(avatarPath, avatarBytes);
+            else
+                getMemoryCache().removeBytes(avatarPath);
         }
         catch (Exception ex)
         {
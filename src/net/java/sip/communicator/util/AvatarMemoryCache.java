@@ -0,0 +1,290 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+
+/**
+ * Keeps avatar images in memory under a budget of bytes. Avatars are stored
+ * once per content, so contacts sharing the same picture (the default one
+ * of a server, a picture set on several accounts) share their bytes, and
+ * with them the scaled variants derived from the bytes, such as the icons of
+ * the contact list. When the budget is exceeded, the least recently used
+ * avatars are evicted together with their variants.
+ * <p>
+ * The bytes are also looked up by the path of their file in the avatar
+ * cache directory, so that the <tt>AvatarCacheUtils</tt> read each file
+ * once.
+ */
+public class AvatarMemoryCache
+{
+    /**
+     * The avatars by content, in least recently used order.
+     */
+    private final LinkedHashMap<ContentKey, Entry> entries
+        = new LinkedHashMap<ContentKey, Entry>(16, 0.75f, true);
+
+    /**
+     * The avatars by the path of their file.
+     */
+    private final Map<String, Entry> paths = new HashMap<String, Entry>();
+
+    /**
+     * The number of bytes the cached avatars and variants may take.
+     */
+    private final long maxSize;
+
+    /**
+     * The number of bytes taken by the cached avatars and variants.
+     */
+    private long size = 0;
+
+    /**
+     * Creates a cache holding at most <tt>maxSize</tt> bytes.
+     *
+     * @param maxSize the number of bytes the cached avatars and their
+     * variants may take
+     */
+    public AvatarMemoryCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the bytes of the avatar stored in the file at <tt>path</tt>.
+     *
+     * @param path the path of the avatar file
+     * @return the bytes of the avatar or <tt>null</tt> if they are not
+     * cached
+     */
+    public synchronized byte[] getBytes(String path)
+    {
+        Entry entry = paths.get(path);
+
+        if (entry == null)
+            return null;
+
+        // touch the entry
+        entries.get(entry.key);
+        return entry.key.bytes;
+    }
+
+    /**
+     * Caches the bytes of the avatar stored in the file at <tt>path</tt>.
+     * If an avatar with the same content is cached already, its bytes are
+     * used instead of <tt>bytes</tt>.
+     *
+     * @param path the path of the avatar file
+     * @param bytes the bytes of the avatar
+     * @return the cached bytes, equal to <tt>bytes</tt>
+     */
+    public synchronized byte[] putBytes(String path, byte[] bytes)
+    {
+        Entry entry = getOrCreateEntry(bytes);
+        Entry oldEntry = paths.put(path, entry);
+
+        if (oldEntry != null && oldEntry != entry)
+            oldEntry.paths.remove(path);
+        entry.paths.add(path);
+
+        evict(entry);
+        return entry.key.bytes;
+    }
+
+    /**
+     * Forgets the avatar stored in the file at <tt>path</tt>.
+     *
+     * @param path the path of the avatar file
+     */
+    public synchronized void removeBytes(String path)
+    {
+        Entry entry = paths.remove(path);
+
+        if (entry != null)
+            entry.paths.remove(path);
+    }
+
+    /**
+     * Returns a variant of the avatar with the content <tt>bytes</tt>.
+     *
+     * @param bytes the bytes of the avatar
+     * @param variant the name of the variant, e.g. its shape and size
+     * @return the variant or <tt>null</tt> if it is not cached
+     */
+    public synchronized Object getVariant(byte[] bytes, String variant)
+    {
+        Entry entry = entries.get(new ContentKey(bytes));
+
+        return (entry == null) ? null : entry.variants.get(variant);
+    }
+
+    /**
+     * Caches a variant of the avatar with the content <tt>bytes</tt>.
+     *
+     * @param bytes the bytes of the avatar
+     * @param variant the name of the variant, e.g. its shape and size
+     * @param value the variant
+     * @param valueSize the number of bytes the variant takes
+     */
+    public synchronized void putVariant(
+        byte[] bytes, String variant, Object value, long valueSize)
+    {
+        Entry entry = getOrCreateEntry(bytes);
+        Long oldSize = entry.variantSizes.put(variant, valueSize);
+
+        if (oldSize != null)
+        {
+            entry.size -= oldSize;
+            size -= oldSize;
+        }
+        entry.variants.put(variant, value);
+        entry.size += valueSize;
+        size += valueSize;
+
+        evict(entry);
+    }
+
+    /**
+     * Returns the number of bytes taken by the cached avatars and variants.
+     *
+     * @return the number of cached bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct cached avatars.
+     *
+     * @return the number of cached avatars
+     */
+    public synchronized int getCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Removes all cached avatars.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        paths.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the entry of the avatar with the content <tt>bytes</tt>,
+     * creating it with a copy of <tt>bytes</tt> if needed.
+     */
+    private Entry getOrCreateEntry(byte[] bytes)
+    {
+        Entry entry = entries.get(new ContentKey(bytes));
+
+        if (entry == null)
+        {
+            entry = new Entry(new ContentKey(bytes.clone()));
+            entries.put(entry.key, entry);
+            size += entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts the least recently used avatars until the cache fits in its
+     * budget, keeping the entry just added or updated.
+     */
+    private void evict(Entry keep)
+    {
+        Iterator<Entry> i = entries.values().iterator();
+
+        while (size > maxSize && i.hasNext())
+        {
+            Entry entry = i.next();
+
+            if (entry == keep)
+                continue;
+
+            i.remove();
+            size -= entry.size;
+            for (String path : entry.paths)
+                paths.remove(path);
+        }
+    }
+
+    /**
+     * The content of an avatar as a key, comparing the bytes.
+     */
+    private static class ContentKey
+    {
+        private final byte[] bytes;
+
+        private final int hashCode;
+
+        private ContentKey(byte[] bytes)
+        {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return (obj instanceof ContentKey)
+                && ((ContentKey) obj).hashCode == hashCode
+                && Arrays.equals(((ContentKey) obj).bytes, bytes);
+        }
+    }
+
+    /**
+     * A cached avatar with its variants.
+     */
+    private static class Entry
+    {
+        private final ContentKey key;
+
+        /**
+         * The paths of the files storing the avatar.
+         */
+        private final Set<String> paths = new HashSet<String>();
+
+        private final Map<String, Object> variants
+            = new HashMap<String, Object>();
+
+        private final Map<String, Long> variantSizes
+            = new HashMap<String, Long>();
+
+        /**
+         * The number of bytes taken by the avatar and its variants.
+         */
+        private long size;
+
+        private Entry(ContentKey key)
+        {
+            this.key = key;
+            this.size = key.bytes.length;
+        }
+    }
+}
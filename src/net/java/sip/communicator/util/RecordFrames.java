@@ -0,0 +1,168 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/**
+ * Reads and writes the records of append-only files, each record prefixed by
+ * its length and checksum:
+ *
+ * <pre>
+ * int length | int crc32 | byte[length] record
+ * </pre>
+ *
+ * A record which was only partially written when the application stopped
+ * fails its checksum, so the valid records of a file are the ones before
+ * the first record which cannot be read.
+ */
+public class RecordFrames
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(RecordFrames.class);
+
+    /**
+     * The size of the length and checksum preceding every record.
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * Records bigger than this are considered to be corrupted data.
+     */
+    public static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Writes <tt>record</tt> with its length and checksum.
+     *
+     * @param out where to write the record
+     * @param record the record to write
+     * @throws IOException if writing fails
+     */
+    public static void write(DataOutput out, byte[] record)
+        throws IOException
+    {
+        out.writeInt(record.length);
+        out.writeInt(checksum(record));
+        out.write(record);
+    }
+
+    /**
+     * Reads the record at <tt>offset</tt> of <tt>channel</tt>.
+     *
+     * @param channel the channel to read from
+     * @param offset the position of the length of the record
+     * @param minRecordSize the size under which a record is considered to be
+     * corrupted data
+     * @return the record, or <tt>null</tt> if there is no complete record
+     * with a valid checksum at <tt>offset</tt>
+     * @throws IOException if reading fails
+     */
+    public static byte[] read(FileChannel channel,
+                              long offset,
+                              int minRecordSize)
+        throws IOException
+    {
+        long length = channel.size();
+        if (offset + HEADER_SIZE > length)
+            return null;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, offset);
+        header.flip();
+
+        int recordLength = header.getInt();
+        int crc = header.getInt();
+        if (recordLength < minRecordSize
+                || recordLength > MAX_RECORD_SIZE
+                || offset + HEADER_SIZE + recordLength > length)
+            return null;
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        readFully(channel, record, offset + HEADER_SIZE);
+
+        return (crc == checksum(record.array())) ? record.array() : null;
+    }
+
+    /**
+     * Truncates the corrupted tail of <tt>file</tt>, so that records are
+     * appended after the last valid one.
+     *
+     * @param file the file to truncate
+     * @param validLength the length of the valid records of <tt>file</tt>
+     * @throws IOException if the file cannot be truncated
+     */
+    public static void truncate(File file, long validLength)
+        throws IOException
+    {
+        if (validLength >= file.length())
+            return;
+
+        logger.warn("Truncating corrupted tail of " + file);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(validLength);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Computes the checksum stored with a record.
+     *
+     * @param record the record
+     * @return the checksum
+     */
+    private static int checksum(byte[] record)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Fills <tt>buffer</tt> from <tt>channel</tt> starting at
+     * <tt>position</tt>.
+     *
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     * @param position the position in the channel
+     * @throws IOException if the end of the channel is reached
+     */
+    private static void readFully(FileChannel channel,
+                                  ByteBuffer buffer,
+                                  long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.certificate;
+
+import junit.framework.*;
+
+public class ExpiringCacheTest
+    extends TestCase
+{
+    private static final long NOW = 1000000;
+
+    private ExpiringCache<String, Boolean> cache;
+
+    @Override
+    protected void setUp()
+    {
+        cache = new ExpiringCache<String, Boolean>(2);
+    }
+
+    public void testExpiry()
+    {
+        cache.put("a", Boolean.TRUE, NOW + 1000);
+
+        assertEquals(Boolean.TRUE, cache.get("a", NOW));
+        assertEquals(Boolean.TRUE, cache.get("a", NOW + 999));
+        assertNull(cache.get("a", NOW + 1000));
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        cache.put("a", Boolean.TRUE, NOW + 1000);
+        cache.put("b", Boolean.TRUE, NOW + 1000);
+        cache.get("a", NOW);
+        cache.put("c", Boolean.TRUE, NOW + 1000);
+
+        assertEquals(2, cache.size());
+        assertEquals(Boolean.TRUE, cache.get("a", NOW));
+        assertNull(cache.get("b", NOW));
+        assertEquals(Boolean.TRUE, cache.get("c", NOW));
+    }
+
+    public void testClear()
+    {
+        cache.put("a", Boolean.TRUE, NOW + 1000);
+        cache.clear();
+
+        assertNull(cache.get("a", NOW));
+    }
+}
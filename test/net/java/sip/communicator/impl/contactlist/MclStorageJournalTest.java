@@ -0,0 +1,98 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class MclStorageJournalTest
+    extends TestCase
+{
+    private File file;
+
+    private MclStorageJournal journal;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("contactlist", ".journal");
+        file.delete();
+        journal = new MclStorageJournal(file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        journal.close();
+        file.delete();
+    }
+
+    public void testRecordsAreReadInOrder() throws Exception
+    {
+        journal.append(records("first", "second"));
+        journal.append(records("third"));
+
+        assertEquals(Arrays.asList("first", "second", "third"),
+            strings(journal.read()));
+    }
+
+    public void testPartialRecordIsDroppedAndTruncated() throws Exception
+    {
+        journal.append(records("first", "second"));
+        journal.close();
+        long validLength = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(validLength - 3);
+        raf.close();
+
+        assertEquals(Arrays.asList("first"), strings(journal.read()));
+
+        // records appended after a truncated tail are readable
+        journal.append(records("third"));
+        assertEquals(Arrays.asList("first", "third"),
+            strings(journal.read()));
+    }
+
+    public void testClear() throws Exception
+    {
+        journal.append(records("first"));
+        journal.clear();
+        journal.append(records("second"));
+
+        assertEquals(Arrays.asList("second"), strings(journal.read()));
+    }
+
+    private static List<byte[]> records(String... values) throws Exception
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (String value : values)
+            result.add(value.getBytes("UTF-8"));
+        return result;
+    }
+
+    private static List<String> strings(List<byte[]> records) throws Exception
+    {
+        List<String> result = new ArrayList<String>();
+        for (byte[] record : records)
+            result.add(new String(record, "UTF-8"));
+        return result;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+import org.w3c.dom.*;
+
+public class MclStorageManagerTest
+    extends TestCase
+{
+    private static final String ALICE
+        = "<meta-contact uid=\"alice\">"
+            + "<display-name>Alice</display-name></meta-contact>";
+
+    private File file;
+
+    private MclStorageJournal journal;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("contactlist", ".xml");
+        journal = new MclStorageJournal(new File(file.getPath() + ".journal"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        journal.close();
+        journal.getFile().delete();
+        file.delete();
+    }
+
+    public void testJournalIsReplayedOnStart() throws Exception
+    {
+        writeContactList(ALICE);
+        journal.append(records(
+            putMetaContact("bob", "Bob"),
+            "<remove-meta-contact uid=\"alice\"/>"));
+        journal.close();
+
+        startAndStop();
+
+        assertEquals(Arrays.asList("Bob"), displayNames());
+        assertEquals(0, journal.getFile().length());
+    }
+
+    public void testReplayingRecordsAgainHasNoEffect() throws Exception
+    {
+        // the file already contains the changes of the journal, as after a
+        // crash between writing the file and clearing the journal
+        writeContactList(
+            "<meta-contact uid=\"bob\">"
+                + "<display-name>Robert</display-name></meta-contact>");
+        String rename = putMetaContact("bob", "Robert");
+        String remove = "<remove-meta-contact uid=\"alice\"/>";
+        journal.append(records(
+            putMetaContact("bob", "Bob"), rename, remove, rename, remove));
+        journal.close();
+
+        startAndStop();
+
+        assertEquals(Arrays.asList("Robert"), displayNames());
+    }
+
+    /**
+     * Starts a storage manager on the contact list file, which replays the
+     * journal, and stops it, which writes the replayed changes to the file.
+     */
+    private void startAndStop() throws Exception
+    {
+        ConfigurationService configService
+            = EasyMock.createNiceMock(ConfigurationService.class);
+        FailSafeTransaction transaction
+            = EasyMock.createNiceMock(FailSafeTransaction.class);
+        FileAccessService faService
+            = EasyMock.createNiceMock(FileAccessService.class);
+        EasyMock.expect(faService.getPrivatePersistentFile(
+                EasyMock.<String>anyObject(),
+                EasyMock.<FileCategory>anyObject()))
+            .andReturn(file);
+        EasyMock.expect(faService.createFailSafeTransaction(file))
+            .andReturn(transaction);
+
+        ServiceReference<ConfigurationService> configReference
+            = createReference();
+        ServiceReference<FileAccessService> faReference = createReference();
+        BundleContext bundleContext
+            = EasyMock.createNiceMock(BundleContext.class);
+        EasyMock.expect(bundleContext.getServiceReference(
+                ConfigurationService.class))
+            .andReturn(configReference);
+        EasyMock.expect(bundleContext.getService(configReference))
+            .andReturn(configService);
+        EasyMock.expect(bundleContext.getServiceReference(
+                FileAccessService.class))
+            .andReturn(faReference);
+        EasyMock.expect(bundleContext.getService(faReference))
+            .andReturn(faService);
+
+        MetaContactListServiceImpl mclService
+            = EasyMock.createNiceMock(MetaContactListServiceImpl.class);
+
+        EasyMock.replay(configService, transaction, faService,
+            configReference, faReference, bundleContext, mclService);
+
+        MclStorageManager storageManager = new MclStorageManager();
+        storageManager.start(bundleContext, mclService);
+        storageManager.storeContactListAndStopStorageManager();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ServiceReference<T> createReference()
+    {
+        return EasyMock.createNiceMock(ServiceReference.class);
+    }
+
+    private void writeContactList(String metaContacts) throws Exception
+    {
+        Writer out = new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8");
+        try
+        {
+            out.write("<sip-communicator>"
+                + "<group name=\"RootMetaContactGroup\" uid=\"root\">"
+                + "<proto-groups/><subgroups/>"
+                + "<child-contacts>" + metaContacts + "</child-contacts>"
+                + "</group></sip-communicator>");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static String putMetaContact(String uid, String displayName)
+    {
+        return "<put-meta-contact parent=\"root\">"
+            + "<meta-contact uid=\"" + uid + "\">"
+            + "<display-name>" + displayName + "</display-name>"
+            + "</meta-contact></put-meta-contact>";
+    }
+
+    private static List<byte[]> records(String... values) throws Exception
+    {
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (String value : values)
+            result.add(value.getBytes("UTF-8"));
+        return result;
+    }
+
+    /**
+     * Returns the display names of the meta contacts in the contact list
+     * file.
+     */
+    private List<String> displayNames() throws Exception
+    {
+        NodeList names = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().parse(file)
+            .getElementsByTagName("display-name");
+
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < names.getLength(); i++)
+            result.add(names.item(i).getTextContent());
+        return result;
+    }
+}
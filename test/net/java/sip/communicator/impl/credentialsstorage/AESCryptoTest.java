@@ -0,0 +1,78 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.credentialsstorage;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.credentialsstorage.*;
+
+public class AESCryptoTest
+    extends TestCase
+{
+    public void testRoundTrip()
+        throws Exception
+    {
+        AESCrypto crypto = new AESCrypto("master");
+        String encrypted = crypto.encrypt("secret");
+
+        assertEquals("secret", crypto.decrypt(encrypted));
+        assertEquals("secret", new AESCrypto("master").decrypt(encrypted));
+        try
+        {
+            new AESCrypto("other").decrypt(encrypted);
+            fail("decrypted with a wrong master password");
+        }
+        catch (CryptoException e)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * The shorter keys are taken from the longest derived one, which must
+     * give the same keys as deriving them separately.
+     */
+    public void testShortKeyIsPrefixOfLongKey()
+        throws Exception
+    {
+        byte[] longKey = AESCrypto.deriveKey("master", 256);
+        byte[] shortKey = AESCrypto.deriveKey("master", 128);
+
+        assertTrue(
+            Arrays.equals(shortKey, Arrays.copyOf(longKey, shortKey.length)));
+    }
+
+    public void testDestroy()
+        throws Exception
+    {
+        AESCrypto crypto = new AESCrypto(null);
+        String encrypted = crypto.encrypt("secret");
+
+        crypto.destroy();
+        try
+        {
+            crypto.decrypt(encrypted);
+            fail("decrypted with a destroyed key");
+        }
+        catch (CryptoException e)
+        {
+            // expected
+        }
+    }
+}
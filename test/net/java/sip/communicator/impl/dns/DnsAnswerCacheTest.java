@@ -0,0 +1,137 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.net.*;
+
+import junit.framework.*;
+
+import org.xbill.DNS.*;
+
+public class DnsAnswerCacheTest
+    extends TestCase
+{
+    private static final long NOW = 1000000;
+
+    private Name name;
+
+    private DnsAnswerCache cache;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        name = Name.fromString("sip.example.com.");
+        cache = new DnsAnswerCache(2);
+    }
+
+    public void testPositiveResponseExpiresWithTtl() throws Exception
+    {
+        Message query = query(name, Type.A);
+        cache.put(answer(query, 100), NOW);
+
+        Message response = cache.get(query(name, Type.A), NOW + 40000);
+        assertNotNull(response);
+        assertEquals(60, response.getSectionArray(Section.ANSWER)[0].getTTL());
+        assertNull(cache.get(query, NOW + 100000));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testResponseHasQueryId() throws Exception
+    {
+        cache.put(answer(query(name, Type.A), 100), NOW);
+
+        Message query = query(name, Type.A);
+        assertEquals(query.getHeader().getID(),
+            cache.get(query, NOW).getHeader().getID());
+    }
+
+    public void testNegativeResponseUsesSoaMinimum() throws Exception
+    {
+        Message query = query(name, Type.SRV);
+        Message response = reply(query, Rcode.NXDOMAIN);
+        response.addRecord(
+            new SOARecord(Name.fromString("example.com."), DClass.IN, 3600,
+                Name.fromString("ns.example.com."),
+                Name.fromString("admin.example.com."),
+                1, 3600, 600, 86400, 30),
+            Section.AUTHORITY);
+
+        assertTrue(cache.put(response, NOW));
+        assertEquals(Rcode.NXDOMAIN,
+            cache.get(query, NOW + 29000).getRcode());
+        assertNull(cache.get(query, NOW + 30000));
+
+        // without a SOA there is no negative TTL to honour
+        assertFalse(cache.put(reply(query, Rcode.NXDOMAIN), NOW));
+        assertFalse(cache.put(reply(query, Rcode.SERVFAIL), NOW));
+    }
+
+    public void testPrefetchIsClaimedOnceNearExpiry() throws Exception
+    {
+        Message query = query(name, Type.A);
+        cache.put(answer(query, 100), NOW);
+
+        assertFalse(cache.claimPrefetch(query, NOW + 50000));
+        assertTrue(cache.claimPrefetch(query, NOW + 95000));
+        assertFalse(cache.claimPrefetch(query, NOW + 96000));
+
+        cache.put(answer(query, 100), NOW + 96000);
+        assertFalse(cache.claimPrefetch(query, NOW + 97000));
+        assertEquals(1, cache.getPrefetchCount());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception
+    {
+        Name other = Name.fromString("xmpp.example.com.");
+        Name third = Name.fromString("stun.example.com.");
+
+        cache.put(answer(query(name, Type.A), 100), NOW);
+        cache.put(answer(query(other, Type.A), 100), NOW);
+        cache.get(query(name, Type.A), NOW);
+        cache.put(answer(query(third, Type.A), 100), NOW);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(query(name, Type.A), NOW));
+        assertNull(cache.get(query(other, Type.A), NOW));
+    }
+
+    private static Message query(Name name, int type)
+    {
+        return Message.newQuery(Record.newRecord(name, type, DClass.IN));
+    }
+
+    private static Message reply(Message query, int rcode)
+    {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setRcode(rcode);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        return response;
+    }
+
+    private static Message answer(Message query, long ttl) throws Exception
+    {
+        Message response = reply(query, Rcode.NOERROR);
+        response.addRecord(
+            new ARecord(query.getQuestion().getName(), DClass.IN, ttl,
+                InetAddress.getByName("192.0.2.1")),
+            Section.ANSWER);
+        return response;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.util.*;
+
+import javax.swing.*;
+
+import junit.framework.*;
+
+public class BatchedUpdateQueueTest
+    extends TestCase
+{
+    private BatchedUpdateQueue queue;
+
+    private final List<Integer> executed
+        = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    protected void setUp()
+    {
+        queue = new BatchedUpdateQueue(BatchedUpdateQueue.DEFAULT_FRAME_RATE);
+    }
+
+    private Runnable update(final int i)
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                assertTrue(SwingUtilities.isEventDispatchThread());
+                executed.add(i);
+            }
+        };
+    }
+
+    private void waitForUpdates(int count)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (executed.size() < count
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+    }
+
+    public void testUpdatesAreBatchedInOrder()
+        throws Exception
+    {
+        for (int i = 0; i < 1000; i++)
+            queue.invokeLater(update(i), true);
+        waitForUpdates(1000);
+
+        assertEquals(1000, executed.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, executed.get(i).intValue());
+        assertEquals(1000, queue.getUpdateCount());
+        assertTrue(queue.getBatchCount() < 100);
+    }
+
+    public void testDiscardPending()
+        throws Exception
+    {
+        // the updates cannot run while the event dispatch thread is busy
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                queue.invokeLater(update(1), true);
+                queue.invokeLater(update(2), false);
+                queue.invokeLater(update(3), true);
+                assertEquals(2, queue.discardPending());
+                queue.invokeLater(update(4), true);
+            }
+        });
+        waitForUpdates(2);
+        Thread.sleep(100);
+
+        assertEquals(Arrays.asList(2, 4), executed);
+    }
+}
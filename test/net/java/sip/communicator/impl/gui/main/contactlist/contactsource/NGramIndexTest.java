@@ -0,0 +1,72 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+
+public class NGramIndexTest
+    extends TestCase
+{
+    private final NGramIndex<String> index = new NGramIndex<String>();
+
+    private Set<String> find(String text)
+    {
+        return new HashSet<String>(index.find(text));
+    }
+
+    public void testFindsSubstringsIgnoringCase()
+    {
+        index.put("alice", Arrays.asList("Alice Smith", "alice@example.org"));
+        index.put("bob", Arrays.asList("Bob", "bob@jabber.example.org"));
+
+        assertEquals(new HashSet<String>(Arrays.asList("alice")),
+            find("SMI"));
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")),
+            find("example.ORG"));
+        assertTrue(index.find("carol").isEmpty());
+        assertNull(index.find("al"));
+    }
+
+    public void testPutReplacesTermsAndRemoveForgets()
+    {
+        index.put("alice", Arrays.asList("Alice"));
+        index.put("alice", Arrays.asList("Alicia"));
+
+        assertTrue(index.find("alice").isEmpty());
+        assertEquals(Arrays.asList("alice"), index.find("licia"));
+
+        index.remove("alice");
+        assertTrue(index.find("licia").isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    public void testQuotedText()
+    {
+        assertEquals("a.b\\c",
+            MetaContactListSource.getQuotedText(
+                Pattern.compile(Pattern.quote("a.b\\c"))));
+        assertNull(
+            MetaContactListSource.getQuotedText(Pattern.compile("a.*b")));
+        assertNull(
+            MetaContactListSource.getQuotedText(
+                Pattern.compile(Pattern.quote("a\\Eb"))));
+    }
+}
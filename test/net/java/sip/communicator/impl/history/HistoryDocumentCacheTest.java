@@ -0,0 +1,93 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+
+public class HistoryDocumentCacheTest
+    extends TestCase
+{
+    private static Document document(int records)
+        throws Exception
+    {
+        Document doc = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        Element root = doc.createElement("history");
+        doc.appendChild(root);
+
+        for (int i = 0; i < records; i++)
+        {
+            Element record = doc.createElement("record");
+            record.setAttribute("timestamp", Integer.toString(i));
+            Element msg = doc.createElement("msg");
+            msg.appendChild(doc.createTextNode("message " + i));
+            record.appendChild(msg);
+            root.appendChild(record);
+        }
+        return doc;
+    }
+
+    public void testLeastRecentlyUsedIsEvicted()
+        throws Exception
+    {
+        Document doc = document(10);
+        long size = HistoryDocumentCache.estimateSize(doc);
+        HistoryDocumentCache cache = new HistoryDocumentCache(2 * size);
+
+        File a = new File("a.xml");
+        File b = new File("b.xml");
+        File c = new File("c.xml");
+        cache.put(a, doc);
+        cache.put(b, document(10));
+        assertSame(doc, cache.get(a));
+
+        cache.put(c, document(10));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+
+        assertEquals(2, cache.getDocumentCount());
+        assertEquals(2 * size, cache.getSize());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testReplacedDocumentIsAccounted()
+        throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(1024 * 1024);
+        File a = new File("a.xml");
+
+        cache.put(a, document(1));
+        Document bigger = document(20);
+        cache.put(a, bigger);
+
+        assertEquals(HistoryDocumentCache.estimateSize(bigger),
+            cache.getSize());
+
+        cache.put(new File("b.xml"), document(100000));
+        assertEquals(1, cache.getDocumentCount());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class HistoryKeywordIndexTest
+    extends TestCase
+{
+    private File directory;
+
+    /**
+     * The values of the "msg" field by file.
+     */
+    private final Map<String, List<String>> content
+        = new LinkedHashMap<String, List<String>>();
+
+    private final HistoryKeywordIndex.ValueLoader loader
+        = new HistoryKeywordIndex.ValueLoader()
+        {
+            public Iterator<String> getFiles()
+            {
+                return content.keySet().iterator();
+            }
+
+            public List<String> loadValues(String file, String field)
+            {
+                return content.get(file);
+            }
+        };
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+
+        content.put("1.xml", Arrays.asList("Hello World", null));
+        content.put("2.xml", Arrays.asList("see you tomorrow"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    public void testSubstringCandidates()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(
+                directory, HistoryKeywordIndex.XML_INDEX_FILE_PREFIX, loader);
+
+        assertEquals(
+            Collections.singleton("1.xml"),
+            index.findCandidates("msg", new String[] { "WORL" }));
+        assertEquals(
+            Collections.singleton("2.xml"),
+            index.findCandidates("msg", new String[] { "you", "morr" }));
+        assertTrue(
+            index.findCandidates("msg", new String[] { "hello", "you" })
+                .isEmpty());
+        assertNull(index.findCandidates(null, new String[] { "hello" }));
+    }
+
+    public void testAddedRecordsArePersisted()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(
+                directory, HistoryKeywordIndex.XML_INDEX_FILE_PREFIX, loader);
+        index.findCandidates("msg", new String[] { "hello" });
+        index.addRecord(
+            "3.xml",
+            new String[] { "dir", "msg" },
+            new String[] { "out", "hello again" });
+
+        HistoryKeywordIndex reopened
+            = new HistoryKeywordIndex(
+                directory, HistoryKeywordIndex.XML_INDEX_FILE_PREFIX, loader);
+        assertEquals(
+            new HashSet<String>(Arrays.asList("1.xml", "3.xml")),
+            reopened.findCandidates("msg", new String[] { "hello" }));
+    }
+
+    public void testBackendsKeepSeparateIndexes()
+    {
+        new HistoryKeywordIndex(
+                directory, HistoryKeywordIndex.XML_INDEX_FILE_PREFIX, loader)
+            .findCandidates("msg", new String[] { "hello" });
+
+        content.clear();
+        content.put("1", Arrays.asList("Hello World"));
+        HistoryKeywordIndex segments
+            = new HistoryKeywordIndex(
+                    directory,
+                    HistoryKeywordIndex.SEGMENT_INDEX_FILE_PREFIX,
+                    loader);
+        assertEquals(
+            Collections.singleton("1"),
+            segments.findCandidates("msg", new String[] { "hello" }));
+    }
+
+    public void testLookupMatchesEveryPartOfTokens()
+    {
+        content.put("3.xml", Arrays.asList("helloworld worldwide"));
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(
+                    directory, HistoryKeywordIndex.XML_INDEX_FILE_PREFIX,
+                    loader);
+
+        assertEquals(
+            new HashSet<String>(Arrays.asList("1.xml", "3.xml")),
+            index.findCandidates("msg", new String[] { "worl" }));
+        assertEquals(
+            Collections.singleton("3.xml"),
+            index.findCandidates("msg", new String[] { "owor" }));
+        assertEquals(
+            Collections.singleton("2.xml"),
+            index.findCandidates("msg", new String[] { "MOR" }));
+        assertTrue(
+            index.findCandidates("msg", new String[] { "xyz" }).isEmpty());
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Measures the throughput of <tt>HistoryReaderImpl</tt> queries run from an
+ * increasing number of threads, each thread querying its own history the way
+ * the chat window, the call history and the message sources do. The
+ * histories are filled with an increasing number of records and the
+ * throughput for each size and thread count is printed as a table. Run with
+ * <tt>java -cp ... HistoryReaderBenchmark [cache]</tt>; passing
+ * <tt>cache</tt> enables the document cache.
+ */
+public class HistoryReaderBenchmark
+{
+    private static final int HISTORIES = 8;
+
+    private static final int[] RECORDS_PER_HISTORY
+        = { 150, 750, 1500, 3000, 6000 };
+
+    private static final int QUERIES_PER_THREAD = 40;
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        boolean cacheEnabled = args.length > 0 && "cache".equals(args[0]);
+        HistoryServiceImpl service
+            = new HistoryServiceImpl(
+                createBundleContext(
+                    Collections.<String, Object>singletonMap(
+                        HistoryService.CACHE_ENABLED_PROPERTY,
+                        cacheEnabled)));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = Math.max(cores, HISTORIES);
+        System.out.println("cores: " + cores + ", cache: " + cacheEnabled);
+        System.out.println("queries/s by records per history and threads");
+
+        StringBuilder header = new StringBuilder(String.format("%8s", ""));
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+            header.append(String.format("%10d", threads));
+        System.out.println(header);
+
+        boolean warmedUp = false;
+        for (int records : RECORDS_PER_HISTORY)
+        {
+            File root = File.createTempFile("history-benchmark", "");
+            root.delete();
+            HistoryImpl[] histories = createHistories(service, root, records);
+
+            // the first size also warms up the JIT
+            if (!warmedUp)
+            {
+                for (int threads = 1; threads <= maxThreads; threads *= 2)
+                    run(histories, threads);
+                warmedUp = true;
+            }
+
+            StringBuilder row
+                = new StringBuilder(String.format("%8d", records));
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                // warm up, then measure
+                run(histories, threads);
+                long elapsed = run(histories, threads);
+
+                row.append(String.format("%10d",
+                    threads * QUERIES_PER_THREAD * 1000L
+                        / Math.max(1, elapsed)));
+            }
+            System.out.println(row);
+
+            deleteAll(root);
+        }
+    }
+
+    /**
+     * Creates <tt>HISTORIES</tt> histories under <tt>root</tt> holding
+     * <tt>records</tt> records each.
+     */
+    private static HistoryImpl[] createHistories(
+            HistoryServiceImpl service,
+            File root,
+            int records)
+        throws Exception
+    {
+        HistoryRecordStructure structure
+            = new HistoryRecordStructure(new String[] { "dir", "msg" });
+        HistoryImpl[] histories = new HistoryImpl[HISTORIES];
+        for (int h = 0; h < HISTORIES; h++)
+        {
+            File directory = new File(root, Integer.toString(h));
+            directory.mkdirs();
+            histories[h] = new HistoryImpl(
+                HistoryID.createFromRawID(new String[] { "bench", "" + h }),
+                directory,
+                structure,
+                service);
+
+            HistoryWriter writer = histories[h].getWriter();
+            long time = 0;
+            for (int i = 0; i < records; i++)
+            {
+                writer.addRecord(
+                    new String[] { "in", "message number " + i },
+                    new Date(time += 1000));
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * Runs <tt>QUERIES_PER_THREAD</tt> queries from each of
+     * <tt>threads</tt> threads.
+     *
+     * @return the elapsed time in milliseconds
+     */
+    private static long run(final HistoryImpl[] histories, int threads)
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        long start = System.currentTimeMillis();
+
+        for (int t = 0; t < threads; t++)
+        {
+            final HistoryReader reader
+                = histories[t % histories.length].getReader();
+
+            futures.add(executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                    for (int q = 0; q < QUERIES_PER_THREAD; q++)
+                    {
+                        if (q % 2 == 0)
+                            reader.findLast(20);
+                        else
+                            reader.findByKeyword("number 1", "msg");
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void deleteAll(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                deleteAll(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a <tt>BundleContext</tt> which only provides a
+     * <tt>ConfigurationService</tt> answering with <tt>properties</tt> and
+     * with the defaults for the other properties.
+     *
+     * @param properties the values of the configured properties
+     */
+    static BundleContext createBundleContext(
+            final Map<String, Object> properties)
+    {
+        final Object configService = Proxy.newProxyInstance(
+            HistoryReaderBenchmark.class.getClassLoader(),
+            new Class<?>[] { ConfigurationService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().startsWith("get")
+                            && args != null && args.length == 2)
+                    {
+                        return properties.containsKey(args[0])
+                            ? properties.get(args[0])
+                            : args[1];
+                    }
+                    return null;
+                }
+            });
+        final Object configReference = Proxy.newProxyInstance(
+            HistoryReaderBenchmark.class.getClassLoader(),
+            new Class<?>[] { ServiceReference.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return null;
+                }
+            });
+
+        return (BundleContext) Proxy.newProxyInstance(
+            HistoryReaderBenchmark.class.getClassLoader(),
+            new Class<?>[] { BundleContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getServiceReference")
+                            && ConfigurationService.class.getName()
+                                .equals(args[0]))
+                        return configReference;
+                    else if (method.getName().equals("getService")
+                            && args[0] == configReference)
+                        return configService;
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+public class HistorySegmentTest
+    extends TestCase
+{
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    private static HistoryRecord record(long timestamp, String msg)
+    {
+        return new HistoryRecord(
+            new String[] { "dir", "msg" },
+            new String[] { "in", msg },
+            new Date(timestamp));
+    }
+
+    public void testAppendAndRead() throws IOException
+    {
+        HistorySegment segment = new HistorySegment(directory, "1");
+        segment.append(record(10, "first"));
+        segment.append(Arrays.asList(record(20, "second \u00e9"),
+            record(30, null)));
+
+        HistorySegment reopened = new HistorySegment(directory, "1");
+        assertEquals(3, reopened.getRecordCount());
+        assertEquals(10, reopened.getMinTimestamp());
+        assertEquals(30, reopened.getMaxTimestamp());
+
+        List<HistoryRecord> records = reopened.read(new int[] { 2, 1 });
+        assertEquals(1, records.get(0).getPropertyNames().length);
+        assertEquals("second \u00e9", records.get(1).getPropertyValues()[1]);
+        assertEquals(20, records.get(1).getTimestamp().getTime());
+    }
+
+    public void testMissingIndexIsRebuilt() throws IOException
+    {
+        HistorySegment segment = new HistorySegment(directory, "1");
+        segment.append(record(10, "a"));
+        segment.append(record(20, "b"));
+
+        new File(directory, "1" + HistorySegment.INDEX_EXTENSION).delete();
+
+        HistorySegment reopened = new HistorySegment(directory, "1");
+        assertEquals(2, reopened.getRecordCount());
+        assertEquals("b", reopened.read(1).getPropertyValues()[1]);
+    }
+
+    public void testTornRecordIsTruncated() throws IOException
+    {
+        HistorySegment segment = new HistorySegment(directory, "1");
+        segment.append(record(10, "a"));
+
+        File segmentFile
+            = new File(directory, "1" + HistorySegment.SEGMENT_EXTENSION);
+        long validLength = segmentFile.length();
+        FileOutputStream out = new FileOutputStream(segmentFile, true);
+        out.write(new byte[] { 0, 0, 1, 0, 42 });
+        out.close();
+
+        HistorySegment reopened = new HistorySegment(directory, "1");
+        assertEquals(1, reopened.getRecordCount());
+        assertEquals(validLength, segmentFile.length());
+
+        reopened.append(record(20, "b"));
+        assertEquals("b", new HistorySegment(directory, "1")
+            .read(1).getPropertyValues()[1]);
+    }
+
+    public void testRewrite() throws IOException
+    {
+        HistorySegment segment = new HistorySegment(directory, "1");
+        segment.append(record(10, "a"));
+        segment.append(record(20, "b"));
+
+        List<HistoryRecord> records = segment.readAll();
+        records.remove(0);
+        records.add(record(5, "c"));
+        segment.rewrite(records);
+
+        HistorySegment reopened = new HistorySegment(directory, "1");
+        assertEquals(2, reopened.getRecordCount());
+        assertEquals(5, reopened.getMinTimestamp());
+        assertEquals("c", reopened.read(1).getPropertyValues()[1]);
+    }
+
+    public void testTempFilesAreRecovered() throws IOException
+    {
+        new HistorySegment(directory, "1").append(record(10, "a"));
+        new HistorySegment(directory, "2").append(record(20, "b"));
+
+        // a crash of the old rewrite between deleting "1" and renaming the
+        // new content, and a rewrite of "2" interrupted while writing
+        File segmentFile
+            = new File(directory, "1" + HistorySegment.SEGMENT_EXTENSION);
+        File tmpFile = new File(segmentFile.getPath() + ".tmp");
+        assertTrue(segmentFile.renameTo(tmpFile));
+        FileOutputStream out = new FileOutputStream(
+            new File(directory, "2" + HistorySegment.SEGMENT_EXTENSION
+                + ".tmp"));
+        out.write(new byte[] { 0, 0, 1 });
+        out.close();
+
+        HistorySegment.recoverTempFiles(directory);
+
+        assertEquals("a", new HistorySegment(directory, "1")
+            .read(0).getPropertyValues()[1]);
+        assertEquals("b", new HistorySegment(directory, "2")
+            .read(0).getPropertyValues()[1]);
+        for (File f : directory.listFiles())
+            assertFalse(f.getName().endsWith(".tmp"));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.w3c.dom.*;
+
+public class HistoryWriterImplTest
+    extends TestCase
+{
+    private static final int THREADS = 8;
+
+    private static final int RECORDS_PER_THREAD = 200;
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = File.createTempFile("history-writer", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Adds records from several threads so that the documents roll over
+     * while records are being added, and checks that every record is
+     * written.
+     */
+    public void testNoRecordIsLostOnRollover()
+        throws Exception
+    {
+        HistoryServiceImpl service
+            = new HistoryServiceImpl(
+                HistoryReaderBenchmark.createBundleContext(
+                    Collections.<String, Object>singletonMap(
+                        HistoryService.WRITE_BEHIND_ENABLED_PROPERTY,
+                        true)));
+        HistoryImpl history = new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "writer" }),
+            directory,
+            new HistoryRecordStructure(new String[] { "msg" }),
+            service);
+        final HistoryWriter writer = history.getWriter();
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        // distinct timestamps, the new documents are named after them
+        final AtomicLong clock = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                public Void call()
+                    throws Exception
+                {
+                    start.await();
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++)
+                    {
+                        writer.addRecord(
+                            new String[] { thread + "-" + i },
+                            new Date(clock.addAndGet(1000)));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+
+        history.flush();
+
+        DocumentBuilder builder
+            = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Set<String> written = new HashSet<String>();
+        int files = 0;
+        for (File file : directory.listFiles())
+        {
+            if (!file.getName().endsWith(".xml"))
+                continue;
+
+            files++;
+            NodeList values
+                = builder.parse(file).getElementsByTagName("msg");
+            for (int i = 0; i < values.getLength(); i++)
+                written.add(values.item(i).getTextContent());
+        }
+
+        assertTrue(files > 1);
+        assertEquals(THREADS * RECORDS_PER_THREAD, written.size());
+    }
+
+    public void testUnescapeXml()
+    {
+        assertEquals("a < b & \"c\" > 'd'",
+            HistoryWriterImpl.unescapeXml(
+                "a &lt; b &amp; &quot;c&quot; &gt; &apos;d&apos;"));
+        assertEquals("\u00e9\u20ac\ud83d\ude00",
+            HistoryWriterImpl.unescapeXml("&#233;&#x20AC;&#x1F600;"));
+        assertEquals("&amp;lt;", HistoryWriterImpl.unescapeXml("&amp;amp;lt;"));
+        assertEquals("&nbsp; &#xZZ; &#; & &amp",
+            HistoryWriterImpl.unescapeXml("&nbsp; &#xZZ; &#; & &amp"));
+    }
+}
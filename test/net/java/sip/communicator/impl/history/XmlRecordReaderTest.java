@@ -0,0 +1,95 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+public class XmlRecordReaderTest
+    extends TestCase
+{
+    private static final String HISTORY
+        = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<history>"
+            + "<record timestamp=\"1000\"><dir>in</dir>"
+            + "<msg>a &amp;amp; b</msg></record>\n"
+            + "<record timestamp=\"2000\"><dir>out</dir>"
+            + "<msg><![CDATA[<b>bold</b>]]></msg><id/></record>\n"
+            + "<record timestamp=\"3000\"><dir>in</dir>"
+            + "<msg>last</msg></record>\n"
+            + "</history>";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("history", ".xml");
+        Writer out = new OutputStreamWriter(
+            new FileOutputStream(file), "UTF-8");
+        out.write(HISTORY);
+        out.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testStreamedRecordsMatchDocument() throws Exception
+    {
+        List<HistoryRecord> streamed
+            = XmlRecordReader.readLast(file, new Date(3000), 5);
+        List<HistoryRecord> parsed = XmlRecordReader.readLast(
+            DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(file),
+            new Date(3000),
+            5);
+
+        assertEquals(2, streamed.size());
+        assertEquals(parsed.size(), streamed.size());
+        for (int i = 0; i < streamed.size(); i++)
+        {
+            assertEquals(parsed.get(i).getTimestamp(),
+                streamed.get(i).getTimestamp());
+            assertTrue(Arrays.equals(parsed.get(i).getPropertyNames(),
+                streamed.get(i).getPropertyNames()));
+            assertTrue(Arrays.equals(parsed.get(i).getPropertyValues(),
+                streamed.get(i).getPropertyValues()));
+        }
+
+        assertEquals("a & b", streamed.get(0).getPropertyValues()[1]);
+        assertEquals("<b>bold</b>", streamed.get(1).getPropertyValues()[1]);
+        assertEquals(2, streamed.get(1).getPropertyNames().length);
+    }
+
+    public void testOnlyLastRecordsAreKept() throws Exception
+    {
+        List<HistoryRecord> records = XmlRecordReader.readLast(file, null, 2);
+
+        assertEquals(2, records.size());
+        assertEquals(2000, records.get(0).getTimestamp().getTime());
+        assertEquals("last", records.get(1).getPropertyValues()[1]);
+    }
+}
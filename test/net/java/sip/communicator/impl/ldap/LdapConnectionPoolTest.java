@@ -0,0 +1,148 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.naming.*;
+import javax.naming.ldap.*;
+
+import junit.framework.*;
+
+public class LdapConnectionPoolTest
+    extends TestCase
+{
+    private final List<FakeConnection> created
+        = new ArrayList<FakeConnection>();
+
+    public void testReleasedConnectionIsReused() throws Exception
+    {
+        LdapConnectionPool pool = new TestPool(2, 60000, 60000);
+
+        LdapContext first = pool.acquire();
+        pool.release(first, true);
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, created.size());
+    }
+
+    public void testFailedConnectionIsClosed() throws Exception
+    {
+        LdapConnectionPool pool = new TestPool(2, 60000, 60000);
+
+        LdapContext first = pool.acquire();
+        pool.release(first, false);
+
+        assertTrue(created.get(0).closed);
+        assertNotSame(first, pool.acquire());
+    }
+
+    public void testUnhealthyIdleConnectionIsReplaced() throws Exception
+    {
+        // every idle connection is checked before being reused
+        LdapConnectionPool pool = new TestPool(2, 0, 60000);
+
+        LdapContext first = pool.acquire();
+        pool.release(first, true);
+        created.get(0).healthy = false;
+
+        assertNotSame(first, pool.acquire());
+        assertTrue(created.get(0).closed);
+        assertEquals(1, created.get(0).healthChecks);
+    }
+
+    public void testIdleConnectionsAreBoundedAndClosedWithPool()
+        throws Exception
+    {
+        LdapConnectionPool pool = new TestPool(1, 60000, 60000);
+
+        LdapContext first = pool.acquire();
+        LdapContext second = pool.acquire();
+        pool.release(first, true);
+        pool.release(second, true);
+
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(created.get(1).closed);
+
+        pool.close();
+        assertTrue(created.get(0).closed);
+        try
+        {
+            pool.acquire();
+            fail("acquired a connection from a closed pool");
+        }
+        catch (ServiceUnavailableException e)
+        {
+        }
+    }
+
+    private class TestPool
+        extends LdapConnectionPool
+    {
+        TestPool(int maxIdle, long validateAfter, long maxIdleTime)
+        {
+            super(new Hashtable<String, String>(), "test",
+                maxIdle, validateAfter, maxIdleTime);
+        }
+
+        @Override
+        protected LdapContext createContext()
+        {
+            FakeConnection connection = new FakeConnection();
+            created.add(connection);
+            return connection.context;
+        }
+    }
+
+    private static class FakeConnection
+        implements InvocationHandler
+    {
+        final LdapContext context
+            = (LdapContext) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { LdapContext.class },
+                this);
+
+        boolean closed = false;
+
+        boolean healthy = true;
+
+        int healthChecks = 0;
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            String name = method.getName();
+
+            if (name.equals("close"))
+                closed = true;
+            else if (name.equals("getAttributes"))
+            {
+                healthChecks++;
+                if (!healthy)
+                    throw new CommunicationException("connection reset");
+            }
+            else if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            else if (name.equals("equals"))
+                return proxy == args[0];
+            return null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class LdapResultCacheTest
+    extends TestCase
+{
+    private static final long NOW = 1000000;
+
+    private LdapResultCache cache;
+
+    private List<LdapResultCache.Result> results;
+
+    @Override
+    protected void setUp()
+    {
+        cache = new LdapResultCache(4, 60000);
+        results = Arrays.asList(
+            new LdapResultCache.Result("cn=John",
+                new HashMap<String, Set<Object>>()));
+    }
+
+    public void testExactQueryIsAnsweredUntilExpiry()
+    {
+        cache.put("corp", "Jo", results, false, 40, NOW);
+
+        assertEquals(results, cache.get("corp", "jo", 40, true, NOW + 1000));
+        assertNull(cache.get("corp", "jo", 0, true, NOW + 1000));
+        assertNull(cache.get("corp", "jo", 40, true, NOW + 60000));
+        assertNull(cache.get("other", "jo", 40, true, NOW));
+    }
+
+    public void testLongerQueryIsAnsweredFromCompletePrefix()
+    {
+        cache.put("corp", "jo", results, true, 40, NOW);
+
+        assertEquals(results, cache.get("corp", "john", 40, true, NOW));
+        assertNull(cache.get("corp", "john", 40, false, NOW));
+        assertNull(cache.get("corp", "j", 40, true, NOW));
+    }
+
+    public void testTruncatedPrefixIsNotRefined()
+    {
+        cache.put("corp", "jo", results, false, 40, NOW);
+
+        assertNull(cache.get("corp", "joh", 40, true, NOW));
+    }
+
+    public void testInvalidateRemovesDirectoryOnly()
+    {
+        cache.put("corp", "jo", results, true, 40, NOW);
+        cache.put("corp2", "jo", results, true, 40, NOW);
+
+        cache.invalidate("corp");
+
+        assertNull(cache.get("corp", "jo", 40, true, NOW));
+        assertEquals(results, cache.get("corp2", "jo", 40, true, NOW));
+    }
+}
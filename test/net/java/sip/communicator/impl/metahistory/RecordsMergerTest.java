@@ -0,0 +1,102 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class RecordsMergerTest
+    extends TestCase
+{
+    private static final Comparator<Integer> ORDER
+        = new Comparator<Integer>()
+        {
+            public int compare(Integer i1, Integer i2)
+            {
+                return i1.compareTo(i2);
+            }
+        };
+
+    private List<List<Integer>> lists;
+
+    @Override
+    protected void setUp()
+    {
+        lists = new ArrayList<List<Integer>>();
+        lists.add(Arrays.asList(1, 4, 7, 10));
+        lists.add(Collections.<Integer>emptyList());
+        lists.add(Arrays.asList(2, 5, 8));
+        lists.add(Arrays.asList(3, 6, 9, 11, 12));
+    }
+
+    public void testMergeAll()
+    {
+        assertEquals(
+            Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12),
+            RecordsMerger.mergeFirst(lists, ORDER, -1));
+        assertEquals(
+            RecordsMerger.mergeFirst(lists, ORDER, -1),
+            RecordsMerger.mergeLast(lists, ORDER, -1));
+    }
+
+    public void testMergeFirst()
+    {
+        assertEquals(
+            Arrays.asList(1, 2, 3, 4),
+            RecordsMerger.mergeFirst(lists, ORDER, 4));
+        assertEquals(12, RecordsMerger.mergeFirst(lists, ORDER, 50).size());
+        assertTrue(RecordsMerger.mergeFirst(lists, ORDER, 0).isEmpty());
+    }
+
+    public void testMergeLast()
+    {
+        assertEquals(
+            Arrays.asList(9, 10, 11, 12),
+            RecordsMerger.mergeLast(lists, ORDER, 4));
+        assertTrue(
+            RecordsMerger.mergeLast(
+                    new ArrayList<List<Integer>>(), ORDER, 4)
+                .isEmpty());
+    }
+
+    /**
+     * Records with equal times are all kept, in the order of their lists.
+     */
+    public void testEqualRecords()
+    {
+        // compare only the tens so that records are told apart
+        Comparator<Integer> tens = new Comparator<Integer>()
+        {
+            public int compare(Integer i1, Integer i2)
+            {
+                return (i1 / 10) - (i2 / 10);
+            }
+        };
+        List<List<Integer>> equal = new ArrayList<List<Integer>>();
+        equal.add(Arrays.asList(10, 20));
+        equal.add(Arrays.asList(11, 21));
+
+        assertEquals(
+            Arrays.asList(10, 11, 20, 21),
+            RecordsMerger.mergeFirst(equal, tens, -1));
+        assertEquals(
+            Arrays.asList(20, 21),
+            RecordsMerger.mergeLast(equal, tens, 2));
+    }
+}
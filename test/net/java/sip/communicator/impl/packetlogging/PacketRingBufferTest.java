@@ -0,0 +1,119 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import junit.framework.*;
+
+import org.jitsi.service.packetlogging.*;
+
+public class PacketRingBufferTest
+    extends TestCase
+{
+    private static final byte[] ADDRESS = new byte[] { 127, 0, 0, 1 };
+
+    public void testPacketsAreCopiedInOrder()
+    {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        byte[] content = new byte[] { 1, 2, 3 };
+
+        assertTrue(offer(buffer, content, 5000));
+        content[0] = 9;
+        assertTrue(offer(buffer, content, 5001));
+
+        PacketRingBuffer.Slot slot = buffer.peek();
+        assertEquals(5000, slot.sourcePort);
+        assertEquals(1, slot.content[0]);
+        assertEquals(3, slot.length);
+        assertEquals(4, slot.sourceAddressLength);
+        buffer.release();
+
+        assertEquals(9, buffer.peek().content[0]);
+        buffer.release();
+        assertTrue(buffer.isEmpty());
+    }
+
+    public void testFullBufferDropsPackets()
+    {
+        PacketRingBuffer buffer = new PacketRingBuffer(3);
+        byte[] content = new byte[3000];
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(offer(buffer, content, i));
+        assertFalse(offer(buffer, content, 4));
+        assertEquals(1, buffer.getDroppedCount());
+
+        buffer.peek();
+        buffer.release();
+        assertTrue(offer(buffer, content, 5));
+        assertEquals(3000, buffer.peek().length);
+    }
+
+    public void testConcurrentProducers() throws Exception
+    {
+        final PacketRingBuffer buffer = new PacketRingBuffer(1024);
+        final int perThread = 10000;
+        Thread[] producers = new Thread[4];
+
+        for (int t = 0; t < producers.length; t++)
+        {
+            final byte id = (byte) t;
+            producers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < perThread; i++)
+                        offer(buffer, new byte[] { id }, i);
+                }
+            };
+            producers[t].start();
+        }
+
+        long received = 0;
+        int[] lastPort = new int[] { -1, -1, -1, -1 };
+        boolean running = true;
+        while (running || !buffer.isEmpty())
+        {
+            running = false;
+            for (Thread producer : producers)
+                running |= producer.isAlive();
+
+            PacketRingBuffer.Slot slot;
+            while ((slot = buffer.peek()) != null)
+            {
+                // packets of every producer arrive in the order sent
+                int id = slot.content[0];
+                assertTrue(slot.sourcePort > lastPort[id]);
+                lastPort[id] = slot.sourcePort;
+                buffer.release();
+                received++;
+            }
+        }
+
+        assertEquals(producers.length * perThread,
+            received + buffer.getDroppedCount());
+    }
+
+    private static boolean offer(PacketRingBuffer buffer, byte[] content,
+        int port)
+    {
+        return buffer.offer(ADDRESS, port, ADDRESS, 5060,
+            PacketLoggingService.TransportName.UDP, true,
+            content, 0, content.length);
+    }
+}
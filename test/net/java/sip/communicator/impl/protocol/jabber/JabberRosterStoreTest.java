@@ -0,0 +1,116 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+
+import junit.framework.*;
+
+import org.jivesoftware.smack.roster.packet.*;
+import org.jivesoftware.smack.roster.rosterstore.*;
+import org.jxmpp.jid.impl.*;
+
+public class JabberRosterStoreTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("roster", "");
+        assertTrue(dir.delete());
+        dir = new File(dir, "Jabber_alice@example.com");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        File parent = dir.getParentFile();
+
+        delete(parent);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    public void testStoreIsKeptBetweenConnections()
+        throws Exception
+    {
+        RosterStore store = JabberRosterStore.open(dir);
+
+        assertNotNull(store);
+        assertEquals("", store.getRosterVersion());
+        assertTrue(
+                store.addEntry(
+                        new RosterPacket.Item(
+                                JidCreate.bareFrom("bob@example.com"),
+                                "Bob"),
+                        "ver1"));
+
+        store = JabberRosterStore.open(dir);
+
+        assertEquals("ver1", store.getRosterVersion());
+        assertEquals(1, store.getEntries().size());
+        assertEquals(
+                "Bob",
+                store.getEntry(JidCreate.bareFrom("bob@example.com"))
+                    .getName());
+    }
+
+    public void testDeletedStoreIsEmpty()
+        throws Exception
+    {
+        RosterStore store = JabberRosterStore.open(dir);
+
+        store.addEntry(
+                new RosterPacket.Item(
+                        JidCreate.bareFrom("bob@example.com"),
+                        "Bob"),
+                "ver1");
+
+        assertTrue(JabberRosterStore.delete(dir));
+        assertFalse(dir.exists());
+
+        store = JabberRosterStore.open(dir);
+
+        assertEquals("", store.getRosterVersion());
+        assertTrue(store.getEntries().isEmpty());
+    }
+
+    public void testDirectoryName()
+    {
+        assertEquals(
+                "Jabber_alice@example.com",
+                JabberRosterStore.getDirectoryName("Jabber:alice@example.com"));
+        assertEquals(
+                "Jabber_a_b_c@example.com",
+                JabberRosterStore.getDirectoryName(
+                        "Jabber:a/b\\c@example.com"));
+    }
+}
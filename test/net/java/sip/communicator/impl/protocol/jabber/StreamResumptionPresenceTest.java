@@ -0,0 +1,108 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.roster.*;
+import org.jivesoftware.smack.tcp.*;
+import org.jxmpp.jid.*;
+import org.jxmpp.jid.impl.*;
+
+public class StreamResumptionPresenceTest
+    extends TestCase
+{
+    /**
+     * A connection which is never connected, receiving the stanzas and
+     * connection events of the tests.
+     */
+    private static class TestConnection
+        extends XMPPTCPConnection
+    {
+        TestConnection()
+            throws Exception
+        {
+            super(XMPPTCPConnectionConfiguration.builder()
+                .setXmppDomain("example.com")
+                .build());
+        }
+
+        void receive(Stanza stanza)
+        {
+            invokeStanzaCollectorsAndNotifyRecvListeners(stanza);
+        }
+
+        void loseAndResume()
+        {
+            callConnectionClosedOnErrorListener(
+                new IOException("Connection reset"));
+            callConnectionAuthenticatedListener(true);
+        }
+    }
+
+    private static Presence presence(Presence.Type type, String from)
+        throws Exception
+    {
+        Presence presence = new Presence(type);
+
+        presence.setFrom(JidCreate.from(from));
+        return presence;
+    }
+
+    private static void waitForPresence(Roster roster, BareJid jid)
+        throws InterruptedException
+    {
+        // the roster processes the presences on the thread of the
+        // connection dispatching them
+        for (int i = 0;
+                i < 100 && roster.getAvailablePresences(jid).isEmpty();
+                i++)
+            Thread.sleep(50);
+    }
+
+    public void testPresencesAreRestoredAfterResumption()
+        throws Exception
+    {
+        TestConnection connection = new TestConnection();
+        Roster roster = Roster.getInstanceFor(connection);
+        BareJid bob = JidCreate.bareFrom("bob@example.com");
+        BareJid carol = JidCreate.bareFrom("carol@example.com");
+        Presence bobPresence
+            = presence(Presence.Type.available, "bob@example.com/pc");
+
+        connection.receive(bobPresence);
+        connection.receive(
+            presence(Presence.Type.unavailable, "carol@example.com/pc"));
+        waitForPresence(roster, bob);
+
+        connection.loseAndResume();
+
+        List<Presence> presences
+            = ServerStoredContactListJabberImpl.getAvailablePresences(
+                roster, Arrays.asList(bob, carol));
+
+        // the roster keeps copies of the presences
+        assertEquals(1, presences.size());
+        assertEquals(bobPresence.getFrom(), presences.get(0).getFrom());
+        assertEquals(Presence.Type.available, presences.get(0).getType());
+    }
+}
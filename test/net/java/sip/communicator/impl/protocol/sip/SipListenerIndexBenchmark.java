@@ -0,0 +1,152 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+/**
+ * Measures how long <tt>SipStackSharing.findTargetFor</tt> takes to select
+ * the accounts of the Request-URI user, comparing the linear scan it used
+ * to do over a copy of all the accounts with the lookup in
+ * <tt>SipListenerIndex</tt>, for an increasing number of accounts. Run with
+ * <tt>java -cp ... SipListenerIndexBenchmark</tt>.
+ */
+public class SipListenerIndexBenchmark
+{
+    private static final int[] ACCOUNTS = { 1, 10, 100, 1000, 10000 };
+
+    private static final int LOOKUPS = 200000;
+
+    public static void main(String[] args)
+    {
+        System.out.println("ns/lookup by number of accounts");
+        System.out.println(
+            String.format("%8s%12s%12s", "", "linear", "index"));
+
+        boolean warmedUp = false;
+        for (int accounts : ACCOUNTS)
+        {
+            List<ProtocolProviderServiceSipImpl> providers
+                = SipListenerIndexTest.providers(accounts);
+            Set<ProtocolProviderServiceSipImpl> listeners
+                = new HashSet<ProtocolProviderServiceSipImpl>(providers);
+            SipListenerIndex index = new SipListenerIndex(providers);
+
+            int lookups = Math.max(1000, LOOKUPS / accounts);
+
+            // the first size also warms up the JIT
+            if (!warmedUp)
+            {
+                for (int i = 0; i < 10; i++)
+                {
+                    scan(listeners, accounts, LOOKUPS);
+                    lookup(index, accounts, LOOKUPS);
+                }
+                warmedUp = true;
+            }
+
+            // warm up, then measure
+            scan(listeners, accounts, lookups);
+            long linear = scan(listeners, accounts, lookups);
+            lookup(index, accounts, lookups);
+            long indexed = lookup(index, accounts, lookups);
+
+            System.out.println(String.format("%8d%12d%12d",
+                accounts, linear / lookups, indexed / lookups));
+        }
+    }
+
+    /**
+     * Selects the accounts of a user the way <tt>findTargetFor</tt> did
+     * before <tt>SipListenerIndex</tt>, copying all the accounts and
+     * comparing the user with each of them.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long scan(Set<ProtocolProviderServiceSipImpl> listeners,
+                             int accounts,
+                             int lookups)
+    {
+        int found = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < lookups; i++)
+        {
+            String user = "user" + (i % accounts);
+            List<ProtocolProviderServiceSipImpl> copy;
+            synchronized (listeners)
+            {
+                copy = new ArrayList<ProtocolProviderServiceSipImpl>(
+                    listeners);
+            }
+
+            List<ProtocolProviderServiceSipImpl> candidates
+                = new ArrayList<ProtocolProviderServiceSipImpl>();
+            for (ProtocolProviderServiceSipImpl listener : copy)
+            {
+                if (listener.getAccountID().getUserID().equals(user))
+                    candidates.add(listener);
+            }
+            found += candidates.size();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        check(found, lookups);
+        return elapsed;
+    }
+
+    /**
+     * Selects the accounts of a user with <tt>SipListenerIndex</tt>, the
+     * way <tt>findTargetFor</tt> does.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long lookup(SipListenerIndex index,
+                               int accounts,
+                               int lookups)
+    {
+        int found = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < lookups; i++)
+        {
+            String user = "user" + (i % accounts);
+            List<ProtocolProviderServiceSipImpl> candidates
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                    index.getListenersForUser(user));
+            found += candidates.size();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        check(found, lookups);
+        return elapsed;
+    }
+
+    /**
+     * Checks that every lookup found its account, which also keeps the
+     * lookups from being optimized away.
+     */
+    private static void check(int found, int lookups)
+    {
+        if (found != lookups)
+        {
+            throw new IllegalStateException(
+                "Found " + found + " accounts in " + lookups + " lookups");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+
+public class SipListenerIndexTest
+    extends TestCase
+{
+    static ProtocolProviderServiceSipImpl provider(String userID)
+    {
+        final AccountID accountID
+            = new SipAccountIDImpl(
+                    userID,
+                    new HashMap<String, String>(),
+                    "example.com");
+
+        return new ProtocolProviderServiceSipImpl()
+        {
+            @Override
+            public AccountID getAccountID()
+            {
+                return accountID;
+            }
+        };
+    }
+
+    static List<ProtocolProviderServiceSipImpl> providers(int count)
+    {
+        List<ProtocolProviderServiceSipImpl> providers
+            = new ArrayList<ProtocolProviderServiceSipImpl>(count);
+
+        for (int i = 0; i < count; i++)
+            providers.add(provider("user" + i));
+        return providers;
+    }
+
+    public void testEmptyIndex()
+    {
+        assertEquals(0, SipListenerIndex.EMPTY.size());
+        assertTrue(SipListenerIndex.EMPTY.getListenersForUser("a").isEmpty());
+        assertTrue(SipListenerIndex.EMPTY.getListenersForUser(null).isEmpty());
+    }
+
+    public void testLookupByUser()
+    {
+        for (int count : new int[] { 1, 100, 1000 })
+        {
+            List<ProtocolProviderServiceSipImpl> providers = providers(count);
+            SipListenerIndex index = new SipListenerIndex(providers);
+
+            assertEquals(count, index.size());
+            assertEquals(providers, index.getListeners());
+            for (int i = 0; i < count; i++)
+            {
+                assertEquals(
+                        Collections.singletonList(providers.get(i)),
+                        index.getListenersForUser("user" + i));
+            }
+            assertTrue(index.getListenersForUser("unknown").isEmpty());
+            assertTrue(index.getListenersForUser(null).isEmpty());
+        }
+    }
+
+    public void testAccountsOfTheSameUser()
+    {
+        ProtocolProviderServiceSipImpl first = provider("alice");
+        ProtocolProviderServiceSipImpl second = provider("alice@other.org");
+        ProtocolProviderServiceSipImpl bob = provider("bob");
+        SipListenerIndex index
+            = new SipListenerIndex(Arrays.asList(first, bob, second));
+
+        assertEquals(
+                Arrays.asList(first, second),
+                index.getListenersForUser("alice"));
+        assertEquals(
+                Collections.singletonList(bob),
+                index.getListenersForUser("bob"));
+    }
+}
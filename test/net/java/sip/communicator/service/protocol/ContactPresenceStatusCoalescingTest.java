@@ -0,0 +1,160 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.protocol;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.protocol.event.*;
+
+public class ContactPresenceStatusCoalescingTest
+    extends TestCase
+{
+    private MockProvider provider;
+
+    private MockPersistentPresenceOperationSet opSet;
+
+    private final List<ContactPresenceStatusChangeEvent> legacyEvents
+        = new ArrayList<ContactPresenceStatusChangeEvent>();
+
+    private final List<ContactPresenceStatusChangeEvent> singleEvents
+        = new ArrayList<ContactPresenceStatusChangeEvent>();
+
+    private final List<ContactPresenceStatusBatchEvent> batches
+        = new ArrayList<ContactPresenceStatusBatchEvent>();
+
+    @Override
+    protected void setUp()
+    {
+        provider = new MockProvider("alice");
+
+        opSet
+            = (MockPersistentPresenceOperationSet)
+                provider.getOperationSet(OperationSetPersistentPresence.class);
+        opSet.addContactPresenceStatusListener(
+                new ContactPresenceStatusListener()
+                {
+                    public void contactPresenceStatusChanged(
+                            ContactPresenceStatusChangeEvent evt)
+                    {
+                        legacyEvents.add(evt);
+                    }
+                });
+        opSet.addContactPresenceStatusListener(
+                new ContactPresenceStatusBatchListener()
+                {
+                    public void contactPresenceStatusChanged(
+                            ContactPresenceStatusChangeEvent evt)
+                    {
+                        singleEvents.add(evt);
+                    }
+
+                    public void contactPresenceStatusBatchChanged(
+                            ContactPresenceStatusBatchEvent evt)
+                    {
+                        batches.add(evt);
+                    }
+                });
+    }
+
+    private MockContact contact(String id)
+    {
+        MockContact contact = new MockContact(id, provider);
+
+        contact.setPresenceStatus(MockStatusEnum.MOCK_STATUS_00);
+        return contact;
+    }
+
+    private void flush()
+    {
+        ((AbstractOperationSetPersistentPresence<?>) opSet)
+            .flushContactPresenceStatusChanges();
+    }
+
+    public void testChangesAreDeliveredImmediatelyByDefault()
+    {
+        MockContact bob = contact("bob");
+
+        opSet.changePresenceStatusForContact(
+                bob, MockStatusEnum.MOCK_STATUS_50);
+
+        assertEquals(1, legacyEvents.size());
+        assertEquals(1, singleEvents.size());
+        assertTrue(batches.isEmpty());
+    }
+
+    public void testChangesAreCoalescedPerContact()
+    {
+        MockContact bob = contact("bob");
+        MockContact carol = contact("carol");
+        MockContact dave = contact("dave");
+
+        opSet.setContactPresenceStatusCoalescingWindow(60 * 1000);
+        opSet.changePresenceStatusForContact(
+                bob, MockStatusEnum.MOCK_STATUS_50);
+        opSet.changePresenceStatusForContact(
+                carol, MockStatusEnum.MOCK_STATUS_50);
+        opSet.changePresenceStatusForContact(
+                bob, MockStatusEnum.MOCK_STATUS_90);
+        opSet.changePresenceStatusForContact(
+                dave, MockStatusEnum.MOCK_STATUS_50);
+        opSet.changePresenceStatusForContact(
+                dave, MockStatusEnum.MOCK_STATUS_00);
+
+        assertEquals(5, legacyEvents.size());
+        assertTrue(singleEvents.isEmpty());
+        assertTrue(batches.isEmpty());
+
+        flush();
+
+        assertTrue(singleEvents.isEmpty());
+        assertEquals(1, batches.size());
+
+        List<ContactPresenceStatusChangeEvent> events
+            = batches.get(0).getEvents();
+
+        assertEquals(2, events.size());
+        assertSame(bob, events.get(0).getSourceContact());
+        assertEquals(
+                MockStatusEnum.MOCK_STATUS_00, events.get(0).getOldStatus());
+        assertEquals(
+                MockStatusEnum.MOCK_STATUS_90, events.get(0).getNewStatus());
+        assertSame(carol, events.get(1).getSourceContact());
+
+        flush();
+
+        assertEquals(1, batches.size());
+    }
+
+    public void testDisablingCoalescingFlushesPendingChanges()
+    {
+        opSet.setContactPresenceStatusCoalescingWindow(60 * 1000);
+        opSet.changePresenceStatusForContact(
+                contact("bob"), MockStatusEnum.MOCK_STATUS_50);
+        opSet.setContactPresenceStatusCoalescingWindow(0);
+
+        assertEquals(1, batches.size());
+
+        opSet.changePresenceStatusForContact(
+                contact("carol"), MockStatusEnum.MOCK_STATUS_50);
+
+        assertEquals(1, batches.size());
+        assertEquals(1, singleEvents.size());
+    }
+}
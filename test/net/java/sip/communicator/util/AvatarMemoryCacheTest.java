@@ -0,0 +1,79 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class AvatarMemoryCacheTest
+    extends TestCase
+{
+    private static byte[] bytes(int value, int length)
+    {
+        byte[] bytes = new byte[length];
+
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    public void testSameContentIsStoredOnce()
+    {
+        AvatarMemoryCache cache = new AvatarMemoryCache(1000);
+
+        byte[] first = cache.putBytes("a/alice", bytes(1, 100));
+        byte[] second = cache.putBytes("b/alice", bytes(1, 100));
+
+        assertSame(first, second);
+        assertSame(first, cache.getBytes("a/alice"));
+        assertEquals(1, cache.getCount());
+        assertEquals(100, cache.getSize());
+
+        cache.putVariant(bytes(1, 100), "32x32", "icon", 50);
+        assertEquals("icon", cache.getVariant(second, "32x32"));
+        assertNull(cache.getVariant(second, "64x64"));
+        assertEquals(150, cache.getSize());
+    }
+
+    public void testChangedFileReplacesBytes()
+    {
+        AvatarMemoryCache cache = new AvatarMemoryCache(1000);
+
+        cache.putBytes("a/alice", bytes(1, 10));
+        cache.putBytes("a/alice", bytes(2, 10));
+        assertEquals(2, cache.getBytes("a/alice")[0]);
+
+        cache.removeBytes("a/alice");
+        assertNull(cache.getBytes("a/alice"));
+    }
+
+    public void testLeastRecentlyUsedAvatarsAreEvicted()
+    {
+        AvatarMemoryCache cache = new AvatarMemoryCache(250);
+
+        cache.putBytes("alice", bytes(1, 100));
+        cache.putBytes("bob", bytes(2, 100));
+        cache.getBytes("alice");
+        cache.putVariant(bytes(3, 10), "32x32", "icon", 60);
+
+        assertNull(cache.getBytes("bob"));
+        assertNotNull(cache.getBytes("alice"));
+        assertEquals("icon", cache.getVariant(bytes(3, 10), "32x32"));
+        assertTrue(cache.getSize() <= 250);
+    }
+}